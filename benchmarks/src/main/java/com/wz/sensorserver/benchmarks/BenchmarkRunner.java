@@ -0,0 +1,76 @@
+package com.wz.sensorserver.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks with the usual JMH command line. The GC profiler is always on, so every report has allocation
+ * rates per operation, and results are written as JSON unless the command line says otherwise. The run fails if a
+ * benchmark with an allocation budget allocates more per operation
+ */
+public class BenchmarkRunner {
+    private static final String ALLOCATION_PER_OPERATION = "gc.alloc.rate.norm";
+    /**
+     * bytes per operation a benchmark may allocate. The ingest path allocates only the encoded broker message, 16
+     * bytes of array header plus 45 bytes, padded to 64
+     */
+    private static final Map<String, Double> ALLOCATION_BUDGETS = Map.of(
+            IngestBenchmark.class.getName() + ".onNext", 96.0);
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        if (commandLineOptions.shouldHelp() || commandLineOptions.shouldList()
+                || commandLineOptions.shouldListProfilers() || commandLineOptions.shouldListResultFormats()) {
+            // plain JMH prints help and lists
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class);
+        if (!commandLineOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON)
+                    .result(commandLineOptions.getResult().orElse("jmh-result.json"));
+        }
+        Collection<RunResult> results = new Runner(options.build()).run();
+        if (!withinAllocationBudgets(results))
+            System.exit(1);
+    }
+
+    private static boolean withinAllocationBudgets(Collection<RunResult> results) {
+        boolean within = true;
+        for (RunResult result : results) {
+            Double budget = ALLOCATION_BUDGETS.get(result.getParams().getBenchmark());
+            if (budget == null)
+                continue;
+            // JMH prefixes the names of profiler results with a middle dot
+            Result<?> allocated = result.getSecondaryResults().entrySet().stream()
+                    .filter(secondary -> secondary.getKey().endsWith(ALLOCATION_PER_OPERATION))
+                    .map(Map.Entry::getValue)
+                    .findFirst()
+                    .orElse(null);
+            if (allocated == null) {
+                System.err.printf("%s has an allocation budget but no %s was reported%n",
+                        result.getParams().getBenchmark(), ALLOCATION_PER_OPERATION);
+                within = false;
+            } else if (allocated.getScore() > budget) {
+                System.err.printf("%s allocates %.1f bytes per operation, over its budget of %.0f%n",
+                        result.getParams().getBenchmark(), allocated.getScore(), budget);
+                within = false;
+            }
+        }
+        return within;
+    }
+}
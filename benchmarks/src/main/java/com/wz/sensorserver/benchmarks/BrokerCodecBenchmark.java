@@ -0,0 +1,83 @@
+package com.wz.sensorserver.benchmarks;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.wz.sensorserver.benchmarks.broker.InMemoryBroker;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.mq.MQConsumer;
+import com.wz.sensorserver.mq.MQPublisher;
+import com.wz.sensorserver.mq.codec.JavaSerializationCodec;
+import com.wz.sensorserver.mq.codec.MessageCodec;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Encoding a message on publishing and decoding it on delivery, per codec. The channel is an in-memory stand-in, so
+ * only the client side of the messaging is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerCodecBenchmark {
+    public enum Codec {
+        JAVA_SERIALIZATION(JavaSerializationCodec::new),
+        BINARY(SensorMessageCodec::new);
+
+        private final Supplier<MessageCodec<SensorMessage>> factory;
+
+        Codec(Supplier<MessageCodec<SensorMessage>> factory) {
+            this.factory = factory;
+        }
+    }
+
+    @Param({"JAVA_SERIALIZATION", "BINARY"})
+    private Codec codec;
+
+    private MQPublisher<SensorMessage> publisher;
+    private MQConsumer<SensorMessage> consumer;
+    private MeasurementMessage message;
+    private byte[] body;
+    private Envelope envelope;
+    private Blackhole blackhole;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        InMemoryBroker broker = new InMemoryBroker();
+        UUID sensorId = UUID.randomUUID();
+        MessageCodec<SensorMessage> messageCodec = codec.factory.get();
+        Channel channel = broker.newChannel();
+        // nothing is bound to the exchange, publishing ends at the channel
+        publisher = new MQPublisher<>(channel, sensorId.toString(), "", messageCodec);
+        consumer = new MQConsumer<>(channel, this::consume, messageCodec);
+        message = new MeasurementMessage(new Measurement(21.5, Instant.now(), 1), sensorId.toString());
+        body = messageCodec.encode(message);
+        envelope = new Envelope(1, false, sensorId.toString(), "");
+    }
+
+    @Benchmark
+    public void publishMessage() {
+        publisher.publishMessage(message);
+    }
+
+    @Benchmark
+    public void handleDelivery() throws IOException {
+        consumer.handleDelivery("benchmark", envelope, null, body);
+    }
+
+    private void consume(SensorMessage sensorMessage) {
+        blackhole.consume(sensorMessage);
+    }
+}
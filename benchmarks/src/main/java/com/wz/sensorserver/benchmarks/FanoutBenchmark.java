@@ -0,0 +1,139 @@
+package com.wz.sensorserver.benchmarks;
+
+import com.wz.sensors.proto.SubscribeRequest;
+import com.wz.sensors.proto.SubscriptionResponse;
+import com.wz.sensorserver.benchmarks.broker.InMemoryBroker;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.mq.ExchangePerSensorTopology;
+import com.wz.sensorserver.mq.MQFanout;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import com.wz.sensorserver.service.streamobserver.SubscriberSettings;
+import com.wz.sensorserver.service.streamobserver.SubscriberStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SubscriptionResponseEncoder;
+import com.wz.sensorserver.util.protomapping.PreEncodedMarshaller;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One measurement of a sensor delivered by the in-memory broker to every subscriber of the sensor: decoding,
+ * dispatching, converting to a {@link SubscriptionResponse} and serializing it the way the subscriber's call does.
+ * An operation is one message fanned out to all subscribers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+    public enum Encoding {
+        /**
+         * every subscriber maps and serializes the message itself
+         */
+        PER_SUBSCRIBER,
+        /**
+         * the message is mapped and serialized once, subscribers share the bytes
+         */
+        SHARED
+    }
+
+    @Param({"1", "100", "1000"})
+    private int subscribers;
+
+    @Param({"PER_SUBSCRIBER", "SHARED"})
+    private Encoding encoding;
+
+    private InMemoryBroker broker;
+    private SensorMessageCodec codec;
+    private MQFanout mqFanout;
+    private UUID sensorId;
+    private String exchange;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        broker = new InMemoryBroker();
+        codec = new SensorMessageCodec();
+        mqFanout = new MQFanout(broker.connectivity(), new ExchangePerSensorTopology(), codec);
+        sensorId = UUID.randomUUID();
+        exchange = sensorId.toString();
+        SensorRepositoryInMemory sensorRepository = new SensorRepositoryInMemory();
+        sensorRepository.addSensor(Sensor.builder().id(sensorId).name("sensor").location("benchmark").build());
+
+        MethodDescriptor.Marshaller<SubscriptionResponse> marshaller;
+        SubscriptionResponseEncoder sharedEncoder = null;
+        if (encoding == Encoding.SHARED) {
+            PreEncodedMarshaller<SubscriptionResponse> preEncodedMarshaller =
+                    new PreEncodedMarshaller<>(SubscriptionResponse.getDefaultInstance());
+            sharedEncoder = new SubscriptionResponseEncoder(preEncodedMarshaller);
+            marshaller = preEncodedMarshaller;
+        } else {
+            marshaller = ProtoUtils.marshaller(SubscriptionResponse.getDefaultInstance());
+        }
+        List<SubscriberStreamObserver> observers = new ArrayList<>(subscribers);
+        for (int i = 0; i < subscribers; i++) {
+            SubscriptionResponseEncoder encoder = sharedEncoder != null ? sharedEncoder : new SubscriptionResponseEncoder();
+            SubscriberStreamObserver observer = new SubscriberStreamObserver(mqFanout,
+                    new SerializingObserver(marshaller), sensorRepository, null,
+                    SubscriberSettings.builder().responseEncoder(encoder).build());
+            observer.onNext(SubscribeRequest.newBuilder().setSensorId(exchange).build());
+            observers.add(observer);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mqFanout.close();
+    }
+
+    @Benchmark
+    public void fanOutMeasurement() throws IOException {
+        // subscribers drop measurements they have already seen, so every message gets the next sequence number
+        broker.publish(exchange, codec.encodeMeasurement(sensorId, ++sequence, 21.5, 1_700_000_000L, 0, 0L));
+    }
+
+    /**
+     * Serializes responses like the call of a subscriber would, into a sink
+     */
+    private static class SerializingObserver implements StreamObserver<SubscriptionResponse> {
+        private static final OutputStream SINK = OutputStream.nullOutputStream();
+        private final MethodDescriptor.Marshaller<SubscriptionResponse> marshaller;
+
+        private SerializingObserver(MethodDescriptor.Marshaller<SubscriptionResponse> marshaller) {
+            this.marshaller = marshaller;
+        }
+
+        @Override
+        public void onNext(SubscriptionResponse value) {
+            try (InputStream stream = marshaller.stream(value)) {
+                if (stream instanceof Drainable drainable)
+                    drainable.drainTo(SINK);
+                else
+                    stream.transferTo(SINK);
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
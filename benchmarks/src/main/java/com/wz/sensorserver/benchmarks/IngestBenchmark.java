@@ -0,0 +1,59 @@
+package com.wz.sensorserver.benchmarks;
+
+import com.google.protobuf.Empty;
+import com.wz.sensors.proto.MeasurementRequest;
+import com.wz.sensorserver.mq.Publisher;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SensorStreamObserver;
+import com.wz.sensorserver.util.TestDataFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A measurement sent by a sensor, from the request into the history and the encoded broker message. Its
+ * {@code gc.alloc.rate.norm} is checked by {@link BenchmarkRunner}, the encoded body is all it may allocate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+    private SensorStreamObserver observer;
+    private MeasurementRequest[] requests;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        // a stub publisher, the channel would allocate on its own
+        Publisher<SensorMessage> publisher = new Publisher<>() {
+            @Override
+            public void publishMessage(SensorMessage message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void publishEncoded(byte[] body) {
+                blackhole.consume(body);
+            }
+
+            @Override
+            public void cleanUp() {
+            }
+        };
+        observer = new SensorStreamObserver(new NoopStreamObserver<Empty>(), publisher, TestDataFactory.randomSensor());
+        requests = Stream.generate(TestDataFactory::randomMeasurementRequest)
+                .limit(1024)
+                .toArray(MeasurementRequest[]::new);
+    }
+
+    @Benchmark
+    public void onNext() {
+        observer.onNext(requests[next++ & (requests.length - 1)]);
+    }
+}
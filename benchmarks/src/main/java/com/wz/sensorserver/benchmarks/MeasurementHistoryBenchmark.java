@@ -0,0 +1,73 @@
+package com.wz.sensorserver.benchmarks;
+
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.MeasurementHistory;
+import com.wz.sensorserver.domain.MeasurementHistoryEvictingQueueBased;
+import com.wz.sensorserver.domain.MeasurementHistoryRingBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Writes and reads of a sensor's history, per implementation and history capacity
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasurementHistoryBenchmark {
+    public enum Implementation {
+        EVICTING_QUEUE(MeasurementHistoryEvictingQueueBased::new),
+        RING_BUFFER(MeasurementHistoryRingBuffer::new);
+
+        private final IntFunction<MeasurementHistory> factory;
+
+        Implementation(IntFunction<MeasurementHistory> factory) {
+            this.factory = factory;
+        }
+    }
+
+    @Param({"EVICTING_QUEUE", "RING_BUFFER"})
+    private Implementation implementation;
+
+    @Param({"50", "1000", "10000"})
+    private int historyCapacity;
+
+    private MeasurementHistory history;
+    private long epochSecond;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        history = implementation.factory.apply(historyCapacity);
+        epochSecond = Instant.now().getEpochSecond();
+        // a full history, so reads see the steady state and writes evict
+        for (int i = 0; i < historyCapacity; i++)
+            history.putMeasurement(ThreadLocalRandom.current().nextDouble(), epochSecond + i, 0);
+    }
+
+    @Benchmark
+    public void putMeasurement() {
+        history.putMeasurement(new Measurement(ThreadLocalRandom.current().nextDouble(), Instant.ofEpochSecond(++epochSecond)));
+    }
+
+    @Benchmark
+    public long putMeasurementPrimitives() {
+        return history.putMeasurement(ThreadLocalRandom.current().nextDouble(), ++epochSecond, 0);
+    }
+
+    @Benchmark
+    public List<Measurement> getLast50Measurements() {
+        return history.getMeasurements(50);
+    }
+
+    @Benchmark
+    public List<Measurement> getMeasurementsAfterHalfOfHistory() {
+        return history.getMeasurementsAfter(history.getLastSequence() - historyCapacity / 2);
+    }
+}
@@ -0,0 +1,58 @@
+package com.wz.sensorserver.benchmarks;
+
+import com.google.protobuf.Timestamp;
+import com.wz.sensors.proto.MeasurementRequest;
+import com.wz.sensors.proto.MeasurementResponse;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.util.protomapping.MeasurementMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions between protobuf measurements and domain objects
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasurementMapperBenchmark {
+    private final MeasurementMapper mapper = new MeasurementMapper();
+    private MeasurementRequest request;
+    private Measurement measurement;
+    private MeasurementMessage message;
+    private String sensorId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Instant now = Instant.now();
+        sensorId = UUID.randomUUID().toString();
+        request = MeasurementRequest.newBuilder()
+                .setValue(21.5)
+                .setSequence(1)
+                .setMadeAt(Timestamp.newBuilder().setSeconds(now.getEpochSecond()).setNanos(now.getNano()).build())
+                .build();
+        measurement = new Measurement(21.5, now, 1);
+        message = new MeasurementMessage(measurement, sensorId);
+    }
+
+    @Benchmark
+    public Measurement mapRequestToDomain() {
+        return mapper.mapRequestToDomain(request);
+    }
+
+    @Benchmark
+    public MeasurementResponse mapDomainToResponse() {
+        return mapper.mapDomainToResponse(measurement, sensorId);
+    }
+
+    @Benchmark
+    public MeasurementResponse mapMeasurementMessageToResponse() {
+        return mapper.mapMeasurementMessageToResponse(message);
+    }
+}
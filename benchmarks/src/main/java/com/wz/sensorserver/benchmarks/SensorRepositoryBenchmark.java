@@ -0,0 +1,86 @@
+package com.wz.sensorserver.benchmarks;
+
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.TagExpression;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups in the in-memory sensor repository, per number of sensors and number of distinct tags. Every sensor gets
+ * three tags drawn from the tag space
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SensorRepositoryBenchmark {
+    private static final int TAGS_PER_SENSOR = 3;
+
+    @Param({"1000", "100000"})
+    private int sensorCount;
+
+    @Param({"10", "1000"})
+    private int tagCardinality;
+
+    private SensorRepositoryInMemory sensorRepository;
+    private UUID[] sensorIds;
+    private String[] tags;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        sensorRepository = new SensorRepositoryInMemory();
+        sensorIds = new UUID[sensorCount];
+        tags = new String[tagCardinality];
+        for (int i = 0; i < tagCardinality; i++)
+            tags[i] = "tag-" + i;
+        for (int i = 0; i < sensorCount; i++) {
+            List<String> sensorTags = new ArrayList<>(TAGS_PER_SENSOR);
+            for (int j = 0; j < TAGS_PER_SENSOR; j++)
+                sensorTags.add(tags[random.nextInt(tagCardinality)]);
+            sensorIds[i] = UUID.randomUUID();
+            sensorRepository.addSensor(Sensor.builder()
+                    .id(sensorIds[i])
+                    .name("sensor-" + i)
+                    .location("location-" + i)
+                    .tags(sensorTags)
+                    .build());
+        }
+    }
+
+    @Benchmark
+    public Optional<Sensor> getSensorById() {
+        return sensorRepository.getSensorById(sensorIds[ThreadLocalRandom.current().nextInt(sensorCount)]);
+    }
+
+    @Benchmark
+    public Collection<Sensor> findSensorsByOneTag() {
+        return sensorRepository.findSensorsByTags(List.of(randomTag()));
+    }
+
+    @Benchmark
+    public Collection<Sensor> findSensorsByTwoTags() {
+        return sensorRepository.findSensorsByTags(List.of(randomTag(), randomTag()));
+    }
+
+    @Benchmark
+    public Collection<Sensor> findSensorsByTagExpression() {
+        return sensorRepository.findSensorsByTagExpression(
+                TagExpression.parse(randomTag() + "&" + randomTag() + "|" + randomTag()));
+    }
+
+    private String randomTag() {
+        return tags[ThreadLocalRandom.current().nextInt(tagCardinality)];
+    }
+}
@@ -0,0 +1,209 @@
+package com.wz.sensorserver.benchmarks.broker;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.wz.sensorserver.mq.MQConnectivity;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the message broker, so the messaging path can be measured without a running RabbitMQ. Supports what
+ * the server uses: fanout exchanges, topic exchanges routing by exact keys, server named queues, bindings, consuming,
+ * publishing and acks. Everything else a channel offers is a no-op
+ */
+public class InMemoryBroker {
+    /**
+     * exchange to routing key to queues bound with it
+     */
+    private final Map<String, Map<String, Set<String>>> bindings;
+    private final Set<String> fanoutExchanges;
+    private final Map<String, List<QueueConsumer>> consumers;
+    private final Executor deliveryExecutor;
+    private final AtomicInteger queueCounter;
+    private final AtomicLong deliveryTagCounter;
+    private final AtomicLong publishedCount;
+
+    /**
+     * Broker delivering on the publishing thread
+     */
+    public InMemoryBroker() {
+        this(null);
+    }
+
+    /**
+     * @param deliveryExecutor executor messages are delivered on, in publishing order per queue. Null delivers on the
+     *                         publishing thread
+     */
+    public InMemoryBroker(Executor deliveryExecutor) {
+        this.deliveryExecutor = deliveryExecutor;
+        bindings = new ConcurrentHashMap<>();
+        fanoutExchanges = ConcurrentHashMap.newKeySet();
+        consumers = new ConcurrentHashMap<>();
+        queueCounter = new AtomicInteger();
+        deliveryTagCounter = new AtomicLong();
+        publishedCount = new AtomicLong();
+    }
+
+    /**
+     * @return connectivity handing out channels of this broker
+     */
+    public MQConnectivity connectivity() {
+        return new MQConnectivity() {
+            @Override
+            public Channel newChannel() {
+                return InMemoryBroker.this.newChannel();
+            }
+        };
+    }
+
+    public Channel newChannel() {
+        return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[]{Channel.class},
+                (proxy, method, args) -> handle((Channel) proxy, method, args));
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    /**
+     * Delivers a message published to a fanout exchange to every queue bound to it
+     */
+    public void publish(String exchange, byte[] body) throws IOException {
+        publish(exchange, "", body);
+    }
+
+    /**
+     * Delivers a message to the queues bound to the exchange, with the routing key unless it is a fanout exchange.
+     * Keys are matched exactly, topic wildcards are not supported
+     */
+    public void publish(String exchange, String routingKey, byte[] body) throws IOException {
+        publishedCount.incrementAndGet();
+        Map<String, Set<String>> keys = bindings.get(exchange);
+        if (keys == null)
+            return;
+        if (!fanoutExchanges.contains(exchange)) {
+            deliver(exchange, routingKey, keys.get(routingKey), body);
+            return;
+        }
+        for (Set<String> queues : keys.values())
+            deliver(exchange, routingKey, queues, body);
+    }
+
+    private void deliver(String exchange, String routingKey, Set<String> queues, byte[] body) throws IOException {
+        if (queues == null)
+            return;
+        for (String queue : queues) {
+            List<QueueConsumer> queueConsumers = consumers.get(queue);
+            if (queueConsumers == null)
+                continue;
+            for (QueueConsumer queueConsumer : queueConsumers)
+                queueConsumer.deliver(exchange, routingKey, body);
+        }
+    }
+
+    private Object handle(Channel proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "exchangeDeclare":
+                Object type = args[1];
+                if (type == BuiltinExchangeType.FANOUT || "fanout".equals(type))
+                    fanoutExchanges.add((String) args[0]);
+                return new AMQImpl.Exchange.DeclareOk();
+            case "queueDeclare":
+                String queue = args == null || args.length == 0 || ((String) args[0]).isEmpty()
+                        ? "amq.gen-" + queueCounter.incrementAndGet()
+                        : (String) args[0];
+                return new AMQImpl.Queue.DeclareOk(queue, 0, 0);
+            case "queueBind":
+                bindings.computeIfAbsent((String) args[1], exchange -> new ConcurrentHashMap<>())
+                        .computeIfAbsent((String) args[2], routingKey -> ConcurrentHashMap.newKeySet())
+                        .add((String) args[0]);
+                return null;
+            case "queueUnbind":
+                Map<String, Set<String>> keys = bindings.get((String) args[1]);
+                Set<String> queues = keys == null ? null : keys.get((String) args[2]);
+                if (queues != null)
+                    queues.remove((String) args[0]);
+                return null;
+            case "basicConsume":
+                if (args.length == 2 && args[1] instanceof Consumer consumer) {
+                    String consumerTag = "amq.ctag-" + queueCounter.incrementAndGet();
+                    consumers.computeIfAbsent((String) args[0], name -> new CopyOnWriteArrayList<>())
+                            .add(new QueueConsumer(consumer, consumerTag));
+                    return consumerTag;
+                }
+                throw new UnsupportedOperationException("Only basicConsume(queue, consumer) is supported");
+            case "basicPublish":
+                if (args.length == 4) {
+                    publish((String) args[0], (String) args[1], (byte[]) args[3]);
+                    return null;
+                }
+                throw new UnsupportedOperationException("Only basicPublish(exchange, routingKey, props, body) is supported");
+            case "isOpen":
+                return true;
+            case "getChannelNumber":
+                return 1;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "InMemoryChannel@" + Integer.toHexString(System.identityHashCode(proxy));
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class)
+            return false;
+        if (type == int.class)
+            return 0;
+        if (type == long.class)
+            return 0L;
+        if (type == double.class)
+            return 0.0;
+        return null;
+    }
+
+    private class QueueConsumer {
+        private final Consumer consumer;
+        private final String consumerTag;
+        private final Executor executor;
+
+        private QueueConsumer(Consumer consumer, String consumerTag) {
+            this.consumer = consumer;
+            this.consumerTag = consumerTag;
+            executor = deliveryExecutor == null ? null : MoreExecutors.newSequentialExecutor(deliveryExecutor);
+        }
+
+        private void deliver(String exchange, String routingKey, byte[] body) throws IOException {
+            Envelope envelope = new Envelope(deliveryTagCounter.incrementAndGet(), false, exchange, routingKey);
+            if (executor == null) {
+                consumer.handleDelivery(consumerTag, envelope, null, body);
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    consumer.handleDelivery(consumerTag, envelope, null, body);
+                } catch (IOException | RuntimeException exception) {
+                    throw new IllegalStateException("Consumer failed to handle a delivery", exception);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.wz.sensorserver.benchmarks.load;
+
+import com.wz.sensorserver.benchmarks.broker.InMemoryBroker;
+import com.wz.sensorserver.interceptor.TokenAuthenticationInterceptor;
+import com.wz.sensorserver.mq.ExchangePerSensorTopology;
+import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.mq.MQTopology;
+import com.wz.sensorserver.repository.ClientRepositoryInMemory;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import com.wz.sensorserver.service.AdminService;
+import com.wz.sensorserver.service.AuthenticationService;
+import com.wz.sensorserver.service.ClientService;
+import com.wz.sensorserver.service.ClientServiceSettings;
+import com.wz.sensorserver.service.MetricsService;
+import com.wz.sensorserver.service.SensorService;
+import com.wz.sensorserver.service.SensorServiceSettings;
+import com.wz.sensorserver.service.streamobserver.IngestPipeline;
+import com.wz.sensorserver.service.streamobserver.IngestSettings;
+import com.wz.sensorserver.util.concurrent.StripedExecutor;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server wired the way {@link com.wz.sensorserver.SensorGRPCServer} wires it, listening on an ephemeral local
+ * port. Uses the in-memory broker unless a RabbitMQ address is given
+ */
+public class InProcessServer implements AutoCloseable {
+    private final MQConnectivity mqConnectivity;
+    private final InMemoryBroker broker;
+    private final ExecutorService deliveryExecutor;
+    private final AuthenticationService authenticationService;
+    private final StripedExecutor ingestLanes;
+    private final IngestPipeline ingestPipeline;
+    private final Server server;
+
+    private InProcessServer(MQConnectivity mqConnectivity, InMemoryBroker broker, ExecutorService deliveryExecutor,
+                            int historyCapacity, MQTopology topology, int ingestLaneCount, int ingestPipelineSize) throws IOException {
+        this.mqConnectivity = mqConnectivity;
+        ingestLanes = ingestLaneCount > 0 ? new StripedExecutor("ingest", ingestLaneCount) : null;
+        ingestPipeline = ingestPipelineSize > 0 ? new IngestPipeline(ingestPipelineSize) : null;
+        this.broker = broker;
+        this.deliveryExecutor = deliveryExecutor;
+        authenticationService = new AuthenticationService(Base64.getEncoder().encodeToString(UUID.randomUUID().toString().getBytes()));
+        SensorRepositoryInMemory sensorRepository = new SensorRepositoryInMemory();
+        ClientRepositoryInMemory clientRepository = new ClientRepositoryInMemory();
+        mqConnectivity.declareTopology(topology);
+        SensorService sensorService = new SensorService(mqConnectivity, authenticationService, sensorRepository,
+                SensorServiceSettings.builder()
+                        .historyCapacity(historyCapacity)
+                        .topology(topology)
+                        .ingest(IngestSettings.builder().lanes(ingestLanes).pipeline(ingestPipeline).build())
+                        .build());
+        ClientService clientService = new ClientService(mqConnectivity, clientRepository, sensorRepository, authenticationService,
+                ClientServiceSettings.builder().topology(topology).build());
+        server = ServerBuilder.forPort(0)
+                .intercept(new TokenAuthenticationInterceptor(clientRepository, sensorRepository, authenticationService))
+                .addService(sensorService.bindService())
+                .addService(clientService.bindServiceWithPreEncodedResponses())
+                .addService(new MetricsService())
+                .addService(new AdminService(sensorRepository, clientService))
+                .build()
+                .start();
+    }
+
+    /**
+     * @param deliveryThreads threads the broker delivers messages on, like the consumer threads of a RabbitMQ connection
+     */
+    public static InProcessServer withInMemoryBroker(int historyCapacity, int deliveryThreads) throws IOException {
+        return withInMemoryBroker(historyCapacity, deliveryThreads, new ExchangePerSensorTopology());
+    }
+
+    public static InProcessServer withInMemoryBroker(int historyCapacity, int deliveryThreads, MQTopology topology) throws IOException {
+        return withInMemoryBroker(historyCapacity, deliveryThreads, topology, 0, 0);
+    }
+
+    /**
+     * @param ingestLaneCount    lanes measurements are processed on, 0 for none
+     * @param ingestPipelineSize slots of the ingest pipeline, 0 for none
+     */
+    public static InProcessServer withInMemoryBroker(int historyCapacity, int deliveryThreads, MQTopology topology,
+                                                     int ingestLaneCount, int ingestPipelineSize) throws IOException {
+        ExecutorService deliveryExecutor = Executors.newFixedThreadPool(deliveryThreads, runnable -> {
+            Thread thread = new Thread(runnable, "in-memory-broker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        InMemoryBroker broker = new InMemoryBroker(deliveryExecutor);
+        return new InProcessServer(broker.connectivity(), broker, deliveryExecutor, historyCapacity, topology,
+                ingestLaneCount, ingestPipelineSize);
+    }
+
+    public static InProcessServer withBroker(String host, int port, int historyCapacity) throws IOException {
+        return withBroker(host, port, historyCapacity, new ExchangePerSensorTopology());
+    }
+
+    public static InProcessServer withBroker(String host, int port, int historyCapacity, MQTopology topology) throws IOException {
+        return withBroker(host, port, historyCapacity, topology, 0, 0);
+    }
+
+    public static InProcessServer withBroker(String host, int port, int historyCapacity, MQTopology topology,
+                                             int ingestLaneCount, int ingestPipelineSize) throws IOException {
+        MQConnectivity mqConnectivity = new MQConnectivity();
+        mqConnectivity.connect(host, port);
+        return new InProcessServer(mqConnectivity, null, null, historyCapacity, topology, ingestLaneCount, ingestPipelineSize);
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * Id of the sensor a registration token was issued to
+     */
+    public String sensorIdOf(String token) {
+        return authenticationService.validateToken(token).get("sensorId", String.class);
+    }
+
+    /**
+     * @return messages published to the broker, -1 when a real broker is used
+     */
+    public long getPublishedCount() {
+        return broker == null ? -1 : broker.getPublishedCount();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        server.shutdown();
+        if (!server.awaitTermination(5, TimeUnit.SECONDS))
+            server.shutdownNow();
+        if (ingestLanes != null)
+            ingestLanes.close();
+        if (ingestPipeline != null)
+            ingestPipeline.close();
+        if (deliveryExecutor != null)
+            deliveryExecutor.shutdownNow();
+        else
+            mqConnectivity.close();
+    }
+}
@@ -0,0 +1,282 @@
+package com.wz.sensorserver.benchmarks.load;
+
+import com.google.protobuf.Timestamp;
+import com.wz.sensors.proto.ActionSuccessStatus;
+import com.wz.sensors.proto.MeasurementRequest;
+import com.wz.sensors.proto.SubscribeRequest;
+import com.wz.sensors.proto.SubscriptionResponse;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.mq.MQTopology;
+import com.wz.sensorserver.util.DummyClient;
+import com.wz.sensorserver.util.DummySensor;
+import com.wz.sensorserver.util.TestDataFactory;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.cli.*;
+
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a server running in the same JVM with the dummy sensors and clients of the tests: N sensors stream at R Hz
+ * each, M subscribers watch K random sensors each. Prints ingest and delivery throughput and the sensor to subscriber
+ * latency, measured from a measurement's madeAt to its receipt by a subscriber.
+ * <p>
+ * A measurement is stamped with the time it was scheduled to be sent, not the time it actually was, so a generator
+ * falling behind a stalled server shows up in the latency instead of hiding it
+ */
+public class LoadGenerator {
+    private final LoadProfile profile;
+    private final Recorder latencyRecorder = new Recorder(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder subscriptionFailures = new LongAdder();
+    private final LongAdder streamErrors = new LongAdder();
+
+    public LoadGenerator(LoadProfile profile) {
+        this.profile = profile;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(new Option("s", true, "Number of sensors, default 100"));
+        options.addOption(new Option("r", true, "Measurements per second of every sensor, default 10"));
+        options.addOption(new Option("c", true, "Number of subscribers, default 100"));
+        options.addOption(new Option("k", true, "Sensors every subscriber watches, default 10"));
+        options.addOption(new Option("w", true, "Warm up seconds, not included in the report, default 5"));
+        options.addOption(new Option("d", true, "Measured seconds, default 30"));
+        options.addOption(new Option("hc", true, "Measurements retained per sensor, 0 for the server default"));
+        options.addOption(new Option("mqh", true, "RabbitMQ host, the in-memory broker is used if not given"));
+        options.addOption(new Option("mqp", true, "RabbitMQ port, default 5672"));
+        options.addOption(new Option("mqt", true, "Messaging topology of the server: fanout or topic, default fanout"));
+        options.addOption(new Option("mqx", true, "Number of topic exchanges in the topic topology, default 1"));
+        options.addOption(new Option("il", true, "Ingest lanes of the server, default 0"));
+        options.addOption(new Option("ipb", true, "Slots of the server's ingest pipeline, default 0"));
+        options.addOption(new Option("hgrm", true, "File to write the latency percentile distribution to"));
+        options.addOption(new Option("h", false, "Print this help"));
+
+        CommandLine cmd = new DefaultParser().parse(options, args);
+        if (cmd.hasOption("h")) {
+            new HelpFormatter().printHelp("LoadGenerator", options);
+            return;
+        }
+        LoadProfile profile = new LoadProfile(
+                Integer.parseInt(cmd.getOptionValue("s", "100")),
+                Double.parseDouble(cmd.getOptionValue("r", "10")),
+                Integer.parseInt(cmd.getOptionValue("c", "100")),
+                Integer.parseInt(cmd.getOptionValue("k", "10")),
+                Integer.parseInt(cmd.getOptionValue("w", "5")),
+                Integer.parseInt(cmd.getOptionValue("d", "30")));
+        int historyCapacity = Integer.parseInt(cmd.getOptionValue("hc", "0"));
+        int ingestLanes = Integer.parseInt(cmd.getOptionValue("il", "0"));
+        int ingestPipelineSize = Integer.parseInt(cmd.getOptionValue("ipb", "0"));
+        MQTopology topology = MQTopology.parse(cmd.getOptionValue("mqt", "fanout"), Integer.parseInt(cmd.getOptionValue("mqx", "1")));
+        try (InProcessServer server = cmd.hasOption("mqh")
+                ? InProcessServer.withBroker(cmd.getOptionValue("mqh"), Integer.parseInt(cmd.getOptionValue("mqp", "5672")), historyCapacity,
+                        topology, ingestLanes, ingestPipelineSize)
+                : InProcessServer.withInMemoryBroker(historyCapacity, Runtime.getRuntime().availableProcessors(), topology,
+                        ingestLanes, ingestPipelineSize)) {
+            Histogram latency = new LoadGenerator(profile).run(server, System.out);
+            if (cmd.hasOption("hgrm")) {
+                try (PrintStream out = new PrintStream(Files.newOutputStream(Path.of(cmd.getOptionValue("hgrm"))))) {
+                    latency.outputPercentileDistribution(out, 1000.0);
+                }
+            }
+        }
+        // channels of the dummies are shut down but not awaited
+        System.exit(0);
+    }
+
+    /**
+     * Runs the profile against the server, printing a line per second and a summary to the stream
+     *
+     * @return latency of the measured seconds in microseconds
+     */
+    public Histogram run(InProcessServer server, PrintStream out) throws InterruptedException {
+        List<DummySensor> sensors = registerSensors(server);
+        List<DummyClient> clients = subscribeClients(server, sensors);
+        out.printf("%d sensors at %.1f Hz, %d subscribers watching %d sensors each%n",
+                profile.sensors(), profile.rate(), profile.subscribers(), profile.sensorsPerSubscriber());
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.min(Math.max(profile.sensors(), 1), Runtime.getRuntime().availableProcessors()));
+        startStreaming(sensors, scheduler);
+
+        Histogram total = new Histogram(3);
+        Histogram interval = null;
+        long sentBefore = 0;
+        long receivedBefore = 0;
+        long publishedBefore = 0;
+        long startedAt = System.nanoTime();
+        for (int second = 1; second <= profile.warmUpSeconds() + profile.durationSeconds(); second++) {
+            Thread.sleep(1000);
+            interval = latencyRecorder.getIntervalHistogram(interval);
+            boolean warmingUp = second <= profile.warmUpSeconds();
+            out.printf("%s %3d s: sent %8d, received %9d, p50 %8.3f ms, p99 %8.3f ms, max %8.3f ms%n",
+                    warmingUp ? "warm up" : "measure", second, sent.sum(), received.sum(),
+                    interval.getValueAtPercentile(50) / 1000.0,
+                    interval.getValueAtPercentile(99) / 1000.0,
+                    interval.getMaxValue() / 1000.0);
+            if (second == profile.warmUpSeconds()) {
+                sentBefore = sent.sum();
+                receivedBefore = received.sum();
+                publishedBefore = server.getPublishedCount();
+                startedAt = System.nanoTime();
+            } else if (!warmingUp) {
+                total.add(interval);
+            }
+        }
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        long sentDuring = sent.sum() - sentBefore;
+        long receivedDuring = received.sum() - receivedBefore;
+        long publishedDuring = server.getPublishedCount() - publishedBefore;
+
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        sensors.forEach(DummySensor::completeStreaming);
+        clients.forEach(DummyClient::disconnect);
+        sensors.forEach(DummySensor::cleanUp);
+        clients.forEach(DummyClient::cleanUp);
+
+        out.println();
+        out.printf("Sent:       %10.1f measurements/s%n", sentDuring / seconds);
+        if (server.getPublishedCount() >= 0)
+            out.printf("Ingested:   %10.1f measurements/s published to the broker%n", publishedDuring / seconds);
+        out.printf("Delivered:  %10.1f measurements/s, %d of %d expected%n", receivedDuring / seconds,
+                receivedDuring, sentDuring * profile.subscribers() * Math.min(profile.sensorsPerSubscriber(), profile.sensors())
+                        / Math.max(profile.sensors(), 1));
+        if (subscriptionFailures.sum() > 0)
+            out.printf("Failed subscriptions: %d%n", subscriptionFailures.sum());
+        if (streamErrors.sum() > 0)
+            out.printf("Subscription streams failed: %d%n", streamErrors.sum());
+        out.printf("Latency ms: p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f (%d samples)%n",
+                total.getValueAtPercentile(50) / 1000.0,
+                total.getValueAtPercentile(90) / 1000.0,
+                total.getValueAtPercentile(99) / 1000.0,
+                total.getValueAtPercentile(99.9) / 1000.0,
+                total.getMaxValue() / 1000.0,
+                total.getTotalCount());
+        // the server runs in this JVM, its stage histograms tell where the time went
+        out.println("Server stages, whole run including warm up:");
+        MetricsRegistry.global().getHistograms().forEach((name, histogram) -> {
+            if (!name.startsWith("stage."))
+                return;
+            com.wz.sensorserver.metrics.Histogram.Snapshot snapshot = histogram.snapshot();
+            out.printf("  %-13s p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f ms%n", name,
+                    snapshot.getValueAtPercentile(50) / 1e6,
+                    snapshot.getValueAtPercentile(99) / 1e6,
+                    snapshot.getValueAtPercentile(99.9) / 1e6,
+                    snapshot.getMax() / 1e6);
+        });
+        return total;
+    }
+
+    private List<DummySensor> registerSensors(InProcessServer server) {
+        List<DummySensor> sensors = new ArrayList<>(profile.sensors());
+        for (int i = 0; i < profile.sensors(); i++) {
+            DummySensor sensor = new DummySensor(TestDataFactory.randomSensor(), server.getPort());
+            sensor.registerSensor();
+            sensor.setId(server.sensorIdOf(sensor.getToken()));
+            sensors.add(sensor);
+        }
+        return sensors;
+    }
+
+    private List<DummyClient> subscribeClients(InProcessServer server, List<DummySensor> sensors) throws InterruptedException {
+        int sensorsPerSubscriber = Math.min(profile.sensorsPerSubscriber(), sensors.size());
+        CountDownLatch subscribed = new CountDownLatch(profile.subscribers() * sensorsPerSubscriber);
+        List<DummyClient> clients = new ArrayList<>(profile.subscribers());
+        List<DummySensor> shuffled = new ArrayList<>(sensors);
+        for (int i = 0; i < profile.subscribers(); i++) {
+            DummyClient client = new DummyClient(UUID.randomUUID().toString(), UUID.randomUUID().toString(),
+                    UUID.randomUUID().toString(), server.getPort());
+            client.register();
+            client.setResponseStreamObserver(new LatencyRecordingObserver(subscribed));
+            client.createBidirectionalStream();
+            Collections.shuffle(shuffled);
+            for (DummySensor sensor : shuffled.subList(0, sensorsPerSubscriber)) {
+                client.sendSubscribeRequest(SubscribeRequest.newBuilder()
+                        .setSensorId(sensor.getId())
+                        .setDisconnect(false)
+                        .build());
+            }
+            clients.add(client);
+        }
+        if (!subscribed.await(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("Subscriptions are not ready, %d left".formatted(subscribed.getCount()));
+        return clients;
+    }
+
+    private void startStreaming(List<DummySensor> sensors, ScheduledExecutorService scheduler) {
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / profile.rate());
+        for (DummySensor sensor : sensors) {
+            sensor.startStreaming();
+            // spread the sensors over the period instead of sending in bursts
+            long initialDelay = ThreadLocalRandom.current().nextLong(periodNanos);
+            Instant firstScheduled = Instant.now().plusNanos(initialDelay);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                private long count;
+
+                @Override
+                public void run() {
+                    Instant scheduled = firstScheduled.plusNanos(periodNanos * count++);
+                    sensor.publishMeasurement(MeasurementRequest.newBuilder()
+                            .setValue(ThreadLocalRandom.current().nextDouble())
+                            .setMadeAt(Timestamp.newBuilder()
+                                    .setSeconds(scheduled.getEpochSecond())
+                                    .setNanos(scheduled.getNano())
+                                    .build())
+                            .build());
+                    sent.increment();
+                }
+            }, initialDelay, periodNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private class LatencyRecordingObserver implements StreamObserver<SubscriptionResponse> {
+        private final CountDownLatch subscribed;
+
+        private LatencyRecordingObserver(CountDownLatch subscribed) {
+            this.subscribed = subscribed;
+        }
+
+        @Override
+        public void onNext(SubscriptionResponse response) {
+            switch (response.getResponseCase()) {
+                case MEASUREMENT -> {
+                    Instant now = Instant.now();
+                    Timestamp madeAt = response.getMeasurement().getMadeAt();
+                    long latencyNanos = (now.getEpochSecond() - madeAt.getSeconds()) * 1_000_000_000L
+                            + now.getNano() - madeAt.getNanos();
+                    latencyRecorder.recordValue(Math.max(0, latencyNanos / 1000));
+                    received.increment();
+                }
+                case ACTIONRESULT -> {
+                    if (response.getActionResult().getActionStatus() == ActionSuccessStatus.SUBSCRIPTION_FAILURE)
+                        subscriptionFailures.increment();
+                    subscribed.countDown();
+                }
+                default -> {
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            streamErrors.increment();
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}
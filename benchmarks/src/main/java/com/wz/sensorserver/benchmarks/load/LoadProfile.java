@@ -0,0 +1,25 @@
+package com.wz.sensorserver.benchmarks.load;
+
+/**
+ * @param sensors              number of streaming sensors
+ * @param rate                 measurements per second of every sensor
+ * @param subscribers          number of subscribers
+ * @param sensorsPerSubscriber sensors every subscriber watches, picked at random
+ * @param warmUpSeconds        seconds the load runs before measuring
+ * @param durationSeconds      measured seconds
+ */
+public record LoadProfile(int sensors,
+                          double rate,
+                          int subscribers,
+                          int sensorsPerSubscriber,
+                          int warmUpSeconds,
+                          int durationSeconds) {
+    public LoadProfile {
+        if (sensors < 0 || subscribers < 0 || sensorsPerSubscriber < 0)
+            throw new IllegalArgumentException("Sensors and subscribers can not be negative");
+        if (rate <= 0)
+            throw new IllegalArgumentException("Rate must be positive, got %s".formatted(rate));
+        if (warmUpSeconds < 0 || durationSeconds <= 0)
+            throw new IllegalArgumentException("Warm up can not be negative and duration must be positive");
+    }
+}
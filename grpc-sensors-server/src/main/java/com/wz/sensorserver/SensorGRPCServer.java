@@ -1,22 +1,57 @@
 package com.wz.sensorserver;
 
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.cluster.ClusterNode;
+import com.wz.sensorserver.cluster.ForwardedCallInterceptor;
+import com.wz.sensorserver.domain.AggregationWindows;
+import com.wz.sensorserver.domain.HistoryStorage;
+import com.wz.sensorserver.domain.SketchRetention;
+import com.wz.sensorserver.interceptor.OperatorAuthenticationInterceptor;
 import com.wz.sensorserver.interceptor.TokenAuthenticationInterceptor;
+import com.wz.sensorserver.metrics.MetricsRegistry;
 import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.mq.MQTopology;
+import com.wz.sensorserver.mq.codec.MeasurementCodec;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
 import com.wz.sensorserver.repository.ClientRepository;
 import com.wz.sensorserver.repository.ClientRepositoryInMemory;
 import com.wz.sensorserver.repository.SensorRepository;
 import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import com.wz.sensorserver.service.AdminService;
 import com.wz.sensorserver.service.AuthenticationService;
 import com.wz.sensorserver.service.ClientService;
+import com.wz.sensorserver.service.ClientServiceSettings;
+import com.wz.sensorserver.service.ClusterService;
+import com.wz.sensorserver.service.MetricsService;
 import com.wz.sensorserver.service.SensorService;
+import com.wz.sensorserver.service.SensorServiceSettings;
+import com.wz.sensorserver.service.streamobserver.IngestPipeline;
+import com.wz.sensorserver.service.streamobserver.IngestSettings;
+import com.wz.sensorserver.service.streamobserver.SensorIdleWatch;
+import com.wz.sensorserver.transport.NettyTransport;
+import com.wz.sensorserver.util.concurrent.ExecutionMode;
+import com.wz.sensorserver.util.concurrent.HashedWheelTimer;
+import com.wz.sensorserver.util.concurrent.StripedExecutor;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.health.v1.HealthCheckResponse;
+import io.grpc.protobuf.services.HealthStatusManager;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.*;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class SensorGRPCServer {
@@ -35,31 +70,260 @@ public class SensorGRPCServer {
         RMQPortOption.setRequired(false);
         options.addOption(RMQPortOption);
 
+        Option historyCapacityOption = new Option("hc", true, "Measurements retained per sensor for history and resuming subscriptions");
+        historyCapacityOption.setRequired(false);
+        options.addOption(historyCapacityOption);
+
+        Option historyStorageOption = new Option("hs", true, "How histories keep measurements: ring-buffer, compressed for long retention or off-heap for large fleets");
+        historyStorageOption.setRequired(false);
+        options.addOption(historyStorageOption);
+
+        Option executionModeOption = new Option("exec", true, "Threads running gRPC handlers and broker consumers: default, fixed or virtual");
+        executionModeOption.setRequired(false);
+        options.addOption(executionModeOption);
+
+        Option executorThreadsOption = new Option("et", true, "Number of threads of each executor in the fixed execution mode");
+        executorThreadsOption.setRequired(false);
+        options.addOption(executorThreadsOption);
+
+        Option epollOption = new Option("epoll", false, "Use the epoll transport if it is available on the host");
+        epollOption.setRequired(false);
+        options.addOption(epollOption);
+
+        Option bossThreadsOption = new Option("bt", true, "Number of transport threads accepting connections");
+        bossThreadsOption.setRequired(false);
+        options.addOption(bossThreadsOption);
+
+        Option workerThreadsOption = new Option("wt", true, "Number of transport threads serving connections, 0 for the default");
+        workerThreadsOption.setRequired(false);
+        options.addOption(workerThreadsOption);
+
+        Option domainSocketOption = new Option("uds", true, "Path of an additional unix domain socket listener for local gateways, requires epoll");
+        domainSocketOption.setRequired(false);
+        options.addOption(domainSocketOption);
+
+        Option metricsSamplingOption = new Option("ms", true, "Sampling of latency histograms: on or off, counters and gauges are always on");
+        metricsSamplingOption.setRequired(false);
+        options.addOption(metricsSamplingOption);
+
+        Option stageTimestampsOption = new Option("st", false, "Send the server side stage timestamps with live measurements");
+        stageTimestampsOption.setRequired(false);
+        options.addOption(stageTimestampsOption);
+
+        Option topologyOption = new Option("mqt", true, "Messaging topology: fanout for an exchange per sensor or topic for shared topic exchanges");
+        topologyOption.setRequired(false);
+        options.addOption(topologyOption);
+
+        Option topicExchangesOption = new Option("mqx", true, "Number of topic exchanges sensors are spread over in the topic topology, default 1");
+        topicExchangesOption.setRequired(false);
+        options.addOption(topicExchangesOption);
+
+        Option clusterOption = new Option("cluster", true, "Comma separated host:port of all nodes of the cluster, runs standalone if not given");
+        clusterOption.setRequired(false);
+        options.addOption(clusterOption);
+
+        Option nodeOption = new Option("node", true, "host:port the other nodes of the cluster reach this node at, localhost and the server port by default");
+        nodeOption.setRequired(false);
+        options.addOption(nodeOption);
+
+        Option secretOption = new Option("secret", true, "Base64 encoded key tokens are signed with, the nodes of a cluster need the same one. Random if not given");
+        secretOption.setRequired(false);
+        options.addOption(secretOption);
+
+        Option operatorTokenOption = new Option("ot", true, "Token operators send in the Authorization header to call the admin and metrics services, which are off if not given");
+        operatorTokenOption.setRequired(false);
+        options.addOption(operatorTokenOption);
+
+        Option ingestLanesOption = new Option("il", true, "Number of lanes measurements are processed on, hashed by sensor. 0 processes them on the transport threads");
+        ingestLanesOption.setRequired(false);
+        options.addOption(ingestLanesOption);
+
+        Option ingestPipelineOption = new Option("ipb", true, "Slots of the ring buffer measurements pass through history, encoding and publishing stages, a power of 2. Not used with -il");
+        ingestPipelineOption.setRequired(false);
+        options.addOption(ingestPipelineOption);
+
+        Option sensorIdleOption = new Option("sit", true, "Seconds without measurements after which a sensor stream is closed and the sensor goes offline, 0 to wait for the transport");
+        sensorIdleOption.setRequired(false);
+        options.addOption(sensorIdleOption);
+
+        Option tumblingWindowsOption = new Option("aw", true, "Comma separated seconds of tumbling windows aggregated per sensor for subscribers, e.g. 1,60");
+        tumblingWindowsOption.setRequired(false);
+        options.addOption(tumblingWindowsOption);
+
+        Option slidingWindowsOption = new Option("asw", true, "Comma separated seconds of windows sliding by a second aggregated per sensor for subscribers");
+        slidingWindowsOption.setRequired(false);
+        options.addOption(slidingWindowsOption);
+
+        Option aggregationThreadsOption = new Option("at", true, "Parallelism of the fork/join pool aggregates across sensors are computed on, 0 for the common pool");
+        aggregationThreadsOption.setRequired(false);
+        options.addOption(aggregationThreadsOption);
+
+        Option sketchRetentionOption = new Option("qs", true, "Seconds of a slice and number of slices of per sensor quantile sketches, e.g. 60,60 for an hour by the minute. None if not given");
+        sketchRetentionOption.setRequired(false);
+        options.addOption(sketchRetentionOption);
+
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         int serverPort =  Integer.parseInt(cmd.getOptionValue("p", "8090"));
         String rmqHost =  cmd.getOptionValue("mqh", "localhost");
         int rmqPort =  Integer.parseInt(cmd.getOptionValue("mqp", "5672"));
+        int historyCapacity =  Integer.parseInt(cmd.getOptionValue("hc", "0"));
+        HistoryStorage historyStorage = HistoryStorage.parse(cmd.getOptionValue("hs", "ring-buffer"));
+        ExecutionMode executionMode = ExecutionMode.parse(cmd.getOptionValue("exec", "default"));
+        int executorThreads = Integer.parseInt(cmd.getOptionValue("et",
+                String.valueOf(Runtime.getRuntime().availableProcessors() * 4)));
+        int bossThreads = Integer.parseInt(cmd.getOptionValue("bt", "1"));
+        int workerThreads = Integer.parseInt(cmd.getOptionValue("wt", "0"));
+        int ingestLaneCount = Integer.parseInt(cmd.getOptionValue("il", "0"));
+        int ingestPipelineSize = Integer.parseInt(cmd.getOptionValue("ipb", "0"));
+        int sensorIdleSeconds = Integer.parseInt(cmd.getOptionValue("sit", "0"));
+        int aggregationThreads = Integer.parseInt(cmd.getOptionValue("at", "0"));
+        SketchRetention sketchRetention = SketchRetention.parse(cmd.getOptionValue("qs", ""));
+        AggregationWindows windows = AggregationWindows.parse(cmd.getOptionValue("aw", ""), cmd.getOptionValue("asw", ""));
+        if (ingestLaneCount > 0 && ingestPipelineSize > 0)
+            throw new IllegalArgumentException("Ingest lanes and the ingest pipeline can not be used together");
 
+        MetricsRegistry.global().setSampling(!"off".equalsIgnoreCase(cmd.getOptionValue("ms", "on")));
 
         MQConnectivity mqConnectivity = new MQConnectivity();
-        mqConnectivity.connect(rmqHost, rmqPort);
-        AuthenticationService authenticationService = new AuthenticationService(Base64.getEncoder().encodeToString(UUID.randomUUID().toString().getBytes()));
-        SensorRepository sensorRepository = new SensorRepositoryInMemory();
+        log.info("Execution mode: {}", executionMode);
+        ExecutorService handlerExecutor = executionMode.newExecutor("grpc-handler", executorThreads);
+        ExecutorService consumerExecutor = executionMode.newExecutor("mq-consumer", executorThreads);
+        mqConnectivity.connect(rmqHost, rmqPort, consumerExecutor);
+        MQTopology topology = MQTopology.parse(cmd.getOptionValue("mqt", "fanout"),
+                Integer.parseInt(cmd.getOptionValue("mqx", "1")));
+        mqConnectivity.declareTopology(topology);
+        AuthenticationService authenticationService = new AuthenticationService(cmd.getOptionValue("secret",
+                Base64.getEncoder().encodeToString(UUID.randomUUID().toString().getBytes())));
+        SensorRepository sensorRepository = new SensorRepositoryInMemory(MetricsRegistry.global());
         ClientRepository clientRepository = new ClientRepositoryInMemory();
-        SensorService sensorService = new SensorService(mqConnectivity, authenticationService, sensorRepository);
-        ClientService clientService = new ClientService(mqConnectivity, clientRepository, sensorRepository, authenticationService);
+        Cluster cluster = null;
+        if (cmd.hasOption("cluster")) {
+            if (!cmd.hasOption("secret"))
+                log.warn("No -secret given, the other nodes of the cluster will reject the calls of this node and its tokens");
+            ClusterNode self = ClusterNode.parse(cmd.getOptionValue("node", "localhost:" + serverPort));
+            List<ClusterNode> members = Arrays.stream(cmd.getOptionValue("cluster").split(","))
+                    .map(ClusterNode::parse)
+                    .toList();
+            cluster = new Cluster(self, members, authenticationService.generatePeerToken(self.id()));
+            log.info("Running as node {} of cluster {}", self, members);
+        }
+        StripedExecutor ingestLanes = null;
+        if (ingestLaneCount > 0) {
+            ingestLanes = new StripedExecutor("ingest", ingestLaneCount);
+            log.info("Processing measurements on {} lanes", ingestLaneCount);
+        }
+        IngestPipeline ingestPipeline = null;
+        if (ingestPipelineSize > 0) {
+            ingestPipeline = new IngestPipeline(ingestPipelineSize);
+            log.info("Processing measurements in a pipeline of {} slots", ingestPipelineSize);
+        }
+        // one timer for subscription timeouts and idle sensors, 100 ms precision is plenty for either
+        HashedWheelTimer timer = new HashedWheelTimer("timer", 100, TimeUnit.MILLISECONDS, 512);
+        Executor expiryExecutor = handlerExecutor != null ? handlerExecutor : ForkJoinPool.commonPool();
+        SensorIdleWatch idleWatch = sensorIdleSeconds > 0
+                ? new SensorIdleWatch(timer, sensorIdleSeconds, TimeUnit.SECONDS, expiryExecutor)
+                : null;
+        MeasurementCodec codec = new SensorMessageCodec();
+        ForkJoinPool aggregationPool = aggregationThreads > 0 ? new ForkJoinPool(aggregationThreads) : ForkJoinPool.commonPool();
+        SensorServiceSettings sensorServiceSettings = SensorServiceSettings.builder()
+                .historyCapacity(historyCapacity)
+                .historyStorage(historyStorage)
+                .cluster(cluster)
+                .topology(topology)
+                .ingest(IngestSettings.builder()
+                        .lanes(ingestLanes)
+                        .pipeline(ingestPipeline)
+                        .idleWatch(idleWatch)
+                        .windows(windows)
+                        .codec(codec)
+                        .build())
+                .aggregationPool(aggregationPool)
+                .sketchRetention(sketchRetention)
+                .build();
+        SensorService sensorService = new SensorService(mqConnectivity, authenticationService, sensorRepository,
+                sensorServiceSettings);
+        ClientService clientService = new ClientService(mqConnectivity, clientRepository, sensorRepository, authenticationService,
+                ClientServiceSettings.builder()
+                        .includeStageTimestamps(cmd.hasOption("st"))
+                        .topology(topology)
+                        .timer(timer)
+                        // expiring unbinds from the broker, which the timer thread must not wait for
+                        .expiryExecutor(expiryExecutor)
+                        .windows(windows)
+                        .codec(codec)
+                        .cluster(cluster)
+                        .metrics(MetricsRegistry.global())
+                        .build());
+        MetricsService metricsService = new MetricsService();
+        AdminService adminService = new AdminService(sensorRepository, clientService);
+        HealthStatusManager healthStatusManager = new HealthStatusManager();
+        // not serving until the listeners are up
+        healthStatusManager.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, HealthCheckResponse.ServingStatus.NOT_SERVING);
+        mqConnectivity.addAvailabilityListener(available -> {
+            log.info("Message queue is {}", available ? "available again" : "unavailable");
+            healthStatusManager.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, available
+                    ? HealthCheckResponse.ServingStatus.SERVING
+                    : HealthCheckResponse.ServingStatus.NOT_SERVING);
+        });
 
+        List<ServerInterceptor> interceptors = new ArrayList<>();
+        interceptors.add(new TokenAuthenticationInterceptor(clientRepository, sensorRepository, authenticationService));
+        interceptors.add(new OperatorAuthenticationInterceptor(cmd.getOptionValue("ot")));
+        List<ServerServiceDefinition> services = new ArrayList<>(List.of(sensorService.bindService(),
+                clientService.bindServiceWithPreEncodedResponses(), metricsService.bindService(), adminService.bindService(),
+                healthStatusManager.getHealthService().bindService()));
+        ClusterService clusterService = null;
+        if (cluster != null) {
+            clusterService = new ClusterService(sensorRepository, sensorServiceSettings);
+            interceptors.add(new ForwardedCallInterceptor(authenticationService));
+            services.add(clusterService.bindService());
+        }
+        NettyTransport transport = NettyTransport.create(cmd.hasOption("epoll"), bossThreads, workerThreads);
+        List<Server> servers = new ArrayList<>();
         log.info("Starting server on port: {}", serverPort);
-        Server server = ServerBuilder.forPort(serverPort)
-                .intercept(new TokenAuthenticationInterceptor(clientRepository, sensorRepository, authenticationService))
-                .addService(sensorService)
-                .addService(clientService)
-                .build()
-                .start();
+        servers.add(buildServer(transport.forPort(serverPort), handlerExecutor, interceptors, services).start());
+        if (cmd.hasOption("uds")) {
+            Path socketPath = Path.of(cmd.getOptionValue("uds"));
+            log.info("Starting server on unix domain socket: {}", socketPath);
+            servers.add(buildServer(transport.forDomainSocket(socketPath), handlerExecutor, interceptors, services).start());
+        }
+        if (clusterService != null)
+            log.info("Caught up with {} sensors registered on the other nodes", clusterService.catchUp());
+        healthStatusManager.setStatus(HealthStatusManager.SERVICE_NAME_ALL_SERVICES, HealthCheckResponse.ServingStatus.SERVING);
+        Runtime.getRuntime().addShutdownHook(new Thread(healthStatusManager::enterTerminalState));
         log.info("Server started");
-        server.awaitTermination();
+        for (Server server : servers)
+            server.awaitTermination();
         log.info("Server stopped");
+        transport.close();
+        if (cluster != null)
+            cluster.close();
+        if (ingestLanes != null)
+            ingestLanes.close();
+        if (ingestPipeline != null)
+            ingestPipeline.close();
+        timer.close();
+        if (aggregationThreads > 0)
+            aggregationPool.shutdown();
+        if (handlerExecutor != null)
+            handlerExecutor.shutdown();
+        if (consumerExecutor != null)
+            consumerExecutor.shutdown();
+    }
+
+    /**
+     * Every listener serves the same service instances, so sensors and clients share state whichever way they connect
+     */
+    private static Server buildServer(ServerBuilder<?> serverBuilder, Executor handlerExecutor,
+                                      List<ServerInterceptor> interceptors, List<ServerServiceDefinition> services) {
+        if (handlerExecutor != null)
+            serverBuilder.executor(handlerExecutor);
+        for (ServerInterceptor interceptor : interceptors)
+            serverBuilder.intercept(interceptor);
+        for (ServerServiceDefinition service : services)
+            serverBuilder.addService(service);
+        return serverBuilder.build();
     }
 }
@@ -0,0 +1,216 @@
+package com.wz.sensorserver.cluster;
+
+import com.google.protobuf.Empty;
+import com.wz.sensors.proto.ClusterServiceGrpc;
+import com.wz.sensors.proto.SearchTagsRequest;
+import com.wz.sensors.proto.SensorInfoResponse;
+import com.wz.sensors.proto.SensorOnlineStatus;
+import com.wz.sensors.proto.SensorServiceGrpc;
+import io.grpc.*;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+
+/**
+ * Static membership of a cluster as seen from one of its nodes. Sensors are assigned to nodes by the hash ring, the
+ * owner keeps the history of a sensor and serves its measurement stream, every node keeps the metadata of all sensors
+ */
+@Slf4j
+public class Cluster implements AutoCloseable {
+    /**
+     * Set on calls a node forwards to the owner of a sensor, the owner serves them whatever its own ring says
+     */
+    public static final Metadata.Key<String> FORWARDED_BY_HEADER = Metadata.Key.of("x-forwarded-by", ASCII_STRING_MARSHALLER);
+    /**
+     * Proves the forwarding node is a member, see {@link com.wz.sensorserver.service.AuthenticationService#generatePeerToken}
+     */
+    public static final Metadata.Key<String> PEER_TOKEN_HEADER = Metadata.Key.of("x-peer-token", ASCII_STRING_MARSHALLER);
+    private static final long SYNC_TIMEOUT_SECONDS = 5;
+    private static final int REPLICATION_ATTEMPTS = 10;
+    private static final long REPLICATION_BACKOFF_MILLIS = 250;
+    private static final long REPLICATION_MAX_BACKOFF_MILLIS = 30_000;
+    private static final Set<Status.Code> RETRIED_CODES = EnumSet.of(Status.Code.UNAVAILABLE,
+            Status.Code.DEADLINE_EXCEEDED, Status.Code.RESOURCE_EXHAUSTED, Status.Code.ABORTED);
+
+    private final ClusterNode self;
+    private final HashRing ring;
+    private final Function<ClusterNode, ManagedChannel> channelFactory;
+    private final Map<ClusterNode, ManagedChannel> channels;
+    private final ClientInterceptor forwardedByInterceptor;
+    /**
+     * schedules the next attempt of a replication that failed
+     */
+    private final ScheduledExecutorService retryScheduler;
+
+    /**
+     * Cluster whose nodes are reached over plaintext connections
+     *
+     * @param self    this node
+     * @param members   all nodes of the cluster, this one included
+     * @param peerToken peer token of this node, attached to every call to the other nodes
+     */
+    public Cluster(ClusterNode self, Collection<ClusterNode> members, String peerToken) {
+        this(self, members, peerToken,
+                node -> ManagedChannelBuilder.forAddress(node.host(), node.port()).usePlaintext().build());
+    }
+
+    /**
+     * @param channelFactory opens the channel to a node, called once per node
+     */
+    public Cluster(ClusterNode self, Collection<ClusterNode> members, String peerToken,
+                   Function<ClusterNode, ManagedChannel> channelFactory) {
+        Objects.requireNonNull(self);
+        Objects.requireNonNull(peerToken);
+        Set<ClusterNode> nodes = new LinkedHashSet<>(members);
+        nodes.add(self);
+        this.self = self;
+        this.channelFactory = channelFactory;
+        ring = new HashRing(nodes);
+        channels = new ConcurrentHashMap<>();
+        Metadata headers = new Metadata();
+        headers.put(FORWARDED_BY_HEADER, self.id());
+        headers.put(PEER_TOKEN_HEADER, peerToken);
+        forwardedByInterceptor = MetadataUtils.newAttachHeadersInterceptor(headers);
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public ClusterNode getSelf() {
+        return self;
+    }
+
+    public ClusterNode ownerOf(UUID sensorId) {
+        return ring.ownerOf(sensorId);
+    }
+
+    /**
+     * @return whether this node owns the sensor
+     */
+    public boolean isLocal(UUID sensorId) {
+        return self.equals(ring.ownerOf(sensorId));
+    }
+
+    /**
+     * @return the other nodes of the cluster
+     */
+    public List<ClusterNode> getPeers() {
+        return ring.getNodes().stream().filter(node -> !node.equals(self)).toList();
+    }
+
+    /**
+     * @return channel to the node, calls made on it are marked as forwarded by this node
+     */
+    public Channel channelTo(ClusterNode node) {
+        return ClientInterceptors.intercept(channels.computeIfAbsent(node, channelFactory), forwardedByInterceptor);
+    }
+
+    /**
+     * Sends the metadata of a sensor registered on this node to the other nodes. Does not wait for them, a failed
+     * replication is retried with a growing backoff while the peer is unavailable, and a node that was down for longer
+     * catches up with {@link #fetchSensors()} when it starts
+     */
+    public void replicateSensor(SensorInfoResponse sensor) {
+        // detached from the registration call, which completes before the peers answer
+        Context.current().fork().run(() -> {
+            for (ClusterNode peer : getPeers())
+                replicateSensor(sensor, peer, 1);
+        });
+    }
+
+    private void replicateSensor(SensorInfoResponse sensor, ClusterNode peer, int attempt) {
+        ClusterServiceGrpc.newStub(channelTo(peer)).replicateSensor(sensor, new StreamObserver<>() {
+            @Override
+            public void onNext(Empty value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Status status = Status.fromThrowable(t);
+                if (!RETRIED_CODES.contains(status.getCode()) || attempt >= REPLICATION_ATTEMPTS || retryScheduler.isShutdown()) {
+                    log.warn("Sensor {} was not replicated to {} after {} attempts: {}", sensor.getId(), peer, attempt, status);
+                    return;
+                }
+                long backoffMillis = Math.min(REPLICATION_BACKOFF_MILLIS << (attempt - 1), REPLICATION_MAX_BACKOFF_MILLIS);
+                log.debug("Sensor {} was not replicated to {}, retrying in {} ms: {}", sensor.getId(), peer, backoffMillis, status);
+                retryScheduler.schedule(() -> replicateSensor(sensor, peer, attempt + 1), backoffMillis, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void onCompleted() {
+                log.trace("Sensor {} was replicated to {}", sensor.getId(), peer);
+            }
+        });
+    }
+
+    /**
+     * Lists the sensors the other nodes know about. Nodes that do not answer are skipped
+     *
+     * @return sensors registered in the cluster, possibly with duplicates
+     */
+    public List<SensorInfoResponse> fetchSensors() {
+        List<SensorInfoResponse> sensors = new ArrayList<>();
+        for (ClusterNode peer : getPeers()) {
+            try {
+                SensorServiceGrpc.newBlockingStub(channelTo(peer))
+                        .withDeadlineAfter(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .getSensors(SearchTagsRequest.getDefaultInstance())
+                        .forEachRemaining(sensors::add);
+            } catch (StatusRuntimeException statusRuntimeException) {
+                log.warn("Sensors of {} were not fetched: {}", peer, statusRuntimeException.getStatus());
+            }
+        }
+        return sensors;
+    }
+
+    /**
+     * Asks the owners of the sensors for their online status, only the owner of a sensor sees its stream
+     *
+     * @param request   search the sensors were found with, the owners answer it for the sensors they own
+     * @param sensorIds sensors owned by other nodes
+     * @return online status by sensor id, the sensors of owners that do not answer are left out
+     */
+    public Map<String, SensorOnlineStatus> fetchOnlineStatuses(SearchTagsRequest request, Collection<UUID> sensorIds) {
+        Set<ClusterNode> owners = new HashSet<>();
+        for (UUID sensorId : sensorIds)
+            owners.add(ownerOf(sensorId));
+        owners.remove(self);
+        Map<String, SensorOnlineStatus> statuses = new HashMap<>();
+        for (ClusterNode owner : owners) {
+            try {
+                SensorServiceGrpc.newBlockingStub(channelTo(owner))
+                        .withDeadlineAfter(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .getSensors(request)
+                        .forEachRemaining(sensor -> {
+                            if (owner.equals(ownerOf(UUID.fromString(sensor.getId()))))
+                                statuses.put(sensor.getId(), sensor.getOnlineStatus());
+                        });
+            } catch (StatusRuntimeException statusRuntimeException) {
+                log.warn("Online status of the sensors of {} was not fetched: {}", owner, statusRuntimeException.getStatus());
+            }
+        }
+        return statuses;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        retryScheduler.shutdownNow();
+        for (ManagedChannel channel : channels.values())
+            channel.shutdown();
+        for (ManagedChannel channel : channels.values()) {
+            if (!channel.awaitTermination(5, TimeUnit.SECONDS))
+                channel.shutdownNow();
+        }
+    }
+}
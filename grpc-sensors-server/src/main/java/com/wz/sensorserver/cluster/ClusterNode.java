@@ -0,0 +1,34 @@
+package com.wz.sensorserver.cluster;
+
+/**
+ * Node of a cluster, identified by the address other nodes reach it at
+ *
+ * @param host host name or address
+ * @param port gRPC port
+ */
+public record ClusterNode(String host, int port) {
+
+    /**
+     * @param address host:port
+     * @return node listening on the address
+     */
+    public static ClusterNode parse(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0 || separator == address.length() - 1)
+            throw new IllegalArgumentException("Node address must be host:port, got: %s".formatted(address));
+        try {
+            return new ClusterNode(address.substring(0, separator).trim(), Integer.parseInt(address.substring(separator + 1).trim()));
+        } catch (NumberFormatException numberFormatException) {
+            throw new IllegalArgumentException("Node address must be host:port, got: %s".formatted(address));
+        }
+    }
+
+    public String id() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        return id();
+    }
+}
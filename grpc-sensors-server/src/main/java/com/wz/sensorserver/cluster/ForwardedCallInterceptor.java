@@ -0,0 +1,39 @@
+package com.wz.sensorserver.cluster;
+
+import com.wz.sensors.proto.ClusterServiceGrpc;
+import com.wz.sensorserver.constant.Constants;
+import com.wz.sensorserver.service.AuthenticationService;
+import io.grpc.*;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Puts the node that forwarded a call into the call context. Calls of the cluster service and forwarded calls are
+ * served only with the peer token of the node they claim to come from
+ */
+@Slf4j
+public class ForwardedCallInterceptor implements ServerInterceptor {
+    private final AuthenticationService authenticationService;
+
+    public ForwardedCallInterceptor(AuthenticationService authenticationService) {
+        this.authenticationService = authenticationService;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String forwardedBy = headers.get(Cluster.FORWARDED_BY_HEADER);
+        boolean clusterCall = ClusterServiceGrpc.SERVICE_NAME.equals(call.getMethodDescriptor().getServiceName());
+        if (forwardedBy == null && !clusterCall)
+            return next.startCall(call, headers);
+        if (!authenticationService.isPeerToken(forwardedBy, headers.get(Cluster.PEER_TOKEN_HEADER))) {
+            log.debug("Rejecting {} claimed to come from node {}", call.getMethodDescriptor().getFullMethodName(), forwardedBy);
+            call.close(Status.UNAUTHENTICATED.withDescription("Only nodes of the cluster may make this call"), new Metadata());
+            return new ServerCall.Listener<>() {
+                // noop
+            };
+        }
+        Context context = Context.current().withValue(Constants.FORWARDED_BY_CONTEXT_KEY, forwardedBy);
+        return Contexts.interceptCall(context, call, headers, next);
+    }
+}
@@ -0,0 +1,62 @@
+package com.wz.sensorserver.cluster;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hash ring of the cluster nodes. Each node is put on the ring at a number of virtual points and a sensor
+ * is owned by the node of the first point at or after the hash of its id, so a node joining or leaving takes over or
+ * hands off only the sensors next to its points
+ */
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final NavigableMap<Long, ClusterNode> points;
+    private final List<ClusterNode> nodes;
+
+    public HashRing(Collection<ClusterNode> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param nodes        members of the cluster
+     * @param virtualNodes points per node, more points spread the sensors more evenly
+     */
+    public HashRing(Collection<ClusterNode> nodes, int virtualNodes) {
+        if (nodes.isEmpty())
+            throw new IllegalArgumentException("Ring needs at least one node");
+        if (virtualNodes <= 0)
+            throw new IllegalArgumentException("Number of virtual nodes must be greater than 0");
+        this.nodes = List.copyOf(new LinkedHashSet<>(nodes));
+        points = new TreeMap<>();
+        for (ClusterNode node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                long point = HASH_FUNCTION.hashString(node.id() + "#" + i, StandardCharsets.UTF_8).asLong();
+                // on a collision the node that sorts first keeps the point, so every node builds the same ring
+                points.merge(point, node, (existing, added) -> existing.id().compareTo(added.id()) <= 0 ? existing : added);
+            }
+        }
+    }
+
+    /**
+     * @param sensorId sensor id
+     * @return node owning the sensor
+     */
+    public ClusterNode ownerOf(UUID sensorId) {
+        long hash = HASH_FUNCTION.newHasher()
+                .putLong(sensorId.getMostSignificantBits())
+                .putLong(sensorId.getLeastSignificantBits())
+                .hash()
+                .asLong();
+        Map.Entry<Long, ClusterNode> point = points.ceilingEntry(hash);
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    public List<ClusterNode> getNodes() {
+        return nodes;
+    }
+}
@@ -0,0 +1,107 @@
+package com.wz.sensorserver.cluster;
+
+import com.google.protobuf.Empty;
+import com.wz.sensors.proto.MeasurementRequest;
+import com.wz.sensors.proto.SensorServiceGrpc;
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Relays the measurement stream of a sensor connected to this node to the node owning the sensor. A measurement is
+ * requested from the sensor only when the call to the owner is ready, so a slow owner holds the sensor back instead
+ * of measurements piling up here
+ */
+@Slf4j
+public class MeasurementForwarder implements ClientResponseObserver<MeasurementRequest, Empty> {
+    private static final Counter FORWARDED = MetricsRegistry.global().counter("cluster.forwarded.measurements");
+
+    private final StreamObserver<Empty> responseObserver;
+    private final ServerCallStreamObserver<Empty> serverCall;
+    private final AtomicBoolean waitingForOwner;
+    private ClientCallStreamObserver<MeasurementRequest> ownerCall;
+
+    private MeasurementForwarder(StreamObserver<Empty> responseObserver) {
+        this.responseObserver = responseObserver;
+        serverCall = responseObserver instanceof ServerCallStreamObserver<Empty> callStreamObserver ? callStreamObserver : null;
+        waitingForOwner = new AtomicBoolean();
+    }
+
+    /**
+     * Opens the stream to the owner. Has to be called within the service method, as it switches the sensor's call to
+     * manual inbound flow control
+     *
+     * @param responseObserver response observer of the sensor's call
+     * @param ownerStub        stub of the owner, carrying the sensor's credentials
+     * @return observer the sensor's measurements are handed to
+     */
+    public static StreamObserver<MeasurementRequest> start(StreamObserver<Empty> responseObserver,
+                                                           SensorServiceGrpc.SensorServiceStub ownerStub) {
+        MeasurementForwarder forwarder = new MeasurementForwarder(responseObserver);
+        if (forwarder.serverCall != null)
+            forwarder.serverCall.disableAutoRequest();
+        ownerStub.sendMeasurements(forwarder);
+        if (forwarder.serverCall != null) {
+            forwarder.serverCall.setOnCancelHandler(() -> forwarder.ownerCall.cancel("Sensor disconnected", null));
+            forwarder.serverCall.request(1);
+        }
+        return forwarder.new SensorStream();
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<MeasurementRequest> ownerCall) {
+        this.ownerCall = ownerCall;
+        ownerCall.setOnReadyHandler(this::requestIfReady);
+    }
+
+    @Override
+    public void onNext(Empty value) {
+        responseObserver.onNext(value);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("Owner of the sensor closed the stream: {}", t.getMessage());
+        responseObserver.onError(t);
+    }
+
+    @Override
+    public void onCompleted() {
+        responseObserver.onCompleted();
+    }
+
+    private void requestIfReady() {
+        if (ownerCall.isReady() && waitingForOwner.compareAndSet(true, false))
+            serverCall.request(1);
+    }
+
+    private class SensorStream implements StreamObserver<MeasurementRequest> {
+
+        @Override
+        public void onNext(MeasurementRequest measurement) {
+            ownerCall.onNext(measurement);
+            FORWARDED.increment();
+            if (serverCall == null)
+                return;
+            waitingForOwner.set(true);
+            // the owner may have become ready before the flag was set
+            requestIfReady();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            ownerCall.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            ownerCall.onCompleted();
+        }
+    }
+}
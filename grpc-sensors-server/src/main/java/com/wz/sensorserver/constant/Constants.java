@@ -5,6 +5,7 @@ import io.grpc.Context;
 public class Constants{
         public static final Context.Key<String> SENSOR_ID_CONTEXT_KEY = Context.key("sensorId");
         public static final Context.Key<String> CLIENT_LOGIN_CONTEXT_KEY = Context.key("login");
+        public static final Context.Key<String> FORWARDED_BY_CONTEXT_KEY = Context.key("forwardedBy");
 
         private Constants() {
             throw new AssertionError();
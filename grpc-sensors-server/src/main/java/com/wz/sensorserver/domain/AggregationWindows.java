@@ -0,0 +1,71 @@
+package com.wz.sensorserver.domain;
+
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Windows the measurements of every sensor are aggregated over at ingest. Tumbling windows are aligned to the epoch,
+ * sliding windows move by a second
+ */
+public class AggregationWindows {
+    public static final AggregationWindows NONE = new AggregationWindows(new int[0], new int[0]);
+    /**
+     * A sliding window keeps a pane per second, this bounds the memory per sensor
+     */
+    public static final int MAX_SLIDING_SECONDS = 3600;
+
+    private final int[] tumblingSeconds;
+    private final int[] slidingSeconds;
+
+    public AggregationWindows(int[] tumblingSeconds, int[] slidingSeconds) {
+        for (int seconds : tumblingSeconds) {
+            if (seconds <= 0)
+                throw new IllegalArgumentException("Window length must be greater than 0");
+        }
+        for (int seconds : slidingSeconds) {
+            if (seconds <= 0 || seconds > MAX_SLIDING_SECONDS)
+                throw new IllegalArgumentException("Sliding window length must be between 1 and %d".formatted(MAX_SLIDING_SECONDS));
+        }
+        this.tumblingSeconds = Arrays.stream(tumblingSeconds).distinct().toArray();
+        this.slidingSeconds = Arrays.stream(slidingSeconds).distinct().toArray();
+    }
+
+    /**
+     * @param tumbling comma separated lengths of tumbling windows in seconds, e.g. "1,60", empty for none
+     * @param sliding  comma separated lengths of sliding windows in seconds, empty for none
+     */
+    public static AggregationWindows parse(String tumbling, String sliding) {
+        return new AggregationWindows(parseSeconds(tumbling), parseSeconds(sliding));
+    }
+
+    private static int[] parseSeconds(String seconds) {
+        if (seconds == null || seconds.isBlank())
+            return new int[0];
+        try {
+            return Arrays.stream(seconds.split(","))
+                    .map(String::trim)
+                    .mapToInt(Integer::parseInt)
+                    .toArray();
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException("Window lengths must be comma separated seconds: %s".formatted(seconds));
+        }
+    }
+
+    public boolean isEmpty() {
+        return tumblingSeconds.length == 0 && slidingSeconds.length == 0;
+    }
+
+    public boolean supports(int windowSeconds, boolean sliding) {
+        return Arrays.stream(sliding ? slidingSeconds : tumblingSeconds).anyMatch(seconds -> seconds == windowSeconds);
+    }
+
+    /**
+     * @param sink receives the aggregate of every window that closes
+     * @return aggregator of a sensor's measurements, null if no windows are computed
+     */
+    public WindowAggregator newAggregator(String sensorId, Consumer<WindowAggregateMessage> sink) {
+        return isEmpty() ? null : new WindowAggregator(sensorId, tumblingSeconds, slidingSeconds, sink);
+    }
+}
@@ -0,0 +1,270 @@
+package com.wz.sensorserver.domain;
+
+import java.util.Arrays;
+
+/**
+ * Block of consecutive measurements compressed the way Gorilla compresses time series. The first measurement is
+ * written in full. After it, a second is written as the difference of its delta to the previous delta, in 1 bit when
+ * measurements come at a steady rate. Nanoseconds take 1 bit when they repeat and 12 bits at millisecond precision.
+ * A value is XORed with the previous one and only the bits that differ are written, 1 bit for a repeated value.
+ * Not thread safe, the history guards its blocks
+ */
+class GorillaBlock {
+    /**
+     * the object, its array header and the fields of the encoder
+     */
+    static final int OVERHEAD_BYTES = 96;
+    private static final int INITIAL_WORDS = 16;
+    private static final int NANOS_PER_MILLI = 1_000_000;
+
+    private final long firstSequence;
+    private long[] words;
+    private long bitCount;
+    private int count;
+
+    private long previousSecond;
+    private long previousDelta;
+    private int previousNano;
+    private long previousValueBits;
+    private int previousLeadingZeros;
+    private int previousTrailingZeros;
+
+    GorillaBlock(long firstSequence) {
+        this.firstSequence = firstSequence;
+        words = new long[INITIAL_WORDS];
+        previousLeadingZeros = Integer.MAX_VALUE;
+    }
+
+    void append(double value, long epochSecond, int nano) {
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            writeBits(epochSecond, 64);
+            writeBits(nano, 30);
+            writeBits(valueBits, 64);
+        } else {
+            writeSecond(epochSecond);
+            writeNano(nano);
+            writeValue(valueBits);
+        }
+        previousSecond = epochSecond;
+        previousNano = nano;
+        previousValueBits = valueBits;
+        count++;
+    }
+
+    private void writeSecond(long epochSecond) {
+        long delta = epochSecond - previousSecond;
+        long deltaOfDelta = delta - previousDelta;
+        previousDelta = delta;
+        if (deltaOfDelta == 0) {
+            writeBits(0b0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writeBits(0b10, 2);
+            writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writeBits(0b110, 3);
+            writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writeBits(0b1110, 4);
+            writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeNano(int nano) {
+        if (nano == previousNano) {
+            writeBits(0b0, 1);
+        } else if (nano % NANOS_PER_MILLI == 0) {
+            writeBits(0b10, 2);
+            writeBits(nano / NANOS_PER_MILLI, 10);
+        } else {
+            writeBits(0b11, 2);
+            writeBits(nano, 30);
+        }
+    }
+
+    private void writeValue(long valueBits) {
+        long xor = valueBits ^ previousValueBits;
+        if (xor == 0) {
+            writeBits(0b0, 1);
+            return;
+        }
+        int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailingZeros = Long.numberOfTrailingZeros(xor);
+        if (leadingZeros >= previousLeadingZeros && trailingZeros >= previousTrailingZeros) {
+            // the differing bits fit the window of the previous value
+            writeBits(0b10, 2);
+            writeBits(xor >>> previousTrailingZeros, 64 - previousLeadingZeros - previousTrailingZeros);
+        } else {
+            int meaningfulBits = 64 - leadingZeros - trailingZeros;
+            writeBits(0b11, 2);
+            writeBits(leadingZeros, 5);
+            // 64 meaningful bits are written as 0
+            writeBits(meaningfulBits & 63, 6);
+            writeBits(xor >>> trailingZeros, meaningfulBits);
+            previousLeadingZeros = leadingZeros;
+            previousTrailingZeros = trailingZeros;
+        }
+    }
+
+    private void writeBits(long value, int bits) {
+        long end = bitCount + bits;
+        if (end > (long) words.length * Long.SIZE)
+            words = Arrays.copyOf(words, words.length * 2);
+        int word = (int) (bitCount >>> 6);
+        int free = Long.SIZE - (int) (bitCount & 63);
+        if (bits < Long.SIZE)
+            value &= (1L << bits) - 1;
+        if (bits <= free) {
+            words[word] |= value << (free - bits);
+        } else {
+            words[word] |= value >>> (bits - free);
+            words[word + 1] |= value << (Long.SIZE - (bits - free));
+        }
+        bitCount = end;
+    }
+
+    /**
+     * Drops the unused words once no measurement is appended anymore
+     */
+    void seal() {
+        words = Arrays.copyOf(words, (int) ((bitCount + 63) >>> 6));
+    }
+
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    long getLastSequence() {
+        return firstSequence + count - 1;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getRetainedBytes() {
+        return (long) words.length * Long.BYTES + OVERHEAD_BYTES;
+    }
+
+    /**
+     * @return cursor over the measurements appended so far
+     */
+    Decoder decoder() {
+        return new Decoder(words, count, firstSequence);
+    }
+
+    /**
+     * Decodes the measurements of a block one after another into its fields, without allocating
+     */
+    static class Decoder {
+        private final long[] words;
+        private final int count;
+        private long position;
+        private int decoded;
+
+        private long sequence;
+        private long epochSecond;
+        private long delta;
+        private int nano;
+        private long valueBits;
+        private int leadingZeros;
+        private int trailingZeros;
+
+        private Decoder(long[] words, int count, long firstSequence) {
+            this.words = words;
+            this.count = count;
+            sequence = firstSequence - 1;
+        }
+
+        /**
+         * @return false if all measurements were decoded
+         */
+        boolean next() {
+            if (decoded == count)
+                return false;
+            if (decoded == 0) {
+                epochSecond = readBits(64);
+                nano = (int) readBits(30);
+                valueBits = readBits(64);
+            } else {
+                readSecond();
+                readNano();
+                readValue();
+            }
+            decoded++;
+            sequence++;
+            return true;
+        }
+
+        private void readSecond() {
+            long deltaOfDelta;
+            if (readBits(1) == 0)
+                deltaOfDelta = 0;
+            else if (readBits(1) == 0)
+                deltaOfDelta = readBits(7) - 63;
+            else if (readBits(1) == 0)
+                deltaOfDelta = readBits(9) - 255;
+            else if (readBits(1) == 0)
+                deltaOfDelta = readBits(12) - 2047;
+            else
+                deltaOfDelta = readBits(64);
+            delta += deltaOfDelta;
+            epochSecond += delta;
+        }
+
+        private void readNano() {
+            if (readBits(1) == 0)
+                return;
+            nano = readBits(1) == 0
+                    ? (int) readBits(10) * NANOS_PER_MILLI
+                    : (int) readBits(30);
+        }
+
+        private void readValue() {
+            if (readBits(1) == 0)
+                return;
+            if (readBits(1) == 1) {
+                leadingZeros = (int) readBits(5);
+                int meaningfulBits = (int) readBits(6);
+                if (meaningfulBits == 0)
+                    meaningfulBits = 64;
+                trailingZeros = 64 - leadingZeros - meaningfulBits;
+            }
+            valueBits ^= readBits(64 - leadingZeros - trailingZeros) << trailingZeros;
+        }
+
+        private long readBits(int bits) {
+            int word = (int) (position >>> 6);
+            int offset = (int) (position & 63);
+            int free = Long.SIZE - offset;
+            long result;
+            if (bits <= free) {
+                result = (words[word] << offset) >>> (Long.SIZE - bits);
+            } else {
+                int rest = bits - free;
+                result = ((words[word] << offset) >>> (Long.SIZE - bits)) | (words[word + 1] >>> (Long.SIZE - rest));
+            }
+            position += bits;
+            return result;
+        }
+
+        long sequence() {
+            return sequence;
+        }
+
+        long epochSecond() {
+            return epochSecond;
+        }
+
+        int nano() {
+            return nano;
+        }
+
+        double value() {
+            return Double.longBitsToDouble(valueBits);
+        }
+    }
+}
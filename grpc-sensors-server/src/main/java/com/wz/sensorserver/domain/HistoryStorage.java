@@ -0,0 +1,40 @@
+package com.wz.sensorserver.domain;
+
+import java.util.Locale;
+
+/**
+ * How the histories of sensors owned by this node keep their measurements
+ */
+public enum HistoryStorage {
+    /**
+     * Preallocated primitive arrays, 20 bytes per measurement, cheapest to write and read
+     */
+    RING_BUFFER,
+    /**
+     * Gorilla compressed blocks, a byte or two per measurement of a steady sensor, for long retention
+     */
+    COMPRESSED,
+    /**
+     * Ring buffers in large direct memory regions, so the heap does not grow with the fleet and the history depth
+     */
+    OFF_HEAP;
+
+    public static HistoryStorage parse(String value) {
+        try {
+            return valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("Unknown history storage: %s".formatted(value));
+        }
+    }
+
+    /**
+     * @param historyCapacity number of measurements retained, 0 stands for the default
+     */
+    public MeasurementHistory newHistory(int historyCapacity) {
+        return switch (this) {
+            case RING_BUFFER -> new MeasurementHistoryRingBuffer(historyCapacity);
+            case COMPRESSED -> new MeasurementHistoryCompressed(historyCapacity);
+            case OFF_HEAP -> OffHeapHistoryArena.forCapacity(historyCapacity).newHistory();
+        };
+    }
+}
@@ -13,5 +13,13 @@ import java.time.Instant;
 public class Measurement implements Serializable {
     private double value;
     private Instant madeAt;
+    /**
+     * Per-sensor sequence number, assigned when the measurement is put to the sensor's history
+     */
+    private long sequence;
 
+    public Measurement(double value, Instant madeAt) {
+        this.value = value;
+        this.madeAt = madeAt;
+    }
 }
@@ -0,0 +1,89 @@
+package com.wz.sensorserver.domain;
+
+/**
+ * Mutable count/min/max/sum of measured values. Partial aggregates of disjoint sets of measurements are merged into
+ * the aggregate of their union. Not thread safe
+ */
+public class MeasurementAggregate {
+    private long count;
+    private double min;
+    private double max;
+    private double sum;
+
+    public void add(double value) {
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        sum += value;
+        count++;
+    }
+
+    /**
+     * Adds the measurements the other aggregate was built of
+     */
+    public void merge(MeasurementAggregate other) {
+        merge(other.count, other.min, other.max, other.sum);
+    }
+
+    /**
+     * Adds measurements given by their aggregate
+     */
+    public void merge(long count, double min, double max, double sum) {
+        if (count == 0)
+            return;
+        if (this.count == 0) {
+            this.min = min;
+            this.max = max;
+        } else {
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+        }
+        this.sum += sum;
+        this.count += count;
+    }
+
+    public void set(MeasurementAggregate other) {
+        count = other.count;
+        min = other.min;
+        max = other.max;
+        sum = other.sum;
+    }
+
+    public void clear() {
+        count = 0;
+        sum = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest value, 0 when there are none
+     */
+    public double getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the largest value, 0 when there are none
+     */
+    public double getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return mean of the values, 0 when there are none
+     */
+    public double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+}
@@ -1,20 +1,78 @@
 package com.wz.sensorserver.domain;
 
 import java.util.List;
+import java.util.function.LongConsumer;
 
 public interface MeasurementHistory {
     /**
-     * Saves measurement to the history
+     * Saves measurement to the history and assigns it the next sequence number of the sensor
      *
      * @param measurement
      */
     void putMeasurement(Measurement measurement);
 
     /**
-     * Returns given number n of measurements, or <= n, if there are not enough measurements yet
+     * Saves measurement given by its fields to the history
+     *
+     * @param value       measured value
+     * @param epochSecond seconds of the time the measurement was made at
+     * @param nano        nanosecond adjustment of the time the measurement was made at
+     * @return sequence number assigned to the measurement
+     */
+    long putMeasurement(double value, long epochSecond, int nano);
+
+    /**
+     * Returns the last n measurements put to the history, the ones with the n highest sequence numbers, or all
+     * retained ones if there are fewer. A measurement made earlier but put later counts as one of the last ones
      *
      * @param n - history depth
      * @return measurements ordered by time they were made at desc
      */
     List<Measurement> getMeasurements(int n);
+
+    /**
+     * Returns retained measurements that were put after the one with the given sequence number
+     *
+     * @param sequence sequence number to start after, 0 returns everything retained
+     * @return measurements ordered by sequence number asc
+     */
+    List<Measurement> getMeasurementsAfter(long sequence);
+
+    /**
+     * Adds the values of the last n measurements put to the history, or of all retained ones if there are fewer
+     *
+     * @param n    history depth
+     * @param into aggregate the values are added to
+     */
+    default void aggregateLatest(int n, MeasurementAggregate into) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        List<Measurement> measurements = getMeasurementsAfter(Math.max(0, getLastSequence() - n));
+        // measurements put meanwhile may be returned as well
+        for (int i = Math.max(0, measurements.size() - n); i < measurements.size(); i++)
+            into.add(measurements.get(i).getValue());
+    }
+
+    /**
+     * @return sequence number of the last measurement put to the history or 0 if there was none
+     */
+    long getLastSequence();
+
+    /**
+     * Estimate of the memory the history holds, read without locking
+     *
+     * @return bytes
+     */
+    long getRetainedBytes();
+
+    /**
+     * Reports the bytes retained so far and then every change of them to the tracker, so a total over many histories
+     * is kept without summing them on each read. Set once, by the repository the sensor is added to
+     *
+     * @param tracker takes the change in bytes
+     */
+    default void trackRetainedBytes(LongConsumer tracker) {
+        // retains the same whatever is put
+        tracker.accept(getRetainedBytes());
+    }
 }
@@ -0,0 +1,215 @@
+package com.wz.sensorserver.domain;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
+/**
+ * History compressed in blocks of 1024 measurements, for retaining many of them per sensor. Sensors sending at
+ * a steady rate with slowly changing values take a byte or two per measurement instead of the 20 of
+ * {@link MeasurementHistoryRingBuffer}. The oldest block is dropped as a whole once all of its measurements fell out
+ * of the capacity, measurements are decoded only when the history is read
+ */
+public class MeasurementHistoryCompressed implements MeasurementHistory {
+    private static final int DEFAULT_HISTORY_SIZE = 50;
+    private static final int POINTS_PER_BLOCK = 1024;
+
+    private final int capacity;
+    /**
+     * sealed blocks from the oldest, followed by the one being appended to
+     */
+    private final Deque<GorillaBlock> blocks;
+    private long sealedBytes;
+    private volatile long retainedBytes;
+    /**
+     * takes the changes of the retained bytes, guarded by the write lock
+     */
+    private LongConsumer retainedBytesTracker = bytes -> {
+    };
+
+    private final ReadWriteLock historyLock;
+    private long lastSequence;
+
+    public MeasurementHistoryCompressed() {
+        this(DEFAULT_HISTORY_SIZE);
+    }
+
+    public MeasurementHistoryCompressed(int historyCapacity) {
+        if (historyCapacity < 0)
+            throw new IllegalArgumentException("History capacity must not be less than 0");
+        if (historyCapacity == 0)
+            historyCapacity = DEFAULT_HISTORY_SIZE;
+        capacity = historyCapacity;
+        blocks = new ArrayDeque<>();
+        historyLock = new ReentrantReadWriteLock();
+    }
+
+    @Override
+    public void putMeasurement(Measurement measurement) {
+        long sequence = putMeasurement(measurement.getValue(),
+                measurement.getMadeAt().getEpochSecond(),
+                measurement.getMadeAt().getNano());
+        measurement.setSequence(sequence);
+    }
+
+    @Override
+    public long putMeasurement(double value, long epochSecond, int nano) {
+        historyLock.writeLock().lock();
+        try {
+            long sequence = ++lastSequence;
+            GorillaBlock current = blocks.peekLast();
+            if (current == null || current.getCount() == POINTS_PER_BLOCK) {
+                if (current != null) {
+                    current.seal();
+                    sealedBytes += current.getRetainedBytes();
+                }
+                current = new GorillaBlock(sequence);
+                blocks.addLast(current);
+            }
+            current.append(value, epochSecond, nano);
+            GorillaBlock oldest = blocks.peekFirst();
+            if (oldest != current && oldest.getLastSequence() <= sequence - capacity) {
+                blocks.removeFirst();
+                sealedBytes -= oldest.getRetainedBytes();
+            }
+            // changes only when a block grows, is sealed or dropped
+            long bytes = sealedBytes + current.getRetainedBytes();
+            if (bytes != retainedBytes)
+                setRetainedBytes(bytes);
+            return sequence;
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Measurement> getMeasurements(int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        List<Measurement> measurements;
+        historyLock.readLock().lock();
+        try {
+            measurements = getMeasurementsAfter(Math.max(0, lastSequence - n));
+        } finally {
+            historyLock.readLock().unlock();
+        }
+        measurements.sort(Comparator.comparing(Measurement::getMadeAt).reversed());
+        return measurements;
+    }
+
+    @Override
+    public List<Measurement> getMeasurementsAfter(long sequence) {
+        historyLock.readLock().lock();
+        try {
+            long from = Math.max(firstRetainedSequence(), sequence + 1);
+            List<Measurement> measurements = new ArrayList<>((int) Math.max(0, lastSequence - from + 1));
+            for (GorillaBlock.Decoder decoder = decoderFrom(from); decoder != null; decoder = nextDecoder(decoder)) {
+                measurements.add(new Measurement(decoder.value(),
+                        Instant.ofEpochSecond(decoder.epochSecond(), decoder.nano()),
+                        decoder.sequence()));
+            }
+            return measurements;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void aggregateLatest(int n, MeasurementAggregate into) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        historyLock.readLock().lock();
+        try {
+            long from = Math.max(firstRetainedSequence(), lastSequence - n + 1);
+            for (GorillaBlock.Decoder decoder = decoderFrom(from); decoder != null; decoder = nextDecoder(decoder))
+                into.add(decoder.value());
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    private long firstRetainedSequence() {
+        return Math.max(1, lastSequence - capacity + 1);
+    }
+
+    /**
+     * @return decoder positioned at the measurement with the given sequence number, null if there is none
+     */
+    private GorillaBlock.Decoder decoderFrom(long sequence) {
+        if (sequence > lastSequence)
+            return null;
+        for (GorillaBlock block : blocks) {
+            if (block.getLastSequence() < sequence)
+                continue;
+            GorillaBlock.Decoder decoder = block.decoder();
+            while (decoder.next()) {
+                if (decoder.sequence() >= sequence)
+                    return decoder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the decoder advanced to the next measurement, moving on to the next block at the end of one. Null after
+     * the last measurement
+     */
+    private GorillaBlock.Decoder nextDecoder(GorillaBlock.Decoder decoder) {
+        if (decoder.next())
+            return decoder;
+        long nextSequence = decoder.sequence() + 1;
+        if (nextSequence > lastSequence)
+            return null;
+        Iterator<GorillaBlock> iterator = blocks.descendingIterator();
+        // reads are mostly of recent measurements, so the next block is found walking back from the newest
+        while (iterator.hasNext()) {
+            GorillaBlock block = iterator.next();
+            if (block.getFirstSequence() == nextSequence) {
+                GorillaBlock.Decoder next = block.decoder();
+                return next.next() ? next : null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getLastSequence() {
+        historyLock.readLock().lock();
+        try {
+            return lastSequence;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @Override
+    public void trackRetainedBytes(LongConsumer tracker) {
+        historyLock.writeLock().lock();
+        try {
+            retainedBytesTracker = tracker;
+            tracker.accept(retainedBytes);
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called under the write lock
+     */
+    private void setRetainedBytes(long bytes) {
+        retainedBytesTracker.accept(bytes - retainedBytes);
+        retainedBytes = bytes;
+    }
+}
@@ -2,17 +2,30 @@ package com.wz.sensorserver.domain;
 
 import com.google.common.collect.EvictingQueue;
 
+import java.time.Instant;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 public class MeasurementHistoryEvictingQueueBased implements MeasurementHistory {
     private static final int DEFAULT_HISTORY_SIZE = 50;
+    /**
+     * Measurement and its Instant with compressed references, plus the slot of the queue
+     */
+    private static final int BYTES_PER_MEASUREMENT = 32 + 24 + 4;
     private final EvictingQueue<Measurement> measurementHistory;
+    private volatile long retainedBytes;
+    /**
+     * takes the changes of the retained bytes, guarded by the write lock
+     */
+    private LongConsumer retainedBytesTracker = bytes -> {
+    };
 
     private final ReadWriteLock historyLock;
+    private long lastSequence;
 
     public MeasurementHistoryEvictingQueueBased() {
         this(DEFAULT_HISTORY_SIZE);
@@ -26,7 +39,7 @@ public class MeasurementHistoryEvictingQueueBased implements MeasurementHistory
     }
 
     /**
-     * Saves measurement to the history
+     * Saves measurement to the history and assigns it the next sequence number of the sensor
      *
      * @param measurement
      */
@@ -34,31 +47,90 @@ public class MeasurementHistoryEvictingQueueBased implements MeasurementHistory
     public void putMeasurement(Measurement measurement) {
         historyLock.writeLock().lock();
         try {
+            measurement.setSequence(++lastSequence);
+            if (measurementHistory.remainingCapacity() > 0)
+                setRetainedBytes(retainedBytes + BYTES_PER_MEASUREMENT);
             measurementHistory.add(measurement);
         } finally {
             historyLock.writeLock().unlock();
         }
     }
 
-    /**
-     * Returns given number n of measurements, or <= n, if there are not enough measurements yet
-     *
-     * @param n - history depth
-     * @return measurements ordered by time they were made at desc
-     */
+    @Override
+    public long putMeasurement(double value, long epochSecond, int nano) {
+        Measurement measurement = new Measurement(value, Instant.ofEpochSecond(epochSecond, nano));
+        putMeasurement(measurement);
+        return measurement.getSequence();
+    }
+
     @Override
     public List<Measurement> getMeasurements(int n) {
         if (n <= 0)
             throw new IllegalArgumentException("Depth must be greater than 0");
         historyLock.readLock().lock();
         try {
-            return measurementHistory.
-                    stream()
+            // the queue keeps insertion order, so the last n put are at its tail
+            return measurementHistory
+                    .stream()
+                    .skip(Math.max(0, measurementHistory.size() - n))
                     .sorted(Comparator.comparing(Measurement::getMadeAt).reversed())
-                    .limit(n)
                     .collect(Collectors.toList());
         } finally {
             historyLock.readLock().unlock();
         }
     }
+
+    /**
+     * Returns retained measurements that were put after the one with the given sequence number
+     *
+     * @param sequence sequence number to start after, 0 returns everything retained
+     * @return measurements ordered by sequence number asc
+     */
+    @Override
+    public List<Measurement> getMeasurementsAfter(long sequence) {
+        historyLock.readLock().lock();
+        try {
+            // the queue keeps insertion order, which is the order of sequence numbers
+            return measurementHistory
+                    .stream()
+                    .filter(measurement -> measurement.getSequence() > sequence)
+                    .collect(Collectors.toList());
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLastSequence() {
+        historyLock.readLock().lock();
+        try {
+            return lastSequence;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @Override
+    public void trackRetainedBytes(LongConsumer tracker) {
+        historyLock.writeLock().lock();
+        try {
+            retainedBytesTracker = tracker;
+            tracker.accept(retainedBytes);
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called under the write lock
+     */
+    private void setRetainedBytes(long bytes) {
+        retainedBytesTracker.accept(bytes - retainedBytes);
+        retainedBytes = bytes;
+    }
 }
@@ -0,0 +1,176 @@
+package com.wz.sensorserver.domain;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Ring buffer history like {@link MeasurementHistoryRingBuffer}, with its arrays in a slot of an
+ * {@link OffHeapHistoryArena} instead of on the heap. The heap keeps this object and its lock whatever the capacity.
+ * The slot is taken when the first measurement is put, so sensors that never send do not use one
+ */
+public class MeasurementHistoryOffHeap implements MeasurementHistory {
+    static final int BYTES_PER_MEASUREMENT = Double.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final OffHeapHistoryArena arena;
+    private final int capacity;
+    private final ReadWriteLock historyLock;
+    private ByteBuffer region;
+    /**
+     * offsets of the values, epoch seconds and nanos in the region, each a column of capacity entries
+     */
+    private int valuesOffset;
+    private int epochSecondsOffset;
+    private int nanosOffset;
+    private long lastSequence;
+    private volatile long retainedBytes;
+    /**
+     * takes the changes of the retained bytes, guarded by the write lock
+     */
+    private LongConsumer retainedBytesTracker = bytes -> {
+    };
+
+    MeasurementHistoryOffHeap(OffHeapHistoryArena arena) {
+        this.arena = arena;
+        capacity = arena.getCapacity();
+        historyLock = new ReentrantReadWriteLock();
+    }
+
+    @Override
+    public void putMeasurement(Measurement measurement) {
+        long sequence = putMeasurement(measurement.getValue(),
+                measurement.getMadeAt().getEpochSecond(),
+                measurement.getMadeAt().getNano());
+        measurement.setSequence(sequence);
+    }
+
+    @Override
+    public long putMeasurement(double value, long epochSecond, int nano) {
+        historyLock.writeLock().lock();
+        try {
+            if (region == null)
+                takeSlot();
+            long sequence = ++lastSequence;
+            // sequence numbers start at 1, so the entry of sequence s is (s - 1) % capacity
+            int entry = (int) ((sequence - 1) % capacity);
+            region.putDouble(valuesOffset + entry * Double.BYTES, value);
+            region.putLong(epochSecondsOffset + entry * Long.BYTES, epochSecond);
+            region.putInt(nanosOffset + entry * Integer.BYTES, nano);
+            return sequence;
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    private void takeSlot() {
+        OffHeapHistoryArena.Slot slot = arena.allocateSlot();
+        region = slot.region();
+        valuesOffset = slot.offset();
+        epochSecondsOffset = valuesOffset + capacity * Double.BYTES;
+        nanosOffset = epochSecondsOffset + capacity * Long.BYTES;
+        setRetainedBytes(arena.getSlotBytes());
+    }
+
+    @Override
+    public List<Measurement> getMeasurements(int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        List<Measurement> measurements;
+        historyLock.readLock().lock();
+        try {
+            // only the latest n entries are read, not the whole ring
+            measurements = readFrom(lastSequence - n + 1);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+        measurements.sort(Comparator.comparing(Measurement::getMadeAt).reversed());
+        return measurements;
+    }
+
+    @Override
+    public List<Measurement> getMeasurementsAfter(long sequence) {
+        historyLock.readLock().lock();
+        try {
+            return readFrom(sequence + 1);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Must be called under the read lock
+     *
+     * @return retained measurements from the given sequence number on, in sequence order
+     */
+    private List<Measurement> readFrom(long sequence) {
+        long from = Math.max(firstRetainedSequence(), sequence);
+        List<Measurement> measurements = new ArrayList<>((int) Math.max(0, lastSequence - from + 1));
+        for (long current = from; current <= lastSequence; current++) {
+            int entry = (int) ((current - 1) % capacity);
+            measurements.add(new Measurement(region.getDouble(valuesOffset + entry * Double.BYTES),
+                    Instant.ofEpochSecond(region.getLong(epochSecondsOffset + entry * Long.BYTES),
+                            region.getInt(nanosOffset + entry * Integer.BYTES)),
+                    current));
+        }
+        return measurements;
+    }
+
+    @Override
+    public void aggregateLatest(int n, MeasurementAggregate into) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        historyLock.readLock().lock();
+        try {
+            for (long current = Math.max(firstRetainedSequence(), lastSequence - n + 1); current <= lastSequence; current++)
+                into.add(region.getDouble(valuesOffset + (int) ((current - 1) % capacity) * Double.BYTES));
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    private long firstRetainedSequence() {
+        return Math.max(1, lastSequence - capacity + 1);
+    }
+
+    @Override
+    public long getLastSequence() {
+        historyLock.readLock().lock();
+        try {
+            return lastSequence;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of the slot in direct memory, 0 until the first measurement is put
+     */
+    @Override
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    @Override
+    public void trackRetainedBytes(LongConsumer tracker) {
+        historyLock.writeLock().lock();
+        try {
+            retainedBytesTracker = tracker;
+            tracker.accept(retainedBytes);
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called under the write lock
+     */
+    private void setRetainedBytes(long bytes) {
+        retainedBytesTracker.accept(bytes - retainedBytes);
+        retainedBytes = bytes;
+    }
+}
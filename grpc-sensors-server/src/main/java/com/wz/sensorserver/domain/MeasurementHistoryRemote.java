@@ -0,0 +1,39 @@
+package com.wz.sensorserver.domain;
+
+import java.util.List;
+
+/**
+ * History of a sensor owned by another node of the cluster. The owner keeps the measurements, this node keeps none
+ */
+public class MeasurementHistoryRemote implements MeasurementHistory {
+
+    @Override
+    public void putMeasurement(Measurement measurement) {
+        throw new IllegalStateException("Measurements of the sensor are kept by its owner");
+    }
+
+    @Override
+    public long putMeasurement(double value, long epochSecond, int nano) {
+        throw new IllegalStateException("Measurements of the sensor are kept by its owner");
+    }
+
+    @Override
+    public List<Measurement> getMeasurements(int n) {
+        return List.of();
+    }
+
+    @Override
+    public List<Measurement> getMeasurementsAfter(long sequence) {
+        return List.of();
+    }
+
+    @Override
+    public long getLastSequence() {
+        return 0;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,132 @@
+package com.wz.sensorserver.domain;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * History kept in parallel primitive arrays used as a ring buffer. Putting a measurement allocates nothing,
+ * measurement objects are only created when the history is read
+ */
+public class MeasurementHistoryRingBuffer implements MeasurementHistory {
+    private static final int DEFAULT_HISTORY_SIZE = 50;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int BYTES_PER_MEASUREMENT = Double.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final double[] values;
+    private final long[] epochSeconds;
+    private final int[] nanos;
+    private final int capacity;
+    private final long retainedBytes;
+
+    private final ReadWriteLock historyLock;
+    private long lastSequence;
+
+    public MeasurementHistoryRingBuffer() {
+        this(DEFAULT_HISTORY_SIZE);
+    }
+
+    public MeasurementHistoryRingBuffer(int historyCapacity) {
+        if (historyCapacity < 0)
+            throw new IllegalArgumentException("History capacity must not be less than 0");
+        if (historyCapacity == 0)
+            historyCapacity = DEFAULT_HISTORY_SIZE;
+        capacity = historyCapacity;
+        values = new double[historyCapacity];
+        epochSeconds = new long[historyCapacity];
+        nanos = new int[historyCapacity];
+        historyLock = new ReentrantReadWriteLock();
+        // the arrays are allocated up front
+        retainedBytes = (long) historyCapacity * BYTES_PER_MEASUREMENT + 3 * ARRAY_HEADER_BYTES;
+    }
+
+    @Override
+    public void putMeasurement(Measurement measurement) {
+        long sequence = putMeasurement(measurement.getValue(),
+                measurement.getMadeAt().getEpochSecond(),
+                measurement.getMadeAt().getNano());
+        measurement.setSequence(sequence);
+    }
+
+    @Override
+    public long putMeasurement(double value, long epochSecond, int nano) {
+        historyLock.writeLock().lock();
+        try {
+            long sequence = ++lastSequence;
+            // sequence numbers start at 1, so the slot of sequence s is (s - 1) % capacity
+            int slot = (int) ((sequence - 1) % capacity);
+            values[slot] = value;
+            epochSeconds[slot] = epochSecond;
+            nanos[slot] = nano;
+            return sequence;
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Measurement> getMeasurements(int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        List<Measurement> measurements;
+        historyLock.readLock().lock();
+        try {
+            measurements = getMeasurementsAfter(Math.max(0, lastSequence - n));
+        } finally {
+            historyLock.readLock().unlock();
+        }
+        measurements.sort(Comparator.comparing(Measurement::getMadeAt).reversed());
+        return measurements;
+    }
+
+    @Override
+    public List<Measurement> getMeasurementsAfter(long sequence) {
+        historyLock.readLock().lock();
+        try {
+            long firstRetained = Math.max(1, lastSequence - capacity + 1);
+            long from = Math.max(firstRetained, sequence + 1);
+            List<Measurement> measurements = new ArrayList<>((int) Math.max(0, lastSequence - from + 1));
+            for (long current = from; current <= lastSequence; current++) {
+                int slot = (int) ((current - 1) % capacity);
+                measurements.add(new Measurement(values[slot],
+                        Instant.ofEpochSecond(epochSeconds[slot], nanos[slot]),
+                        current));
+            }
+            return measurements;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void aggregateLatest(int n, MeasurementAggregate into) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        historyLock.readLock().lock();
+        try {
+            long from = Math.max(Math.max(1, lastSequence - capacity + 1), lastSequence - n + 1);
+            for (long current = from; current <= lastSequence; current++)
+                into.add(values[(int) ((current - 1) % capacity)]);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getLastSequence() {
+        historyLock.readLock().lock();
+        try {
+            return lastSequence;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+}
@@ -0,0 +1,123 @@
+package com.wz.sensorserver.domain;
+
+import com.wz.sensorserver.metrics.MetricsRegistry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Direct memory the ring buffers of {@link MeasurementHistoryOffHeap} live in. Memory is allocated in large regions
+ * split into slots of one history each, so the heap holds a handful of buffers however many sensors there are and
+ * however deep their histories are. Slots are handed out for good, sensors are never removed. Direct memory is bounded
+ * by -XX:MaxDirectMemorySize, which defaults to the maximum heap size
+ */
+public class OffHeapHistoryArena {
+    private static final int DEFAULT_HISTORY_SIZE = 50;
+    public static final int DEFAULT_REGION_BYTES = 64 << 20;
+    private static final AtomicLong ALLOCATED_BYTES = new AtomicLong();
+    private static final Map<Integer, OffHeapHistoryArena> SHARED = new ConcurrentHashMap<>();
+
+    static {
+        MetricsRegistry.global().gauge("history.offheap.bytes", ALLOCATED_BYTES::get);
+    }
+
+    private final int capacity;
+    private final int slotBytes;
+    private final int slotsPerRegion;
+    private final List<ByteBuffer> regions;
+    private final Lock lock;
+    private int allocatedSlots;
+
+    /**
+     * @param historyCapacity measurements every history retains, 0 stands for the default
+     * @param regionBytes     size of a region at most, a region holds at least one slot
+     */
+    public OffHeapHistoryArena(int historyCapacity, int regionBytes) {
+        if (historyCapacity < 0)
+            throw new IllegalArgumentException("History capacity must not be less than 0");
+        if (historyCapacity == 0)
+            historyCapacity = DEFAULT_HISTORY_SIZE;
+        if ((long) historyCapacity * MeasurementHistoryOffHeap.BYTES_PER_MEASUREMENT > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("History capacity is too large for a region");
+        capacity = historyCapacity;
+        slotBytes = historyCapacity * MeasurementHistoryOffHeap.BYTES_PER_MEASUREMENT;
+        slotsPerRegion = Math.max(1, regionBytes / slotBytes);
+        regions = new ArrayList<>();
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * @return the arena of the process for histories of the given capacity
+     */
+    public static OffHeapHistoryArena forCapacity(int historyCapacity) {
+        return SHARED.computeIfAbsent(historyCapacity == 0 ? DEFAULT_HISTORY_SIZE : historyCapacity,
+                capacity -> new OffHeapHistoryArena(capacity, DEFAULT_REGION_BYTES));
+    }
+
+    /**
+     * @return history that takes a slot of the arena when the first measurement is put to it
+     */
+    public MeasurementHistory newHistory() {
+        return new MeasurementHistoryOffHeap(this);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getSlotBytes() {
+        return slotBytes;
+    }
+
+    /**
+     * @return region and offset of a slot no other history uses
+     */
+    Slot allocateSlot() {
+        lock.lock();
+        try {
+            int regionIndex = allocatedSlots / slotsPerRegion;
+            if (regionIndex == regions.size()) {
+                int regionBytes = slotsPerRegion * slotBytes;
+                regions.add(ByteBuffer.allocateDirect(regionBytes).order(ByteOrder.nativeOrder()));
+                ALLOCATED_BYTES.addAndGet(regionBytes);
+            }
+            int offset = (allocatedSlots % slotsPerRegion) * slotBytes;
+            allocatedSlots++;
+            return new Slot(regions.get(regionIndex), offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getAllocatedSlots() {
+        lock.lock();
+        try {
+            return allocatedSlots;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRegionCount() {
+        lock.lock();
+        try {
+            return regions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param region buffer shared by the histories of the region, used with absolute offsets only
+     * @param offset first byte of the slot in the region
+     */
+    record Slot(ByteBuffer region, int offset) {
+    }
+}
@@ -0,0 +1,256 @@
+package com.wz.sensorserver.domain;
+
+import java.util.Arrays;
+
+/**
+ * DDSketch of measured values: every value is counted in a bucket of logarithmically growing width, so any quantile
+ * is answered within the relative accuracy of its true value. Sketches with the same accuracy merge exactly by adding
+ * up their buckets. A store keeps at most maxBuckets buckets, beyond that the lowest ones are collapsed, which only
+ * costs accuracy on the quantiles of the smallest magnitudes. Not thread safe
+ */
+public class QuantileSketch {
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    public static final int DEFAULT_MAX_BUCKETS = 2048;
+    /**
+     * magnitudes below this are counted as zero
+     */
+    private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double multiplier;
+    private final Buckets positive;
+    private final Buckets negative;
+    private long zeroCount;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * @param relativeAccuracy largest relative error of a quantile, between 0 and 1
+     * @param maxBuckets       buckets kept for each sign at most, bounds the memory of the sketch
+     */
+    public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1)
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1");
+        if (maxBuckets <= 0)
+            throw new IllegalArgumentException("Number of buckets must be greater than 0");
+        this.relativeAccuracy = relativeAccuracy;
+        gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        multiplier = 1 / Math.log(gamma);
+        positive = new Buckets(maxBuckets);
+        negative = new Buckets(maxBuckets);
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            return;
+        if (value > MIN_INDEXABLE_VALUE)
+            positive.add(indexOf(value), 1);
+        else if (value < -MIN_INDEXABLE_VALUE)
+            negative.add(indexOf(-value), 1);
+        else
+            zeroCount++;
+    }
+
+    /**
+     * Adds the values the other sketch was built of
+     */
+    public void merge(QuantileSketch other) {
+        checkCompatible(other.relativeAccuracy);
+        positive.addAll(other.positive);
+        negative.addAll(other.negative);
+        zeroCount += other.zeroCount;
+    }
+
+    /**
+     * Adds values given by the buckets of a sketch with the same accuracy
+     *
+     * @param offset index of the first of the counts
+     * @param counts counts of consecutive buckets
+     */
+    public void addBuckets(double relativeAccuracy, boolean negativeValues, int offset, long[] counts) {
+        checkCompatible(relativeAccuracy);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0)
+                (negativeValues ? negative : positive).add(offset + i, counts[i]);
+        }
+    }
+
+    public void addZeroCount(long count) {
+        zeroCount += count;
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return value of the quantile within the relative accuracy, NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        long count = getCount();
+        if (count == 0)
+            return Double.NaN;
+        long rank = (long) (quantile * (count - 1));
+        // negative values from the largest magnitude down, then zeros, then positive values up
+        if (rank < negative.total) {
+            long seen = 0;
+            for (int index = negative.maxIndex; index >= negative.minIndex; index--) {
+                seen += negative.countOf(index);
+                if (seen > rank)
+                    return -valueOf(index);
+            }
+        }
+        rank -= negative.total;
+        if (rank < zeroCount)
+            return 0;
+        rank -= zeroCount;
+        long seen = 0;
+        for (int index = positive.minIndex; index < positive.maxIndex; index++) {
+            seen += positive.countOf(index);
+            if (seen > rank)
+                return valueOf(index);
+        }
+        return valueOf(positive.maxIndex);
+    }
+
+    public long getCount() {
+        return positive.total + negative.total + zeroCount;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    public long getZeroCount() {
+        return zeroCount;
+    }
+
+    /**
+     * @return index of the first of {@link #getBucketCounts(boolean)}
+     */
+    public int getBucketOffset(boolean negativeValues) {
+        return (negativeValues ? negative : positive).minIndex;
+    }
+
+    /**
+     * @return counts of the buckets from the lowest to the highest one used, empty if there are none
+     */
+    public long[] getBucketCounts(boolean negativeValues) {
+        return (negativeValues ? negative : positive).toArray();
+    }
+
+    /**
+     * Empties the sketch keeping its buckets allocated
+     */
+    public void clear() {
+        positive.clear();
+        negative.clear();
+        zeroCount = 0;
+    }
+
+    private int indexOf(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) * multiplier);
+    }
+
+    /**
+     * @return the value whose relative distance to both bounds of the bucket is the accuracy
+     */
+    private double valueOf(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    private void checkCompatible(double otherRelativeAccuracy) {
+        if (otherRelativeAccuracy != relativeAccuracy)
+            throw new IllegalArgumentException("Sketches of different accuracy can not be merged");
+    }
+
+    /**
+     * Counts of consecutive bucket indexes kept in an array that grows up to maxBuckets
+     */
+    private static class Buckets {
+        private static final int INITIAL_LENGTH = 64;
+
+        private final int maxBuckets;
+        private long[] counts = new long[0];
+        /**
+         * bucket index counts[0] holds
+         */
+        private int offset;
+        private int minIndex;
+        private int maxIndex;
+        private long total;
+
+        private Buckets(int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+        }
+
+        private void add(int index, long count) {
+            if (total == 0) {
+                if (counts.length == 0)
+                    counts = new long[Math.min(INITIAL_LENGTH, maxBuckets)];
+                offset = index - counts.length / 2;
+                minIndex = index;
+                maxIndex = index;
+            } else if (index < minIndex || index > maxIndex) {
+                extend(Math.min(index, minIndex), Math.max(index, maxIndex));
+            }
+            // an index below a collapsed range is counted in its lowest bucket
+            counts[Math.max(index, minIndex) - offset] += count;
+            total += count;
+        }
+
+        private void addAll(Buckets other) {
+            if (other.total == 0)
+                return;
+            for (int index = other.minIndex; index <= other.maxIndex; index++) {
+                long count = other.countOf(index);
+                if (count > 0)
+                    add(index, count);
+            }
+        }
+
+        private long countOf(int index) {
+            return counts[index - offset];
+        }
+
+        private void extend(int newMin, int newMax) {
+            long collapsed = 0;
+            if (newMax - newMin + 1 > maxBuckets) {
+                int collapsedMin = newMax - maxBuckets + 1;
+                for (int index = minIndex; index <= Math.min(maxIndex, collapsedMin - 1); index++) {
+                    collapsed += counts[index - offset];
+                    counts[index - offset] = 0;
+                }
+                newMin = collapsedMin;
+            }
+            if (newMin < offset || newMax >= offset + counts.length) {
+                int range = newMax - newMin + 1;
+                long[] extended = new long[Math.max(range, Math.min(maxBuckets, counts.length * 2))];
+                int extendedOffset = newMin - (extended.length - range) / 2;
+                int from = Math.max(minIndex, newMin);
+                int to = Math.min(maxIndex, newMax);
+                if (from <= to)
+                    System.arraycopy(counts, from - offset, extended, from - extendedOffset, to - from + 1);
+                counts = extended;
+                offset = extendedOffset;
+            }
+            minIndex = newMin;
+            maxIndex = newMax;
+            counts[minIndex - offset] += collapsed;
+        }
+
+        private long[] toArray() {
+            if (total == 0)
+                return new long[0];
+            return Arrays.copyOfRange(counts, minIndex - offset, maxIndex - offset + 1);
+        }
+
+        private void clear() {
+            if (total > 0)
+                Arrays.fill(counts, minIndex - offset, maxIndex - offset + 1, 0);
+            total = 0;
+        }
+    }
+}
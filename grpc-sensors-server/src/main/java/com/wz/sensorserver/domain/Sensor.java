@@ -5,6 +5,7 @@ import lombok.Getter;
 import lombok.Setter;
 
 import java.util.*;
+import java.util.function.LongConsumer;
 
 public class Sensor {
     public enum OnlineStatus {
@@ -29,31 +30,90 @@ public class Sensor {
     @Getter
     @Setter
     private volatile OnlineStatus onlineStatus;
+    /**
+     * Highest sequence number the sensor has sent, survives reconnects so resent points can be recognized
+     */
+    @Getter
+    @Setter
+    private volatile long ingestHighWaterMark;
+    /**
+     * Quantile sketches of the measurements, null if this node keeps none for the sensor
+     */
+    @Getter
+    @Setter
+    private volatile SensorSketch sketch;
 
     private final MeasurementHistory measurementHistory;
 
     @Builder
     public Sensor(UUID id, String name, String location, Collection<String> tags, int historyCapacity) {
-        if (historyCapacity < 0)
-            throw new IllegalArgumentException("History capacity must not be less than 0");
+        this(id, name, location, tags, newHistory(historyCapacity));
+    }
+
+    /**
+     * @param measurementHistory history the measurements of the sensor are kept in
+     */
+    public Sensor(UUID id, String name, String location, Collection<String> tags, MeasurementHistory measurementHistory) {
         this.id = id;
         this.name = name;
         this.location = location;
         this.tags = new ArrayList<>();
         if (tags != null)
             this.tags.addAll(tags);
-        measurementHistory = new MeasurementHistoryEvictingQueueBased(historyCapacity);
+        this.measurementHistory = measurementHistory;
         onlineStatus = OnlineStatus.OFFLINE;
     }
 
+    private static MeasurementHistory newHistory(int historyCapacity) {
+        if (historyCapacity < 0)
+            throw new IllegalArgumentException("History capacity must not be less than 0");
+        return new MeasurementHistoryRingBuffer(historyCapacity);
+    }
+
     public void putMeasurement(Measurement measurement) {
         measurementHistory.putMeasurement(measurement);
     }
 
+    /**
+     * @return sequence number assigned to the measurement
+     */
+    public long putMeasurement(double value, long epochSecond, int nano) {
+        return measurementHistory.putMeasurement(value, epochSecond, nano);
+    }
+
     public List<Measurement> getMeasurements(int n) {
         return measurementHistory.getMeasurements(n);
     }
 
+    public List<Measurement> getMeasurementsAfter(long sequence) {
+        return measurementHistory.getMeasurementsAfter(sequence);
+    }
+
+    /**
+     * Adds the values of the last n measurements of the sensor to the aggregate
+     */
+    public void aggregateLatest(int n, MeasurementAggregate into) {
+        measurementHistory.aggregateLatest(n, into);
+    }
+
+    public long getLastSequence() {
+        return measurementHistory.getLastSequence();
+    }
+
+    /**
+     * @return estimated memory the sensor's history holds
+     */
+    public long getHistoryBytes() {
+        return measurementHistory.getRetainedBytes();
+    }
+
+    /**
+     * @param tracker takes the bytes the history retains so far and then every change of them
+     */
+    public void trackHistoryBytes(LongConsumer tracker) {
+        measurementHistory.trackRetainedBytes(tracker);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,56 @@
+package com.wz.sensorserver.domain;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Aggregates the latest measurements of many sensors on a fork/join pool. The sensors are split in halves until a
+ * shard is small enough, each shard builds a partial aggregate of its sensors' histories and the partials are merged
+ * on the way back. A history is read under its own lock only, so sensors keep ingesting while the task runs
+ */
+public class SensorAggregationTask extends RecursiveTask<MeasurementAggregate> {
+    /**
+     * sensors aggregated by one task without splitting it further
+     */
+    static final int SHARD_SIZE = 16;
+
+    private final List<Sensor> sensors;
+    private final int from;
+    private final int to;
+    private final int depth;
+
+    private SensorAggregationTask(List<Sensor> sensors, int from, int to, int depth) {
+        this.sensors = sensors;
+        this.from = from;
+        this.to = to;
+        this.depth = depth;
+    }
+
+    /**
+     * @param sensors sensors to aggregate, a random access list
+     * @param depth   number of latest measurements of every sensor to aggregate
+     * @return aggregate of the measurements of all sensors
+     */
+    public static MeasurementAggregate aggregate(ForkJoinPool pool, List<Sensor> sensors, int depth) {
+        if (depth <= 0)
+            throw new IllegalArgumentException("Depth must be greater than 0");
+        return pool.invoke(new SensorAggregationTask(sensors, 0, sensors.size(), depth));
+    }
+
+    @Override
+    protected MeasurementAggregate compute() {
+        if (to - from <= SHARD_SIZE) {
+            MeasurementAggregate partial = new MeasurementAggregate();
+            for (int i = from; i < to; i++)
+                sensors.get(i).aggregateLatest(depth, partial);
+            return partial;
+        }
+        int middle = (from + to) >>> 1;
+        SensorAggregationTask left = new SensorAggregationTask(sensors, from, middle, depth);
+        left.fork();
+        MeasurementAggregate partial = new SensorAggregationTask(sensors, middle, to, depth).compute();
+        partial.merge(left.join());
+        return partial;
+    }
+}
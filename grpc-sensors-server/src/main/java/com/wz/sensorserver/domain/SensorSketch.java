@@ -0,0 +1,77 @@
+package com.wz.sensorserver.domain;
+
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Quantile sketches of a sensor's measurements over the last slices of time, by their madeAt time. The slices are
+ * reused as a ring, so the memory does not grow with the ingest rate or the time the sensor has been sending.
+ * Measurements older than the retained slices are left out
+ */
+public class SensorSketch {
+    private static final Counter LATE = MetricsRegistry.global().counter("sketches.late");
+
+    private final int sliceSeconds;
+    private final QuantileSketch[] slices;
+    /**
+     * epoch second every slice starts at, Long.MIN_VALUE for a slice never used
+     */
+    private final long[] sliceStarts;
+    private final Lock lock;
+
+    SensorSketch(int sliceSeconds, int sliceCount) {
+        this.sliceSeconds = sliceSeconds;
+        slices = new QuantileSketch[sliceCount];
+        for (int i = 0; i < sliceCount; i++)
+            slices[i] = new QuantileSketch();
+        sliceStarts = new long[sliceCount];
+        Arrays.fill(sliceStarts, Long.MIN_VALUE);
+        lock = new ReentrantLock();
+    }
+
+    public void add(long epochSecond, double value) {
+        long slice = Math.floorDiv(epochSecond, sliceSeconds);
+        long sliceStart = slice * sliceSeconds;
+        int index = Math.floorMod(slice, slices.length);
+        lock.lock();
+        try {
+            if (sliceStarts[index] != sliceStart) {
+                if (sliceStarts[index] > sliceStart) {
+                    LATE.increment();
+                    return;
+                }
+                slices[index].clear();
+                sliceStarts[index] = sliceStart;
+            }
+            slices[index].add(value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the slices that overlap the time from the given second on to the sketch
+     *
+     * @param fromEpochSecond start of the time, slices retained before it are left out
+     * @param into            sketch with the default accuracy
+     */
+    public void mergeInto(long fromEpochSecond, QuantileSketch into) {
+        lock.lock();
+        try {
+            long newestStart = Arrays.stream(sliceStarts).max().orElse(Long.MIN_VALUE);
+            // slices the ring moved past are not retained anymore even if they were not overwritten
+            long retainedFrom = newestStart - (long) (slices.length - 1) * sliceSeconds;
+            for (int i = 0; i < slices.length; i++) {
+                if (sliceStarts[i] != Long.MIN_VALUE && sliceStarts[i] >= retainedFrom
+                        && sliceStarts[i] + sliceSeconds > fromEpochSecond)
+                    into.merge(slices[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.wz.sensorserver.domain;
+
+/**
+ * How long quantile sketches of every sensor's measurements are kept: a number of slices of a number of seconds.
+ * Quantiles are queried over whole slices
+ */
+public class SketchRetention {
+    public static final SketchRetention NONE = new SketchRetention(1, 0);
+    /**
+     * Every slice is a sketch of its own, this bounds the memory per sensor
+     */
+    public static final int MAX_SLICES = 1440;
+
+    private final int sliceSeconds;
+    private final int sliceCount;
+
+    public SketchRetention(int sliceSeconds, int sliceCount) {
+        if (sliceSeconds <= 0)
+            throw new IllegalArgumentException("Slice length must be greater than 0");
+        if (sliceCount < 0 || sliceCount > MAX_SLICES)
+            throw new IllegalArgumentException("Number of slices must be between 0 and %d".formatted(MAX_SLICES));
+        this.sliceSeconds = sliceSeconds;
+        this.sliceCount = sliceCount;
+    }
+
+    /**
+     * @param retention seconds of a slice and number of slices separated by a comma, e.g. "60,60" for an hour by the
+     *                  minute. Empty for none
+     */
+    public static SketchRetention parse(String retention) {
+        if (retention == null || retention.isBlank())
+            return NONE;
+        String[] parts = retention.split(",");
+        try {
+            if (parts.length == 2)
+                return new SketchRetention(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Sketch retention must be slice seconds and slice count: %s".formatted(retention));
+    }
+
+    public boolean isEmpty() {
+        return sliceCount == 0;
+    }
+
+    /**
+     * @return seconds of measurements retained
+     */
+    public long getRetainedSeconds() {
+        return (long) sliceSeconds * sliceCount;
+    }
+
+    /**
+     * @return sketch of a sensor's measurements, null if none are kept
+     */
+    public SensorSketch newSketch() {
+        return isEmpty() ? null : new SensorSketch(sliceSeconds, sliceCount);
+    }
+}
@@ -0,0 +1,56 @@
+package com.wz.sensorserver.domain;
+
+import com.wz.sensorserver.exception.InvalidRequestException;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Tag expression a client can subscribe with. Alternatives are separated by '|' and tags that all have to be present
+ * by '&', so "floor-3&temperature|boiler-room" matches sensors tagged with both floor-3 and temperature or
+ * with boiler-room
+ */
+@EqualsAndHashCode
+public class TagExpression {
+    @Getter
+    private final String expression;
+    private final List<Set<String>> alternatives;
+
+    private TagExpression(String expression, List<Set<String>> alternatives) {
+        this.expression = expression;
+        this.alternatives = alternatives;
+    }
+
+    public static TagExpression parse(String expression) {
+        if (expression == null || expression.isBlank())
+            throw new InvalidRequestException("Tag expression must not be empty");
+        List<Set<String>> alternatives = Arrays.stream(expression.split("\\|", -1))
+                .map(alternative -> Arrays.stream(alternative.split("&", -1))
+                        .map(String::trim)
+                        .collect(Collectors.toUnmodifiableSet()))
+                .toList();
+        if (alternatives.stream().anyMatch(tags -> tags.isEmpty() || tags.contains("")))
+            throw new InvalidRequestException("Tag expression is malformed: %s".formatted(expression));
+        return new TagExpression(expression.trim(), alternatives);
+    }
+
+    /**
+     * @param tags tags of a sensor
+     * @return true if at least one of alternatives is fully covered by the given tags
+     */
+    public boolean matches(Collection<String> tags) {
+        return alternatives.stream().anyMatch(tags::containsAll);
+    }
+
+    /**
+     * @return groups of tags where all tags of a group must be present for the sensor to match
+     */
+    public List<Set<String>> getAlternatives() {
+        return alternatives;
+    }
+}
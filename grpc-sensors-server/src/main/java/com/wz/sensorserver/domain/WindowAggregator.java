@@ -0,0 +1,117 @@
+package com.wz.sensorserver.domain;
+
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Incremental min/max/sum/count of a sensor's measurements per window, in constant memory. Measurements are first
+ * aggregated into a pane per second of their madeAt time. A closed pane is merged into the tumbling windows and stored
+ * in the ring of panes of every sliding window. A window closes once a measurement of a later window arrives, or the
+ * stream ends, so a window is reported when the sensor moves past it. Measurements older than the current pane are
+ * left out. Not thread safe, a sensor's measurements are processed one at a time
+ */
+public class WindowAggregator {
+    private static final Counter LATE = MetricsRegistry.global().counter("windows.late");
+    private static final Counter CLOSED = MetricsRegistry.global().counter("windows.closed");
+
+    private final String sensorId;
+    private final Consumer<WindowAggregateMessage> sink;
+    private final MeasurementAggregate pane;
+    private long paneSecond;
+    private final int[] tumblingSeconds;
+    private final MeasurementAggregate[] tumbling;
+    private final long[] tumblingStart;
+    private final int[] slidingSeconds;
+    /**
+     * per sliding window, the panes of its last seconds indexed by second modulo its length
+     */
+    private final MeasurementAggregate[][] slidingPanes;
+    private final long[][] slidingPaneSeconds;
+    private final MeasurementAggregate slidingWindow;
+
+    WindowAggregator(String sensorId, int[] tumblingSeconds, int[] slidingSeconds, Consumer<WindowAggregateMessage> sink) {
+        this.sensorId = sensorId;
+        this.sink = sink;
+        pane = new MeasurementAggregate();
+        this.tumblingSeconds = tumblingSeconds;
+        tumbling = new MeasurementAggregate[tumblingSeconds.length];
+        tumblingStart = new long[tumblingSeconds.length];
+        for (int i = 0; i < tumbling.length; i++)
+            tumbling[i] = new MeasurementAggregate();
+        this.slidingSeconds = slidingSeconds;
+        slidingPanes = new MeasurementAggregate[slidingSeconds.length][];
+        slidingPaneSeconds = new long[slidingSeconds.length][];
+        for (int i = 0; i < slidingSeconds.length; i++) {
+            slidingPanes[i] = new MeasurementAggregate[slidingSeconds[i]];
+            for (int j = 0; j < slidingSeconds[i]; j++)
+                slidingPanes[i][j] = new MeasurementAggregate();
+            slidingPaneSeconds[i] = new long[slidingSeconds[i]];
+            Arrays.fill(slidingPaneSeconds[i], Long.MIN_VALUE);
+        }
+        slidingWindow = new MeasurementAggregate();
+    }
+
+    public void add(long epochSecond, double value) {
+        if (pane.getCount() > 0 && epochSecond != paneSecond) {
+            if (epochSecond < paneSecond) {
+                LATE.increment();
+                return;
+            }
+            closePane();
+            closeTumbling(epochSecond);
+        }
+        paneSecond = epochSecond;
+        pane.add(value);
+    }
+
+    /**
+     * Closes every window that has measurements, when the stream ends
+     */
+    public void flush() {
+        if (pane.getCount() == 0)
+            return;
+        closePane();
+        closeTumbling(Long.MAX_VALUE);
+    }
+
+    private void closePane() {
+        for (int i = 0; i < tumbling.length; i++) {
+            if (tumbling[i].getCount() == 0)
+                tumblingStart[i] = Math.floorDiv(paneSecond, tumblingSeconds[i]) * tumblingSeconds[i];
+            tumbling[i].merge(pane);
+        }
+        for (int i = 0; i < slidingSeconds.length; i++) {
+            int length = slidingSeconds[i];
+            int index = Math.floorMod(paneSecond, length);
+            slidingPanes[i][index].set(pane);
+            slidingPaneSeconds[i][index] = paneSecond;
+            slidingWindow.clear();
+            for (int j = 0; j < length; j++) {
+                if (slidingPaneSeconds[i][j] > paneSecond - length)
+                    slidingWindow.merge(slidingPanes[i][j]);
+            }
+            emit(length, true, paneSecond - length + 1, slidingWindow);
+        }
+        pane.clear();
+    }
+
+    private void closeTumbling(long nextSecond) {
+        for (int i = 0; i < tumbling.length; i++) {
+            if (tumbling[i].getCount() > 0 && (nextSecond == Long.MAX_VALUE
+                    || Math.floorDiv(nextSecond, tumblingSeconds[i]) * tumblingSeconds[i] != tumblingStart[i])) {
+                emit(tumblingSeconds[i], false, tumblingStart[i], tumbling[i]);
+                tumbling[i].clear();
+            }
+        }
+    }
+
+    private void emit(int windowSeconds, boolean sliding, long windowStart, MeasurementAggregate aggregate) {
+        CLOSED.increment();
+        sink.accept(new WindowAggregateMessage(sensorId, windowSeconds, sliding, windowStart,
+                aggregate.getCount(), aggregate.getMin(), aggregate.getMax(), aggregate.getSum()));
+    }
+}
@@ -0,0 +1,11 @@
+package com.wz.sensorserver.exception;
+
+public class MessageCodecException extends RuntimeException{
+    public MessageCodecException(String message) {
+        super(message);
+    }
+
+    public MessageCodecException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,54 @@
+package com.wz.sensorserver.interceptor;
+
+import com.wz.sensors.proto.AdminServiceGrpc;
+import com.wz.sensors.proto.MetricsServiceGrpc;
+import io.grpc.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+
+/**
+ * Serves the admin and metrics services only to calls carrying the operator token in the Authorization header. They
+ * are off when the server was started without one
+ */
+@Slf4j
+public class OperatorAuthenticationInterceptor implements ServerInterceptor {
+    private static final Set<String> OPERATOR_SERVICES = Set.of(AdminServiceGrpc.SERVICE_NAME,
+            MetricsServiceGrpc.SERVICE_NAME);
+    private static final Metadata.Key<String> AUTHORIZATION_HEADER = Metadata.Key.of("Authorization", ASCII_STRING_MARSHALLER);
+
+    private final byte[] operatorToken;
+
+    /**
+     * @param operatorToken token operators authenticate with, null turns the operator services off
+     */
+    public OperatorAuthenticationInterceptor(String operatorToken) {
+        this.operatorToken = operatorToken != null ? operatorToken.getBytes(StandardCharsets.US_ASCII) : null;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        if (!OPERATOR_SERVICES.contains(call.getMethodDescriptor().getServiceName()))
+            return next.startCall(call, headers);
+        Status status;
+        if (operatorToken == null) {
+            status = Status.PERMISSION_DENIED.withDescription("Operator services are off, the server was started without an operator token");
+        } else {
+            String token = headers.get(AUTHORIZATION_HEADER);
+            if (token != null && MessageDigest.isEqual(operatorToken, token.getBytes(StandardCharsets.US_ASCII)))
+                return next.startCall(call, headers);
+            status = Status.UNAUTHENTICATED.withDescription("Wrong operator token provided");
+        }
+        log.debug("Rejecting {}: {}", call.getMethodDescriptor().getFullMethodName(), status.getDescription());
+        call.close(status, new Metadata());
+        return new ServerCall.Listener<>() {
+            // noop
+        };
+    }
+}
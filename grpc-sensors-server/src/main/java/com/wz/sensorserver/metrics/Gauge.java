@@ -0,0 +1,28 @@
+package com.wz.sensorserver.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Current level of something that comes and goes, e.g. open streams
+ */
+public class Gauge implements LongSupplier {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void decrement() {
+        value.decrement();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    @Override
+    public long getAsLong() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,143 @@
+package com.wz.sensorserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free log-linear histogram of non-negative values, usually nanoseconds. Values below 16 are counted exactly,
+ * every power of two above is split into 8 buckets, so a percentile is off by at most 12.5%. Recording is a few
+ * atomic increments and nothing is recorded while sampling is off
+ */
+public class Histogram {
+    /**
+     * Start of a timing that is not sampled
+     */
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_VALUES = 2 * SUB_BUCKETS;
+    private static final int EXACT_VALUES_BITS = 4;
+    private static final int BUCKETS = EXACT_VALUES + (63 - EXACT_VALUES_BITS) * SUB_BUCKETS;
+
+    private final MetricsRegistry registry;
+    private final AtomicLongArray buckets;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    Histogram(MetricsRegistry registry) {
+        this.registry = registry;
+        buckets = new AtomicLongArray(BUCKETS);
+        sum = new LongAdder();
+        max = new AtomicLong();
+    }
+
+    /**
+     * @return start of a timing to pass to {@link #recordSince(long)}, {@link #NOT_SAMPLED} when sampling is off
+     */
+    public long startNanos() {
+        return registry.isSampling() ? System.nanoTime() : NOT_SAMPLED;
+    }
+
+    public void recordSince(long startNanos) {
+        if (startNanos != NOT_SAMPLED)
+            recordValue(System.nanoTime() - startNanos);
+    }
+
+    public void record(long value) {
+        if (registry.isSampling())
+            recordValue(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, sum.sum(), max.get());
+    }
+
+    private void recordValue(long value) {
+        if (value < 0)
+            value = 0;
+        buckets.incrementAndGet(bucketOf(value));
+        sum.add(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // another thread raised the max, compare again
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < EXACT_VALUES)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT_VALUES + (exponent - EXACT_VALUES_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValueOf(int bucket) {
+        if (bucket < EXACT_VALUES)
+            return bucket;
+        int exponent = (bucket - EXACT_VALUES) / SUB_BUCKETS + EXACT_VALUES_BITS;
+        long subBucket = (bucket - EXACT_VALUES) % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long highestValueOf(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValueOf(bucket + 1) - 1;
+    }
+
+    /**
+     * Copy of a histogram. Counts of buckets recorded to while copying may be one ahead of the sum
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile from 0 to 100
+         * @return highest value of the bucket the percentile falls into, never above the max recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(highestValueOf(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.wz.sensorserver.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and histograms of the server. Instrumented classes keep their metrics in static fields
+ * taken from the {@link #global()} registry, the same way they keep their loggers.
+ * <p>
+ * Counters and gauges are always on. Histograms are sampled only while sampling is on, with sampling off a timed
+ * section costs a volatile read
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+
+    private final Map<String, Counter> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, Histogram> histograms;
+    private volatile boolean sampling;
+
+    public MetricsRegistry() {
+        counters = new ConcurrentHashMap<>();
+        gauges = new ConcurrentHashMap<>();
+        histograms = new ConcurrentHashMap<>();
+        sampling = true;
+    }
+
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram(this));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the name is taken by a gauge computed by a supplier
+     */
+    public Gauge gauge(String name) {
+        LongSupplier gauge = gauges.computeIfAbsent(name, key -> new Gauge());
+        if (gauge instanceof Gauge settableGauge)
+            return settableGauge;
+        throw new IllegalArgumentException("Gauge %s is computed by a supplier".formatted(name));
+    }
+
+    /**
+     * Registers a gauge computed on every read. Replaces the gauge registered with the same name before
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Removes a gauge computed by the supplier, unless another one replaced it meanwhile
+     */
+    public void removeGauge(String name, LongSupplier supplier) {
+        gauges.remove(name, supplier);
+    }
+
+    public boolean isSampling() {
+        return sampling;
+    }
+
+    public void setSampling(boolean sampling) {
+        this.sampling = sampling;
+    }
+
+    /**
+     * @return counters by name, in name order
+     */
+    public SortedMap<String, Counter> getCounters() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(counters));
+    }
+
+    public SortedMap<String, LongSupplier> getGauges() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(gauges));
+    }
+
+    public SortedMap<String, Histogram> getHistograms() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(histograms));
+    }
+}
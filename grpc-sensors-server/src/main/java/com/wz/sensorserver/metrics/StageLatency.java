@@ -0,0 +1,41 @@
+package com.wz.sensorserver.metrics;
+
+import com.wz.sensorserver.util.EpochClock;
+
+/**
+ * Latency of the hops a live measurement makes through the server, computed from the stamps the measurement carries
+ * in the broker message. Stamps are nanoseconds since the epoch, a hop with a stamp missing is not recorded
+ * <ul>
+ *     <li>stage.ingest: received from the sensor to handed to the broker, history and waiting for the channel</li>
+ *     <li>stage.broker: handed to the broker to consumed from the node's queue</li>
+ *     <li>stage.fanout: consumed to sent to a subscriber, recorded for every subscriber</li>
+ *     <li>stage.server: received from the sensor to sent to a subscriber</li>
+ * </ul>
+ * Stamps of the broker hop come from different nodes, so it is only as precise as their clocks are in sync
+ */
+public final class StageLatency {
+    private static final MetricsRegistry METRICS = MetricsRegistry.global();
+    private static final Histogram INGEST = METRICS.histogram("stage.ingest");
+    private static final Histogram BROKER = METRICS.histogram("stage.broker");
+    private static final Histogram FANOUT = METRICS.histogram("stage.fanout");
+    private static final Histogram SERVER = METRICS.histogram("stage.server");
+
+    private StageLatency() {
+        throw new AssertionError();
+    }
+
+    public static void recordConsumed(long receivedAt, long publishedAt, long consumedAt) {
+        if (receivedAt == 0 || publishedAt == 0 || consumedAt == 0)
+            return;
+        INGEST.record(publishedAt - receivedAt);
+        BROKER.record(consumedAt - publishedAt);
+    }
+
+    public static void recordSent(long receivedAt, long consumedAt) {
+        if (receivedAt == 0 || consumedAt == 0 || !METRICS.isSampling())
+            return;
+        long sentAt = EpochClock.nowNanos();
+        FANOUT.record(sentAt - consumedAt);
+        SERVER.record(sentAt - receivedAt);
+    }
+}
@@ -1,10 +1,13 @@
 package com.wz.sensorserver.mq;
 
 import com.wz.sensorserver.exception.InvalidRequestException;
+import com.wz.sensorserver.metrics.Gauge;
+import com.wz.sensorserver.metrics.MetricsRegistry;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,8 +17,13 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 @Slf4j
 public class ClientSubscription {
-    private final Map<String, MQConsumer<? extends Serializable>> subscribers;
+    private static final Gauge ACTIVE_SUBSCRIPTIONS = MetricsRegistry.global().gauge("subscriptions.active");
+    private final Map<String, MQFanout.Registration> subscribers;
     private final Lock subscriptionsLock;
+    /**
+     * Size of the map, written under the lock and read without it
+     */
+    private volatile int subscriptionCount;
 
     public ClientSubscription() {
         subscribers = new HashMap<>();
@@ -32,13 +40,15 @@ public class ClientSubscription {
         }
     }
 
-    public void subscribeConsumer(String key, MQConsumer<? extends Serializable> consumer) {
+    public void subscribeConsumer(String key, MQFanout.Registration registration) {
         log.trace("Subscribing consumer on {}", key);
         subscriptionsLock.lock();
         try {
-            if (subscribers.get(key) == null)
-                subscribers.put(key, consumer);
-            else {
+            if (subscribers.get(key) == null) {
+                subscribers.put(key, registration);
+                subscriptionCount = subscribers.size();
+                ACTIVE_SUBSCRIPTIONS.increment();
+            } else {
                 log.info("Already subscribed on {}. Unable to perform this operation", key);
                 throw new InvalidRequestException("Already subscribed");
             }
@@ -50,28 +60,44 @@ public class ClientSubscription {
 
     public void unsubscribeConsumer(String key) {
         log.trace("Unsubscribing consumer from {}", key);
+        MQFanout.Registration registration;
         subscriptionsLock.lock();
         try {
-            if (subscribers.get(key) != null) {
-                MQConsumer<? extends Serializable> consumer = subscribers.remove(key);
-                consumer.cleanUp();
-            } else {
-                log.info("Not subscribed on {} to perform this operation", key);
-                throw new InvalidRequestException("Not subscribed");
+            registration = subscribers.remove(key);
+            if (registration != null) {
+                subscriptionCount = subscribers.size();
+                ACTIVE_SUBSCRIPTIONS.decrement();
             }
         } finally {
             subscriptionsLock.unlock();
         }
+        if (registration == null) {
+            log.info("Not subscribed on {} to perform this operation", key);
+            throw new InvalidRequestException("Not subscribed");
+        }
+        // unbinding is a broker round trip, so it is done without holding the lock
+        registration.cleanUp();
+    }
+
+    /**
+     * @return number of sensors the client is subscribed on, read without locking
+     */
+    public int getSubscriptionCount() {
+        return subscriptionCount;
     }
 
     public void cleanSubscriptions() {
         log.trace("Cleaning the subscriptions");
+        List<MQFanout.Registration> registrations;
         subscriptionsLock.lock();
         try {
-            subscribers.values().forEach(MQConsumer::cleanUp);
+            registrations = new ArrayList<>(subscribers.values());
             subscribers.clear();
+            subscriptionCount = 0;
+            ACTIVE_SUBSCRIPTIONS.add(-registrations.size());
         } finally {
             subscriptionsLock.unlock();
         }
+        registrations.forEach(MQFanout.Registration::cleanUp);
     }
 }
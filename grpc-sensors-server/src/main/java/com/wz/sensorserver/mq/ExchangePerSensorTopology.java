@@ -0,0 +1,45 @@
+package com.wz.sensorserver.mq;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+
+/**
+ * A fanout exchange named after every sensor, declared when the sensor connects and when a node subscribes on it.
+ * The exchanges are never deleted, so the broker keeps one for every sensor that was ever seen
+ */
+public class ExchangePerSensorTopology implements MQTopology {
+
+    @Override
+    public void declare(Channel channel) {
+        // exchanges are declared per sensor
+    }
+
+    @Override
+    public void declarePublishing(Channel channel, String sensorId) throws IOException {
+        channel.exchangeDeclare(sensorId, BuiltinExchangeType.FANOUT, false, false, null);
+    }
+
+    @Override
+    public String exchangeOf(String sensorId) {
+        return sensorId;
+    }
+
+    @Override
+    public String routingKeyOf(String sensorId) {
+        return "";
+    }
+
+    @Override
+    public void bind(Channel channel, String queue, String sensorId) throws IOException {
+        // the sensor may not have connected yet
+        channel.exchangeDeclare(sensorId, BuiltinExchangeType.FANOUT, false, false, null);
+        channel.queueBind(queue, sensorId, "");
+    }
+
+    @Override
+    public void unbind(Channel channel, String queue, String sensorId) throws IOException {
+        channel.queueUnbind(queue, sensorId, "");
+    }
+}
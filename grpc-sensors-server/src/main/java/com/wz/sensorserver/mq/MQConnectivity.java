@@ -3,10 +3,17 @@ package com.wz.sensorserver.mq;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.wz.sensorserver.metrics.Gauge;
+import com.wz.sensorserver.metrics.MetricsRegistry;
 
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 public class MQConnectivity {
+    private static final Gauge OPEN_CHANNELS = MetricsRegistry.global().gauge("mq.channels.open");
     private Connection connection;
 
     public MQConnectivity(){
@@ -18,9 +25,21 @@ public class MQConnectivity {
      * @param port
      */
     public void connect(String host, int port){
+        connect(host, port, null);
+    }
+
+    /**
+     * Opens connection with a message broker
+     * @param host
+     * @param port
+     * @param consumerExecutor executor consumer callbacks are dispatched on, the client's own pool is used if null
+     */
+    public void connect(String host, int port, ExecutorService consumerExecutor){
         ConnectionFactory factory = new ConnectionFactory();
         factory.setHost(host);
         factory.setPort(port);
+        if (consumerExecutor != null)
+            factory.setSharedExecutor(consumerExecutor);
         try{
             connection = factory.newConnection();
         }
@@ -43,6 +62,42 @@ public class MQConnectivity {
         }
     }
 
+    /**
+     * Notifies the listener when the connection is lost and when it is recovered
+     * @param listener gets false when the connection is shut down and true when it is recovered
+     */
+    public void addAvailabilityListener(Consumer<Boolean> listener){
+        Objects.requireNonNull(connection);
+        connection.addShutdownListener(cause -> listener.accept(false));
+        if (connection instanceof Recoverable recoverable) {
+            recoverable.addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recovered) {
+                    listener.accept(true);
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recovering) {
+                }
+            });
+        }
+    }
+
+    /**
+     * Declares what the topology needs up front on a channel of its own
+     * @param topology
+     */
+    public void declareTopology(MQTopology topology){
+        Channel channel = newChannel();
+        try{
+            topology.declare(channel);
+            channel.close();
+        }
+        catch (Exception exception){
+            throw new RuntimeException("Unable to declare the messaging topology", exception);
+        }
+    }
+
     /**
      * Allocates a new channel from the established connection
      * @return
@@ -50,7 +105,10 @@ public class MQConnectivity {
     public Channel newChannel(){
         Objects.requireNonNull(connection);
         try{
-            return connection.createChannel();
+            Channel channel = connection.createChannel();
+            OPEN_CHANNELS.increment();
+            channel.addShutdownListener(cause -> OPEN_CHANNELS.decrement());
+            return channel;
         }
         catch (Exception exception){
             throw new RuntimeException("Unable to create a new channel");
@@ -1,11 +1,15 @@
 package com.wz.sensorserver.mq;
 
 import com.rabbitmq.client.*;
+import com.wz.sensorserver.exception.MessageCodecException;
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.mq.codec.JavaSerializationCodec;
+import com.wz.sensorserver.mq.codec.MessageCodec;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.concurrent.TimeoutException;
 
@@ -15,12 +19,25 @@ import java.util.concurrent.TimeoutException;
  */
 @Slf4j
 public class MQConsumer<T extends Serializable> extends DefaultConsumer {
+    private static final Counter CONSUMED = MetricsRegistry.global().counter("mq.consumed");
+    private static final Counter CONSUME_ERRORS = MetricsRegistry.global().counter("mq.consume.errors");
+    private static final Histogram CONSUME_LATENCY = MetricsRegistry.global().histogram("mq.consume.latency");
+
     private final java.util.function.Consumer<T> onMessageReceived;
+    private final MessageCodec<? extends T> codec;
     public MQConsumer(Channel channel,
                       java.util.function.Consumer<T> onMessageReceived
                     ) {
+        this(channel, onMessageReceived, new JavaSerializationCodec<T>());
+    }
+
+    public MQConsumer(Channel channel,
+                      java.util.function.Consumer<T> onMessageReceived,
+                      MessageCodec<? extends T> codec
+                    ) {
         super(channel);
         this.onMessageReceived = onMessageReceived;
+        this.codec = codec;
     }
 
     @Override
@@ -29,20 +46,30 @@ public class MQConsumer<T extends Serializable> extends DefaultConsumer {
                                AMQP.BasicProperties properties,
                                byte[] body){
         log.trace("Message received. Trying to handle it");
-        try( ByteArrayInputStream inputStream = new ByteArrayInputStream(body);
-            ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)){
-            T message = (T) objectInputStream.readObject();
+        long startNanos = CONSUME_LATENCY.startNanos();
+        try{
+            T message = codec.decode(body);
             log.debug("Messaged deserialized. Message: {}", message);
             getChannel().basicAck(envelope.getDeliveryTag(), false);
+            CONSUMED.increment();
             onMessageReceived.accept(message);
         }
-        catch (IOException | ClassNotFoundException exception){
+        catch (MessageCodecException exception){
+            CONSUME_ERRORS.increment();
             log.error("Can not deserialize the message");
             throw new RuntimeException("Error when deserializing a message", exception);
         }
+        catch (IOException exception){
+            CONSUME_ERRORS.increment();
+            log.error("Can not acknowledge the message");
+            throw new RuntimeException("Error when acknowledging a message", exception);
+        }
         catch (AlreadyClosedException ignored){
             log.warn("Message was received but channel is already closed");
         }
+        finally {
+            CONSUME_LATENCY.recordSince(startNanos);
+        }
     }
 
     public void cleanUp(){
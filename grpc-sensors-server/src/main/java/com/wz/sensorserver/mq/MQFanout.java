@@ -0,0 +1,293 @@
+package com.wz.sensorserver.mq;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.metrics.StageLatency;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.codec.MessageCodec;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Node wide multiplexed consumer. All subscriptions share one channel and one self-deletable queue that gets a
+ * binding per subscribed sensor, messages are dispatched to local listeners by sensor id. A queue lost along with its
+ * channel or connection is declared again and bound to the sensors that still have listeners.
+ */
+@Slf4j
+public class MQFanout {
+    private final MQConnectivity mqConnectivity;
+    private final Map<String, List<Consumer<SensorMessage>>> listeners;
+    private final Lock bindingLock;
+    private final MessageCodec<SensorMessage> codec;
+    private final MQTopology topology;
+    /**
+     * registry the gauges of the fanout are reported to while it is open, none if null
+     */
+    private final MetricsRegistry metrics;
+    private final Map<String, LongSupplier> gauges;
+    /**
+     * written under the binding lock, volatile so the queue depth can be read without it
+     */
+    private volatile Channel channel;
+    private volatile String queue;
+    /**
+     * whether the connection is watched for recoveries, it is only known to be open once a channel was created
+     */
+    private boolean watchingConnection;
+    private volatile boolean closed;
+
+    public MQFanout(MQConnectivity mqConnectivity) {
+        this(mqConnectivity, new ExchangePerSensorTopology());
+    }
+
+    /**
+     * @param topology how the shared queue is bound to the sensors
+     */
+    public MQFanout(MQConnectivity mqConnectivity, MQTopology topology) {
+        this(mqConnectivity, topology, new SensorMessageCodec());
+    }
+
+    /**
+     * @param topology how the shared queue is bound to the sensors
+     * @param codec    decodes the messages the sensor service publishes
+     */
+    public MQFanout(MQConnectivity mqConnectivity, MQTopology topology, MessageCodec<SensorMessage> codec) {
+        this(mqConnectivity, topology, codec, null);
+    }
+
+    /**
+     * @param metrics registry the gauges of the fanout are reported to until it is closed, none if null
+     */
+    public MQFanout(MQConnectivity mqConnectivity, MQTopology topology, MessageCodec<SensorMessage> codec,
+                    MetricsRegistry metrics) {
+        this.mqConnectivity = mqConnectivity;
+        this.topology = topology;
+        this.codec = codec;
+        this.metrics = metrics;
+        listeners = new ConcurrentHashMap<>();
+        bindingLock = new ReentrantLock();
+        gauges = Map.of(
+                "fanout.sensors", this::getBoundKeysCount,
+                "fanout.subscriptions", () -> listeners.values().stream().mapToLong(List::size).sum(),
+                "fanout.subscriptions.max", () -> listeners.values().stream().mapToLong(List::size).max().orElse(0),
+                "fanout.queue.depth", this::getQueueDepth);
+        if (metrics != null)
+            gauges.forEach(metrics::gauge);
+    }
+
+    /**
+     * Adds a listener for messages of the sensor with given id. Binds the shared queue if it is the first listener
+     * of the sensor on this node
+     *
+     * @param key      sensor id
+     * @param listener
+     * @return registration that removes the listener on clean up
+     * @throws IOException if binding could not be created
+     */
+    public Registration subscribe(String key, Consumer<SensorMessage> listener) throws IOException {
+        bindingLock.lock();
+        try {
+            ensureConsuming();
+            List<Consumer<SensorMessage>> keyListeners = listeners.get(key);
+            if (keyListeners == null) {
+                topology.bind(channel, queue, key);
+                log.trace("Bound shared queue {} to sensor {}", queue, key);
+                keyListeners = new CopyOnWriteArrayList<>();
+                listeners.put(key, keyListeners);
+            }
+            keyListeners.add(listener);
+            return new Registration(key, listener);
+        } finally {
+            bindingLock.unlock();
+        }
+    }
+
+    /**
+     * @param key sensor id
+     * @return number of listeners of the sensor on this node
+     */
+    public int getListenerCount(String key) {
+        List<Consumer<SensorMessage>> keyListeners = listeners.get(key);
+        return keyListeners == null ? 0 : keyListeners.size();
+    }
+
+    /**
+     * @return number of sensors this node currently has bindings for
+     */
+    public int getBoundKeysCount() {
+        return listeners.size();
+    }
+
+    /**
+     * Messages waiting in the shared queue, how far the consumer lags behind the broker. Asks the broker, so it is
+     * meant for scraping, not for hot paths
+     *
+     * @return number of ready messages, 0 if the queue is not consumed or the broker can not tell
+     */
+    public long getQueueDepth() {
+        // not under the binding lock, subscribing does not wait for the broker round trip of a scrape
+        Channel consumingChannel = channel;
+        String consumedQueue = queue;
+        if (consumingChannel == null || !consumingChannel.isOpen())
+            return 0;
+        try {
+            return consumingChannel.messageCount(consumedQueue);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to get the depth of the shared queue {}", consumedQueue, e);
+            return 0;
+        }
+    }
+
+    public void close() {
+        if (metrics != null)
+            gauges.forEach(metrics::removeGauge);
+        bindingLock.lock();
+        try {
+            closed = true;
+            listeners.clear();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException | TimeoutException e) {
+            log.error("Error when closing amqp channel", e);
+        } finally {
+            bindingLock.unlock();
+        }
+    }
+
+    private void ensureConsuming() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            if (!watchingConnection) {
+                mqConnectivity.addAvailabilityListener(available -> {
+                    if (available)
+                        // the client recovers the channel with a queue of another name, start over with a new one
+                        ForkJoinPool.commonPool().execute(() -> recover(null));
+                });
+                watchingConnection = true;
+            }
+            Channel consumingChannel = mqConnectivity.newChannel();
+            consumingChannel.addShutdownListener(cause -> onShutdown(consumingChannel, cause));
+            channel = consumingChannel;
+            queue = channel.queueDeclare().getQueue(); // creates self - deletable queue
+            channel.basicConsume(queue, new MQConsumer<SensorMessage>(channel, this::dispatch, codec));
+            log.debug("Shared queue {} is being consumed", queue);
+            // the previous queue was deleted along with its channel, so the bindings have to be restored
+            for (String key : listeners.keySet())
+                topology.bind(channel, queue, key);
+        }
+    }
+
+    private void onShutdown(Channel shutDownChannel, ShutdownSignalException cause) {
+        if (cause.isInitiatedByApplication() || closed)
+            return;
+        log.warn("Channel of shared queue {} was shut down: {}", queue, cause.getMessage());
+        // not on the connection thread the listener is called on, opening a channel there would wait for that thread
+        ForkJoinPool.commonPool().execute(() -> recover(shutDownChannel));
+    }
+
+    /**
+     * Replaces the consuming channel after the broker closed it or the connection was lost. The shared queue is gone
+     * with it, so a new one is declared and bound to every sensor that still has listeners
+     *
+     * @param shutDownChannel channel that was shut down, null to replace whichever is consuming
+     */
+    private void recover(Channel shutDownChannel) {
+        bindingLock.lock();
+        try {
+            if (closed || (shutDownChannel != null && shutDownChannel != channel))
+                return;
+            Channel previous = channel;
+            channel = null;
+            if (previous != null)
+                abort(previous);
+            if (listeners.isEmpty())
+                return;
+            ensureConsuming();
+            log.info("Shared queue {} was recovered with {} bindings", queue, listeners.size());
+        } catch (IOException | RuntimeException e) {
+            // the connection is down, the queue is recovered once it is back
+            log.warn("Unable to recover the shared queue", e);
+        } finally {
+            bindingLock.unlock();
+        }
+    }
+
+    private static void abort(Channel previous) {
+        try {
+            previous.abort();
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to abort the channel of the previous shared queue", e);
+        }
+    }
+
+    private void dispatch(SensorMessage message) {
+        if (message instanceof MeasurementMessage measurementMessage) {
+            StageLatency.recordConsumed(measurementMessage.getReceivedAt(),
+                    measurementMessage.getPublishedAt(),
+                    measurementMessage.getConsumedAt());
+        }
+        List<Consumer<SensorMessage>> keyListeners = listeners.get(message.getSensorId());
+        if (keyListeners == null)
+            return;
+        for (Consumer<SensorMessage> listener : keyListeners) {
+            try {
+                listener.accept(message);
+            } catch (RuntimeException exception) {
+                log.error("Listener of {} failed to handle a message", message.getSensorId(), exception);
+            }
+        }
+    }
+
+    private void unsubscribe(String key, Consumer<SensorMessage> listener) {
+        bindingLock.lock();
+        try {
+            List<Consumer<SensorMessage>> keyListeners = listeners.get(key);
+            if (keyListeners == null || !keyListeners.remove(listener))
+                return;
+            if (keyListeners.isEmpty()) {
+                listeners.remove(key);
+                // a closed channel took the queue and its bindings with it
+                if (channel == null || !channel.isOpen())
+                    return;
+                topology.unbind(channel, queue, key);
+                log.trace("Unbound shared queue {} from sensor {}", queue, key);
+            }
+        } catch (IOException e) {
+            log.error("Error when unbinding shared queue from {}", key, e);
+        } finally {
+            bindingLock.unlock();
+        }
+    }
+
+    /**
+     * A listener added to the fanout
+     */
+    public class Registration {
+        private final String key;
+        private final Consumer<SensorMessage> listener;
+
+        private Registration(String key, Consumer<SensorMessage> listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+
+        public void cleanUp() {
+            unsubscribe(key, listener);
+        }
+    }
+}
@@ -1,53 +1,116 @@
 package com.wz.sensorserver.mq;
 
+import com.rabbitmq.client.BlockedListener;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.wz.sensorserver.exception.MessageCodecException;
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.mq.codec.JavaSerializationCodec;
+import com.wz.sensorserver.mq.codec.MessageCodec;
+import com.wz.sensorserver.util.EpochClock;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 public class MQPublisher<T extends Serializable> implements Publisher<T>{
+    private static final Counter PUBLISHED = MetricsRegistry.global().counter("mq.published");
+    private static final Counter PUBLISH_ERRORS = MetricsRegistry.global().counter("mq.publish.errors");
+    private static final Histogram PUBLISH_LATENCY = MetricsRegistry.global().histogram("mq.publish.latency");
 
     private final Channel channel;
     private final Lock channelLock;
     private final String exchangeName;
     private final String routingKey;
+    private final Queue<Runnable> capacityCallbacks;
+    private final BlockedListener blockedListener;
+    private final MessageCodec<? super T> codec;
+    private volatile boolean blocked;
 
     public MQPublisher(Channel channel, String exchangeName, String routingKey) {
+        this(channel, exchangeName, routingKey, new JavaSerializationCodec<>());
+    }
+
+    public MQPublisher(Channel channel, String exchangeName, String routingKey, MessageCodec<? super T> codec) {
         this.channel = channel;
+        this.codec = codec;
         this.exchangeName = exchangeName;
         this.routingKey = routingKey;
+        // not a monitor: a virtual thread waiting for the channel unmounts instead of pinning its carrier
         channelLock = new ReentrantLock();
+        capacityCallbacks = new ConcurrentLinkedQueue<>();
+        Connection connection = channel.getConnection();
+        // the broker blocks publishing connections when it runs low on memory or disk
+        blockedListener = connection == null ? null : connection.addBlockedListener(
+                reason -> {
+                    log.warn("Broker blocked publishing: {}", reason);
+                    blocked = true;
+                },
+                () -> {
+                    log.info("Broker unblocked publishing");
+                    blocked = false;
+                    runCapacityCallbacks();
+                });
     }
 
     @Override
     public void publishMessage(T message) {
-        log.trace("Publishing message to the exchange: {} and rk: {}", exchangeName, routingKey);
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-             ObjectOutputStream outputStream = new ObjectOutputStream(byteArrayOutputStream)) {
-            outputStream.writeObject(message);
-            outputStream.flush();
-            channelLock.lock();
-            try{
-                channel.basicPublish(exchangeName, routingKey, null, byteArrayOutputStream.toByteArray());
-            }
-            finally {
-                channelLock.unlock();
-            }
-        } catch (IOException e) {
+        byte[] body;
+        try {
+            body = codec.encode(message);
+        } catch (MessageCodecException e) {
             log.error("Unable to serialize the object and publish it to the exchange: {} and rk: {}", exchangeName, routingKey);
-            throw new RuntimeException("Unable to serialize the object");
+            throw new RuntimeException("Unable to serialize the object", e);
         }
+        publishEncoded(body);
+    }
+
+    @Override
+    public void publishEncoded(byte[] body) {
+        log.trace("Publishing message to the exchange: {} and rk: {}", exchangeName, routingKey);
+        // waiting for the channel counts, it is part of what a sensor stream waits for
+        long startNanos = PUBLISH_LATENCY.startNanos();
+        channelLock.lock();
+        try{
+            codec.stampPublished(body, EpochClock.nowNanos());
+            channel.basicPublish(exchangeName, routingKey, null, body);
+            PUBLISHED.increment();
+        }
+        catch (IOException e) {
+            PUBLISH_ERRORS.increment();
+            log.error("Unable to publish the message to the exchange: {} and rk: {}", exchangeName, routingKey);
+            throw new RuntimeException("Unable to publish the message", e);
+        }
+        finally {
+            channelLock.unlock();
+            PUBLISH_LATENCY.recordSince(startNanos);
+        }
+    }
+
+    @Override
+    public boolean hasCapacity() {
+        return !blocked;
+    }
+
+    @Override
+    public void onCapacityAvailable(Runnable callback) {
+        capacityCallbacks.add(callback);
+        if (!blocked)
+            runCapacityCallbacks();
     }
 
     @Override
     public void cleanUp() {
+        if (blockedListener != null)
+            channel.getConnection().removeBlockedListener(blockedListener);
         channelLock.lock();
         try{
             channel.close();
@@ -60,4 +123,11 @@ public class MQPublisher<T extends Serializable> implements Publisher<T>{
             channelLock.unlock();
         }
     }
+
+    private void runCapacityCallbacks() {
+        Runnable callback;
+        while ((callback = capacityCallbacks.poll()) != null) {
+            callback.run();
+        }
+    }
 }
@@ -7,7 +7,14 @@ import java.util.function.Consumer;
 public interface MQSubscriptionManager <K, T> {
     void trySubscribe(String key, Consumer<T> messageConsumer) throws SubscriptionException;
 
+    boolean isSubscribed(K key);
+
     void tryUnsubscribe(K key) throws SubscriptionException;
 
     void clearSubscriptions();
+
+    /**
+     * @return number of keys subscribed on
+     */
+    int getSubscriptionCount();
 }
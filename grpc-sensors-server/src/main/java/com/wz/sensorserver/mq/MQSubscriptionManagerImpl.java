@@ -1,48 +1,52 @@
 package com.wz.sensorserver.mq;
 
-import com.rabbitmq.client.BuiltinExchangeType;
-import com.rabbitmq.client.Channel;
+import com.wz.sensorserver.exception.InvalidRequestException;
 import com.wz.sensorserver.exception.SubscriptionException;
+import com.wz.sensorserver.mq.message.SensorMessage;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.function.Consumer;
 
 
+/**
+ * Client's subscriptions served by the node wide {@link MQFanout}, so a client does not own any channel or queue
+ */
 @Slf4j
-public class MQSubscriptionManagerImpl<T extends Serializable> implements MQSubscriptionManager<String, T>{
-    private final MQConnectivity mqConnectivity;
+public class MQSubscriptionManagerImpl implements MQSubscriptionManager<String, SensorMessage>{
+    private final MQFanout mqFanout;
     private final ClientSubscription clientSubscription;
 
-    public MQSubscriptionManagerImpl(MQConnectivity mqConnectivity) {
-        this.mqConnectivity = mqConnectivity;
+    public MQSubscriptionManagerImpl(MQFanout mqFanout) {
+        this.mqFanout = mqFanout;
         this.clientSubscription = new ClientSubscription();
     }
 
     @Override
-    public void trySubscribe(String key, Consumer<T> messageConsumer) throws SubscriptionException {
-        Channel channel = mqConnectivity.newChannel();
+    public void trySubscribe(String key, Consumer<SensorMessage> messageConsumer) throws SubscriptionException {
+        if(clientSubscription.isSubscribed(key)){
+            throw new SubscriptionException("Client is already subscribed");
+        }
         try{
-            if(!clientSubscription.isSubscribed(key)){
-                channel.exchangeDeclare(key, BuiltinExchangeType.FANOUT, false, false, null);
-                String queue = channel.queueDeclare().getQueue(); // creates self - deletable queue
-                channel.queueBind(queue, key, "");
-                log.trace("Created a mq chain. exchange: {}, queue: {}", key, queue);
-                MQConsumer<T> MQConsumer = new MQConsumer<>(channel, messageConsumer);
-                channel.basicConsume(queue, MQConsumer);
-                clientSubscription.subscribeConsumer(key, MQConsumer);
-            }
-            else {
+            MQFanout.Registration registration = mqFanout.subscribe(key, messageConsumer);
+            try {
+                clientSubscription.subscribeConsumer(key, registration);
+            } catch (InvalidRequestException alreadySubscribed) {
+                registration.cleanUp();
                 throw new SubscriptionException("Client is already subscribed");
             }
         }
         catch(IOException ioException){
-            log.error("Error when creating exchange, queue and binding");
-            throw new SubscriptionException("Unable ");
+            log.error("Error when binding the shared queue to {}", key);
+            throw new SubscriptionException("Unable to subscribe on %s".formatted(key), ioException);
         }
     }
 
+    @Override
+    public boolean isSubscribed(String key) {
+        return clientSubscription.isSubscribed(key);
+    }
+
     @Override
     public void tryUnsubscribe(String key) throws SubscriptionException {
         if(clientSubscription.isSubscribed(key)){
@@ -57,4 +61,9 @@ public class MQSubscriptionManagerImpl<T extends Serializable> implements MQSubs
     public void clearSubscriptions() {
         clientSubscription.cleanSubscriptions();
     }
+
+    @Override
+    public int getSubscriptionCount() {
+        return clientSubscription.getSubscriptionCount();
+    }
 }
@@ -0,0 +1,45 @@
+package com.wz.sensorserver.mq;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+
+/**
+ * How sensor messages are routed through the broker: what is declared up front, which exchange and routing key a
+ * sensor publishes with and how the shared queue of a node is bound to a sensor
+ */
+public interface MQTopology {
+
+    /**
+     * @param mode           fanout for an exchange per sensor, topic for shared topic exchanges
+     * @param exchangeCount number of topic exchanges sensors are spread over, ignored in the fanout mode
+     */
+    static MQTopology parse(String mode, int exchangeCount) {
+        return switch (mode.toLowerCase()) {
+            case "fanout" -> new ExchangePerSensorTopology();
+            case "topic" -> new TopicExchangeTopology(exchangeCount);
+            default -> throw new IllegalArgumentException("Unknown messaging topology: %s".formatted(mode));
+        };
+    }
+
+    /**
+     * Declares what the topology needs before sensors connect, once per node
+     */
+    void declare(Channel channel) throws IOException;
+
+    /**
+     * Declares what publishing messages of the sensor needs, called when the sensor connects
+     */
+    void declarePublishing(Channel channel, String sensorId) throws IOException;
+
+    String exchangeOf(String sensorId);
+
+    String routingKeyOf(String sensorId);
+
+    /**
+     * Makes the broker route messages of the sensor to the queue
+     */
+    void bind(Channel channel, String queue, String sensorId) throws IOException;
+
+    void unbind(Channel channel, String queue, String sensorId) throws IOException;
+}
@@ -3,5 +3,28 @@ package com.wz.sensorserver.mq;
 public interface Publisher<T> {
     void publishMessage(T message);
 
+    /**
+     * Publishes a message that is already encoded by the codec {@link #publishMessage} encodes with
+     *
+     * @param body encoded message, must not be modified afterwards
+     */
+    void publishEncoded(byte[] body);
+
     void cleanUp();
+
+    /**
+     * @return false while messages can not be published without being buffered, e.g. the broker blocked the connection
+     */
+    default boolean hasCapacity() {
+        return true;
+    }
+
+    /**
+     * Runs the callback once the publisher has capacity, right away if it has it now
+     *
+     * @param callback
+     */
+    default void onCapacityAvailable(Runnable callback) {
+        callback.run();
+    }
 }
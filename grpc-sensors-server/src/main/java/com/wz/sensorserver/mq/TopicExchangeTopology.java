@@ -0,0 +1,60 @@
+package com.wz.sensorserver.mq;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+
+/**
+ * A few durable topic exchanges declared once when the node starts, a sensor publishes to one of them with its id
+ * as the routing key. Connecting and subscribing declare nothing, only bindings are added and removed, so the broker
+ * holds a fixed number of exchanges however many sensors there are
+ */
+public class TopicExchangeTopology implements MQTopology {
+    public static final String EXCHANGE_PREFIX = "sensors.";
+
+    private final String[] exchanges;
+
+    /**
+     * @param exchangeCount number of exchanges sensors are spread over, every node must use the same
+     */
+    public TopicExchangeTopology(int exchangeCount) {
+        if (exchangeCount <= 0)
+            throw new IllegalArgumentException("Number of exchanges must be greater than 0");
+        exchanges = new String[exchangeCount];
+        for (int i = 0; i < exchangeCount; i++)
+            exchanges[i] = EXCHANGE_PREFIX + i;
+    }
+
+    @Override
+    public void declare(Channel channel) throws IOException {
+        for (String exchange : exchanges)
+            channel.exchangeDeclare(exchange, BuiltinExchangeType.TOPIC, true, false, null);
+    }
+
+    @Override
+    public void declarePublishing(Channel channel, String sensorId) {
+        // the exchanges were declared when the node started
+    }
+
+    @Override
+    public String exchangeOf(String sensorId) {
+        // String.hashCode is specified, so every node picks the same exchange
+        return exchanges[Math.floorMod(sensorId.hashCode(), exchanges.length)];
+    }
+
+    @Override
+    public String routingKeyOf(String sensorId) {
+        return sensorId;
+    }
+
+    @Override
+    public void bind(Channel channel, String queue, String sensorId) throws IOException {
+        channel.queueBind(queue, exchangeOf(sensorId), sensorId);
+    }
+
+    @Override
+    public void unbind(Channel channel, String queue, String sensorId) throws IOException {
+        channel.queueUnbind(queue, exchangeOf(sensorId), sensorId);
+    }
+}
@@ -0,0 +1,36 @@
+package com.wz.sensorserver.mq.codec;
+
+import com.wz.sensorserver.exception.MessageCodecException;
+
+import java.io.*;
+
+/**
+ * Encodes messages with java serialization
+ *
+ * @param <T> message type
+ */
+public class JavaSerializationCodec<T extends Serializable> implements MessageCodec<T> {
+
+    @Override
+    public byte[] encode(T message) {
+        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+             ObjectOutputStream outputStream = new ObjectOutputStream(byteArrayOutputStream)) {
+            outputStream.writeObject(message);
+            outputStream.flush();
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException exception) {
+            throw new MessageCodecException("Unable to serialize the object", exception);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(byte[] body) {
+        try (ByteArrayInputStream inputStream = new ByteArrayInputStream(body);
+             ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
+            return (T) objectInputStream.readObject();
+        } catch (IOException | ClassNotFoundException exception) {
+            throw new MessageCodecException("Error when deserializing a message", exception);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.wz.sensorserver.mq.codec;
+
+import com.wz.sensorserver.mq.message.SensorMessage;
+
+import java.util.UUID;
+
+/**
+ * Sensor message codec that also encodes a measurement straight from its fields, without a message object
+ */
+public interface MeasurementCodec extends MessageCodec<SensorMessage> {
+    /**
+     * @param receivedAt when the server received the measurement, nanoseconds since the epoch
+     * @return body {@link #decode} reads as a measurement message
+     */
+    byte[] encodeMeasurement(UUID sensorId, long sequence, double value, long epochSecond, int nano, long receivedAt);
+}
@@ -0,0 +1,25 @@
+package com.wz.sensorserver.mq.codec;
+
+import com.wz.sensorserver.exception.MessageCodecException;
+
+/**
+ * Converts messages to and from the bodies of message broker messages
+ *
+ * @param <T> message type
+ */
+public interface MessageCodec<T> {
+    byte[] encode(T message);
+
+    /**
+     * @throws MessageCodecException if the body can not be decoded
+     */
+    T decode(byte[] body);
+
+    /**
+     * Stamps an encoded message with the time it is handed to the broker. Codecs that carry no stamps ignore it
+     *
+     * @param epochNanos nanoseconds since the epoch
+     */
+    default void stampPublished(byte[] body, long epochNanos) {
+    }
+}
@@ -0,0 +1,175 @@
+package com.wz.sensorserver.mq.codec;
+
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.exception.MessageCodecException;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.mq.message.SensorOnlineStatusChanged;
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
+import com.wz.sensorserver.util.EpochClock;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Fixed layout binary encoding of sensor messages. Every message starts with a type byte and the sensor id as two
+ * longs, followed by
+ * <ul>
+ *     <li>measurement: sequence (long), value (double), epoch second (long), nanos (int), received at (long) and
+ *     published at (long) stamps in nanoseconds since the epoch</li>
+ *     <li>online status change: status value (int)</li>
+ *     <li>window aggregate: window seconds (int), sliding (byte), window start epoch second (long), count (long),
+ *     min, max and sum (doubles)</li>
+ * </ul>
+ * Big endian. A decoded measurement is stamped as consumed, decoding is the first thing a consumer does with it
+ */
+public class SensorMessageCodec implements MeasurementCodec {
+    public static final byte MEASUREMENT = 1;
+    public static final byte ONLINE_STATUS_CHANGED = 2;
+    public static final int MEASUREMENT_LENGTH = 1 + 16 + 8 + 8 + 8 + 4 + 8 + 8;
+    public static final byte WINDOW_AGGREGATE = 3;
+    public static final int ONLINE_STATUS_CHANGED_LENGTH = 1 + 16 + 4;
+    public static final int WINDOW_AGGREGATE_LENGTH = 1 + 16 + 4 + 1 + 8 + 8 + 8 + 8 + 8;
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle DOUBLE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final int RECEIVED_AT_OFFSET = 45;
+    private static final int PUBLISHED_AT_OFFSET = 53;
+
+    /**
+     * Encodes a measurement given by its fields, the body is the only allocation
+     */
+    @Override
+    public byte[] encodeMeasurement(UUID sensorId, long sequence, double value, long epochSecond, int nano,
+                                    long receivedAt) {
+        byte[] body = new byte[MEASUREMENT_LENGTH];
+        body[0] = MEASUREMENT;
+        LONG.set(body, 1, sensorId.getMostSignificantBits());
+        LONG.set(body, 9, sensorId.getLeastSignificantBits());
+        LONG.set(body, 17, sequence);
+        DOUBLE.set(body, 25, value);
+        LONG.set(body, 33, epochSecond);
+        INT.set(body, 41, nano);
+        LONG.set(body, RECEIVED_AT_OFFSET, receivedAt);
+        return body;
+    }
+
+    public static byte[] encodeOnlineStatusChanged(UUID sensorId, Sensor.OnlineStatus onlineStatus) {
+        byte[] body = new byte[ONLINE_STATUS_CHANGED_LENGTH];
+        body[0] = ONLINE_STATUS_CHANGED;
+        LONG.set(body, 1, sensorId.getMostSignificantBits());
+        LONG.set(body, 9, sensorId.getLeastSignificantBits());
+        INT.set(body, 17, onlineStatus.getValue());
+        return body;
+    }
+
+    public static byte[] encodeWindowAggregate(UUID sensorId, WindowAggregateMessage aggregate) {
+        byte[] body = new byte[WINDOW_AGGREGATE_LENGTH];
+        body[0] = WINDOW_AGGREGATE;
+        LONG.set(body, 1, sensorId.getMostSignificantBits());
+        LONG.set(body, 9, sensorId.getLeastSignificantBits());
+        INT.set(body, 17, aggregate.getWindowSeconds());
+        body[21] = (byte) (aggregate.isSliding() ? 1 : 0);
+        LONG.set(body, 22, aggregate.getWindowStartEpochSecond());
+        LONG.set(body, 30, aggregate.getCount());
+        DOUBLE.set(body, 38, aggregate.getMin());
+        DOUBLE.set(body, 46, aggregate.getMax());
+        DOUBLE.set(body, 54, aggregate.getSum());
+        return body;
+    }
+
+    @Override
+    public byte[] encode(SensorMessage message) {
+        UUID sensorId = parseSensorId(message.getSensorId());
+        if (message instanceof MeasurementMessage measurementMessage) {
+            Measurement measurement = measurementMessage.getMeasurement();
+            byte[] body = encodeMeasurement(sensorId,
+                    measurement.getSequence(),
+                    measurement.getValue(),
+                    measurement.getMadeAt().getEpochSecond(),
+                    measurement.getMadeAt().getNano(),
+                    measurementMessage.getReceivedAt());
+            LONG.set(body, PUBLISHED_AT_OFFSET, measurementMessage.getPublishedAt());
+            return body;
+        } else if (message instanceof SensorOnlineStatusChanged statusChanged) {
+            return encodeOnlineStatusChanged(sensorId, statusChanged.getSensorOnlineStatus());
+        } else if (message instanceof WindowAggregateMessage aggregate) {
+            return encodeWindowAggregate(sensorId, aggregate);
+        }
+        throw new MessageCodecException("Unsupported message type: %s".formatted(message.getClass().getName()));
+    }
+
+    @Override
+    public SensorMessage decode(byte[] body) {
+        if (body.length == 0)
+            throw new MessageCodecException("Empty message");
+        switch (body[0]) {
+            case MEASUREMENT -> {
+                checkLength(body, MEASUREMENT_LENGTH);
+                Measurement measurement = new Measurement((double) DOUBLE.get(body, 25),
+                        Instant.ofEpochSecond((long) LONG.get(body, 33), (int) INT.get(body, 41)),
+                        (long) LONG.get(body, 17));
+                MeasurementMessage measurementMessage = new MeasurementMessage(measurement, decodeSensorId(body).toString());
+                measurementMessage.setReceivedAt((long) LONG.get(body, RECEIVED_AT_OFFSET));
+                measurementMessage.setPublishedAt((long) LONG.get(body, PUBLISHED_AT_OFFSET));
+                measurementMessage.setConsumedAt(EpochClock.nowNanos());
+                return measurementMessage;
+            }
+            case ONLINE_STATUS_CHANGED -> {
+                checkLength(body, ONLINE_STATUS_CHANGED_LENGTH);
+                return new SensorOnlineStatusChanged(decodeSensorId(body).toString(),
+                        onlineStatusOf((int) INT.get(body, 17)));
+            }
+            case WINDOW_AGGREGATE -> {
+                checkLength(body, WINDOW_AGGREGATE_LENGTH);
+                return new WindowAggregateMessage(decodeSensorId(body).toString(),
+                        (int) INT.get(body, 17),
+                        body[21] != 0,
+                        (long) LONG.get(body, 22),
+                        (long) LONG.get(body, 30),
+                        (double) DOUBLE.get(body, 38),
+                        (double) DOUBLE.get(body, 46),
+                        (double) DOUBLE.get(body, 54));
+            }
+            default -> throw new MessageCodecException("Unknown message type: %d".formatted(body[0]));
+        }
+    }
+
+    @Override
+    public void stampPublished(byte[] body, long epochNanos) {
+        if (body.length == MEASUREMENT_LENGTH && body[0] == MEASUREMENT)
+            LONG.set(body, PUBLISHED_AT_OFFSET, epochNanos);
+    }
+
+    private static UUID decodeSensorId(byte[] body) {
+        return new UUID((long) LONG.get(body, 1), (long) LONG.get(body, 9));
+    }
+
+    private static UUID parseSensorId(String sensorId) {
+        try {
+            return UUID.fromString(sensorId);
+        } catch (IllegalArgumentException exception) {
+            throw new MessageCodecException("Sensor id is not a UUID: %s".formatted(sensorId), exception);
+        }
+    }
+
+    private static Sensor.OnlineStatus onlineStatusOf(int value) {
+        for (Sensor.OnlineStatus onlineStatus : Sensor.OnlineStatus.values()) {
+            if (onlineStatus.getValue() == value)
+                return onlineStatus;
+        }
+        throw new MessageCodecException("Unknown online status: %d".formatted(value));
+    }
+
+    private static void checkLength(byte[] body, int expected) {
+        if (body.length != expected)
+            throw new MessageCodecException("Message of type %d must be %d bytes long, got %d"
+                    .formatted(body[0], expected, body.length));
+    }
+}
@@ -3,15 +3,23 @@ package com.wz.sensorserver.mq.message;
 import com.wz.sensorserver.domain.Measurement;
 import com.wz.sensorserver.domain.Sensor;
 import lombok.Data;
-
-import java.io.Serializable;
+import lombok.EqualsAndHashCode;
 
 /**
  * A message type that goes in and out of message queue
  */
 @Data
-public class MeasurementMessage implements Serializable {
+public class MeasurementMessage implements SensorMessage {
     private final Measurement measurement;
     private final String sensorId;
-
+    /**
+     * Stamps of the stages a live measurement passed on the server, nanoseconds since the epoch, 0 if not known.
+     * They describe the transport, not the measurement, and are left out of equality
+     */
+    @EqualsAndHashCode.Exclude
+    private long receivedAt;
+    @EqualsAndHashCode.Exclude
+    private long publishedAt;
+    @EqualsAndHashCode.Exclude
+    private long consumedAt;
 }
@@ -0,0 +1,10 @@
+package com.wz.sensorserver.mq.message;
+
+import java.io.Serializable;
+
+/**
+ * A message that relates to a particular sensor and is routed by its id
+ */
+public interface SensorMessage extends Serializable {
+    String getSensorId();
+}
@@ -3,10 +3,8 @@ package com.wz.sensorserver.mq.message;
 import com.wz.sensorserver.domain.Sensor;
 import lombok.Data;
 
-import java.io.Serializable;
-
 @Data
-public class SensorOnlineStatusChanged implements Serializable {
+public class SensorOnlineStatusChanged implements SensorMessage {
     private final String sensorId;
     private final Sensor.OnlineStatus sensorOnlineStatus;
 }
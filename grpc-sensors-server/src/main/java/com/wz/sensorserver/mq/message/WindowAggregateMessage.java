@@ -0,0 +1,22 @@
+package com.wz.sensorserver.mq.message;
+
+import lombok.Data;
+
+/**
+ * Aggregate of the measurements a sensor made in a window, published when the window closes
+ */
+@Data
+public class WindowAggregateMessage implements SensorMessage {
+    private final String sensorId;
+    private final int windowSeconds;
+    private final boolean sliding;
+    private final long windowStartEpochSecond;
+    private final long count;
+    private final double min;
+    private final double max;
+    private final double sum;
+
+    public double getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+}
@@ -2,11 +2,13 @@ package com.wz.sensorserver.repository;
 
 
 import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.TagExpression;
 
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 public interface SensorRepository {
     /**
@@ -37,5 +39,39 @@ public interface SensorRepository {
      */
     Collection<Sensor> getSensors();
 
+    /**
+     * @return number of registered sensors, read without locking
+     */
+    int getSensorCount();
+
+    /**
+     * Registered sensors for introspection, iterated without locking. Sensors registered meanwhile may be missed
+     *
+     * @return weakly consistent view of the sensors
+     */
+    Collection<Sensor> getSensorsView();
+
+    /**
+     * @return estimated memory the histories of the sensors hold now, read without locking
+     */
+    long getHistoryBytes();
+
     Collection<Sensor> findSensorsByTags(Collection<String> tags);
+
+    /**
+     * Finds sensors whose tags satisfy the given expression
+     *
+     * @param tagExpression
+     * @return matching sensors
+     */
+    Collection<Sensor> findSensorsByTagExpression(TagExpression tagExpression);
+
+    /**
+     * Registers a listener that is notified about every sensor added after the call
+     *
+     * @param listener
+     */
+    void addSensorAddedListener(Consumer<Sensor> listener);
+
+    void removeSensorAddedListener(Consumer<Sensor> listener);
 }
@@ -1,19 +1,45 @@
 package com.wz.sensorserver.repository;
 
 import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.TagExpression;
+import com.wz.sensorserver.metrics.MetricsRegistry;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 public class SensorRepositoryInMemory implements SensorRepository {
-
     private final List<Sensor> sensors;
+    private final Map<UUID, Sensor> sensorsById;
+    private final Map<String, Set<Sensor>> tagIndex;
+    private final List<Consumer<Sensor>> sensorAddedListeners;
     private final ReadWriteLock readWriteLock;
+    /**
+     * bytes the histories of the sensors retain, kept up to date by the histories themselves
+     */
+    private final AtomicLong historyBytes;
 
     public SensorRepositoryInMemory() {
+        this(null);
+    }
+
+    /**
+     * @param metrics registry the repository reports its gauges to, none if null
+     */
+    public SensorRepositoryInMemory(MetricsRegistry metrics) {
         sensors = new ArrayList<>();
+        // written under the lock like the rest, concurrent so introspection can read it without the lock
+        sensorsById = new ConcurrentHashMap<>();
+        tagIndex = new HashMap<>();
+        sensorAddedListeners = new CopyOnWriteArrayList<>();
         readWriteLock = new ReentrantReadWriteLock();
+        historyBytes = new AtomicLong();
+        if (metrics != null)
+            metrics.gauge("history.bytes", historyBytes::get);
     }
 
     @Override
@@ -21,9 +47,15 @@ public class SensorRepositoryInMemory implements SensorRepository {
         readWriteLock.writeLock().lock();
         try {
             sensors.add(sensor);
+            if (sensor.getId() != null) {
+                sensorsById.put(sensor.getId(), sensor);
+                sensor.trackHistoryBytes(historyBytes::addAndGet);
+            }
+            sensor.getTags().forEach(tag -> tagIndex.computeIfAbsent(tag, t -> new LinkedHashSet<>()).add(sensor));
         } finally {
             readWriteLock.writeLock().unlock();
         }
+        sensorAddedListeners.forEach(listener -> listener.accept(sensor));
     }
 
     @Override
@@ -34,7 +66,7 @@ public class SensorRepositoryInMemory implements SensorRepository {
                 return sensors.stream()
                         .anyMatch(s -> s.getName().equals(sensor.getName()) && s.getLocation().equals(sensor.getLocation()));
             else
-                return getSensorById(sensor.getId()).isPresent();
+                return sensorsById.containsKey(sensor.getId());
         } finally {
             readWriteLock.readLock().unlock();
         }
@@ -42,9 +74,12 @@ public class SensorRepositoryInMemory implements SensorRepository {
 
     @Override
     public Optional<Sensor> getSensorById(UUID sensorId) {
-        return sensors.stream()
-                .filter(sensor -> sensor.getId().equals(sensorId))
-                .findFirst();
+        readWriteLock.readLock().lock();
+        try {
+            return Optional.ofNullable(sensorsById.get(sensorId));
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
     }
 
     @Override
@@ -57,6 +92,21 @@ public class SensorRepositoryInMemory implements SensorRepository {
         }
     }
 
+    @Override
+    public int getSensorCount() {
+        return sensorsById.size();
+    }
+
+    @Override
+    public Collection<Sensor> getSensorsView() {
+        return Collections.unmodifiableCollection(sensorsById.values());
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        return historyBytes.get();
+    }
+
     @Override
     public Collection<Sensor> findSensorsByTags(Collection<String> tags) {
         if (tags == null || tags.isEmpty()) {
@@ -64,11 +114,41 @@ public class SensorRepositoryInMemory implements SensorRepository {
         }
         readWriteLock.readLock().lock();
         try {
-            return sensors.stream()
-                    .filter(sensor -> sensor.getTags().stream().anyMatch(tags::contains))
-                    .toList();
+            Set<Sensor> found = new LinkedHashSet<>();
+            tags.forEach(tag -> found.addAll(tagIndex.getOrDefault(tag, Collections.emptySet())));
+            return List.copyOf(found);
         } finally {
             readWriteLock.readLock().unlock();
         }
     }
+
+    @Override
+    public Collection<Sensor> findSensorsByTagExpression(TagExpression tagExpression) {
+        readWriteLock.readLock().lock();
+        try {
+            Set<Sensor> found = new LinkedHashSet<>();
+            for (Set<String> alternative : tagExpression.getAlternatives()) {
+                // start from the smallest posting list and check the rest of the tags on the sensor itself
+                alternative.stream()
+                        .map(tag -> tagIndex.getOrDefault(tag, Collections.emptySet()))
+                        .min(Comparator.comparingInt(Set::size))
+                        .ifPresent(candidates -> candidates.stream()
+                                .filter(sensor -> sensor.getTags().containsAll(alternative))
+                                .forEach(found::add));
+            }
+            return List.copyOf(found);
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addSensorAddedListener(Consumer<Sensor> listener) {
+        sensorAddedListeners.add(listener);
+    }
+
+    @Override
+    public void removeSensorAddedListener(Consumer<Sensor> listener) {
+        sensorAddedListeners.remove(listener);
+    }
 }
@@ -0,0 +1,69 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensors.proto.*;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.metrics.Gauge;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.service.streamobserver.SubscriberStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Live runtime state for operators. Totals come from gauges maintained on the hot paths, listings iterate weakly
+ * consistent views, so serving a request takes none of the locks sensors and subscribers work under
+ */
+public class AdminService extends AdminServiceGrpc.AdminServiceImplBase {
+    private final SensorRepository sensorRepository;
+    private final ClientService clientService;
+    private final Gauge sensorsOnline;
+    private final Gauge subscriptions;
+    private final Gauge amqpChannelsOpen;
+
+    public AdminService(SensorRepository sensorRepository, ClientService clientService) {
+        this(sensorRepository, clientService, MetricsRegistry.global());
+    }
+
+    public AdminService(SensorRepository sensorRepository, ClientService clientService, MetricsRegistry registry) {
+        this.sensorRepository = sensorRepository;
+        this.clientService = clientService;
+        sensorsOnline = registry.gauge("ingest.streams.open");
+        subscriptions = registry.gauge("subscriptions.active");
+        amqpChannelsOpen = registry.gauge("mq.channels.open");
+    }
+
+    @Override
+    public void getRuntimeState(RuntimeStateRequest request, StreamObserver<RuntimeStateResponse> responseObserver) {
+        RuntimeStateResponse.Builder response = RuntimeStateResponse.newBuilder()
+                .setSensorsRegistered(sensorRepository.getSensorCount())
+                .setSensorsOnline(sensorsOnline.getAsLong())
+                .setSubscriberStreams(clientService.getSubscriberRegistry().size())
+                .setSubscriptions(subscriptions.getAsLong())
+                .setAmqpChannelsOpen(amqpChannelsOpen.getAsLong())
+                .setHistoryBytes(sensorRepository.getHistoryBytes());
+        int limit = request.getLimit();
+        if (limit > 0) {
+            for (Sensor sensor : sensorRepository.getSensorsView()) {
+                if (response.getSensorsCount() == limit)
+                    break;
+                String sensorId = sensor.getId().toString();
+                response.addSensors(SensorState.newBuilder()
+                        .setId(sensorId)
+                        .setName(sensor.getName())
+                        .setOnlineStatusValue(sensor.getOnlineStatus().getValue())
+                        .setHistoryBytes(sensor.getHistoryBytes())
+                        .setSubscriptions(clientService.getSubscriptionCount(sensorId)));
+            }
+            for (SubscriberStreamObserver subscriber : clientService.getSubscriberRegistry().getSubscribers()) {
+                if (response.getSubscribersCount() == limit)
+                    break;
+                SubscriberState.Builder subscriberState = SubscriberState.newBuilder()
+                        .setSubscriptions(subscriber.getSubscriptionCount());
+                if (subscriber.getClientLogin() != null)
+                    subscriberState.setLogin(subscriber.getClientLogin());
+                response.addSubscribers(subscriberState);
+            }
+        }
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+}
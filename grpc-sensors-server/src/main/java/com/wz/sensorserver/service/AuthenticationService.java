@@ -6,8 +6,12 @@ import io.jsonwebtoken.Jws;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 
+import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.Base64;
 import java.util.Date;
@@ -41,6 +45,35 @@ public class AuthenticationService {
 
     }
 
+    /**
+     * Generates the token a node of the cluster attaches to the calls it makes to the other nodes. Only nodes sharing
+     * the secret can generate it
+     *
+     * @param nodeId id of the calling node
+     * @return HMAC of the node id, Base64 encoded
+     */
+    public String generatePeerToken(String nodeId) {
+        try {
+            Mac mac = Mac.getInstance(hmacKey.getAlgorithm());
+            mac.init(hmacKey);
+            return Base64.getEncoder().encodeToString(mac.doFinal(nodeId.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to compute the peer token", e);
+        }
+    }
+
+    /**
+     * @param nodeId id the calling node claims
+     * @param token  peer token sent with the call
+     * @return whether the token was generated for the node with the same secret
+     */
+    public boolean isPeerToken(String nodeId, String token) {
+        if (nodeId == null || token == null)
+            return false;
+        return MessageDigest.isEqual(generatePeerToken(nodeId).getBytes(StandardCharsets.US_ASCII),
+                token.getBytes(StandardCharsets.US_ASCII));
+    }
+
     /**
      * Validates given JWT token and returns sensorId
      *
@@ -1,12 +1,21 @@
 package com.wz.sensorserver.service;
 
 import com.wz.sensors.proto.*;
+import com.wz.sensorserver.constant.Constants;
 import com.wz.sensorserver.domain.Client;
 import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.mq.MQFanout;
 import com.wz.sensorserver.repository.ClientRepository;
 import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.service.streamobserver.SubscriberRegistry;
+import com.wz.sensorserver.service.streamobserver.SubscriberSettings;
 import com.wz.sensorserver.service.streamobserver.SubscriberStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SubscriptionResponseEncoder;
 import com.wz.sensorserver.util.protomapping.ClientMapper;
+import com.wz.sensorserver.util.protomapping.PreEncodedMarshaller;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
@@ -20,21 +29,84 @@ public class ClientService extends SensorClientServiceGrpc.SensorClientServiceIm
     private final ClientRepository clientRepository;
     private final SensorRepository sensorRepository;
     private final AuthenticationService authenticationService;
-    private final MQConnectivity mqConnectivity;
+    private final MQFanout mqFanout;
     private final ClientMapper clientMapper;
+    private final PreEncodedMarshaller<SubscriptionResponse> subscriptionResponseMarshaller;
+    private final SubscriberRegistry subscriberRegistry;
+    private final SubscriberSettings subscriberSettings;
 
     public ClientService(MQConnectivity mqConnectivity,
                          ClientRepository clientRepository,
                          SensorRepository sensorRepository,
                          AuthenticationService authenticationService) {
+        this(mqConnectivity, clientRepository, sensorRepository, authenticationService, ClientServiceSettings.DEFAULT);
+    }
+
+    /**
+     * @param settings how the node serves the subscriptions of clients
+     */
+    public ClientService(MQConnectivity mqConnectivity,
+                         ClientRepository clientRepository,
+                         SensorRepository sensorRepository,
+                         AuthenticationService authenticationService,
+                         ClientServiceSettings settings) {
         Objects.requireNonNull(clientRepository);
         Objects.requireNonNull(sensorRepository);
         Objects.requireNonNull(authenticationService);
-        this.mqConnectivity = mqConnectivity;
+        this.mqFanout = new MQFanout(mqConnectivity, settings.getTopology(), settings.getCodec(), settings.getMetrics());
         this.clientRepository = clientRepository;
         this.sensorRepository = sensorRepository;
         this.authenticationService = authenticationService;
         clientMapper = new ClientMapper();
+        subscriptionResponseMarshaller = new PreEncodedMarshaller<>(SubscriptionResponse.getDefaultInstance());
+        subscriberRegistry = new SubscriberRegistry();
+        subscriberSettings = SubscriberSettings.builder()
+                .responseEncoder(new SubscriptionResponseEncoder(subscriptionResponseMarshaller, settings.isIncludeStageTimestamps()))
+                .registry(subscriberRegistry)
+                .timer(settings.getTimer())
+                .expiryExecutor(settings.getExpiryExecutor())
+                .windows(settings.getWindows())
+                .cluster(settings.getCluster())
+                .build();
+    }
+
+    /**
+     * @return subscriber streams open on this service
+     */
+    public SubscriberRegistry getSubscriberRegistry() {
+        return subscriberRegistry;
+    }
+
+    /**
+     * @param sensorId sensor id
+     * @return number of subscriptions on the sensor served by this service
+     */
+    public int getSubscriptionCount(String sensorId) {
+        return mqFanout.getListenerCount(sensorId);
+    }
+
+    /**
+     * Service definition whose subscription responses are serialized once for all subscribers. Register it instead
+     * of the service itself, otherwise live measurements are mapped once but every subscriber's call encodes them again
+     */
+    @SuppressWarnings("unchecked")
+    public ServerServiceDefinition bindServiceWithPreEncodedResponses() {
+        ServerServiceDefinition definition = bindService();
+        MethodDescriptor<SubscribeRequest, SubscriptionResponse> subscribeMethod = SensorClientServiceGrpc.METHOD_SUBSCRIBE_ON_SENSOR;
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(SensorClientServiceGrpc.SERVICE_NAME);
+        for (ServerMethodDefinition<?, ?> method : definition.getMethods()) {
+            if (method.getMethodDescriptor().getFullMethodName().equals(subscribeMethod.getFullMethodName())) {
+                ServerMethodDefinition<SubscribeRequest, SubscriptionResponse> subscribe =
+                        (ServerMethodDefinition<SubscribeRequest, SubscriptionResponse>) method;
+                builder.addMethod(subscribeMethod
+                                .toBuilder(subscribeMethod.getRequestMarshaller(), subscriptionResponseMarshaller)
+                                .build(),
+                        subscribe.getServerCallHandler());
+            } else {
+                builder.addMethod(method);
+            }
+        }
+        return builder.build();
     }
 
     @Override
@@ -74,6 +146,7 @@ public class ClientService extends SensorClientServiceGrpc.SensorClientServiceIm
 
     @Override
     public StreamObserver<SubscribeRequest> subscribeOnSensor(StreamObserver<SubscriptionResponse> responseObserver) {
-        return new SubscriberStreamObserver(mqConnectivity, responseObserver, sensorRepository);
+        return new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository,
+                Constants.CLIENT_LOGIN_CONTEXT_KEY.get(), subscriberSettings);
     }
 }
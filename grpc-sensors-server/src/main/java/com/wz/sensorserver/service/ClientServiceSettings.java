@@ -0,0 +1,62 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.domain.AggregationWindows;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.mq.ExchangePerSensorTopology;
+import com.wz.sensorserver.mq.MQTopology;
+import com.wz.sensorserver.mq.codec.MessageCodec;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.util.concurrent.HashedWheelTimer;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * How a node serves the subscriptions of clients
+ */
+@Getter
+@Builder
+public class ClientServiceSettings {
+    public static final ClientServiceSettings DEFAULT = ClientServiceSettings.builder().build();
+
+    /**
+     * whether live measurements sent to subscribers carry the stamps of the stages they passed on the server
+     */
+    private final boolean includeStageTimestamps;
+    /**
+     * how the node's shared queue is bound to the sensors subscribed on
+     */
+    @Builder.Default
+    private final MQTopology topology = new ExchangePerSensorTopology();
+    /**
+     * timer subscriptions expire on when a client asks for a timeout, timeouts are ignored if null
+     */
+    private final HashedWheelTimer timer;
+    /**
+     * runs the expiry of subscriptions off the timer thread
+     */
+    @Builder.Default
+    private final Executor expiryExecutor = ForkJoinPool.commonPool();
+    /**
+     * windows the sensor service aggregates over, clients may subscribe on them instead of measurements
+     */
+    @Builder.Default
+    private final AggregationWindows windows = AggregationWindows.NONE;
+    /**
+     * decodes the messages of the sensors, the codec the sensor service publishes them with
+     */
+    @Builder.Default
+    private final MessageCodec<SensorMessage> codec = new SensorMessageCodec();
+    /**
+     * cluster the node is a member of, null for a standalone node
+     */
+    private final Cluster cluster;
+    /**
+     * registry the gauges of the node's fanout are reported to, none if null
+     */
+    private final MetricsRegistry metrics;
+}
@@ -0,0 +1,93 @@
+package com.wz.sensorserver.service;
+
+import com.google.protobuf.Empty;
+import com.wz.sensors.proto.ClusterServiceGrpc;
+import com.wz.sensors.proto.SensorInfoResponse;
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.domain.HistoryStorage;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.util.protomapping.SensorMapper;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Receives the sensors registered on the other nodes of the cluster
+ */
+@Slf4j
+public class ClusterService extends ClusterServiceGrpc.ClusterServiceImplBase {
+    private final SensorRepository sensorRepository;
+    private final Cluster cluster;
+    private final int historyCapacity;
+    private final HistoryStorage historyStorage;
+    private final SensorMapper mapper;
+    private final Lock replicaLock;
+
+    /**
+     * @param settings settings of the node's sensor service, replicas of the sensors it owns keep their measurements
+     *                 the way it does
+     */
+    public ClusterService(SensorRepository sensorRepository, SensorServiceSettings settings) {
+        Objects.requireNonNull(settings.getCluster());
+        this.sensorRepository = sensorRepository;
+        cluster = settings.getCluster();
+        historyCapacity = settings.getHistoryCapacity();
+        historyStorage = settings.getHistoryStorage();
+        mapper = new SensorMapper();
+        replicaLock = new ReentrantLock();
+    }
+
+    @Override
+    public void replicateSensor(SensorInfoResponse request, StreamObserver<Empty> responseObserver) {
+        try {
+            addReplica(request);
+        } catch (IllegalArgumentException illegalArgumentException) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Sensor id is not valid")
+                    .asRuntimeException());
+            return;
+        }
+        responseObserver.onNext(Empty.getDefaultInstance());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Adds a sensor registered on another node, unless it is known already
+     *
+     * @return whether the sensor was added
+     */
+    public boolean addReplica(SensorInfoResponse sensorInfo) {
+        UUID sensorId = UUID.fromString(sensorInfo.getId());
+        // a sensor may arrive with a catch-up and be replicated at the same time
+        replicaLock.lock();
+        try {
+            if (sensorRepository.getSensorById(sensorId).isPresent())
+                return false;
+            sensorRepository.addSensor(mapper.mapReplicaToDomain(sensorInfo, historyCapacity, historyStorage, cluster.isLocal(sensorId)));
+        } finally {
+            replicaLock.unlock();
+        }
+        log.debug("Sensor {} was replicated, owned by {}", sensorId, cluster.ownerOf(sensorId));
+        return true;
+    }
+
+    /**
+     * Adds the sensors the other nodes registered while this one was down
+     *
+     * @return number of sensors added
+     */
+    public int catchUp() {
+        int added = 0;
+        for (SensorInfoResponse sensorInfo : cluster.fetchSensors()) {
+            if (addReplica(sensorInfo))
+                added++;
+        }
+        return added;
+    }
+}
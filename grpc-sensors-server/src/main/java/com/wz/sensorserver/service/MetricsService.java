@@ -0,0 +1,56 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensors.proto.*;
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Scrape endpoint of the metrics registry
+ */
+public class MetricsService extends MetricsServiceGrpc.MetricsServiceImplBase {
+    private final MetricsRegistry registry;
+
+    public MetricsService() {
+        this(MetricsRegistry.global());
+    }
+
+    public MetricsService(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void getMetrics(MetricsRequest request, StreamObserver<MetricsResponse> responseObserver) {
+        String prefix = request.getPrefix();
+        MetricsResponse.Builder response = MetricsResponse.newBuilder()
+                .setSampling(registry.isSampling());
+        registry.getCounters().forEach((name, counter) -> {
+            if (name.startsWith(prefix))
+                response.addCounters(CounterValue.newBuilder()
+                        .setName(name)
+                        .setCount(counter.getCount()));
+        });
+        registry.getGauges().forEach((name, gauge) -> {
+            if (name.startsWith(prefix))
+                response.addGauges(GaugeValue.newBuilder()
+                        .setName(name)
+                        .setValue(gauge.getAsLong()));
+        });
+        registry.getHistograms().forEach((name, histogram) -> {
+            if (!name.startsWith(prefix))
+                return;
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            response.addHistograms(HistogramValue.newBuilder()
+                    .setName(name)
+                    .setCount(snapshot.getCount())
+                    .setSum(snapshot.getSum())
+                    .setMax(snapshot.getMax())
+                    .setP50(snapshot.getValueAtPercentile(50))
+                    .setP90(snapshot.getValueAtPercentile(90))
+                    .setP99(snapshot.getValueAtPercentile(99))
+                    .setP999(snapshot.getValueAtPercentile(99.9)));
+        });
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+}
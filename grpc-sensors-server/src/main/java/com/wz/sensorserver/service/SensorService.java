@@ -1,55 +1,113 @@
 package com.wz.sensorserver.service;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.Empty;
-import com.rabbitmq.client.BuiltinExchangeType;
 import com.rabbitmq.client.Channel;
 import com.wz.sensors.proto.*;
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.cluster.ClusterNode;
+import com.wz.sensorserver.cluster.MeasurementForwarder;
 import com.wz.sensorserver.constant.Constants;
+import com.wz.sensorserver.domain.HistoryStorage;
+import com.wz.sensorserver.domain.MeasurementAggregate;
+import com.wz.sensorserver.domain.QuantileSketch;
 import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.SensorAggregationTask;
+import com.wz.sensorserver.domain.SensorSketch;
+import com.wz.sensorserver.domain.SketchRetention;
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
 import com.wz.sensorserver.mq.MQConnectivity;
 import com.wz.sensorserver.mq.MQPublisher;
+import com.wz.sensorserver.mq.MQTopology;
 import com.wz.sensorserver.mq.Publisher;
-import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
 import com.wz.sensorserver.mq.message.SensorOnlineStatusChanged;
 import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.service.streamobserver.IngestSettings;
 import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
 import com.wz.sensorserver.service.streamobserver.SensorStreamObserver;
+import com.wz.sensorserver.util.EpochClock;
 import com.wz.sensorserver.util.protomapping.MeasurementMapper;
+import com.wz.sensorserver.util.protomapping.QuantileSketchMapper;
 import com.wz.sensorserver.util.protomapping.SensorMapper;
+import io.grpc.Metadata;
 import io.grpc.Status;
+import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+
 @Slf4j
 public class SensorService extends SensorServiceGrpc.SensorServiceImplBase {
+    private static final Counter REGISTERED = MetricsRegistry.global().counter("sensors.registered");
+    private static final Histogram HISTORY_LATENCY = MetricsRegistry.global().histogram("history.query.latency");
+    private static final Histogram AGGREGATE_LATENCY = MetricsRegistry.global().histogram("aggregate.query.latency");
+    private static final Histogram QUANTILE_LATENCY = MetricsRegistry.global().histogram("quantile.query.latency");
+    private static final long PEER_QUERY_TIMEOUT_SECONDS = 5;
 
     private final AuthenticationService authenticationService;
     private final SensorRepository sensorRepository;
     private final MQConnectivity mqConnectivity;
+    private final int historyCapacity;
+    private final Cluster cluster;
+    private final MQTopology topology;
+    private final IngestSettings ingestSettings;
+    private final ForkJoinPool aggregationPool;
+    private final SketchRetention sketchRetention;
+    private final HistoryStorage historyStorage;
 
     public SensorService(MQConnectivity mqConnectivity,
                          AuthenticationService authenticationService,
                          SensorRepository sensorRepository
+    ) {
+        this(mqConnectivity, authenticationService, sensorRepository, SensorServiceSettings.DEFAULT);
+    }
+
+    /**
+     * @param settings how the node keeps, ingests and queries the measurements of its sensors
+     */
+    public SensorService(MQConnectivity mqConnectivity,
+                         AuthenticationService authenticationService,
+                         SensorRepository sensorRepository,
+                         SensorServiceSettings settings
     ) {
         this.mqConnectivity = mqConnectivity;
         this.authenticationService = authenticationService;
         this.sensorRepository = sensorRepository;
+        historyCapacity = settings.getHistoryCapacity();
+        historyStorage = settings.getHistoryStorage();
+        cluster = settings.getCluster();
+        topology = settings.getTopology();
+        ingestSettings = settings.getIngest();
+        aggregationPool = settings.getAggregationPool();
+        sketchRetention = settings.getSketchRetention();
     }
 
     @Override
     public void registerSensor(SensorRegistrationRequest request, StreamObserver<SensorRegistrationResponse> responseObserver) {
         SensorMapper mapper = new SensorMapper();
-        final Sensor sensorToRegister = mapper.mapRequestToDomain(request);
+        UUID sensorId = UUID.randomUUID();
+        final Sensor sensorToRegister = cluster == null || cluster.isLocal(sensorId)
+                ? mapper.mapRequestToDomain(request, historyCapacity, historyStorage)
+                : mapper.mapRequestToRemoteDomain(request);
 
         if (!sensorRepository.checkIfExists(sensorToRegister)) {
-            UUID sensorId = UUID.randomUUID();
             String jwtToken = authenticationService.generateToken(Map.of("sensorId", sensorId.toString()));
             SensorRegistrationResponse response = SensorRegistrationResponse
                     .newBuilder()
@@ -59,6 +117,9 @@ public class SensorService extends SensorServiceGrpc.SensorServiceImplBase {
             sensorToRegister.setId(sensorId);
             sensorRepository.addSensor(sensorToRegister);
             log.info("Sensor was registered. ID: {}", sensorId);
+            REGISTERED.increment();
+            if (cluster != null)
+                cluster.replicateSensor(mapper.mapDomainToResponse(sensorToRegister));
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         } else {
@@ -73,17 +134,31 @@ public class SensorService extends SensorServiceGrpc.SensorServiceImplBase {
     public StreamObserver<MeasurementRequest> sendMeasurements(StreamObserver<Empty> responseObserver) {
         log.trace("Sensor trying to connected to start streaming");
         UUID sensorId = UUID.fromString(Constants.SENSOR_ID_CONTEXT_KEY.get());
+        Optional<ClusterNode> owner = remoteOwnerOf(sensorId);
+        if (owner.isPresent()) {
+            log.debug("Forwarding measurements of sensor {} to {}", sensorId, owner.get());
+            Metadata headers = new Metadata();
+            headers.put(Metadata.Key.of("Authorization", ASCII_STRING_MARSHALLER),
+                    authenticationService.generateToken(Map.of("sensorId", sensorId.toString())));
+            return MeasurementForwarder.start(responseObserver, SensorServiceGrpc.newStub(cluster.channelTo(owner.get()))
+                    .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers)));
+        }
         Optional<Sensor> sensorOptional = sensorRepository.getSensorById(sensorId);
         if (sensorOptional.isPresent()) {
             Sensor sensor = sensorOptional.get();
             if (sensor.getOnlineStatus().equals(Sensor.OnlineStatus.OFFLINE)) {
                 try {
                     sensor.setOnlineStatus(Sensor.OnlineStatus.ONLINE);
+                    // kept across reconnects, like the history
+                    if (sensor.getSketch() == null)
+                        sensor.setSketch(sketchRetention.newSketch());
                     Channel channel = mqConnectivity.newChannel();
-                    channel.exchangeDeclare(sensorId.toString(), BuiltinExchangeType.FANOUT, false, false, null);
-                    Publisher<? super Serializable> publisher = new MQPublisher<>(channel, sensorId.toString(), "");
+                    String key = sensorId.toString();
+                    topology.declarePublishing(channel, key);
+                    Publisher<SensorMessage> publisher = new MQPublisher<>(channel, topology.exchangeOf(key),
+                            topology.routingKeyOf(key), ingestSettings.getCodec());
                     publisher.publishMessage(new SensorOnlineStatusChanged(sensorId.toString(), Sensor.OnlineStatus.ONLINE));
-                    return new SensorStreamObserver(responseObserver, publisher, sensor);
+                    return new SensorStreamObserver(responseObserver, publisher, sensor, ingestSettings);
                 } catch (IOException exception) {
                     log.error("Error when managing the exchange for sensor {}", sensorId, exception);
                     Status status = Status.INTERNAL
@@ -102,9 +177,15 @@ public class SensorService extends SensorServiceGrpc.SensorServiceImplBase {
 
     @Override
     public void getHistoryForSensor(SensorHistoryRequest request, StreamObserver<SensorHistoryResponse> responseObserver) {
+        long startNanos = HISTORY_LATENCY.startNanos();
         final MeasurementMapper measurementMapper = new MeasurementMapper();
         String sensorId = request.getSensorId();
         int depth = request.getDepth();
+        Optional<ClusterNode> owner = remoteOwnerOf(UUID.fromString(sensorId));
+        if (owner.isPresent()) {
+            SensorServiceGrpc.newStub(cluster.channelTo(owner.get())).getHistoryForSensor(request, responseObserver);
+            return;
+        }
         Optional<Sensor> sensorOptional = sensorRepository.getSensorById(UUID.fromString(sensorId));
         if (sensorOptional.isPresent()) {
             Sensor sensor = sensorOptional.get();
@@ -115,6 +196,7 @@ public class SensorService extends SensorServiceGrpc.SensorServiceImplBase {
                             .collect(Collectors.toList()))
                     .setSensorStatusValue(sensor.getOnlineStatus().getValue())
                     .build();
+            HISTORY_LATENCY.recordSince(startNanos);
             responseObserver.onNext(sensorHistory);
             responseObserver.onCompleted();
         } else {
@@ -124,14 +206,204 @@ public class SensorService extends SensorServiceGrpc.SensorServiceImplBase {
         }
     }
 
+    /**
+     * Aggregates the latest measurements of the sensors with the given tags in one pass over their histories. In a
+     * cluster every node aggregates the sensors it owns and the partial aggregates are merged here
+     */
+    @Override
+    public void getAggregateForSensors(SensorAggregateRequest request, StreamObserver<SensorAggregateResponse> responseObserver) {
+        long startNanos = AGGREGATE_LATENCY.startNanos();
+        if (request.getDepth() <= 0) {
+            Status status = Status.INVALID_ARGUMENT
+                    .withDescription("Depth must be greater than 0");
+            responseObserver.onError(status.asRuntimeException());
+            return;
+        }
+        // the peers compute their partials while this node computes its own
+        List<ListenableFuture<SensorAggregateResponse>> peerAggregates = askPeers(stub -> stub.getAggregateForSensors(request));
+        List<Sensor> sensors = findLocalSensorsByTags(request.getTagsList());
+        MeasurementAggregate aggregate = SensorAggregationTask.aggregate(aggregationPool, sensors, request.getDepth());
+        int sensorCount = sensors.size();
+        List<SensorAggregateResponse> partials = awaitPeers(peerAggregates, responseObserver);
+        if (partials == null)
+            return;
+        for (SensorAggregateResponse partial : partials) {
+            aggregate.merge(partial.getCount(), partial.getMin(), partial.getMax(), partial.getSum());
+            sensorCount += partial.getSensorCount();
+        }
+        AGGREGATE_LATENCY.recordSince(startNanos);
+        responseObserver.onNext(SensorAggregateResponse.newBuilder()
+                .setSensorCount(sensorCount)
+                .setCount(aggregate.getCount())
+                .setMin(aggregate.getMin())
+                .setMax(aggregate.getMax())
+                .setMean(aggregate.getMean())
+                .setSum(aggregate.getSum())
+                .build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Reads quantiles from the merged sketches of a sensor or of the sensors with the given tags. In a cluster the
+     * call about a sensor is forwarded to its owner, for tags every node merges the sketches of the sensors it owns
+     */
+    @Override
+    public void getQuantilesForSensors(SensorQuantileRequest request, StreamObserver<SensorQuantileResponse> responseObserver) {
+        long startNanos = QUANTILE_LATENCY.startNanos();
+        if (sketchRetention.isEmpty()) {
+            Status status = Status.FAILED_PRECONDITION
+                    .withDescription("Quantile sketches are not kept by the server");
+            responseObserver.onError(status.asRuntimeException());
+            return;
+        }
+        if (request.getWindowSeconds() < 0 || request.getQuantilesList().stream().anyMatch(quantile -> quantile < 0 || quantile > 1)) {
+            Status status = Status.INVALID_ARGUMENT
+                    .withDescription("Quantiles must be between 0 and 1 and the window must not be negative");
+            responseObserver.onError(status.asRuntimeException());
+            return;
+        }
+        List<ListenableFuture<SensorQuantileResponse>> peerSketches = List.of();
+        List<Sensor> sensors;
+        if (!request.getSensorId().isEmpty()) {
+            UUID sensorId = UUID.fromString(request.getSensorId());
+            Optional<ClusterNode> owner = remoteOwnerOf(sensorId);
+            if (owner.isPresent()) {
+                SensorServiceGrpc.newStub(cluster.channelTo(owner.get())).getQuantilesForSensors(request, responseObserver);
+                return;
+            }
+            Optional<Sensor> sensorOptional = sensorRepository.getSensorById(sensorId);
+            if (sensorOptional.isEmpty()) {
+                Status status = Status.NOT_FOUND
+                        .withDescription("Sensor with given id does not exist");
+                responseObserver.onError(status.asRuntimeException());
+                return;
+            }
+            sensors = List.of(sensorOptional.get());
+        } else {
+            peerSketches = askPeers(stub -> stub.getQuantilesForSensors(request));
+            sensors = findLocalSensorsByTags(request.getTagsList());
+        }
+        long fromEpochSecond = request.getWindowSeconds() == 0
+                ? Long.MIN_VALUE
+                : TimeUnit.NANOSECONDS.toSeconds(EpochClock.nowNanos()) - request.getWindowSeconds();
+        QuantileSketch sketch = new QuantileSketch();
+        for (Sensor sensor : sensors) {
+            SensorSketch sensorSketch = sensor.getSketch();
+            if (sensorSketch != null)
+                sensorSketch.mergeInto(fromEpochSecond, sketch);
+        }
+        int sensorCount = sensors.size();
+        List<SensorQuantileResponse> partials = awaitPeers(peerSketches, responseObserver);
+        if (partials == null)
+            return;
+        QuantileSketchMapper mapper = new QuantileSketchMapper();
+        for (SensorQuantileResponse partial : partials) {
+            mapper.mergeStateInto(partial.getSketch(), sketch);
+            sensorCount += partial.getSensorCount();
+        }
+        SensorQuantileResponse.Builder response = SensorQuantileResponse.newBuilder()
+                .setSensorCount(sensorCount)
+                .setCount(sketch.getCount())
+                .setSketch(mapper.mapDomainToState(sketch));
+        if (sketch.getCount() > 0)
+            request.getQuantilesList().forEach(quantile -> response.addValues(sketch.getQuantile(quantile)));
+        QUANTILE_LATENCY.recordSince(startNanos);
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+
     @Override
     public void getSensors(SearchTagsRequest request, StreamObserver<SensorInfoResponse> responseObserver) {
         SensorMapper mapper = new SensorMapper();
-            sensorRepository.findSensorsByTags(request.getTagsList())
-                    .stream()
-                    .map(mapper::mapDomainToResponse)
-                    .forEach(responseObserver::onNext);
+        Collection<Sensor> sensors = sensorRepository.findSensorsByTags(request.getTagsList());
+        if (cluster != null && Constants.FORWARDED_BY_CONTEXT_KEY.get() == null)
+            refreshOnlineStatus(request, sensors, mapper);
+        sensors.stream()
+                .map(mapper::mapDomainToResponse)
+                .forEach(responseObserver::onNext);
         responseObserver.onCompleted();
     }
 
+    /**
+     * Sets the online status of the sensors owned by other nodes to the one their owners report. The sensors of owners
+     * that do not answer are reported as unknown
+     */
+    private void refreshOnlineStatus(SearchTagsRequest request, Collection<Sensor> sensors, SensorMapper mapper) {
+        List<UUID> remoteSensorIds = sensors.stream()
+                .map(Sensor::getId)
+                .filter(sensorId -> !cluster.isLocal(sensorId))
+                .toList();
+        if (remoteSensorIds.isEmpty())
+            return;
+        Map<String, SensorOnlineStatus> statuses = cluster.fetchOnlineStatuses(request, remoteSensorIds);
+        for (Sensor sensor : sensors) {
+            if (!cluster.isLocal(sensor.getId()))
+                sensor.setOnlineStatus(mapper.mapOnlineStatusToDomain(statuses.getOrDefault(sensor.getId().toString(),
+                        SensorOnlineStatus.UNKNOWN_STATUS)));
+        }
+    }
+
+    /**
+     * @return sensors with any of the tags whose measurements this node keeps
+     */
+    private List<Sensor> findLocalSensorsByTags(List<String> tags) {
+        return sensorRepository.findSensorsByTags(tags)
+                .stream()
+                .filter(sensor -> cluster == null || cluster.isLocal(sensor.getId()))
+                .toList();
+    }
+
+    /**
+     * Sends a query to the other nodes of the cluster without waiting for them. A forwarded query is not sent on, the
+     * node that was called asks every peer itself
+     *
+     * @return answers of the peers, none on a standalone node
+     */
+    private <T> List<ListenableFuture<T>> askPeers(Function<SensorServiceGrpc.SensorServiceFutureStub, ListenableFuture<T>> query) {
+        if (cluster == null || Constants.FORWARDED_BY_CONTEXT_KEY.get() != null)
+            return List.of();
+        return cluster.getPeers()
+                .stream()
+                .map(peer -> query.apply(SensorServiceGrpc.newFutureStub(cluster.channelTo(peer))
+                        .withDeadlineAfter(PEER_QUERY_TIMEOUT_SECONDS, TimeUnit.SECONDS)))
+                .toList();
+    }
+
+    /**
+     * Waits for the answers of the peers. A result without a node's part would be wrong rather than partial, so when
+     * one of them fails the call fails
+     *
+     * @return answers of all peers, null if the call was failed
+     */
+    private <T> List<T> awaitPeers(List<ListenableFuture<T>> answers, StreamObserver<?> responseObserver) {
+        List<T> results = new ArrayList<>(answers.size());
+        for (ListenableFuture<T> answer : answers) {
+            try {
+                results.add(answer.get());
+            } catch (ExecutionException exception) {
+                log.warn("Peer did not answer a query: {}", Status.fromThrowable(exception.getCause()));
+                answers.forEach(future -> future.cancel(true));
+                Status status = Status.UNAVAILABLE
+                        .withDescription("Not every node of the cluster answered, try again later");
+                responseObserver.onError(status.asRuntimeException());
+                return null;
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                answers.forEach(future -> future.cancel(true));
+                responseObserver.onError(Status.CANCELLED.asRuntimeException());
+                return null;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the node calls about the sensor are forwarded to, empty if this node serves them. A call that was
+     * forwarded already is served here, so nodes that disagree on the membership do not pass it around
+     */
+    private Optional<ClusterNode> remoteOwnerOf(UUID sensorId) {
+        if (cluster == null || cluster.isLocal(sensorId) || Constants.FORWARDED_BY_CONTEXT_KEY.get() != null)
+            return Optional.empty();
+        return Optional.of(cluster.ownerOf(sensorId));
+    }
 }
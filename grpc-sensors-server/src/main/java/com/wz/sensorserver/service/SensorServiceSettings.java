@@ -0,0 +1,57 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.domain.HistoryStorage;
+import com.wz.sensorserver.domain.SketchRetention;
+import com.wz.sensorserver.mq.ExchangePerSensorTopology;
+import com.wz.sensorserver.mq.MQTopology;
+import com.wz.sensorserver.service.streamobserver.IngestSettings;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * How a node keeps, ingests and queries the measurements of its sensors
+ */
+@Getter
+@Builder
+public class SensorServiceSettings {
+    public static final SensorServiceSettings DEFAULT = SensorServiceSettings.builder().build();
+
+    /**
+     * number of measurements retained per sensor, it bounds both history requests and how far back subscribers can
+     * resume. 0 stands for the default
+     */
+    private final int historyCapacity;
+    /**
+     * how the sensors this node owns keep their measurements
+     */
+    @Builder.Default
+    private final HistoryStorage historyStorage = HistoryStorage.RING_BUFFER;
+    /**
+     * cluster the node is part of, null for a standalone node. Sensors registered here are replicated to the other
+     * nodes, history requests and measurement streams are forwarded to the owner
+     */
+    private final Cluster cluster;
+    /**
+     * how measurements are routed through the broker
+     */
+    @Builder.Default
+    private final MQTopology topology = new ExchangePerSensorTopology();
+    /**
+     * how the streams of the sensors process measurements
+     */
+    @Builder.Default
+    private final IngestSettings ingest = IngestSettings.DEFAULT;
+    /**
+     * pool aggregates across sensors are computed on
+     */
+    @Builder.Default
+    private final ForkJoinPool aggregationPool = ForkJoinPool.commonPool();
+    /**
+     * how long quantile sketches of the measurements of sensors streaming to this node are kept
+     */
+    @Builder.Default
+    private final SketchRetention sketchRetention = SketchRetention.NONE;
+}
@@ -0,0 +1,80 @@
+package com.wz.sensorserver.service.streamobserver;
+
+import com.wz.sensorserver.mq.Publisher;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manual inbound flow control of a client streaming call. At most window messages are requested ahead and a new one
+ * is requested only after a message has been processed and the publisher has capacity, so a sensor that sends faster
+ * than we can publish is held back by the HTTP/2 flow control window instead of piling up in heap
+ */
+@Slf4j
+public class InboundFlowController {
+    public static final int DEFAULT_WINDOW = 32;
+
+    private final ServerCallStreamObserver<?> callStreamObserver;
+    private final Publisher<?> publisher;
+    private final int window;
+    private final AtomicInteger withheld;
+
+    private InboundFlowController(ServerCallStreamObserver<?> callStreamObserver, Publisher<?> publisher, int window) {
+        this.callStreamObserver = callStreamObserver;
+        this.publisher = publisher;
+        this.window = window;
+        withheld = new AtomicInteger();
+    }
+
+    /**
+     * Disables automatic inbound flow control of the call the response observer belongs to. Has to be called before
+     * the service method returns
+     *
+     * @param responseObserver response observer of the call
+     * @param publisher        downstream the messages are published to
+     * @param window           number of messages that may be requested and not yet processed
+     * @return flow controller, it does nothing if the observer does not belong to a server call
+     */
+    public static InboundFlowController attach(StreamObserver<?> responseObserver, Publisher<?> publisher, int window) {
+        if (window <= 0)
+            throw new IllegalArgumentException("Window must be greater than 0");
+        if (responseObserver instanceof ServerCallStreamObserver<?> callStreamObserver) {
+            callStreamObserver.disableAutoRequest();
+            InboundFlowController flowController = new InboundFlowController(callStreamObserver, publisher, window);
+            callStreamObserver.request(window);
+            return flowController;
+        }
+        return new InboundFlowController(null, publisher, window);
+    }
+
+    /**
+     * Returns a credit for a processed message. The next message is requested right away if the publisher has
+     * capacity, otherwise once it regains it. May be called from any thread
+     */
+    public void onProcessed() {
+        if (callStreamObserver == null)
+            return;
+        if (publisher.hasCapacity() && withheld.get() == 0) {
+            callStreamObserver.request(1);
+            return;
+        }
+        if (withheld.getAndIncrement() == 0) {
+            log.debug("Publisher has no capacity, holding back inbound messages");
+            publisher.onCapacityAvailable(this::releaseWithheld);
+        }
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    private void releaseWithheld() {
+        int credits = withheld.getAndSet(0);
+        if (credits > 0) {
+            log.debug("Publisher regained capacity, requesting {} inbound messages", credits);
+            callStreamObserver.request(credits);
+        }
+    }
+}
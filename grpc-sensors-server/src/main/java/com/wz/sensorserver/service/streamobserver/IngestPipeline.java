@@ -0,0 +1,202 @@
+package com.wz.sensorserver.service.streamobserver;
+
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.util.concurrent.BatchEventProcessor;
+import com.wz.sensorserver.util.concurrent.EventHandler;
+import com.wz.sensorserver.util.concurrent.RingBuffer;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measurements of all sensor streams passing a {@link RingBuffer} on their way to the broker: the transport thread
+ * copies a measurement into a preallocated slot and three stages, each on its own thread, write it to the history,
+ * encode it and publish it. Every stage sees the events in the order they were claimed, so a sensor's measurements
+ * and the end of its stream keep their order, and a stage takes whatever is available as a batch.
+ * <p>
+ * The transport thread waits while the ring is full. Inbound flow control bounds what a sensor has in flight to its
+ * window, so a buffer of at least sensors * window slots never fills up
+ */
+@Slf4j
+public class IngestPipeline implements AutoCloseable {
+    private final RingBuffer<IngestEvent> ringBuffer;
+    private final List<BatchEventProcessor<IngestEvent>> processors;
+    private final List<Thread> threads;
+    private volatile boolean closed;
+
+    /**
+     * @param bufferSize number of slots, a power of 2
+     */
+    public IngestPipeline(int bufferSize) {
+        ringBuffer = new RingBuffer<>(bufferSize, IngestEvent::new);
+        MetricsRegistry metrics = MetricsRegistry.global();
+        processors = new ArrayList<>();
+        BatchEventProcessor<IngestEvent> history = stage(metrics.histogram("ingest.pipeline.history.batch"),
+                (event, sequence) -> event.writeHistory(), null);
+        BatchEventProcessor<IngestEvent> encode = stage(metrics.histogram("ingest.pipeline.encode.batch"),
+                (event, sequence) -> event.encode(), history);
+        BatchEventProcessor<IngestEvent> publish = stage(metrics.histogram("ingest.pipeline.publish.batch"),
+                (event, sequence) -> event.publish(), encode);
+        ringBuffer.addGatingSequences(publish.getSequence());
+        metrics.gauge("ingest.pipeline.remaining", ringBuffer::remainingCapacity);
+        threads = new ArrayList<>();
+        String[] names = {"history", "encode", "publish"};
+        for (int i = 0; i < processors.size(); i++) {
+            Thread thread = new Thread(processors.get(i), "ingest-pipeline-" + names[i]);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    private BatchEventProcessor<IngestEvent> stage(Histogram batchSize, StageHandler handler,
+                                                   BatchEventProcessor<IngestEvent> previous) {
+        EventHandler<IngestEvent> eventHandler = new EventHandler<>() {
+            private long batchStart;
+
+            @Override
+            public void onEvent(IngestEvent event, long sequence, boolean endOfBatch) {
+                handler.handle(event, sequence);
+                if (endOfBatch) {
+                    batchSize.record(sequence - batchStart + 1);
+                    batchStart = sequence + 1;
+                }
+            }
+        };
+        BatchEventProcessor<IngestEvent> processor = new BatchEventProcessor<>(ringBuffer, previous == null
+                ? ringBuffer.newBarrier()
+                : ringBuffer.newBarrier(previous.getSequence()), eventHandler);
+        processors.add(processor);
+        return processor;
+    }
+
+    /**
+     * Queues a measurement of the stream, the values are copied so the request may be dropped afterwards
+     *
+     * @throws RejectedExecutionException if the pipeline is closed
+     */
+    void publishMeasurement(SensorStreamObserver observer, long clientSequence, double value, long epochSecond,
+                            int nano, long receivedAt, long startNanos) {
+        IngestEvent event = claim(observer, IngestEvent.Kind.MEASUREMENT);
+        event.clientSequence = clientSequence;
+        event.value = value;
+        event.epochSecond = epochSecond;
+        event.nano = nano;
+        event.receivedAt = receivedAt;
+        event.startNanos = startNanos;
+        ringBuffer.publish(event.sequence);
+    }
+
+    /**
+     * Queues the end of the stream behind its measurements
+     *
+     * @param status status the stream is closed with, null if the sensor completed it
+     */
+    void publishEnd(SensorStreamObserver observer, Status status) {
+        IngestEvent event = claim(observer, status == null ? IngestEvent.Kind.COMPLETED : IngestEvent.Kind.ERROR);
+        event.status = status;
+        ringBuffer.publish(event.sequence);
+    }
+
+    private IngestEvent claim(SensorStreamObserver observer, IngestEvent.Kind kind) {
+        if (closed)
+            throw new RejectedExecutionException("Ingest pipeline is closed");
+        long sequence = ringBuffer.next();
+        IngestEvent event = ringBuffer.get(sequence);
+        event.sequence = sequence;
+        event.observer = observer;
+        event.kind = kind;
+        event.assignedSequence = -1;
+        event.body = null;
+        event.status = null;
+        return event;
+    }
+
+    public int getBufferSize() {
+        return ringBuffer.getBufferSize();
+    }
+
+    /**
+     * Processes the events published so far and stops the stages
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        long cursor = ringBuffer.getCursor();
+        BatchEventProcessor<IngestEvent> last = processors.get(processors.size() - 1);
+        while (last.getSequence().get() < cursor && System.nanoTime() < deadline)
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        if (last.getSequence().get() < cursor)
+            log.warn("Ingest pipeline closed with {} events not processed", cursor - last.getSequence().get());
+        for (BatchEventProcessor<IngestEvent> processor : processors)
+            processor.halt();
+        for (Thread thread : threads)
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    @FunctionalInterface
+    private interface StageHandler {
+        void handle(IngestEvent event, long sequence);
+    }
+
+    /**
+     * Slot of the ring, filled by the transport thread and passed along the stages
+     */
+    static class IngestEvent {
+        enum Kind {MEASUREMENT, COMPLETED, ERROR}
+
+        private long sequence;
+        private SensorStreamObserver observer;
+        private Kind kind;
+        private long clientSequence;
+        private double value;
+        private long epochSecond;
+        private int nano;
+        private long receivedAt;
+        private long startNanos;
+        private long assignedSequence;
+        private byte[] body;
+        private Status status;
+
+        private void writeHistory() {
+            if (kind != Kind.MEASUREMENT) {
+                // the stream is closed by the last stage, measurements behind its end are dropped from here on
+                observer.endHistory();
+                return;
+            }
+            // dropped like on lanes, neither the history nor the aggregates see them
+            assignedSequence = observer.isClosed() || observer.isHistoryEnded()
+                    ? -1
+                    : observer.writeHistory(clientSequence, value, epochSecond, nano);
+        }
+
+        private void encode() {
+            if (kind == Kind.MEASUREMENT && assignedSequence >= 0) {
+                body = observer.encode(assignedSequence, value, epochSecond, nano, receivedAt);
+                observer.aggregate(epochSecond, value);
+            }
+        }
+
+        private void publish() {
+            SensorStreamObserver eventObserver = observer;
+            // the slot may be reused as soon as this stage moves on, it must not keep the stream reachable
+            observer = null;
+            byte[] eventBody = body;
+            body = null;
+            Status eventStatus = status;
+            status = null;
+            switch (kind) {
+                case MEASUREMENT -> eventObserver.publish(eventBody, startNanos);
+                case COMPLETED -> eventObserver.complete();
+                case ERROR -> eventObserver.closeWithError(eventStatus);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.wz.sensorserver.service.streamobserver;
+
+import com.wz.sensorserver.domain.AggregationWindows;
+import com.wz.sensorserver.mq.codec.MeasurementCodec;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.util.concurrent.StripedExecutor;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * How sensor streams process their measurements, shared by the streams of a service
+ */
+@Getter
+@Builder
+public class IngestSettings {
+    public static final IngestSettings DEFAULT = IngestSettings.builder().build();
+
+    /**
+     * number of measurements requested from the sensor ahead of processing
+     */
+    @Builder.Default
+    private final int inboundWindow = InboundFlowController.DEFAULT_WINDOW;
+    /**
+     * lanes the measurements are processed on, on the lane of the sensor so they stay in order. Null processes them
+     * on the thread that delivers them
+     */
+    private final StripedExecutor lanes;
+    /**
+     * ring buffer pipeline the measurements pass instead of lanes, null if they do not
+     */
+    private final IngestPipeline pipeline;
+    /**
+     * closes the stream once the sensor stops sending, null to wait for the transport to notice
+     */
+    private final SensorIdleWatch idleWatch;
+    /**
+     * windows the measurements are aggregated over, closed windows are published with them
+     */
+    @Builder.Default
+    private final AggregationWindows windows = AggregationWindows.NONE;
+    /**
+     * encodes the measurements, the publishers of the streams encode their other messages with it
+     */
+    @Builder.Default
+    private final MeasurementCodec codec = new SensorMessageCodec();
+}
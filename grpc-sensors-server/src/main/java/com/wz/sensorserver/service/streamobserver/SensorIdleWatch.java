@@ -0,0 +1,62 @@
+package com.wz.sensorserver.service.streamobserver;
+
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.util.EpochClock;
+import com.wz.sensorserver.util.concurrent.HashedWheelTimer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes sensor streams that have not received a measurement for a while, so a sensor that silently disappeared goes
+ * offline without waiting for TCP to notice. A stream is not rescheduled per measurement: it only stamps the time of
+ * the last one, and the timeout, once it fires, checks the stamp and schedules itself again for the rest of the period.
+ * Closing takes the ingest lock and a broker round trip, so the timer thread hands it over to the close executor
+ */
+public class SensorIdleWatch {
+    private static final Counter IDLE_CLOSED = MetricsRegistry.global().counter("ingest.streams.idle");
+
+    private final HashedWheelTimer timer;
+    private final Executor closeExecutor;
+    private final long idleNanos;
+
+    /**
+     * @param idleTimeout time without measurements after which a stream is closed
+     */
+    public SensorIdleWatch(HashedWheelTimer timer, long idleTimeout, TimeUnit unit) {
+        this(timer, idleTimeout, unit, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param closeExecutor runs the close of idle streams
+     */
+    public SensorIdleWatch(HashedWheelTimer timer, long idleTimeout, TimeUnit unit, Executor closeExecutor) {
+        if (idleTimeout <= 0)
+            throw new IllegalArgumentException("Idle timeout must be greater than 0");
+        this.timer = timer;
+        this.closeExecutor = closeExecutor;
+        idleNanos = unit.toNanos(idleTimeout);
+    }
+
+    void watch(SensorStreamObserver observer) {
+        schedule(observer, idleNanos);
+    }
+
+    private void schedule(SensorStreamObserver observer, long delayNanos) {
+        timer.schedule(() -> check(observer), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void check(SensorStreamObserver observer) {
+        if (observer.isClosed())
+            return;
+        long idleFor = EpochClock.nowNanos() - observer.getLastActivityNanos();
+        if (idleFor >= idleNanos) {
+            IDLE_CLOSED.increment();
+            closeExecutor.execute(() -> observer.closeIdle(idleFor));
+        } else {
+            schedule(observer, idleNanos - idleFor);
+        }
+    }
+}
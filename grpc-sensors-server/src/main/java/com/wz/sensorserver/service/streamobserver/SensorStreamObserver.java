@@ -1,19 +1,27 @@
 package com.wz.sensorserver.service.streamobserver;
 
 import com.google.protobuf.Empty;
+import com.google.protobuf.Timestamp;
 import com.wz.sensors.proto.MeasurementRequest;
-import com.wz.sensorserver.domain.Measurement;
 import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.SensorSketch;
+import com.wz.sensorserver.domain.WindowAggregator;
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.Gauge;
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
 import com.wz.sensorserver.mq.Publisher;
-import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.codec.MeasurementCodec;
+import com.wz.sensorserver.mq.message.SensorMessage;
 import com.wz.sensorserver.mq.message.SensorOnlineStatusChanged;
-import com.wz.sensorserver.util.protomapping.MeasurementMapper;
+import com.wz.sensorserver.util.EpochClock;
+import com.wz.sensorserver.util.concurrent.StripedExecutor;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.Serializable;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -22,43 +30,215 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 @Slf4j
 public class SensorStreamObserver implements StreamObserver<MeasurementRequest> {
+    private static final Counter MEASUREMENTS = MetricsRegistry.global().counter("ingest.measurements");
+    private static final Counter DUPLICATES = MetricsRegistry.global().counter("ingest.duplicates");
+    private static final Histogram INGEST_LATENCY = MetricsRegistry.global().histogram("ingest.latency");
+    private static final Gauge OPEN_STREAMS = MetricsRegistry.global().gauge("ingest.streams.open");
+
     private final StreamObserver<Empty> responseObserver;
     private final Lock responseObserverLock;
-    private final Publisher<? super Serializable> publisher;
-    private final MeasurementMapper measurementMapper;
+    private final Publisher<? super SensorMessage> publisher;
     private final Sensor sensor;
+    private final MeasurementCodec codec;
+    private final InboundFlowController flowController;
+    private final StripedExecutor lanes;
+    private final IngestPipeline pipeline;
+    private final AtomicBoolean closed;
+    /**
+     * Without lanes or a pipeline measurements are processed on the transport thread, while the idle watch ends the
+     * stream on the timer thread. The lock keeps the two apart
+     */
+    private final Lock ingestLock;
+    private final WindowAggregator windowAggregator;
+    private final SensorSketch sketch;
+    private volatile long lastActivityNanos;
+    /**
+     * Set by the history stage of the pipeline when it passes the end of the stream, read by that stage only
+     */
+    private boolean historyEnded;
 
     public SensorStreamObserver(StreamObserver<Empty> responseObserver,
-                                Publisher<? super Serializable> publisher,
+                                Publisher<? super SensorMessage> publisher,
                                 Sensor sensor) {
+        this(responseObserver, publisher, sensor, IngestSettings.DEFAULT);
+    }
+
+    /**
+     * Must be created within the service method, as it switches the call to manual inbound flow control
+     *
+     * @param settings how the measurements are processed
+     */
+    public SensorStreamObserver(StreamObserver<Empty> responseObserver,
+                                Publisher<? super SensorMessage> publisher,
+                                Sensor sensor,
+                                IngestSettings settings) {
+        if (settings.getLanes() != null && settings.getPipeline() != null)
+            throw new IllegalArgumentException("Measurements are processed either on lanes or in a pipeline");
         Objects.requireNonNull(publisher);
         Objects.requireNonNull(responseObserver);
         Objects.requireNonNull(sensor);
         this.responseObserver = responseObserver;
         responseObserverLock = new ReentrantLock();
         this.publisher = publisher;
-        this.measurementMapper = new MeasurementMapper();
         this.sensor = sensor;
+        codec = settings.getCodec();
+        this.flowController = InboundFlowController.attach(responseObserver, publisher, settings.getInboundWindow());
+        lanes = settings.getLanes();
+        pipeline = settings.getPipeline();
+        closed = new AtomicBoolean();
+        ingestLock = new ReentrantLock();
+        windowAggregator = settings.getWindows().newAggregator(sensor.getId().toString(), publisher::publishMessage);
+        sketch = sensor.getSketch();
+        lastActivityNanos = EpochClock.nowNanos();
+        OPEN_STREAMS.increment();
+        if (settings.getIdleWatch() != null)
+            settings.getIdleWatch().watch(this);
     }
 
     @Override
     public void onNext(MeasurementRequest publishedMeasurement) {
         log.trace("Sensor published measurement");
-        Measurement measurement = measurementMapper.mapRequestToDomain(publishedMeasurement);
-        sensor.putMeasurement(measurement);
-        MeasurementMessage message = new MeasurementMessage(
-                measurementMapper.mapRequestToDomain(publishedMeasurement),
-                sensor.getId().toString());
-        publisher.publishMessage(message);
+        long receivedAt = EpochClock.nowNanos();
+        lastActivityNanos = receivedAt;
+        long startNanos = INGEST_LATENCY.startNanos();
+        long sequence = publishedMeasurement.getSequence();
+        // primitives go straight to the history and the encoder, no intermediate objects per point
+        double value = publishedMeasurement.getValue();
+        Timestamp madeAt = publishedMeasurement.getMadeAt();
+        long epochSecond = madeAt.getSeconds();
+        int nano = madeAt.getNanos();
+        if (pipeline != null) {
+            pipeline.publishMeasurement(this, sequence, value, epochSecond, nano, receivedAt, startNanos);
+            return;
+        }
+        if (lanes == null) {
+            ingestLock.lock();
+            try {
+                ingest(sequence, value, epochSecond, nano, receivedAt, startNanos);
+            } finally {
+                ingestLock.unlock();
+            }
+        } else
+            lanes.execute(sensor.getId(), () -> ingest(sequence, value, epochSecond, nano, receivedAt, startNanos));
+    }
+
+    private void ingest(long sequence, double value, long epochSecond, int nano, long receivedAt, long startNanos) {
+        // the sensor may go on sending after its stream was closed as idle
+        if (closed.get())
+            return;
+        byte[] body = null;
+        try {
+            long assignedSequence = writeHistory(sequence, value, epochSecond, nano);
+            if (assignedSequence >= 0) {
+                body = encode(assignedSequence, value, epochSecond, nano, receivedAt);
+                aggregate(epochSecond, value);
+            }
+        } finally {
+            publish(body, startNanos);
+        }
+    }
+
+    /**
+     * @param sequence sequence the sensor numbered the measurement with, 0 if it does not number them
+     * @return sequence the history assigned to the measurement, -1 if it is a duplicate
+     */
+    long writeHistory(long sequence, double value, long epochSecond, int nano) {
+        if (sequence != 0) {
+            // only this stream writes the mark while the sensor is online
+            if (sequence <= sensor.getIngestHighWaterMark()) {
+                log.trace("Dropping duplicate measurement of sensor");
+                DUPLICATES.increment();
+                return -1;
+            }
+            sensor.setIngestHighWaterMark(sequence);
+        }
+        // the history assigns the sequence number, subscribers use it to stitch replay and live data
+        return sensor.putMeasurement(value, epochSecond, nano);
+    }
+
+    /**
+     * Adds an accepted measurement to the windows, publishing the ones it closes, and to the sensor's sketch
+     */
+    void aggregate(long epochSecond, double value) {
+        if (windowAggregator != null)
+            windowAggregator.add(epochSecond, value);
+        if (sketch != null)
+            sketch.add(epochSecond, value);
+    }
+
+    byte[] encode(long assignedSequence, double value, long epochSecond, int nano, long receivedAt) {
+        return codec.encodeMeasurement(sensor.getId(), assignedSequence, value, epochSecond, nano, receivedAt);
+    }
+
+    /**
+     * Publishes an encoded measurement and returns its credit to the sensor
+     *
+     * @param body encoded measurement, null if it was dropped
+     */
+    void publish(byte[] body, long startNanos) {
+        try {
+            if (body != null && !closed.get()) {
+                publisher.publishEncoded(body);
+                MEASUREMENTS.increment();
+            }
+        } finally {
+            flowController.onProcessed();
+            INGEST_LATENCY.recordSince(startNanos);
+        }
     }
 
     @Override
     public void onError(Throwable t) {
         log.error("Sensor sent an error");
+        end(Status.UNKNOWN.withDescription("Sensor sent an error"));
+    }
+
+    /**
+     * Closes the stream of a sensor that stopped sending without closing it, e.g. lost its network
+     *
+     * @param idleNanos how long the sensor has not sent anything
+     */
+    void closeIdle(long idleNanos) {
+        log.info("Sensor {} sent nothing for {} ms, closing its stream", sensor.getId(), idleNanos / 1_000_000);
+        end(Status.DEADLINE_EXCEEDED.withDescription("No measurements received for %d seconds"
+                .formatted(idleNanos / 1_000_000_000)));
+    }
+
+    /**
+     * @return epoch nanos the last measurement was received at, or the stream was opened at
+     */
+    long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    void endHistory() {
+        historyEnded = true;
+    }
+
+    boolean isHistoryEnded() {
+        return historyEnded;
+    }
+
+    private void end(Status status) {
+        if (pipeline != null)
+            pipeline.publishEnd(this, status);
+        else
+            runOnLane(() -> closeWithError(status));
+    }
+
+    void closeWithError(Status status) {
+        // the transport may report the end of a stream we have already closed
+        if (!closed.compareAndSet(false, true))
+            return;
+        OPEN_STREAMS.decrement();
+        if (windowAggregator != null)
+            windowAggregator.flush();
         sensor.setOnlineStatus(Sensor.OnlineStatus.OFFLINE);
         publisher.publishMessage(new SensorOnlineStatusChanged(sensor.getId().toString(), Sensor.OnlineStatus.UNKNOWN));
-        Status status = Status.UNKNOWN
-                .withDescription("Sensor sent an error");
         publisher.cleanUp();
         responseObserverLock.lock();
         try {
@@ -72,6 +252,18 @@ public class SensorStreamObserver implements StreamObserver<MeasurementRequest>
     @Override
     public void onCompleted() {
         log.trace("Sensor data transmission is over");
+        if (pipeline != null)
+            pipeline.publishEnd(this, null);
+        else
+            runOnLane(this::complete);
+    }
+
+    void complete() {
+        if (!closed.compareAndSet(false, true))
+            return;
+        OPEN_STREAMS.decrement();
+        if (windowAggregator != null)
+            windowAggregator.flush();
         sensor.setOnlineStatus(Sensor.OnlineStatus.OFFLINE);
         publisher.publishMessage(new SensorOnlineStatusChanged(sensor.getId().toString(), Sensor.OnlineStatus.OFFLINE));
         publisher.cleanUp();
@@ -83,4 +275,20 @@ public class SensorStreamObserver implements StreamObserver<MeasurementRequest>
             responseObserverLock.unlock();
         }
     }
+
+    /**
+     * The end of the stream goes through the lane as well, so it is never handled before the measurements queued
+     * ahead of it. Without lanes it waits for the measurement being processed
+     */
+    private void runOnLane(Runnable task) {
+        if (lanes == null) {
+            ingestLock.lock();
+            try {
+                task.run();
+            } finally {
+                ingestLock.unlock();
+            }
+        } else
+            lanes.execute(sensor.getId(), task);
+    }
 }
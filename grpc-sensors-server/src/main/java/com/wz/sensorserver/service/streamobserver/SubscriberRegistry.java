@@ -0,0 +1,33 @@
+package com.wz.sensorserver.service.streamobserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subscriber streams open on this node. Streams add themselves when opened and remove themselves when closed, so
+ * listing them neither locks the streams nor stops them from opening
+ */
+public class SubscriberRegistry {
+    private final Set<SubscriberStreamObserver> subscribers = ConcurrentHashMap.newKeySet();
+
+    void add(SubscriberStreamObserver subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    void remove(SubscriberStreamObserver subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * @return weakly consistent view of the open streams
+     */
+    public Collection<SubscriberStreamObserver> getSubscribers() {
+        return Collections.unmodifiableCollection(subscribers);
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+}
@@ -0,0 +1,54 @@
+package com.wz.sensorserver.service.streamobserver;
+
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.domain.AggregationWindows;
+import com.wz.sensorserver.util.concurrent.HashedWheelTimer;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * What the subscriber streams of a service share
+ */
+@Getter
+@Builder
+public class SubscriberSettings {
+    public static final SubscriberSettings DEFAULT = SubscriberSettings.builder().build();
+
+    /**
+     * encoder shared with the other subscribers, so live messages are encoded once
+     */
+    @Builder.Default
+    private final SubscriptionResponseEncoder responseEncoder = new SubscriptionResponseEncoder();
+    /**
+     * registry the streams are listed in while they are open, none if null
+     */
+    private final SubscriberRegistry registry;
+    /**
+     * timer subscriptions with a timeout expire on, timeouts are ignored if null
+     */
+    private final HashedWheelTimer timer;
+    /**
+     * runs the expiry of subscriptions, unbinding takes a broker round trip the timer thread must not wait for
+     */
+    @Builder.Default
+    private final Executor expiryExecutor = ForkJoinPool.commonPool();
+    /**
+     * windows aggregated at ingest, subscriptions may ask for them instead of measurements
+     */
+    @Builder.Default
+    private final AggregationWindows windows = AggregationWindows.NONE;
+    /**
+     * live messages a stream keeps while its call can not take more responses, further ones are dropped until the
+     * client catches up
+     */
+    @Builder.Default
+    private final int liveQueueCapacity = 1024;
+    /**
+     * cluster the node is a member of, null for a standalone node. Only the owner of a sensor keeps its history to
+     * replay
+     */
+    private final Cluster cluster;
+}
@@ -1,24 +1,50 @@
 package com.wz.sensorserver.service.streamobserver;
 
 import com.wz.sensors.proto.*;
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.domain.AggregationWindows;
+import com.wz.sensorserver.domain.Measurement;
 import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.TagExpression;
+import com.wz.sensorserver.exception.InvalidRequestException;
 import com.wz.sensorserver.exception.SubscriptionException;
-import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.metrics.Counter;
+import com.wz.sensorserver.metrics.Gauge;
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.metrics.StageLatency;
+import com.wz.sensorserver.mq.MQFanout;
 import com.wz.sensorserver.mq.MQSubscriptionManager;
 import com.wz.sensorserver.mq.MQSubscriptionManagerImpl;
 import com.wz.sensorserver.mq.message.MeasurementMessage;
-import com.wz.sensorserver.mq.message.SensorOnlineStatusChanged;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
 import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.util.concurrent.HashedWheelTimer;
 import com.wz.sensorserver.util.protomapping.MeasurementMapper;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Allows bidirectional streaming where user sends ids of sensor he needs to connect / disconnect. And the server
@@ -26,97 +52,137 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 @Slf4j
 public class SubscriberStreamObserver implements StreamObserver<SubscribeRequest> {
+    private static final Counter DELIVERED = MetricsRegistry.global().counter("subscribers.delivered");
+    private static final Histogram SEND_LATENCY = MetricsRegistry.global().histogram("subscribers.send.latency");
+    private static final Gauge OPEN_STREAMS = MetricsRegistry.global().gauge("subscribers.streams.open");
+    private static final Counter EXPIRED = MetricsRegistry.global().counter("subscriptions.expired");
+    private static final Counter DROPPED = MetricsRegistry.global().counter("subscribers.dropped");
+    /**
+     * Holds a sensor the client subscribed on by its id, each tag subscription holds the sensors it joined
+     */
+    private static final Object EXPLICIT_HOLDER = new Object();
+
     private final SensorRepository sensorRepository;
-    private final MQConnectivity mqConnectivity;
     private final StreamObserver<SubscriptionResponse> responseObserver;
     private final Lock responseObserverLock;
-    //private final ClientSubscription<MQConsumer<? extends Serializable>> clientSubscription;
     private final MeasurementMapper mapper = new MeasurementMapper();
-    private final MQSubscriptionManager<String, ? super Serializable> subscriptionManager;
+    private final MQSubscriptionManager<String, SensorMessage> subscriptionManager;
+    private final Map<TagExpression, TagSubscription> tagSubscriptions;
+    /**
+     * Delivery of every sensor the client is subscribed on, shared by all of its holders. The sensor is unsubscribed
+     * when the last holder releases it
+     */
+    private final Map<String, SensorDelivery> deliveries;
+    private final Lock deliveriesLock;
+    private final SubscriptionResponseEncoder responseEncoder;
+    private final SubscriberRegistry registry;
+    private final String clientLogin;
+    private final HashedWheelTimer timer;
+    private final Executor expiryExecutor;
+    /**
+     * Pending expiry of subscriptions made with a timeout, by sensor id or tag expression
+     */
+    private final Map<Object, HashedWheelTimer.Timeout> expirations;
+    private final AggregationWindows windows;
+    private final Cluster cluster;
+    /**
+     * The call when the stream serves one, replays pause while it can not take more responses
+     */
+    private final ServerCallStreamObserver<SubscriptionResponse> callObserver;
+    /**
+     * Replays waiting for the call to become ready, sent one after another
+     */
+    private final Deque<SensorDelivery> replays;
+    private final Lock replayLock;
+    /**
+     * Live messages waiting for the call to become ready. Once it is full the following ones are dropped until the
+     * queue is sent, then the client is told about the gap
+     */
+    private final Deque<SensorMessage> liveQueue;
+    private final int liveQueueCapacity;
+    private final Lock liveQueueLock;
+    private long droppedLive;
 
-    public SubscriberStreamObserver(MQConnectivity mqConnectivity,
+    public SubscriberStreamObserver(MQFanout mqFanout,
                                     StreamObserver<SubscriptionResponse> responseObserver,
                                     SensorRepository sensorRepository
     ) {
-        this.mqConnectivity = mqConnectivity;
-        //this.clientSubscription = new ClientSubscription<>();
+        this(mqFanout, responseObserver, sensorRepository, null, SubscriberSettings.DEFAULT);
+    }
+
+    /**
+     * @param clientLogin login of the client the stream belongs to
+     * @param settings    what the stream shares with the other subscribers of the service
+     */
+    public SubscriberStreamObserver(MQFanout mqFanout,
+                                    StreamObserver<SubscriptionResponse> responseObserver,
+                                    SensorRepository sensorRepository,
+                                    String clientLogin,
+                                    SubscriberSettings settings
+    ) {
+        timer = settings.getTimer();
+        expiryExecutor = settings.getExpiryExecutor();
+        windows = settings.getWindows();
+        cluster = settings.getCluster();
+        expirations = new ConcurrentHashMap<>();
+        responseEncoder = settings.getResponseEncoder();
+        registry = settings.getRegistry();
+        this.clientLogin = clientLogin;
         this.sensorRepository = sensorRepository;
         this.responseObserver = responseObserver;
         this.responseObserverLock = new ReentrantLock();
-        subscriptionManager = new MQSubscriptionManagerImpl<>(mqConnectivity);
+        replays = new ArrayDeque<>();
+        replayLock = new ReentrantLock();
+        liveQueue = new ArrayDeque<>();
+        liveQueueCapacity = settings.getLiveQueueCapacity();
+        liveQueueLock = new ReentrantLock();
+        callObserver = responseObserver instanceof ServerCallStreamObserver<SubscriptionResponse> serverCall
+                ? serverCall
+                : null;
+        if (callObserver != null)
+            callObserver.setOnReadyHandler(this::onReady);
+        subscriptionManager = new MQSubscriptionManagerImpl(mqFanout);
+        tagSubscriptions = new ConcurrentHashMap<>();
+        deliveries = new HashMap<>();
+        deliveriesLock = new ReentrantLock();
+        OPEN_STREAMS.increment();
+        if (registry != null)
+            registry.add(this);
+    }
+
+    public String getClientLogin() {
+        return clientLogin;
+    }
+
+    /**
+     * @return number of sensors the stream is subscribed on, read without locking
+     */
+    public int getSubscriptionCount() {
+        return subscriptionManager.getSubscriptionCount();
     }
 
     @Override
     public void onNext(SubscribeRequest request) {
         SubscriptionResponse response;
-        Optional<Sensor> sensorOptional = sensorRepository.getSensorById(UUID.fromString(request.getSensorId()));
-        if (sensorOptional.isEmpty()) {
+        if (request.getWindowSeconds() > 0 && !request.getDisconnect()
+                && !windows.supports(request.getWindowSeconds(), request.getSlidingWindow())) {
             response = buildActionResultMessage(ActionSuccessStatus.INVALID_REQUEST,
-                    "Sensor you specified does not exist");
+                    "%s windows of %d seconds are not computed by the server"
+                            .formatted(request.getSlidingWindow() ? "Sliding" : "Tumbling", request.getWindowSeconds()));
+        } else if (!request.getTagExpression().isEmpty()) {
+            response = handleTagExpressionRequest(request);
         } else {
-            if (!request.getDisconnect()) { // it is a subscription request
-                try {
-                    subscriptionManager.trySubscribe(request.getSensorId(), (message) -> {
-                        log.debug("Sending message to the client");
-                        SubscriptionResponse subscriptionResponse;
-                        if(message.getClass().equals(MeasurementMessage.class)){
-                            subscriptionResponse = SubscriptionResponse
-                                    .newBuilder()
-                                    .setMeasurement(mapper.mapMeasurementMessageToResponse((MeasurementMessage) message))
-                                    .build();
-                        } else if (message.getClass().equals(SensorOnlineStatusChanged.class)) {
-                            SensorOnlineStatusChanged statusChanged = (SensorOnlineStatusChanged) message;
-                            subscriptionResponse = SubscriptionResponse
-                                    .newBuilder()
-                                    .setOnlineStatusChange(
-                                            OnlineStatusChange
-                                                    .newBuilder()
-                                                    .setSensorId(statusChanged.getSensorId())
-                                                    .setOnlineStatusValue(statusChanged.getSensorOnlineStatus().getValue())
-                                                    .build()
-                                    )
-                                    .build();
-                        }
-                        else{
-                            subscriptionResponse = SubscriptionResponse.newBuilder().getDefaultInstanceForType();
-                        }
-                        responseObserverLock.lock();
-                        try {
-                            responseObserver.onNext(subscriptionResponse);
-                        } finally {
-                            responseObserverLock.unlock();
-                        }
-                    });
-                    response = buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
-                            "You are now subscribed on sensor: %s".formatted(request.getSensorId()));
-                } catch (SubscriptionException subscriptionException) {
-                    response = buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_FAILURE,
-                            "You are already subscribed: %s".formatted(request.getSensorId()));
-                }
-            } else {//unsubscribe from sensor
-                try {
-                    subscriptionManager.tryUnsubscribe(request.getSensorId());
-                    response = buildActionResultMessage(ActionSuccessStatus.UNSUBSCRIPTION_SUCCESS,
-                            "You have unsubscribed from sensor: %s".formatted(request.getSensorId()));
-                } catch (SubscriptionException subscriptionException) {
-                    log.info("Client is not subscribed to perform this operation");
-                    response = buildActionResultMessage(ActionSuccessStatus.INVALID_REQUEST,
-                            subscriptionException.getMessage());
-                }
-            }
-        }
-        responseObserverLock.lock();
-        try {
-            responseObserver.onNext(response);
-        } finally {
-            responseObserverLock.unlock();
+            response = handleSensorRequest(request);
         }
+        if (response != null)
+            send(response);
     }
 
     @Override
     public void onError(Throwable t) {
         log.debug("Error from client side received. Utilizing resources");
-        subscriptionManager.clearSubscriptions();
+        OPEN_STREAMS.decrement();
+        clearSubscriptions();
         Status status = Status.UNKNOWN.withDescription("Error on client side detected");
         responseObserverLock.lock();
         try {
@@ -129,7 +195,8 @@ public class SubscriberStreamObserver implements StreamObserver<SubscribeRequest
     @Override
     public void onCompleted() {
         log.debug("Client wants to disconnect. Utilizing resources");
-        subscriptionManager.clearSubscriptions();
+        OPEN_STREAMS.decrement();
+        clearSubscriptions();
         SubscriptionResponse response = buildActionResultMessage(ActionSuccessStatus.DISCONNECT_OK,
                 "Goodbye");
         responseObserverLock.lock();
@@ -142,6 +209,305 @@ public class SubscriberStreamObserver implements StreamObserver<SubscribeRequest
 
     }
 
+    private SubscriptionResponse handleSensorRequest(SubscribeRequest request) {
+        Optional<Sensor> sensorOptional = sensorRepository.getSensorById(UUID.fromString(request.getSensorId()));
+        if (sensorOptional.isEmpty()) {
+            return buildActionResultMessage(ActionSuccessStatus.INVALID_REQUEST,
+                    "Sensor you specified does not exist");
+        }
+        if (!request.getDisconnect()) { // it is a subscription request
+            // a window subscription has no measurements to replay
+            boolean replay = request.getWindowSeconds() == 0
+                    && (request.getReplayCount() > 0
+                    || request.getReplaySeconds() > 0
+                    || request.getResumeAfterSequence() > 0);
+            // other nodes keep no measurements of the sensor, a replay from them would come back empty
+            if (replay && cluster != null && !cluster.isLocal(sensorOptional.get().getId())) {
+                return buildActionResultMessage(ActionSuccessStatus.INVALID_REQUEST,
+                        "Sensor %s is owned by node %s, replay and resume are served there"
+                                .formatted(request.getSensorId(), cluster.ownerOf(sensorOptional.get().getId())));
+            }
+            try {
+                // live delivery is held back until the replay is sent, so nothing put in between gets lost
+                SensorDelivery sensorDelivery = hold(request.getSensorId(), EXPLICIT_HOLDER, replay,
+                        request.getWindowSeconds(), request.getSlidingWindow());
+                scheduleExpiry(request.getSensorId(), request.getTimeout(), () -> expireSensorSubscription(request.getSensorId()));
+                if (replay) {
+                    sensorDelivery.startReplay(sensorOptional.get(), request);
+                    return null;
+                }
+                return buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                        "You are now subscribed on sensor: %s".formatted(request.getSensorId()));
+            } catch (SubscriptionException subscriptionException) {
+                return buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_FAILURE,
+                        "%s: %s".formatted(subscriptionException.getMessage(), request.getSensorId()));
+            }
+        } else {//unsubscribe from sensor
+            cancelExpiry(request.getSensorId());
+            if (!release(request.getSensorId(), EXPLICIT_HOLDER)) {
+                log.info("Client is not subscribed to perform this operation");
+                return buildActionResultMessage(ActionSuccessStatus.INVALID_REQUEST, "Client is not subscribed");
+            }
+            return buildActionResultMessage(ActionSuccessStatus.UNSUBSCRIPTION_SUCCESS,
+                    "You have unsubscribed from sensor: %s".formatted(request.getSensorId()));
+        }
+    }
+
+    private SubscriptionResponse handleTagExpressionRequest(SubscribeRequest request) {
+        TagExpression tagExpression;
+        try {
+            tagExpression = TagExpression.parse(request.getTagExpression());
+        } catch (InvalidRequestException invalidRequestException) {
+            return buildActionResultMessage(ActionSuccessStatus.INVALID_REQUEST, invalidRequestException.getMessage());
+        }
+        if (!request.getDisconnect()) {
+            TagSubscription tagSubscription = new TagSubscription(tagExpression, request.getWindowSeconds(),
+                    request.getSlidingWindow());
+            if (tagSubscriptions.putIfAbsent(tagExpression, tagSubscription) != null) {
+                return buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_FAILURE,
+                        "You are already subscribed: %s".formatted(tagExpression.getExpression()));
+            }
+            // listen before resolving, so a sensor registered in between is not missed
+            sensorRepository.addSensorAddedListener(tagSubscription);
+            sensorRepository.findSensorsByTagExpression(tagExpression).forEach(tagSubscription::join);
+            scheduleExpiry(tagExpression, request.getTimeout(), () -> expireTagSubscription(tagExpression));
+            return buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                    "You are now subscribed on %d sensors matching: %s"
+                            .formatted(tagSubscription.sensorIds.size(), tagExpression.getExpression()));
+        } else {
+            cancelExpiry(tagExpression);
+            TagSubscription tagSubscription = tagSubscriptions.remove(tagExpression);
+            if (tagSubscription == null) {
+                return buildActionResultMessage(ActionSuccessStatus.INVALID_REQUEST,
+                        "Client is not subscribed on %s".formatted(tagExpression.getExpression()));
+            }
+            tagSubscription.leave();
+            return buildActionResultMessage(ActionSuccessStatus.UNSUBSCRIPTION_SUCCESS,
+                    "You have unsubscribed from: %s".formatted(tagExpression.getExpression()));
+        }
+    }
+
+    private void scheduleExpiry(Object subscription, int timeoutSeconds, Runnable expiry) {
+        if (timer == null || timeoutSeconds <= 0)
+            return;
+        // the timer thread serves every timeout of the node, it only hands the expiry over
+        HashedWheelTimer.Timeout timeout = timer.schedule(() -> expiryExecutor.execute(() -> {
+            // an unsubscribe that raced with the timer has already taken it out
+            if (expirations.remove(subscription) != null)
+                expiry.run();
+        }), timeoutSeconds, TimeUnit.SECONDS);
+        HashedWheelTimer.Timeout previous = expirations.put(subscription, timeout);
+        if (previous != null)
+            previous.cancel();
+    }
+
+    private void cancelExpiry(Object subscription) {
+        HashedWheelTimer.Timeout timeout = expirations.remove(subscription);
+        if (timeout != null)
+            timeout.cancel();
+    }
+
+    private void expireSensorSubscription(String sensorId) {
+        if (!release(sensorId, EXPLICIT_HOLDER))
+            return;
+        EXPIRED.increment();
+        send(buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_EXPIRED,
+                "Subscription on sensor %s has expired".formatted(sensorId)));
+    }
+
+    private void expireTagSubscription(TagExpression tagExpression) {
+        TagSubscription tagSubscription = tagSubscriptions.remove(tagExpression);
+        if (tagSubscription == null)
+            return;
+        tagSubscription.leave();
+        EXPIRED.increment();
+        send(buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_EXPIRED,
+                "Subscription on %s has expired".formatted(tagExpression.getExpression())));
+    }
+
+    private void clearSubscriptions() {
+        if (registry != null)
+            registry.remove(this);
+        expirations.values().forEach(HashedWheelTimer.Timeout::cancel);
+        expirations.clear();
+        tagSubscriptions.values().forEach(tagSubscription -> sensorRepository.removeSensorAddedListener(tagSubscription));
+        tagSubscriptions.clear();
+        deliveriesLock.lock();
+        try {
+            deliveries.clear();
+            replayLock.lock();
+            try {
+                replays.clear();
+            } finally {
+                replayLock.unlock();
+            }
+            liveQueueLock.lock();
+            try {
+                liveQueue.clear();
+            } finally {
+                liveQueueLock.unlock();
+            }
+            subscriptionManager.clearSubscriptions();
+        } finally {
+            deliveriesLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a holder to the sensor's delivery, subscribing on the sensor if it is the first one
+     *
+     * @param replay whether a new delivery holds live messages back until a replay is sent
+     * @return the delivery of the sensor
+     * @throws SubscriptionException if the holder already holds the sensor, the sensor is delivered with another
+     *                               window or subscribing failed
+     */
+    private SensorDelivery hold(String sensorId, Object holder, boolean replay, int windowSeconds, boolean slidingWindow)
+            throws SubscriptionException {
+        deliveriesLock.lock();
+        try {
+            SensorDelivery sensorDelivery = deliveries.get(sensorId);
+            if (sensorDelivery == null) {
+                sensorDelivery = new SensorDelivery(sensorId, replay, windowSeconds, slidingWindow);
+                subscriptionManager.trySubscribe(sensorId, sensorDelivery);
+                deliveries.put(sensorId, sensorDelivery);
+            } else if (sensorDelivery.holders.contains(holder)) {
+                throw new SubscriptionException("You are already subscribed");
+            } else if (sensorDelivery.windowSeconds != windowSeconds || sensorDelivery.slidingWindow != slidingWindow) {
+                throw new SubscriptionException("You are already subscribed with another window");
+            }
+            sensorDelivery.holders.add(holder);
+            return sensorDelivery;
+        } finally {
+            deliveriesLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a holder from the sensor's delivery, unsubscribing from the sensor if it was the last one
+     *
+     * @return false if the holder did not hold the sensor
+     */
+    private boolean release(String sensorId, Object holder) {
+        deliveriesLock.lock();
+        try {
+            SensorDelivery sensorDelivery = deliveries.get(sensorId);
+            if (sensorDelivery == null || !sensorDelivery.holders.remove(holder))
+                return false;
+            boolean replayCancelled = cancelReplay(sensorDelivery);
+            if (!sensorDelivery.holders.isEmpty()) {
+                // the remaining holders get the live messages held back for the cancelled replay
+                if (replayCancelled)
+                    sensorDelivery.finishReplay();
+                return true;
+            }
+            deliveries.remove(sensorId);
+            try {
+                subscriptionManager.tryUnsubscribe(sensorId);
+            } catch (SubscriptionException subscriptionException) {
+                log.debug("Sensor {} was already unsubscribed", sensorId);
+            }
+            return true;
+        } finally {
+            deliveriesLock.unlock();
+        }
+    }
+
+    private void onReady() {
+        sendQueuedLive();
+        resumeReplays();
+    }
+
+    /**
+     * Sends the pending replays until the call can not take more responses, the call's ready handler goes on
+     */
+    private void resumeReplays() {
+        replayLock.lock();
+        try {
+            SensorDelivery sensorDelivery;
+            while ((sensorDelivery = replays.peek()) != null) {
+                if (!sensorDelivery.continueReplay())
+                    return;
+                replays.poll();
+            }
+        } finally {
+            replayLock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the delivery was waiting to send the rest of a replay
+     */
+    private boolean cancelReplay(SensorDelivery sensorDelivery) {
+        replayLock.lock();
+        try {
+            return replays.remove(sensorDelivery);
+        } finally {
+            replayLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a live message, or queues it while the call can not take more responses or older ones are still queued
+     */
+    private void deliver(SensorMessage message) {
+        if (callObserver == null) {
+            sendLive(message);
+            return;
+        }
+        liveQueueLock.lock();
+        try {
+            if (liveQueue.isEmpty() && droppedLive == 0 && callObserver.isReady()) {
+                sendLive(message);
+            } else if (droppedLive == 0 && liveQueue.size() < liveQueueCapacity) {
+                liveQueue.add(message);
+            } else {
+                droppedLive++;
+                DROPPED.increment();
+            }
+        } finally {
+            liveQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the queued live messages while the call is ready, followed by a notice of the ones dropped meanwhile
+     */
+    private void sendQueuedLive() {
+        liveQueueLock.lock();
+        try {
+            SensorMessage message;
+            while (callObserver.isReady() && (message = liveQueue.poll()) != null)
+                sendLive(message);
+            if (liveQueue.isEmpty() && droppedLive > 0) {
+                send(buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_RESUMED_WITH_GAP,
+                        ("%d live messages were dropped while the stream fell behind, "
+                                + "resume after the last received sequence to get them").formatted(droppedLive)));
+                droppedLive = 0;
+            }
+        } finally {
+            liveQueueLock.unlock();
+        }
+    }
+
+    private void sendLive(SensorMessage message) {
+        log.debug("Sending message to the client");
+        long startNanos = SEND_LATENCY.startNanos();
+        send(responseEncoder.encode(message));
+        SEND_LATENCY.recordSince(startNanos);
+        DELIVERED.increment();
+        if (message instanceof MeasurementMessage measurementMessage)
+            StageLatency.recordSent(measurementMessage.getReceivedAt(), measurementMessage.getConsumedAt());
+    }
+
+    private void send(SubscriptionResponse response) {
+        responseObserverLock.lock();
+        try {
+            responseObserver.onNext(response);
+        } finally {
+            responseObserverLock.unlock();
+        }
+    }
+
     private SubscriptionResponse buildActionResultMessage(ActionSuccessStatus status, String message) {
         return SubscriptionResponse.newBuilder().setActionResult(
                 ActionResult.newBuilder()
@@ -150,4 +516,209 @@ public class SubscriberStreamObserver implements StreamObserver<SubscribeRequest
                         .build()
         ).build();
     }
+
+    /**
+     * Delivers messages of one sensor. While the history is being replayed live messages are buffered, afterwards
+     * measurements that were already replayed are dropped by their sequence number. A window subscription gets the
+     * aggregates of its window instead of measurements
+     */
+    private class SensorDelivery implements Consumer<SensorMessage> {
+        private final String sensorId;
+        private final Lock deliveryLock;
+        private final List<SensorMessage> pending;
+        private final int windowSeconds;
+        private final boolean slidingWindow;
+        /**
+         * The client itself and the tag subscriptions the sensor is delivered for, guarded by the deliveries lock
+         */
+        private final Set<Object> holders;
+        private boolean replaying;
+        private long lastDeliveredSequence;
+        /**
+         * measurements left to replay and the time the replayed ones are made after, used by the replaying thread only
+         */
+        private Iterator<Measurement> replayed;
+        private Instant replaySince;
+        private long lastReplayedSequence;
+
+        /**
+         * @param windowSeconds length of the window aggregates delivered instead of measurements, 0 for measurements
+         */
+        private SensorDelivery(String sensorId, boolean replaying, int windowSeconds, boolean slidingWindow) {
+            this.sensorId = sensorId;
+            this.replaying = replaying;
+            this.windowSeconds = windowSeconds;
+            this.slidingWindow = slidingWindow;
+            deliveryLock = new ReentrantLock();
+            pending = new ArrayList<>();
+            holders = new HashSet<>();
+        }
+
+        @Override
+        public void accept(SensorMessage message) {
+            if (!wants(message))
+                return;
+            // held only to buffer or send one message, the fanout thread serves every subscriber of the node
+            deliveryLock.lock();
+            try {
+                if (replaying)
+                    pending.add(message);
+                else
+                    deliverLive(message);
+            } finally {
+                deliveryLock.unlock();
+            }
+        }
+
+        /**
+         * Starts sending the measurements after resumeAfterSequence, or the last replayCount measurements and/or the
+         * ones made during the last replaySeconds. Switches to live delivery once they are sent
+         */
+        private void startReplay(Sensor sensor, SubscribeRequest request) {
+            // a delivery shared with a tag subscription is live already
+            deliveryLock.lock();
+            try {
+                replaying = true;
+            } finally {
+                deliveryLock.unlock();
+            }
+            long lastSequence = sensor.getLastSequence();
+            long fromSequence = 0;
+            if (request.getResumeAfterSequence() > 0)
+                // a client that is ahead of the sensor has seen sequence numbers of a previous server run
+                fromSequence = request.getResumeAfterSequence() <= lastSequence ? request.getResumeAfterSequence() : 0;
+            else if (request.getReplayCount() > 0)
+                fromSequence = Math.max(0, lastSequence - request.getReplayCount());
+            replaySince = request.getReplaySeconds() > 0
+                    ? Instant.now().minusSeconds(request.getReplaySeconds())
+                    : Instant.MIN;
+            List<Measurement> retained = sensor.getMeasurementsAfter(fromSequence);
+            send(buildSubscriptionResult(request, fromSequence, retained));
+            replayed = retained.iterator();
+            replayLock.lock();
+            try {
+                replays.add(this);
+            } finally {
+                replayLock.unlock();
+            }
+            resumeReplays();
+        }
+
+        /**
+         * Sends replayed measurements while the call is ready, without holding the delivery lock. The live messages
+         * buffered meanwhile are sent after the last of them
+         *
+         * @return false if the call stopped being ready before the replay was sent
+         */
+        private boolean continueReplay() {
+            while (replayed.hasNext()) {
+                if (callObserver != null && !callObserver.isReady())
+                    return false;
+                Measurement measurement = replayed.next();
+                lastReplayedSequence = measurement.getSequence();
+                if (measurement.getMadeAt().isBefore(replaySince))
+                    continue;
+                send(SubscriptionResponse
+                        .newBuilder()
+                        .setMeasurement(mapper.mapDomainToResponse(measurement, sensorId))
+                        .build());
+            }
+            finishReplay();
+            return true;
+        }
+
+        /**
+         * Sends the live messages held back during the replay and switches to live delivery
+         */
+        private void finishReplay() {
+            deliveryLock.lock();
+            try {
+                lastDeliveredSequence = Math.max(lastDeliveredSequence, lastReplayedSequence);
+                replaying = false;
+                pending.forEach(this::deliverLive);
+                pending.clear();
+            } finally {
+                deliveryLock.unlock();
+            }
+        }
+
+        private SubscriptionResponse buildSubscriptionResult(SubscribeRequest request, long fromSequence, List<Measurement> retained) {
+            long resumeAfterSequence = request.getResumeAfterSequence();
+            if (resumeAfterSequence > 0) {
+                long firstRetainedSequence = retained.isEmpty() ? fromSequence + 1 : retained.get(0).getSequence();
+                if (fromSequence != resumeAfterSequence || firstRetainedSequence > resumeAfterSequence + 1) {
+                    return buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_RESUMED_WITH_GAP,
+                            "Measurements after %d are not retained anymore, resuming sensor %s from %d"
+                                    .formatted(resumeAfterSequence, request.getSensorId(), firstRetainedSequence));
+                }
+                return buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                        "You are now subscribed on sensor: %s, resuming after %d"
+                                .formatted(request.getSensorId(), resumeAfterSequence));
+            }
+            return buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                    "You are now subscribed on sensor: %s".formatted(request.getSensorId()));
+        }
+
+        private boolean wants(SensorMessage message) {
+            if (message instanceof WindowAggregateMessage aggregate)
+                return aggregate.getWindowSeconds() == windowSeconds && aggregate.isSliding() == slidingWindow;
+            if (message instanceof MeasurementMessage)
+                return windowSeconds == 0;
+            return true;
+        }
+
+        private void deliverLive(SensorMessage message) {
+            if (message instanceof MeasurementMessage measurementMessage) {
+                long sequence = measurementMessage.getMeasurement().getSequence();
+                if (sequence <= lastDeliveredSequence)
+                    return;
+                lastDeliveredSequence = sequence;
+            }
+            deliver(message);
+        }
+    }
+
+    /**
+     * Sensors a client joined through a tag expression. Sensors registered later join as soon as they match
+     */
+    private class TagSubscription implements Consumer<Sensor> {
+        private final TagExpression tagExpression;
+        private final Set<String> sensorIds;
+        private final int windowSeconds;
+        private final boolean slidingWindow;
+
+        private TagSubscription(TagExpression tagExpression, int windowSeconds, boolean slidingWindow) {
+            this.tagExpression = tagExpression;
+            this.windowSeconds = windowSeconds;
+            this.slidingWindow = slidingWindow;
+            sensorIds = ConcurrentHashMap.newKeySet();
+        }
+
+        @Override
+        public void accept(Sensor registeredSensor) {
+            if (tagExpression.matches(registeredSensor.getTags()) && join(registeredSensor)) {
+                send(buildActionResultMessage(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                        "You are now subscribed on sensor: %s".formatted(registeredSensor.getId())));
+            }
+        }
+
+        private boolean join(Sensor sensor) {
+            String sensorId = sensor.getId().toString();
+            try {
+                hold(sensorId, this, false, windowSeconds, slidingWindow);
+                sensorIds.add(sensorId);
+                return true;
+            } catch (SubscriptionException subscriptionException) {
+                log.debug("Sensor {} matching {} was not joined: {}",
+                        sensorId, tagExpression.getExpression(), subscriptionException.getMessage());
+                return false;
+            }
+        }
+
+        private void leave() {
+            sensorRepository.removeSensorAddedListener(this);
+            sensorIds.forEach(sensorId -> release(sensorId, this));
+            sensorIds.clear();
+        }
+    }
 }
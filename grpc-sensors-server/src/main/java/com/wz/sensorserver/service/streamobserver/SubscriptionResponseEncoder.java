@@ -0,0 +1,102 @@
+package com.wz.sensorserver.service.streamobserver;
+
+import com.wz.sensors.proto.OnlineStatusChange;
+import com.google.protobuf.Timestamp;
+import com.wz.sensors.proto.SubscriptionResponse;
+import com.wz.sensors.proto.WindowAggregate;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.mq.message.SensorOnlineStatusChanged;
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
+import com.wz.sensorserver.util.protomapping.MeasurementMapper;
+import com.wz.sensorserver.util.protomapping.PreEncodedMarshaller;
+
+/**
+ * Maps messages fanned out to subscribers to responses. Shared by the subscribers of a service, a message dispatched
+ * to all of them is mapped and serialized once and every subscriber's call sends the same bytes. The fanout hands
+ * a message to its listeners one after another, so remembering the last message is enough
+ */
+public class SubscriptionResponseEncoder {
+    private final MeasurementMapper mapper = new MeasurementMapper();
+    private final PreEncodedMarshaller<SubscriptionResponse> marshaller;
+    private final boolean includeStageTimestamps;
+    private volatile Encoded lastEncoded;
+
+    /**
+     * Encoder that maps every message on its own, for calls that do not use a pre-encoding marshaller
+     */
+    public SubscriptionResponseEncoder() {
+        this(null);
+    }
+
+    /**
+     * @param marshaller response marshaller of the subscription method
+     */
+    public SubscriptionResponseEncoder(PreEncodedMarshaller<SubscriptionResponse> marshaller) {
+        this(marshaller, false);
+    }
+
+    /**
+     * @param marshaller             response marshaller of the subscription method
+     * @param includeStageTimestamps whether live measurements carry the stamps of the stages they passed on the server
+     */
+    public SubscriptionResponseEncoder(PreEncodedMarshaller<SubscriptionResponse> marshaller, boolean includeStageTimestamps) {
+        this.marshaller = marshaller;
+        this.includeStageTimestamps = includeStageTimestamps;
+    }
+
+    public SubscriptionResponse encode(SensorMessage message) {
+        if (marshaller == null)
+            return map(message);
+        Encoded encoded = lastEncoded;
+        if (encoded != null && encoded.message == message)
+            return encoded.response;
+        // a message that raced with another one is just encoded again
+        SubscriptionResponse response = marshaller.preEncode(map(message));
+        lastEncoded = new Encoded(message, response);
+        return response;
+    }
+
+    private SubscriptionResponse map(SensorMessage message) {
+        if (message instanceof MeasurementMessage measurementMessage) {
+            return SubscriptionResponse
+                    .newBuilder()
+                    .setMeasurement(includeStageTimestamps
+                            ? mapper.mapMeasurementMessageToResponseWithStages(measurementMessage)
+                            : mapper.mapMeasurementMessageToResponse(measurementMessage))
+                    .build();
+        } else if (message instanceof SensorOnlineStatusChanged statusChanged) {
+            return SubscriptionResponse
+                    .newBuilder()
+                    .setOnlineStatusChange(
+                            OnlineStatusChange
+                                    .newBuilder()
+                                    .setSensorId(statusChanged.getSensorId())
+                                    .setOnlineStatusValue(statusChanged.getSensorOnlineStatus().getValue())
+                                    .build()
+                    )
+                    .build();
+        } else if (message instanceof WindowAggregateMessage aggregate) {
+            return SubscriptionResponse
+                    .newBuilder()
+                    .setWindowAggregate(
+                            WindowAggregate
+                                    .newBuilder()
+                                    .setSensorId(aggregate.getSensorId())
+                                    .setWindowSeconds(aggregate.getWindowSeconds())
+                                    .setSliding(aggregate.isSliding())
+                                    .setWindowStart(Timestamp.newBuilder().setSeconds(aggregate.getWindowStartEpochSecond()))
+                                    .setCount(aggregate.getCount())
+                                    .setMin(aggregate.getMin())
+                                    .setMax(aggregate.getMax())
+                                    .setMean(aggregate.getMean())
+                                    .build()
+                    )
+                    .build();
+        }
+        return SubscriptionResponse.getDefaultInstance();
+    }
+
+    private record Encoded(SensorMessage message, SubscriptionResponse response) {
+    }
+}
@@ -0,0 +1,100 @@
+package com.wz.sensorserver.transport;
+
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop groups shared by every listener of the server. Epoll is used when requested and available on the host,
+ * NIO otherwise. Unix domain socket listeners require epoll
+ */
+@Slf4j
+public class NettyTransport implements AutoCloseable {
+    private final boolean epoll;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+
+    private NettyTransport(boolean epoll, EventLoopGroup bossGroup, EventLoopGroup workerGroup) {
+        this.epoll = epoll;
+        this.bossGroup = bossGroup;
+        this.workerGroup = workerGroup;
+    }
+
+    /**
+     * @param preferEpoll   use epoll if it is available
+     * @param bossThreads   threads accepting connections
+     * @param workerThreads threads serving accepted connections, 0 means the netty default (2 * cores)
+     */
+    public static NettyTransport create(boolean preferEpoll, int bossThreads, int workerThreads) {
+        if (bossThreads <= 0)
+            throw new IllegalArgumentException("Number of boss threads must be greater than 0");
+        if (workerThreads < 0)
+            throw new IllegalArgumentException("Number of worker threads must not be negative");
+        if (preferEpoll && Epoll.isAvailable()) {
+            log.info("Using epoll transport with {} boss and {} worker threads", bossThreads, workerThreads);
+            return new NettyTransport(true, new EpollEventLoopGroup(bossThreads), new EpollEventLoopGroup(workerThreads));
+        }
+        if (preferEpoll)
+            log.warn("Epoll is not available, falling back to NIO transport", Epoll.unavailabilityCause());
+        log.info("Using NIO transport with {} boss and {} worker threads", bossThreads, workerThreads);
+        return new NettyTransport(false, new NioEventLoopGroup(bossThreads), new NioEventLoopGroup(workerThreads));
+    }
+
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    /**
+     * @return builder of a TCP listener on the port
+     */
+    public NettyServerBuilder forPort(int port) {
+        Class<? extends ServerChannel> channelType = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+        return configure(NettyServerBuilder.forPort(port), channelType);
+    }
+
+    /**
+     * A stale socket file left by a previous run is removed, otherwise binding fails
+     *
+     * @return builder of a Unix domain socket listener on the path
+     */
+    public NettyServerBuilder forDomainSocket(Path path) {
+        if (!epoll)
+            throw new IllegalStateException("Unix domain sockets require the epoll transport");
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Unable to remove stale socket file %s".formatted(path), exception);
+        }
+        return configure(NettyServerBuilder.forAddress(new DomainSocketAddress(path.toFile())),
+                EpollServerDomainSocketChannel.class);
+    }
+
+    private NettyServerBuilder configure(NettyServerBuilder builder, Class<? extends ServerChannel> channelType) {
+        return builder.bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup)
+                .channelType(channelType);
+    }
+
+    /**
+     * Shuts the event loop groups down. Servers built from this transport have to be terminated first
+     */
+    @Override
+    public void close() {
+        bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+        workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,38 @@
+package com.wz.sensorserver.util;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall clock time in nanoseconds since the epoch without allocating. Counts with {@link System#nanoTime()} from
+ * a wall clock reading that is renewed every second, so it follows adjustments of the system clock with at most a
+ * second of delay. Precise enough to compare stamps taken on different nodes whose clocks are in sync
+ */
+public final class EpochClock {
+    private static final long RECALIBRATION_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static volatile Calibration calibration = calibrate();
+
+    private EpochClock() {
+        throw new AssertionError();
+    }
+
+    public static long nowNanos() {
+        long nanoTime = System.nanoTime();
+        Calibration current = calibration;
+        if (nanoTime - current.nanoTime() > RECALIBRATION_PERIOD_NANOS) {
+            current = calibrate();
+            calibration = current;
+        }
+        return current.epochNanos() + (nanoTime - current.nanoTime());
+    }
+
+    private static Calibration calibrate() {
+        Instant now = Instant.now();
+        long nanoTime = System.nanoTime();
+        return new Calibration(nanoTime, TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano());
+    }
+
+    private record Calibration(long nanoTime, long epochNanos) {
+    }
+}
@@ -0,0 +1,56 @@
+package com.wz.sensorserver.util.concurrent;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Consumer thread of one stage of a {@link RingBuffer} pipeline. Takes every event available at once, hands them to
+ * the handler in order and moves its sequence past the whole batch, so stages behind it see the batch at once too
+ */
+@Slf4j
+public class BatchEventProcessor<E> implements Runnable {
+    private final RingBuffer<E> ringBuffer;
+    private final SequenceBarrier barrier;
+    private final EventHandler<? super E> handler;
+    private final Sequence sequence;
+
+    public BatchEventProcessor(RingBuffer<E> ringBuffer, SequenceBarrier barrier, EventHandler<? super E> handler) {
+        this.ringBuffer = ringBuffer;
+        this.barrier = barrier;
+        this.handler = handler;
+        sequence = new Sequence(-1);
+    }
+
+    /**
+     * @return sequence of the last event the stage is done with
+     */
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Stops the processor once it has processed what is available to it
+     */
+    public void halt() {
+        barrier.alert();
+    }
+
+    @Override
+    public void run() {
+        long next = sequence.get() + 1;
+        while (true) {
+            long available = barrier.waitFor(next);
+            if (available < next)
+                return;
+            for (long current = next; current <= available; current++) {
+                try {
+                    handler.onEvent(ringBuffer.get(current), current, current == available);
+                } catch (RuntimeException exception) {
+                    // one bad event must not stop the stage, the events behind it would never be processed
+                    log.error("Event {} failed on {}", current, Thread.currentThread().getName(), exception);
+                }
+            }
+            sequence.set(available);
+            next = available + 1;
+        }
+    }
+}
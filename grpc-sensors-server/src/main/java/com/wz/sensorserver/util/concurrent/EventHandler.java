@@ -0,0 +1,14 @@
+package com.wz.sensorserver.util.concurrent;
+
+/**
+ * Stage of a pipeline, called for every event of a {@link RingBuffer} in sequence order
+ */
+@FunctionalInterface
+public interface EventHandler<E> {
+    /**
+     * @param event      slot of the ring buffer, it is reused once the last stage is done with it
+     * @param sequence   sequence of the event
+     * @param endOfBatch whether this is the last event available to the stage right now
+     */
+    void onEvent(E event, long sequence, boolean endOfBatch);
+}
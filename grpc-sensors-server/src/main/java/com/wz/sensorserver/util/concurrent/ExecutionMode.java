@@ -0,0 +1,71 @@
+package com.wz.sensorserver.util.concurrent;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines what threads run gRPC handlers and message broker consumer callbacks
+ */
+@Slf4j
+public enum ExecutionMode {
+    /**
+     * Executors the libraries create themselves: a cached pool for gRPC and a fixed pool for the broker consumers
+     */
+    DEFAULT,
+    /**
+     * Fixed pool of platform threads
+     */
+    FIXED,
+    /**
+     * A virtual thread per task. Requires Java 21, older runtimes fall back to {@link #FIXED}
+     */
+    VIRTUAL;
+
+    public static ExecutionMode parse(String value) {
+        try {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("Unknown execution mode: %s".formatted(value));
+        }
+    }
+
+    /**
+     * @param name    prefix of thread names
+     * @param threads number of threads in the {@link #FIXED} mode
+     * @return executor for the mode or null for {@link #DEFAULT}, so the library keeps its own
+     */
+    public ExecutorService newExecutor(String name, int threads) {
+        return switch (this) {
+            case DEFAULT -> null;
+            case FIXED -> Executors.newFixedThreadPool(threads, namedThreadFactory(name));
+            case VIRTUAL -> newVirtualThreadExecutor(name, threads);
+        };
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(String name, int threads) {
+        try {
+            // looked up reflectively as the project still compiles for Java 17
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException exception) {
+            log.warn("Virtual threads are not supported by Java {}, using a fixed pool of {} threads for {}",
+                    Runtime.version().feature(), threads, name);
+            return Executors.newFixedThreadPool(threads, namedThreadFactory(name));
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "%s-%d".formatted(name, counter.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
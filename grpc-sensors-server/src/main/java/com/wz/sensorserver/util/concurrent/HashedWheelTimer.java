@@ -0,0 +1,239 @@
+package com.wz.sensorserver.util.concurrent;
+
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer for large numbers of timeouts that are mostly cancelled before they expire, after Varghese and Lauck's hashed
+ * timing wheel. A single thread advances a wheel of buckets once per tick and runs the timeouts of the bucket it
+ * reaches whose deadline has come. Scheduling and cancelling are O(1) and never block: both are queued and applied
+ * by the worker on its next tick. Timeouts fire up to a tick late, and the tasks run on the worker thread, so they
+ * have to be short
+ */
+@Slf4j
+public class HashedWheelTimer implements AutoCloseable {
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled;
+    private final Queue<Timeout> cancelled;
+    private final AtomicLong pending;
+    private final long startNanos;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    /**
+     * @param name       name of the worker thread and prefix of the metric of pending timeouts, name.pending
+     * @param tick       duration of a tick, the precision of the timer
+     * @param wheelSize  number of buckets, rounded up to a power of 2. Timeouts further away than a turn of the wheel
+     *                   are skipped over on every turn until their last one
+     */
+    public HashedWheelTimer(String name, long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0)
+            throw new IllegalArgumentException("Tick must be greater than 0");
+        if (wheelSize <= 0 || wheelSize > 1 << 30)
+            throw new IllegalArgumentException("Wheel size must be between 1 and 2^30");
+        tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(wheelSize - 1) << 1;
+        wheel = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < wheel.length; i++)
+            wheel[i] = new Bucket();
+        mask = wheel.length - 1;
+        scheduled = new ConcurrentLinkedQueue<>();
+        cancelled = new ConcurrentLinkedQueue<>();
+        pending = new AtomicLong();
+        MetricsRegistry.global().gauge(name + ".pending", pending::get);
+        startNanos = System.nanoTime();
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Runs the task on the timer's thread once the delay has passed
+     *
+     * @throws RejectedExecutionException if the timer is closed
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed)
+            throw new RejectedExecutionException("Timer is closed");
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0)));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return timeouts scheduled and neither expired nor cancelled
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the timer, timeouts that have not expired yet never will
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        worker.interrupt();
+        worker.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!closed) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos;
+            while ((sleepNanos = startNanos + deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                if (closed)
+                    return;
+            }
+            removeCancelled();
+            transferScheduled(tick);
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferScheduled(long tick) {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null)
+                return;
+            if (timeout.state.get() != Timeout.WAITING)
+                continue;
+            long expireTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expireTick - tick) / wheel.length;
+            // a timeout that is already due goes into the current bucket
+            wheel[(int) (Math.max(expireTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        // worker thread only
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+            state = new AtomicInteger(WAITING);
+        }
+
+        /**
+         * @return false if the task has already run or the timeout was cancelled before
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                return false;
+            timer.pending.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED))
+                return;
+            timer.pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException exception) {
+                log.error("Timer task failed", exception);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts of a slot of the wheel, so cancelled ones are unlinked in O(1)
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    // the bucket is reached in the tick the deadline falls into, or later for a timeout already due
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+            if (timeout.previous != null)
+                timeout.previous.next = timeout.next;
+            if (timeout.next != null)
+                timeout.next.previous = timeout.previous;
+            if (timeout == head)
+                head = timeout.next;
+            if (timeout == tail)
+                tail = timeout.previous;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
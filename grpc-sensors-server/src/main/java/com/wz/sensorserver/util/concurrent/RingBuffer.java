@@ -0,0 +1,147 @@
+package com.wz.sensorserver.util.concurrent;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Preallocated ring of mutable event slots shared by many producers and a chain of consumers, after the LMAX
+ * Disruptor. A producer claims a sequence with a CAS, fills the slot and publishes it, consumers follow the producers
+ * and each other through {@link SequenceBarrier}s. Nothing is locked and no objects are allocated per event. Producers
+ * wait while the ring is full, until the slowest gating consumer moves on
+ */
+public class RingBuffer<E> {
+    private static final Sequence[] NO_SEQUENCES = new Sequence[0];
+
+    private final Object[] entries;
+    private final int mask;
+    private final int indexShift;
+    /**
+     * Highest claimed sequence
+     */
+    private final Sequence cursor;
+    /**
+     * Round of the ring each slot was last published in, a claimed slot is not readable before it is published
+     */
+    private final AtomicIntegerArray published;
+    private final Sequence gatingSequenceCache;
+    private volatile Sequence[] gatingSequences;
+
+    /**
+     * @param bufferSize   number of slots, a power of 2
+     * @param eventFactory creates the slots up front
+     */
+    public RingBuffer(int bufferSize, Supplier<E> eventFactory) {
+        if (bufferSize <= 0 || Integer.bitCount(bufferSize) != 1)
+            throw new IllegalArgumentException("Buffer size must be a power of 2");
+        entries = new Object[bufferSize];
+        for (int i = 0; i < bufferSize; i++)
+            entries[i] = eventFactory.get();
+        mask = bufferSize - 1;
+        indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        cursor = new Sequence(-1);
+        published = new AtomicIntegerArray(bufferSize);
+        for (int i = 0; i < bufferSize; i++)
+            published.set(i, -1);
+        gatingSequenceCache = new Sequence(-1);
+        gatingSequences = NO_SEQUENCES;
+    }
+
+    /**
+     * Sequences of the consumers producers must not overtake, usually the last stage of the pipeline. Has to be set
+     * before anything is published
+     */
+    public void addGatingSequences(Sequence... sequences) {
+        Sequence[] current = gatingSequences;
+        Sequence[] updated = Arrays.copyOf(current, current.length + sequences.length);
+        System.arraycopy(sequences, 0, updated, current.length, sequences.length);
+        gatingSequences = updated;
+    }
+
+    /**
+     * Claims the next slot, waiting while the ring is full. The slot has to be published afterwards whatever happens
+     *
+     * @return sequence of the slot
+     */
+    public long next() {
+        long current;
+        long next;
+        while (true) {
+            current = cursor.get();
+            next = current + 1;
+            long wrapPoint = next - entries.length;
+            long cachedGatingSequence = gatingSequenceCache.get();
+            if (wrapPoint > cachedGatingSequence || cachedGatingSequence > current) {
+                long gatingSequence = minimumSequence(gatingSequences, current);
+                if (wrapPoint > gatingSequence) {
+                    LockSupport.parkNanos(1);
+                    continue;
+                }
+                gatingSequenceCache.set(gatingSequence);
+            } else if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * Makes a filled slot visible to the consumers
+     */
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+    }
+
+    public boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+    }
+
+    /**
+     * @return highest sequence up to which every slot from lowerBound on is published, lowerBound - 1 if none
+     */
+    public long getHighestPublishedSequence(long lowerBound, long availableSequence) {
+        for (long sequence = lowerBound; sequence <= availableSequence; sequence++) {
+            if (!isPublished(sequence))
+                return sequence - 1;
+        }
+        return availableSequence;
+    }
+
+    /**
+     * @param dependencies sequences of the stages a consumer has to stay behind, none for the first stage
+     */
+    public SequenceBarrier newBarrier(Sequence... dependencies) {
+        return new SequenceBarrier(this, dependencies);
+    }
+
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    Sequence getCursorSequence() {
+        return cursor;
+    }
+
+    public int getBufferSize() {
+        return entries.length;
+    }
+
+    /**
+     * @return slots producers can claim before they have to wait
+     */
+    public long remainingCapacity() {
+        long consumed = minimumSequence(gatingSequences, cursor.get());
+        return entries.length - (cursor.get() - consumed);
+    }
+
+    static long minimumSequence(Sequence[] sequences, long minimum) {
+        for (Sequence sequence : sequences)
+            minimum = Math.min(minimum, sequence.get());
+        return minimum;
+    }
+}
@@ -0,0 +1,68 @@
+package com.wz.sensorserver.util.concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tells a consumer how far it may read: up to what the producers published, or up to what the stages it depends on
+ * have processed. A waiting consumer spins, then yields, then sleeps for short periods, trading a little latency on
+ * an idle pipeline for not burning a core per stage
+ */
+public class SequenceBarrier {
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = 100;
+
+    private final RingBuffer<?> ringBuffer;
+    private final Sequence[] dependencies;
+    private volatile boolean alerted;
+
+    SequenceBarrier(RingBuffer<?> ringBuffer, Sequence[] dependencies) {
+        this.ringBuffer = ringBuffer;
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Waits until the sequence can be read
+     *
+     * @return highest sequence that can be read, at least the one asked for. Less than that only once alerted
+     */
+    public long waitFor(long sequence) {
+        int tries = 0;
+        while (true) {
+            long available = availableSequence();
+            if (available >= sequence) {
+                if (dependencies.length > 0)
+                    return available;
+                // producers claim in order but may publish out of it
+                long published = ringBuffer.getHighestPublishedSequence(sequence, available);
+                if (published >= sequence)
+                    return published;
+            }
+            if (alerted)
+                return sequence - 1;
+            if (tries < SPIN_TRIES)
+                Thread.onSpinWait();
+            else if (tries < SPIN_TRIES + YIELD_TRIES)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(SLEEP_NANOS);
+            tries++;
+        }
+    }
+
+    private long availableSequence() {
+        long cursor = ringBuffer.getCursor();
+        return dependencies.length == 0 ? cursor : RingBuffer.minimumSequence(dependencies, cursor);
+    }
+
+    /**
+     * Wakes up the consumer waiting on the barrier, so it can stop
+     */
+    public void alert() {
+        alerted = true;
+    }
+
+    public boolean isAlerted() {
+        return alerted;
+    }
+}
@@ -0,0 +1,122 @@
+package com.wz.sensorserver.util.concurrent;
+
+import com.wz.sensorserver.metrics.Histogram;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed set of single threaded lanes, a task runs on the lane its key hashes to. Tasks of one key run one after
+ * another in the order they were submitted, tasks of different keys run in parallel on different lanes. A lane takes
+ * everything queued at once and runs it as a batch, so a busy lane does not wake up per task
+ */
+@Slf4j
+public class StripedExecutor implements AutoCloseable {
+    private static final int MAX_BATCH = 256;
+    private static final Runnable STOP = () -> {
+    };
+
+    private final Lane[] lanes;
+    private volatile boolean closed;
+
+    /**
+     * @param name  prefix of thread and metric names, queue depths are reported as name.lane.N.depth
+     * @param lanes number of lanes, usually the number of cores
+     */
+    public StripedExecutor(String name, int lanes) {
+        if (lanes <= 0)
+            throw new IllegalArgumentException("Number of lanes must be greater than 0");
+        MetricsRegistry metrics = MetricsRegistry.global();
+        Histogram batchSize = metrics.histogram(name + ".lane.batch");
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            Lane lane = new Lane("%s-lane-%d".formatted(name, i), batchSize);
+            this.lanes[i] = lane;
+            metrics.gauge("%s.lane.%d.depth".formatted(name, i), lane.queue::size);
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * Queues the task on the lane of the key
+     *
+     * @throws RejectedExecutionException if the executor is closed
+     */
+    public void execute(Object key, Runnable task) {
+        if (closed)
+            throw new RejectedExecutionException("Executor is closed");
+        lanes[laneOf(key)].queue.add(task);
+    }
+
+    public int laneOf(Object key) {
+        int hash = key.hashCode();
+        // hash codes of similar keys tend to differ in the high bits only
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return number of tasks waiting on the lane
+     */
+    public int getQueueDepth(int lane) {
+        return lanes[lane].queue.size();
+    }
+
+    /**
+     * Runs the tasks queued so far and stops the lanes
+     */
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        for (Lane lane : lanes)
+            lane.queue.add(STOP);
+        for (Lane lane : lanes)
+            lane.thread.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private static class Lane implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+        private final Thread thread;
+        private final Histogram batchSize;
+
+        private Lane(String name, Histogram batchSize) {
+            this.batchSize = batchSize;
+            queue = new LinkedBlockingQueue<>();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Runnable> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    batchSize.record(batch.size());
+                    for (Runnable task : batch) {
+                        if (task == STOP)
+                            return;
+                        try {
+                            task.run();
+                        } catch (RuntimeException exception) {
+                            log.error("Task failed on {}", thread.getName(), exception);
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.protobuf.Timestamp;
 import com.wz.sensors.proto.MeasurementRequest;
 import com.wz.sensors.proto.MeasurementResponse;
 import com.wz.sensors.proto.SensorOnlineStatus;
+import com.wz.sensors.proto.StageTimestamps;
 import com.wz.sensorserver.domain.Measurement;
 import com.wz.sensorserver.domain.Sensor;
 import com.wz.sensorserver.mq.message.MeasurementMessage;
@@ -20,6 +21,7 @@ public class MeasurementMapper {
         return MeasurementResponse
                 .newBuilder()
                 .setValue(measurement.getValue())
+                .setSequence(measurement.getSequence())
                 .setMadeAt(Timestamp
                         .newBuilder()
                         .setSeconds(measurement.getMadeAt().getEpochSecond())
@@ -38,6 +40,7 @@ public class MeasurementMapper {
                 .newBuilder()
                 .setSensorId(measurementMessage.getSensorId())
                 .setValue(measurementMessage.getMeasurement().getValue())
+                .setSequence(measurementMessage.getMeasurement().getSequence())
                 .setMadeAt(Timestamp
                         .newBuilder()
                         .setSeconds(measurementMessage.getMeasurement().getMadeAt().getEpochSecond())
@@ -46,6 +49,36 @@ public class MeasurementMapper {
                 .build();
     }
 
+    /**
+     * Maps the given measurementMessage along with the server side stamps it carries
+     * @param measurementMessage
+     * @return
+     */
+    public MeasurementResponse mapMeasurementMessageToResponseWithStages(MeasurementMessage measurementMessage){
+        return mapMeasurementMessageToResponse(measurementMessage)
+                .toBuilder()
+                .setStageTimestamps(StageTimestamps
+                        .newBuilder()
+                        .setReceivedAt(measurementMessage.getReceivedAt())
+                        .setPublishedAt(measurementMessage.getPublishedAt())
+                        .setConsumedAt(measurementMessage.getConsumedAt())
+                        .build())
+                .build();
+    }
+
+    /**
+     * Maps a measurement taken from the history of the sensor with given id to the response
+     * @param measurement
+     * @param sensorId
+     * @return
+     */
+    public MeasurementResponse mapDomainToResponse(Measurement measurement, String sensorId){
+        return mapDomainToResponse(measurement)
+                .toBuilder()
+                .setSensorId(sensorId)
+                .build();
+    }
+
     /**
      * Maps the received measurement to the domain measurement object
      * @param request
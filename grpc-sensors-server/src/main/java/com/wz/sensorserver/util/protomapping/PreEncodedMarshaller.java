@@ -0,0 +1,82 @@
+package com.wz.sensorserver.util.protomapping;
+
+import com.google.protobuf.Message;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Protobuf marshaller that streams the bytes of a pre-encoded message instead of serializing it again. Meant for
+ * one message instance sent on many calls right after each other, as a fanout does. Only the last pre-encoded
+ * message is kept, any other message is serialized as usual
+ *
+ * @param <T> message type
+ */
+public class PreEncodedMarshaller<T extends Message> implements MethodDescriptor.Marshaller<T> {
+    private final MethodDescriptor.Marshaller<T> delegate;
+    private volatile Encoded<T> lastEncoded;
+
+    public PreEncodedMarshaller(T defaultInstance) {
+        delegate = ProtoUtils.marshaller(defaultInstance);
+    }
+
+    /**
+     * Serializes the message once, calls sending this instance until the next one is pre-encoded stream the same bytes
+     *
+     * @param message immutable message
+     * @return the same message
+     */
+    public T preEncode(T message) {
+        lastEncoded = new Encoded<>(message, message.toByteArray());
+        return message;
+    }
+
+    public boolean isPreEncoded(T message) {
+        return bytesOf(message) != null;
+    }
+
+    @Override
+    public InputStream stream(T value) {
+        byte[] bytes = bytesOf(value);
+        if (bytes == null)
+            return delegate.stream(value);
+        return new EncodedInputStream(bytes);
+    }
+
+    private byte[] bytesOf(T message) {
+        Encoded<T> encoded = lastEncoded;
+        // compared by identity, equal messages built separately are not mixed up
+        return encoded != null && encoded.message == message ? encoded.bytes : null;
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+        return delegate.parse(stream);
+    }
+
+    private record Encoded<T>(T message, byte[] bytes) {
+    }
+
+    /**
+     * Reads the shared bytes without copying them, gRPC drains it straight into the outbound frame
+     */
+    private static class EncodedInputStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        private EncodedInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
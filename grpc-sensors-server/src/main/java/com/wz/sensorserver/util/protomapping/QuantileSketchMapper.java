@@ -0,0 +1,37 @@
+package com.wz.sensorserver.util.protomapping;
+
+import com.wz.sensors.proto.QuantileSketchState;
+import com.wz.sensorserver.domain.QuantileSketch;
+
+import java.util.Arrays;
+
+public class QuantileSketchMapper {
+    public QuantileSketchState mapDomainToState(QuantileSketch sketch) {
+        QuantileSketchState.Builder state = QuantileSketchState
+                .newBuilder()
+                .setRelativeAccuracy(sketch.getRelativeAccuracy())
+                .setZeroCount(sketch.getZeroCount());
+        long[] positiveCounts = sketch.getBucketCounts(false);
+        if (positiveCounts.length > 0) {
+            state.setPositiveOffset(sketch.getBucketOffset(false))
+                    .addAllPositiveCounts(Arrays.stream(positiveCounts).boxed().toList());
+        }
+        long[] negativeCounts = sketch.getBucketCounts(true);
+        if (negativeCounts.length > 0) {
+            state.setNegativeOffset(sketch.getBucketOffset(true))
+                    .addAllNegativeCounts(Arrays.stream(negativeCounts).boxed().toList());
+        }
+        return state.build();
+    }
+
+    /**
+     * Adds the values of a sketch received from another node to a sketch of the same accuracy
+     */
+    public void mergeStateInto(QuantileSketchState state, QuantileSketch sketch) {
+        sketch.addBuckets(state.getRelativeAccuracy(), false, state.getPositiveOffset(),
+                state.getPositiveCountsList().stream().mapToLong(Long::longValue).toArray());
+        sketch.addBuckets(state.getRelativeAccuracy(), true, state.getNegativeOffset(),
+                state.getNegativeCountsList().stream().mapToLong(Long::longValue).toArray());
+        sketch.addZeroCount(state.getZeroCount());
+    }
+}
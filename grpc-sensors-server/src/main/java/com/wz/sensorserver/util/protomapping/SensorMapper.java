@@ -1,9 +1,14 @@
 package com.wz.sensorserver.util.protomapping;
 
 import com.wz.sensors.proto.SensorInfoResponse;
+import com.wz.sensors.proto.SensorOnlineStatus;
 import com.wz.sensors.proto.SensorRegistrationRequest;
+import com.wz.sensorserver.domain.HistoryStorage;
+import com.wz.sensorserver.domain.MeasurementHistoryRemote;
 import com.wz.sensorserver.domain.Sensor;
 
+import java.util.UUID;
+
 public class SensorMapper {
     public SensorInfoResponse mapDomainToResponse(Sensor sensor){
         return SensorInfoResponse
@@ -17,11 +22,75 @@ public class SensorMapper {
     }
 
     public Sensor mapRequestToDomain(SensorRegistrationRequest request){
-        return Sensor
-                .builder()
-                .name(request.getName())
-                .location(request.getLocation())
-                .tags(request.getTagsList())
-                .build();
+        return mapRequestToDomain(request, 0);
+    }
+
+    public Sensor.OnlineStatus mapOnlineStatusToDomain(SensorOnlineStatus onlineStatus){
+        return switch (onlineStatus) {
+            case SENSOR_ONLINE -> Sensor.OnlineStatus.ONLINE;
+            case SENSOR_OFFLINE -> Sensor.OnlineStatus.OFFLINE;
+            default -> Sensor.OnlineStatus.UNKNOWN;
+        };
+    }
+
+    /**
+     * Maps the registration request to a sensor that retains given number of measurements, 0 stands for the default
+     * @param request
+     * @param historyCapacity
+     * @return
+     */
+    public Sensor mapRequestToDomain(SensorRegistrationRequest request, int historyCapacity){
+        return mapRequestToDomain(request, historyCapacity, HistoryStorage.RING_BUFFER);
+    }
+
+    /**
+     * Maps the registration request to a sensor that keeps its measurements in the given storage
+     * @param request
+     * @param historyCapacity
+     * @param historyStorage
+     * @return
+     */
+    public Sensor mapRequestToDomain(SensorRegistrationRequest request, int historyCapacity, HistoryStorage historyStorage){
+        return new Sensor(null, request.getName(), request.getLocation(), request.getTagsList(),
+                historyStorage.newHistory(historyCapacity));
+    }
+
+    /**
+     * Maps the registration request to a sensor whose measurements are kept by another node of the cluster
+     * @param request
+     * @return
+     */
+    public Sensor mapRequestToRemoteDomain(SensorRegistrationRequest request){
+        return new Sensor(null, request.getName(), request.getLocation(), request.getTagsList(), new MeasurementHistoryRemote());
+    }
+
+    /**
+     * Maps the metadata of a sensor replicated from another node of the cluster
+     * @param sensorInfo
+     * @param historyCapacity measurements retained if this node owns the sensor, 0 stands for the default
+     * @param local whether this node owns the sensor
+     * @return
+     */
+    public Sensor mapReplicaToDomain(SensorInfoResponse sensorInfo, int historyCapacity, boolean local){
+        return mapReplicaToDomain(sensorInfo, historyCapacity, HistoryStorage.RING_BUFFER, local);
+    }
+
+    /**
+     * Maps the metadata of a sensor replicated from another node of the cluster
+     * @param sensorInfo
+     * @param historyCapacity measurements retained if this node owns the sensor, 0 stands for the default
+     * @param historyStorage storage of the measurements if this node owns the sensor
+     * @param local whether this node owns the sensor
+     * @return
+     */
+    public Sensor mapReplicaToDomain(SensorInfoResponse sensorInfo, int historyCapacity, HistoryStorage historyStorage, boolean local){
+        UUID id = UUID.fromString(sensorInfo.getId());
+        if (local)
+            return new Sensor(id, sensorInfo.getName(), sensorInfo.getLocation(), sensorInfo.getTagsList(),
+                    historyStorage.newHistory(historyCapacity));
+        Sensor replica = new Sensor(id, sensorInfo.getName(), sensorInfo.getLocation(), sensorInfo.getTagsList(), new MeasurementHistoryRemote());
+        // as the owner saw it when it replicated the sensor, kept current by asking the owner
+        replica.setOnlineStatus(mapOnlineStatusToDomain(sensorInfo.getOnlineStatus()));
+        return replica;
     }
 }
@@ -0,0 +1,327 @@
+package com.wz.sensorserver.cluster;
+
+import com.google.protobuf.Empty;
+import com.google.protobuf.Timestamp;
+import com.rabbitmq.client.Channel;
+import com.wz.sensors.proto.*;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.SketchRetention;
+import com.wz.sensorserver.interceptor.TokenAuthenticationInterceptor;
+import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.repository.ClientRepository;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import com.wz.sensorserver.service.AuthenticationService;
+import com.wz.sensorserver.service.ClusterService;
+import com.wz.sensorserver.service.SensorService;
+import com.wz.sensorserver.service.SensorServiceSettings;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ClusterTest {
+    private static final List<ClusterNode> MEMBERS = List.of(
+            new ClusterNode("node-a", 8090),
+            new ClusterNode("node-b", 8090),
+            new ClusterNode("node-c", 8090));
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<ManagedChannel> clientChannels = new ArrayList<>();
+
+    @BeforeEach
+    public void startNodes() throws IOException {
+        AuthenticationService authenticationService = new AuthenticationService(
+                Base64.getEncoder().encodeToString(UUID.randomUUID().toString().getBytes()));
+        for (ClusterNode member : MEMBERS)
+            nodes.add(new Node(member, authenticationService));
+    }
+
+    @AfterEach
+    public void stopNodes() throws InterruptedException {
+        for (ManagedChannel channel : clientChannels)
+            channel.shutdownNow();
+        for (Node node : nodes)
+            node.close();
+    }
+
+    @Test
+    public void testSensorsAreReplicatedAndOwnedByOneNode() throws InterruptedException {
+        int sensorCount = 60;
+        List<UUID> sensorIds = new ArrayList<>();
+        for (int i = 0; i < sensorCount; i++)
+            sensorIds.add(UUID.fromString(register(nodes.get(i % nodes.size()), "sensor-" + i).getId()));
+
+        awaitCondition(() -> nodes.stream().allMatch(node -> node.repository.getSensorCount() == sensorCount));
+
+        for (UUID id : sensorIds) {
+            ClusterNode owner = nodes.get(0).cluster.ownerOf(id);
+            for (Node node : nodes) {
+                Sensor sensor = node.repository.getSensorById(id).orElseThrow();
+                assertThat(node.cluster.ownerOf(id)).isEqualTo(owner);
+                assertThat(sensor.getHistoryBytes() > 0).isEqualTo(node.self.equals(owner));
+            }
+        }
+        assertThat(nodes).allSatisfy(node -> assertThat(node.repository.getSensorsView())
+                .anySatisfy(sensor -> assertThat(node.cluster.isLocal(sensor.getId())).isTrue()));
+    }
+
+    @Test
+    public void testMeasurementsAndHistoryAreForwardedToTheOwner() throws InterruptedException {
+        SensorRegistrationResponse registration = register(nodes.get(0), "boiler-sensor");
+        UUID sensorId = UUID.fromString(registration.getId());
+        awaitCondition(() -> nodes.stream().allMatch(node -> node.repository.getSensorById(sensorId).isPresent()));
+        Node owner = nodes.stream().filter(node -> node.cluster.isLocal(sensorId)).findFirst().orElseThrow();
+        List<Node> others = nodes.stream().filter(node -> node != owner).toList();
+        int measurementCount = 10;
+
+        Metadata headers = new Metadata();
+        headers.put(Metadata.Key.of("Authorization", ASCII_STRING_MARSHALLER), registration.getToken());
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<MeasurementRequest> measurements = SensorServiceGrpc.newStub(connect(others.get(0)))
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                .sendMeasurements(new NoopStreamObserver<>() {
+                    @Override
+                    public void onCompleted() {
+                        completed.countDown();
+                    }
+                });
+        for (int i = 1; i <= measurementCount; i++) {
+            measurements.onNext(MeasurementRequest.newBuilder()
+                    .setValue(i)
+                    .setMadeAt(Timestamp.newBuilder().setSeconds(1_700_000_000L + i))
+                    .build());
+        }
+        measurements.onCompleted();
+        assertThat(completed.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(owner.repository.getSensorById(sensorId).orElseThrow().getLastSequence()).isEqualTo(measurementCount);
+        assertThat(others).allSatisfy(node ->
+                assertThat(node.repository.getSensorById(sensorId).orElseThrow().getLastSequence()).isZero());
+        SensorHistoryResponse history = SensorServiceGrpc.newBlockingStub(connect(others.get(1)))
+                .getHistoryForSensor(SensorHistoryRequest.newBuilder()
+                        .setSensorId(sensorId.toString())
+                        .setDepth(measurementCount)
+                        .build());
+        assertThat(history.getMeasurementsList())
+                .extracting(MeasurementResponse::getValue)
+                .containsExactlyInAnyOrder(1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0, 9.0, 10.0);
+    }
+
+    @Test
+    public void testReplicationIsRetriedUntilThePeerIsBack() throws Exception {
+        Node peer = nodes.get(1);
+        peer.stop();
+
+        UUID sensorId = UUID.fromString(register(nodes.get(0), "boiler-sensor").getId());
+        awaitCondition(() -> nodes.get(2).repository.getSensorById(sensorId).isPresent());
+        assertThat(peer.repository.getSensorById(sensorId)).isEmpty();
+        peer.start();
+
+        awaitCondition(() -> peer.repository.getSensorById(sensorId).isPresent());
+    }
+
+    @Test
+    public void testSensorsReportTheOnlineStatusSeenByTheirOwner() throws InterruptedException {
+        UUID sensorId = UUID.fromString(register(nodes.get(0), "boiler-sensor").getId());
+        awaitCondition(() -> nodes.stream().allMatch(node -> node.repository.getSensorById(sensorId).isPresent()));
+        Node owner = nodes.stream().filter(node -> node.cluster.isLocal(sensorId)).findFirst().orElseThrow();
+        Node other = nodes.stream().filter(node -> node != owner).findFirst().orElseThrow();
+        // a sensor that connected to its owner after it was replicated
+        owner.repository.getSensorById(sensorId).orElseThrow().setOnlineStatus(Sensor.OnlineStatus.ONLINE);
+
+        List<SensorInfoResponse> sensors = new ArrayList<>();
+        SensorServiceGrpc.newBlockingStub(connect(other))
+                .getSensors(SearchTagsRequest.getDefaultInstance())
+                .forEachRemaining(sensors::add);
+
+        assertThat(sensors).extracting(SensorInfoResponse::getOnlineStatus).containsExactly(SensorOnlineStatus.SENSOR_ONLINE);
+        assertThat(other.repository.getSensorById(sensorId).orElseThrow().getOnlineStatus()).isEqualTo(Sensor.OnlineStatus.ONLINE);
+    }
+
+    @Test
+    public void testCallsOfNodesWithoutPeerTokenAreRejected() {
+        SensorInfoResponse forgedSensor = SensorInfoResponse.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setName("forged-sensor")
+                .build();
+        Metadata forgedHeaders = new Metadata();
+        forgedHeaders.put(Cluster.FORWARDED_BY_HEADER, "node-b");
+        forgedHeaders.put(Cluster.PEER_TOKEN_HEADER, "forged");
+
+        Throwable unauthenticatedReplication = catchThrowable(() -> ClusterServiceGrpc.newBlockingStub(connect(nodes.get(0)))
+                .replicateSensor(forgedSensor));
+        Throwable forgedForwarding = catchThrowable(() -> SensorServiceGrpc.newBlockingStub(connect(nodes.get(0)))
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(forgedHeaders))
+                .getHistoryForSensor(SensorHistoryRequest.newBuilder()
+                        .setSensorId(forgedSensor.getId())
+                        .setDepth(1)
+                        .build()));
+
+        assertThat(List.of(unauthenticatedReplication, forgedForwarding)).allSatisfy(throwable ->
+                assertThat(((StatusRuntimeException) throwable).getStatus().getCode()).isEqualTo(Status.Code.UNAUTHENTICATED));
+        assertThat(nodes.get(0).repository.getSensorById(UUID.fromString(forgedSensor.getId()))).isEmpty();
+    }
+
+    @Test
+    public void testAggregateMergesPartialsOfAllNodes() throws InterruptedException {
+        int sensorCount = 30;
+        List<UUID> sensorIds = new ArrayList<>();
+        for (int i = 0; i < sensorCount; i++)
+            sensorIds.add(UUID.fromString(register(nodes.get(i % nodes.size()), "sensor-" + i).getId()));
+        awaitCondition(() -> nodes.stream().allMatch(node -> node.repository.getSensorCount() == sensorCount));
+        // every owner keeps the values 1, 2 and 3 of its sensors
+        for (UUID id : sensorIds) {
+            Node owner = nodes.stream().filter(node -> node.cluster.isLocal(id)).findFirst().orElseThrow();
+            for (int value = 1; value <= 3; value++)
+                owner.repository.getSensorById(id).orElseThrow().putMeasurement(value, 1_700_000_000L + value, 0);
+        }
+
+        SensorAggregateResponse aggregate = SensorServiceGrpc.newBlockingStub(connect(nodes.get(1)))
+                .getAggregateForSensors(SensorAggregateRequest.newBuilder()
+                        .setDepth(10)
+                        .build());
+
+        assertThat(aggregate.getSensorCount()).isEqualTo(sensorCount);
+        assertThat(aggregate.getCount()).isEqualTo(3L * sensorCount);
+        assertThat(aggregate.getMin()).isEqualTo(1);
+        assertThat(aggregate.getMax()).isEqualTo(3);
+        assertThat(aggregate.getMean()).isEqualTo(2);
+    }
+
+    @Test
+    public void testQuantilesMergeSketchesOfAllNodes() throws InterruptedException {
+        int sensorCount = 9;
+        List<UUID> sensorIds = new ArrayList<>();
+        for (int i = 0; i < sensorCount; i++)
+            sensorIds.add(UUID.fromString(register(nodes.get(i % nodes.size()), "sensor-" + i).getId()));
+        awaitCondition(() -> nodes.stream().allMatch(node -> node.repository.getSensorCount() == sensorCount));
+        long now = Instant.now().getEpochSecond();
+        // every owner keeps a sketch of the values 1 to 100 of its sensors, like a sensor that streamed them would
+        for (UUID id : sensorIds) {
+            Node owner = nodes.stream().filter(node -> node.cluster.isLocal(id)).findFirst().orElseThrow();
+            Sensor sensor = owner.repository.getSensorById(id).orElseThrow();
+            sensor.setSketch(new SketchRetention(60, 10).newSketch());
+            for (int value = 1; value <= 100; value++)
+                sensor.getSketch().add(now, value);
+        }
+        SensorServiceGrpc.SensorServiceBlockingStub stub = SensorServiceGrpc.newBlockingStub(connect(nodes.get(2)));
+
+        SensorQuantileResponse all = stub.getQuantilesForSensors(SensorQuantileRequest.newBuilder()
+                .addQuantiles(0.5)
+                .addQuantiles(0.99)
+                .setWindowSeconds(300)
+                .build());
+        UUID remoteSensorId = sensorIds.stream().filter(id -> !nodes.get(2).cluster.isLocal(id)).findFirst().orElseThrow();
+        SensorQuantileResponse one = stub.getQuantilesForSensors(SensorQuantileRequest.newBuilder()
+                .setSensorId(remoteSensorId.toString())
+                .addQuantiles(1)
+                .build());
+
+        assertThat(all.getSensorCount()).isEqualTo(sensorCount);
+        assertThat(all.getCount()).isEqualTo(100L * sensorCount);
+        assertThat(all.getValuesList()).hasSize(2);
+        assertThat(all.getValues(0)).isCloseTo(50, within(0.5));
+        assertThat(all.getValues(1)).isCloseTo(99, within(0.99));
+        assertThat(one.getCount()).isEqualTo(100);
+        assertThat(one.getValues(0)).isCloseTo(100, within(1.0));
+    }
+
+    private SensorRegistrationResponse register(Node node, String name) {
+        return SensorServiceGrpc.newBlockingStub(connect(node))
+                .registerSensor(SensorRegistrationRequest.newBuilder()
+                        .setName(name)
+                        .setLocation("Boiler room")
+                        .build());
+    }
+
+    private ManagedChannel connect(Node node) {
+        ManagedChannel channel = InProcessChannelBuilder.forName(node.self.id()).build();
+        clientChannels.add(channel);
+        return channel;
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+
+    private static MQConnectivity mqConnectivity() {
+        MQConnectivity mqConnectivity = mock(MQConnectivity.class);
+        when(mqConnectivity.newChannel()).thenAnswer(invocation -> mock(Channel.class));
+        return mqConnectivity;
+    }
+
+    private static class Node implements AutoCloseable {
+        private final ClusterNode self;
+        private final SensorRepository repository;
+        private final Cluster cluster;
+        private final AuthenticationService authenticationService;
+        private final SensorService sensorService;
+        private final ClusterService clusterService;
+        private Server server;
+
+        private Node(ClusterNode self, AuthenticationService authenticationService) throws IOException {
+            this.self = self;
+            this.authenticationService = authenticationService;
+            repository = new SensorRepositoryInMemory();
+            cluster = new Cluster(self, MEMBERS, authenticationService.generatePeerToken(self.id()),
+                    node -> InProcessChannelBuilder.forName(node.id()).build());
+            SensorServiceSettings settings = SensorServiceSettings.builder()
+                    .cluster(cluster)
+                    .sketchRetention(new SketchRetention(60, 10))
+                    .build();
+            sensorService = new SensorService(mqConnectivity(), authenticationService, repository, settings);
+            clusterService = new ClusterService(repository, settings);
+            start();
+        }
+
+        private void start() throws IOException {
+            server = InProcessServerBuilder.forName(self.id())
+                    .intercept(new TokenAuthenticationInterceptor(mock(ClientRepository.class), repository, authenticationService))
+                    .intercept(new ForwardedCallInterceptor(authenticationService))
+                    .addService(sensorService)
+                    .addService(clusterService)
+                    .build()
+                    .start();
+        }
+
+        private void stop() throws InterruptedException {
+            server.shutdownNow().awaitTermination();
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            server.shutdownNow();
+            cluster.close();
+        }
+    }
+}
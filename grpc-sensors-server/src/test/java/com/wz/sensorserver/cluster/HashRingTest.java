@@ -0,0 +1,61 @@
+package com.wz.sensorserver.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HashRingTest {
+    private static final List<ClusterNode> NODES = List.of(
+            new ClusterNode("node-a", 8090),
+            new ClusterNode("node-b", 8090),
+            new ClusterNode("node-c", 8090));
+
+    private static List<UUID> randomSensorIds(int count) {
+        return Stream.generate(UUID::randomUUID).limit(count).toList();
+    }
+
+    @Test
+    public void testOwnerDoesNotDependOnMemberOrder() {
+        HashRing ring = new HashRing(NODES);
+        HashRing reversed = new HashRing(List.of(NODES.get(2), NODES.get(1), NODES.get(0)));
+
+        assertThat(randomSensorIds(1000)).allSatisfy(sensorId ->
+                assertThat(reversed.ownerOf(sensorId)).isEqualTo(ring.ownerOf(sensorId)));
+    }
+
+    @Test
+    public void testSensorsAreSpreadOverTheNodes() {
+        HashRing ring = new HashRing(NODES);
+        int sensors = 30_000;
+
+        Map<ClusterNode, Long> owned = randomSensorIds(sensors).stream()
+                .collect(Collectors.groupingBy(ring::ownerOf, Collectors.counting()));
+
+        assertThat(owned).containsOnlyKeys(NODES);
+        assertThat(owned.values()).allSatisfy(count -> assertThat(count).isBetween(sensors / 4L, sensors / 2L));
+    }
+
+    @Test
+    public void testOnlySensorsOfALeavingNodeMove() {
+        HashRing ring = new HashRing(NODES);
+        HashRing shrunk = new HashRing(NODES.subList(0, 2));
+        List<UUID> sensorIds = randomSensorIds(10_000);
+        Map<UUID, ClusterNode> owners = sensorIds.stream().collect(Collectors.toMap(Function.identity(), ring::ownerOf));
+
+        assertThat(sensorIds)
+                .filteredOn(sensorId -> !owners.get(sensorId).equals(NODES.get(2)))
+                .allSatisfy(sensorId -> assertThat(shrunk.ownerOf(sensorId)).isEqualTo(owners.get(sensorId)));
+    }
+
+    @Test
+    public void testNodeAddressIsParsed() {
+        assertThat(ClusterNode.parse("sensors-1.internal:8090")).isEqualTo(new ClusterNode("sensors-1.internal", 8090));
+    }
+}
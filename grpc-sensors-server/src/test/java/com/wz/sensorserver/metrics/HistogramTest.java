@@ -0,0 +1,74 @@
+package com.wz.sensorserver.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValuesWithoutGaps() {
+        long expectedLowest = 0;
+        for (int bucket = 0; Histogram.highestValueOf(bucket) != Long.MAX_VALUE; bucket++) {
+            assertThat(Histogram.lowestValueOf(bucket)).isEqualTo(expectedLowest);
+            assertThat(Histogram.bucketOf(Histogram.lowestValueOf(bucket))).isEqualTo(bucket);
+            assertThat(Histogram.bucketOf(Histogram.highestValueOf(bucket))).isEqualTo(bucket);
+            expectedLowest = Histogram.highestValueOf(bucket) + 1;
+        }
+        assertThat(Histogram.bucketOf(Long.MAX_VALUE)).isEqualTo(Histogram.bucketOf(expectedLowest));
+    }
+
+    @Test
+    public void testPercentilesAreWithinBucketPrecision() {
+        Histogram histogram = new MetricsRegistry().histogram("latency");
+        IntStream.rangeClosed(1, 100_000).forEach(histogram::record);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(100_000);
+        assertThat(snapshot.getMax()).isEqualTo(100_000);
+        assertThat(snapshot.getSum()).isEqualTo(100_000L * 100_001 / 2);
+        assertThat((double) snapshot.getValueAtPercentile(50)).isCloseTo(50_000, within(50_000 * 0.125));
+        assertThat((double) snapshot.getValueAtPercentile(99)).isCloseTo(99_000, within(99_000 * 0.125));
+        assertThat(snapshot.getValueAtPercentile(100)).isEqualTo(100_000);
+    }
+
+    @Test
+    public void testNothingIsRecordedWhileSamplingIsOff() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.histogram("latency");
+        registry.setSampling(false);
+
+        long startNanos = histogram.startNanos();
+        histogram.recordSince(startNanos);
+        histogram.record(42);
+
+        assertThat(startNanos).isEqualTo(Histogram.NOT_SAMPLED);
+        assertThat(histogram.snapshot().getCount()).isZero();
+        registry.setSampling(true);
+        histogram.recordSince(histogram.startNanos());
+        assertThat(histogram.snapshot().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testConcurrentRecordingLosesNothing() throws InterruptedException {
+        Histogram histogram = new MetricsRegistry().histogram("latency");
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        for (int thread = 0; thread < 8; thread++) {
+            executorService.submit(() -> {
+                for (int i = 0; i < 100_000; i++)
+                    histogram.record(i % 1000);
+            });
+        }
+        executorService.shutdown();
+        assertThat(executorService.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(histogram.snapshot().getCount()).isEqualTo(800_000);
+        assertThat(histogram.snapshot().getMax()).isEqualTo(999);
+    }
+}
@@ -0,0 +1,88 @@
+package com.wz.sensorserver.mq;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+class MQFanoutTest {
+
+    private static Channel mockChannel() throws IOException {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.queueDeclare()).thenReturn(new AMQImpl.Queue.DeclareOk("amq.gen-shared", 0, 0));
+        return channel;
+    }
+
+    private static MQConnectivity connectivity(Channel channel) {
+        MQConnectivity mqConnectivity = mock(MQConnectivity.class);
+        when(mqConnectivity.newChannel()).thenReturn(channel);
+        return mqConnectivity;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGaugesAreReportedUntilTheFanoutIsClosed() throws IOException {
+        Channel channel = mockChannel();
+        when(channel.messageCount("amq.gen-shared")).thenReturn(7L);
+        MetricsRegistry registry = new MetricsRegistry();
+        MQFanout mqFanout = new MQFanout(connectivity(channel), new ExchangePerSensorTopology(), new SensorMessageCodec(),
+                registry);
+
+        mqFanout.subscribe(UUID.randomUUID().toString(), mock(Consumer.class));
+
+        assertThat(registry.getGauges().get("fanout.sensors").getAsLong()).isEqualTo(1);
+        assertThat(registry.getGauges().get("fanout.queue.depth").getAsLong()).isEqualTo(7);
+        // another fanout reporting to the same registry is not taken out by this one closing
+        MQFanout other = new MQFanout(connectivity(mockChannel()), new ExchangePerSensorTopology(),
+                new SensorMessageCodec(), registry);
+        mqFanout.close();
+        assertThat(registry.getGauges()).containsKeys("fanout.sensors", "fanout.queue.depth");
+        other.close();
+        assertThat(registry.getGauges()).isEmpty();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSharedQueueIsRecoveredWhenTheBrokerClosesItsChannel() throws IOException {
+        Channel first = mockChannel();
+        Channel second = mockChannel();
+        MQConnectivity mqConnectivity = mock(MQConnectivity.class);
+        when(mqConnectivity.newChannel()).thenReturn(first, second);
+        MQFanout mqFanout = new MQFanout(mqConnectivity);
+        UUID sensorId = UUID.randomUUID();
+        Consumer<SensorMessage> listener = mock(Consumer.class);
+        mqFanout.subscribe(sensorId.toString(), listener);
+        ArgumentCaptor<ShutdownListener> shutdownListener = ArgumentCaptor.forClass(ShutdownListener.class);
+        verify(first).addShutdownListener(shutdownListener.capture());
+
+        // e.g. a channel error raised by the broker, the exclusive queue is deleted with the channel
+        when(first.isOpen()).thenReturn(false);
+        shutdownListener.getValue().shutdownCompleted(new ShutdownSignalException(false, false, null, first));
+
+        ArgumentCaptor<com.rabbitmq.client.Consumer> consumer = ArgumentCaptor.forClass(com.rabbitmq.client.Consumer.class);
+        verify(second, timeout(1000)).basicConsume(eq("amq.gen-shared"), consumer.capture());
+        verify(second, timeout(1000)).queueBind("amq.gen-shared", sensorId.toString(), "");
+        consumer.getValue().handleDelivery("consumer", new Envelope(1, false, sensorId.toString(), ""),
+                new AMQP.BasicProperties(), SensorMessageCodec.encodeOnlineStatusChanged(sensorId, Sensor.OnlineStatus.ONLINE));
+        ArgumentCaptor<SensorMessage> message = ArgumentCaptor.forClass(SensorMessage.class);
+        verify(listener).accept(message.capture());
+        assertThat(message.getValue().getSensorId()).isEqualTo(sensorId.toString());
+        mqFanout.close();
+    }
+}
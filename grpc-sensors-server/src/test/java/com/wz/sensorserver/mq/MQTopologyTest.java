@@ -0,0 +1,94 @@
+package com.wz.sensorserver.mq;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.impl.AMQImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class MQTopologyTest {
+
+    private static Channel mockChannel() throws IOException {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.queueDeclare()).thenReturn(new AMQImpl.Queue.DeclareOk("amq.gen-shared", 0, 0));
+        return channel;
+    }
+
+    private static MQConnectivity connectivity(Channel channel) {
+        MQConnectivity mqConnectivity = mock(MQConnectivity.class);
+        when(mqConnectivity.newChannel()).thenReturn(channel);
+        return mqConnectivity;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTopicTopologyOnlyBindsOnSubscribe() throws IOException {
+        Channel channel = mockChannel();
+        TopicExchangeTopology topology = new TopicExchangeTopology(4);
+        MQFanout mqFanout = new MQFanout(connectivity(channel), topology);
+        String sensorId = UUID.randomUUID().toString();
+        String exchange = topology.exchangeOf(sensorId);
+
+        MQFanout.Registration first = mqFanout.subscribe(sensorId, mock(Consumer.class));
+        MQFanout.Registration second = mqFanout.subscribe(sensorId, mock(Consumer.class));
+        first.cleanUp();
+        verify(channel, never()).queueUnbind(anyString(), anyString(), anyString());
+        second.cleanUp();
+
+        verify(channel, never()).exchangeDeclare(anyString(), any(BuiltinExchangeType.class), anyBoolean(), anyBoolean(), any());
+        verify(channel, times(1)).queueBind("amq.gen-shared", exchange, sensorId);
+        verify(channel, times(1)).queueUnbind("amq.gen-shared", exchange, sensorId);
+    }
+
+    @Test
+    public void testTopicExchangesAreDeclaredOnce() throws IOException {
+        Channel channel = mockChannel();
+        TopicExchangeTopology topology = new TopicExchangeTopology(3);
+
+        topology.declare(channel);
+        topology.declarePublishing(channel, UUID.randomUUID().toString());
+
+        verify(channel).exchangeDeclare("sensors.0", BuiltinExchangeType.TOPIC, true, false, null);
+        verify(channel).exchangeDeclare("sensors.1", BuiltinExchangeType.TOPIC, true, false, null);
+        verify(channel).exchangeDeclare("sensors.2", BuiltinExchangeType.TOPIC, true, false, null);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void testSensorsAreSpreadOverTheTopicExchanges() {
+        TopicExchangeTopology topology = new TopicExchangeTopology(4);
+
+        Set<String> exchanges = Stream.generate(() -> UUID.randomUUID().toString())
+                .limit(1000)
+                .peek(sensorId -> assertThat(topology.routingKeyOf(sensorId)).isEqualTo(sensorId))
+                .map(topology::exchangeOf)
+                .collect(Collectors.toSet());
+
+        assertThat(exchanges).containsExactlyInAnyOrder("sensors.0", "sensors.1", "sensors.2", "sensors.3");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExchangePerSensorTopologyDeclaresTheSensorExchange() throws IOException {
+        Channel channel = mockChannel();
+        MQFanout mqFanout = new MQFanout(connectivity(channel));
+        String sensorId = UUID.randomUUID().toString();
+
+        mqFanout.subscribe(sensorId, mock(Consumer.class)).cleanUp();
+
+        verify(channel).exchangeDeclare(sensorId, BuiltinExchangeType.FANOUT, false, false, null);
+        verify(channel).queueBind("amq.gen-shared", sensorId, "");
+        verify(channel).queueUnbind("amq.gen-shared", sensorId, "");
+    }
+}
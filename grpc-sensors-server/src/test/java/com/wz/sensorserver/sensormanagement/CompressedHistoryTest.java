@@ -0,0 +1,92 @@
+package com.wz.sensorserver.sensormanagement;
+
+import com.wz.sensorserver.domain.HistoryStorage;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.MeasurementAggregate;
+import com.wz.sensorserver.domain.MeasurementHistory;
+import com.wz.sensorserver.domain.MeasurementHistoryCompressed;
+import com.wz.sensorserver.domain.MeasurementHistoryEvictingQueueBased;
+import com.wz.sensorserver.domain.MeasurementHistoryRingBuffer;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompressedHistoryTest {
+
+    @Test
+    public void testCompressedHistoryReturnsWhatRingBufferReturns() {
+        int capacity = 3000;
+        MeasurementHistory compressed = new MeasurementHistoryCompressed(capacity);
+        MeasurementHistory ringBuffer = new MeasurementHistoryRingBuffer(capacity);
+        MeasurementHistory evictingQueue = new MeasurementHistoryEvictingQueueBased(capacity);
+        Random random = new Random(11);
+        double[] specialValues = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, -1e300, Double.MIN_VALUE};
+        long second = 1_700_000_000L;
+        for (int i = 0; i < 5000; i++) {
+            // steady, jittering, jumping and going back in time
+            second += switch (i % 7) {
+                case 0 -> random.nextInt(100_000) - 50_000;
+                case 1 -> -random.nextInt(3);
+                default -> 1;
+            };
+            int nano = switch (i % 5) {
+                case 0 -> random.nextInt(1_000_000_000);
+                case 1 -> random.nextInt(1000) * 1_000_000;
+                default -> 0;
+            };
+            double value = i % 13 == 0
+                    ? specialValues[random.nextInt(specialValues.length)]
+                    : i % 3 == 0 ? random.nextGaussian() * 1e6 : 21.5;
+            assertThat(compressed.putMeasurement(value, second, nano)).isEqualTo(ringBuffer.putMeasurement(value, second, nano));
+            evictingQueue.putMeasurement(value, second, nano);
+        }
+
+        assertThat(compressed.getMeasurementsAfter(0)).hasSize(capacity).isEqualTo(ringBuffer.getMeasurementsAfter(0));
+        assertThat(compressed.getMeasurementsAfter(4321)).isEqualTo(ringBuffer.getMeasurementsAfter(4321));
+        assertThat(compressed.getMeasurementsAfter(5000)).isEmpty();
+        // the last 10 put, whenever they were made
+        assertThat(compressed.getMeasurements(10))
+                .hasSize(10)
+                .isSortedAccordingTo(Comparator.comparing(Measurement::getMadeAt).reversed())
+                .isEqualTo(ringBuffer.getMeasurements(10))
+                .isEqualTo(evictingQueue.getMeasurements(10))
+                .extracting(Measurement::getSequence)
+                .allMatch(sequence -> sequence > 4990);
+        MeasurementAggregate fromCompressed = new MeasurementAggregate();
+        MeasurementAggregate fromRingBuffer = new MeasurementAggregate();
+        compressed.aggregateLatest(2048, fromCompressed);
+        ringBuffer.aggregateLatest(2048, fromRingBuffer);
+        assertThat(fromCompressed.getCount()).isEqualTo(2048);
+        // NaN among the values, compared boxed
+        assertThat(Double.valueOf(fromCompressed.getSum())).isEqualTo(Double.valueOf(fromRingBuffer.getSum()));
+    }
+
+    @Test
+    public void testSteadySensorTakesAboutAByteOrTwoPerMeasurement() {
+        int capacity = 100_000;
+        MeasurementHistory history = HistoryStorage.COMPRESSED.newHistory(capacity);
+        SensorRepositoryInMemory repository = new SensorRepositoryInMemory();
+        repository.addSensor(new Sensor(UUID.randomUUID(), "boiler", "basement", List.of(), history));
+        Random random = new Random(3);
+        double temperature = 21.5;
+        long second = 1_700_000_000L;
+        for (int i = 0; i < 2 * capacity; i++) {
+            // a reading every second, the value moving by a tenth of a degree now and then
+            if (random.nextInt(10) == 0)
+                temperature += random.nextBoolean() ? 0.1 : -0.1;
+            history.putMeasurement(temperature, second + i, 0);
+        }
+
+        assertThat(history.getMeasurementsAfter(0)).hasSize(capacity);
+        assertThat((double) history.getRetainedBytes() / capacity).isLessThan(2.0);
+        // blocks sealed and dropped on the way are reflected in the repository's running total
+        assertThat(repository.getHistoryBytes()).isEqualTo(history.getRetainedBytes());
+    }
+}
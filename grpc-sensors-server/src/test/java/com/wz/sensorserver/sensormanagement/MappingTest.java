@@ -10,6 +10,12 @@ import com.wz.sensorserver.repository.ClientRepositoryInMemory;
 import com.wz.sensorserver.util.protomapping.MeasurementMapper;
 import com.wz.sensorserver.util.protomapping.SensorMapper;
 import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorOnlineStatusChanged;
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.exception.MessageCodecException;
+import com.wz.sensorserver.service.streamobserver.SubscriptionResponseEncoder;
+import com.wz.sensorserver.util.EpochClock;
 import org.junit.jupiter.api.Test;
 
 import java.time.Instant;
@@ -97,4 +103,56 @@ class MappingTest {
         assertThat(sensorInfoResponse.getTagsList()).containsAll(sensorDomain.getTags());
         assertThat(sensorInfoResponse.getOnlineStatus()).isEqualTo(SensorOnlineStatus.SENSOR_OFFLINE);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSensorMessagesSurviveBinaryEncoding(){
+        SensorMessageCodec codec = new SensorMessageCodec();
+        String sensorId = UUID.randomUUID().toString();
+        MeasurementMessage measurementMessage = new MeasurementMessage(
+                new Measurement(Math.random(), Instant.now(), 42), sensorId);
+        SensorOnlineStatusChanged statusChanged = new SensorOnlineStatusChanged(sensorId, Sensor.OnlineStatus.ONLINE);
+
+        byte[] encodedMeasurement = codec.encode(measurementMessage);
+
+        assertThat(encodedMeasurement).hasSize(SensorMessageCodec.MEASUREMENT_LENGTH);
+        assertThat(codec.decode(encodedMeasurement)).isEqualTo(measurementMessage);
+        assertThat(codec.decode(codec.encode(statusChanged))).isEqualTo(statusChanged);
+        WindowAggregateMessage aggregate = new WindowAggregateMessage(sensorId, 60, true, 1_700_000_000L, 12, -1.5, 3.25, 7.0);
+        assertThat(codec.decode(codec.encode(aggregate))).isEqualTo(aggregate);
+        assertThatThrownBy(() -> codec.decode(new byte[]{SensorMessageCodec.MEASUREMENT, 1, 2}))
+                .isInstanceOf(MessageCodecException.class);
+    }
+
+    @Test
+    public void testStageStampsAreCarriedByBinaryEncoding(){
+        SensorMessageCodec codec = new SensorMessageCodec();
+        long receivedAt = EpochClock.nowNanos();
+        byte[] body = codec.encodeMeasurement(UUID.randomUUID(), 1, 21.5, 1_700_000_000L, 0, receivedAt);
+        codec.stampPublished(body, receivedAt + 1000);
+
+        MeasurementMessage decoded = (MeasurementMessage) codec.decode(body);
+
+        assertThat(decoded.getReceivedAt()).isEqualTo(receivedAt);
+        assertThat(decoded.getPublishedAt()).isEqualTo(receivedAt + 1000);
+        assertThat(decoded.getConsumedAt()).isGreaterThanOrEqualTo(receivedAt);
+    }
+
+    @Test
+    public void testStageTimestampsAreSentOnlyWhenEnabled(){
+        MeasurementMessage message = new MeasurementMessage(new Measurement(21.5, Instant.now(), 1), UUID.randomUUID().toString());
+        message.setReceivedAt(1);
+        message.setPublishedAt(2);
+        message.setConsumedAt(3);
+
+        MeasurementResponse withStages = new SubscriptionResponseEncoder(null, true).encode(message).getMeasurement();
+        MeasurementResponse withoutStages = new SubscriptionResponseEncoder().encode(message).getMeasurement();
+
+        assertThat(withStages.getStageTimestamps()).isEqualTo(StageTimestamps.newBuilder()
+                .setReceivedAt(1)
+                .setPublishedAt(2)
+                .setConsumedAt(3)
+                .build());
+        assertThat(withoutStages.hasStageTimestamps()).isFalse();
+        assertThat(withStages.toBuilder().clearStageTimestamps().build()).isEqualTo(withoutStages);
+    }
+}
@@ -0,0 +1,84 @@
+package com.wz.sensorserver.sensormanagement;
+
+import com.wz.sensorserver.domain.HistoryStorage;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.MeasurementAggregate;
+import com.wz.sensorserver.domain.MeasurementHistory;
+import com.wz.sensorserver.domain.MeasurementHistoryOffHeap;
+import com.wz.sensorserver.domain.MeasurementHistoryRingBuffer;
+import com.wz.sensorserver.domain.OffHeapHistoryArena;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OffHeapHistoryTest {
+
+    @Test
+    public void testHistoriesSharingRegionsReturnWhatRingBuffersReturn() {
+        int capacity = 100;
+        // 3 slots of 2000 bytes a region, so 10 histories span 4 regions
+        OffHeapHistoryArena arena = new OffHeapHistoryArena(capacity, 7000);
+        MeasurementHistory[] offHeap = new MeasurementHistory[10];
+        MeasurementHistory[] ringBuffers = new MeasurementHistory[10];
+        for (int i = 0; i < offHeap.length; i++) {
+            offHeap[i] = arena.newHistory();
+            ringBuffers[i] = new MeasurementHistoryRingBuffer(capacity);
+        }
+        Random random = new Random(5);
+        for (int i = 0; i < 2500; i++) {
+            int sensor = random.nextInt(offHeap.length);
+            double value = i % 17 == 0 ? Double.NaN : random.nextGaussian() * 100;
+            long second = 1_700_000_000L + random.nextInt(1000);
+            int nano = random.nextInt(1_000_000_000);
+            assertThat(offHeap[sensor].putMeasurement(value, second, nano))
+                    .isEqualTo(ringBuffers[sensor].putMeasurement(value, second, nano));
+        }
+
+        assertThat(arena.getAllocatedSlots()).isEqualTo(10);
+        assertThat(arena.getRegionCount()).isEqualTo(4);
+        for (int i = 0; i < offHeap.length; i++) {
+            assertThat(offHeap[i].getMeasurementsAfter(0)).hasSize(capacity).isEqualTo(ringBuffers[i].getMeasurementsAfter(0));
+            assertThat(offHeap[i].getMeasurementsAfter(offHeap[i].getLastSequence() - 7)).hasSize(7);
+            assertThat(offHeap[i].getMeasurements(10))
+                    .hasSize(10)
+                    .isSortedAccordingTo(Comparator.comparing(Measurement::getMadeAt).reversed())
+                    .isEqualTo(ringBuffers[i].getMeasurements(10));
+            MeasurementAggregate fromOffHeap = new MeasurementAggregate();
+            MeasurementAggregate fromRingBuffer = new MeasurementAggregate();
+            offHeap[i].aggregateLatest(30, fromOffHeap);
+            ringBuffers[i].aggregateLatest(30, fromRingBuffer);
+            assertThat(fromOffHeap.getCount()).isEqualTo(30);
+            // NaN among the values, compared boxed
+            assertThat(Double.valueOf(fromOffHeap.getSum())).isEqualTo(Double.valueOf(fromRingBuffer.getSum()));
+            assertThat(offHeap[i].getRetainedBytes()).isEqualTo(2000);
+        }
+    }
+
+    @Test
+    public void testSlotIsTakenByTheFirstMeasurement() {
+        OffHeapHistoryArena arena = new OffHeapHistoryArena(0, OffHeapHistoryArena.DEFAULT_REGION_BYTES);
+        MeasurementHistory history = arena.newHistory();
+
+        assertThat(history.getMeasurementsAfter(0)).isEmpty();
+        assertThat(history.getRetainedBytes()).isZero();
+        assertThat(arena.getAllocatedSlots()).isZero();
+        SensorRepositoryInMemory repository = new SensorRepositoryInMemory();
+        repository.addSensor(new Sensor(UUID.randomUUID(), "boiler", "basement", List.of(), history));
+        history.putMeasurement(1.0, 1, 0);
+        assertThat(arena.getAllocatedSlots()).isEqualTo(1);
+        // the slot taken after the sensor was registered counts
+        assertThat(repository.getHistoryBytes()).isPositive().isEqualTo(history.getRetainedBytes());
+        assertThat(history.getMeasurements(5)).hasSize(1);
+        assertThat(HistoryStorage.parse("off-heap").newHistory(10)).isInstanceOf(MeasurementHistoryOffHeap.class);
+        assertThatThrownBy(() -> new OffHeapHistoryArena(-1, 1024))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,93 @@
+package com.wz.sensorserver.sensormanagement;
+
+import com.wz.sensorserver.domain.QuantileSketch;
+import com.wz.sensorserver.domain.SensorSketch;
+import com.wz.sensorserver.domain.SketchRetention;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class QuantileSketchTest {
+
+    private static double exactQuantile(double[] sorted, double quantile) {
+        return sorted[(int) (quantile * (sorted.length - 1))];
+    }
+
+    @Test
+    public void testQuantilesAreWithinRelativeAccuracy() {
+        Random random = new Random(7);
+        double[] values = new double[100_000];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            // a long tail over several orders of magnitude, with some negative values and zeros
+            values[i] = i % 50 == 0 ? 0 : Math.exp(random.nextGaussian() * 3) * (i % 10 == 1 ? -1 : 1);
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertThat(sketch.getCount()).isEqualTo(values.length);
+        for (double quantile : new double[]{0, 0.01, 0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1}) {
+            double exact = exactQuantile(values, quantile);
+            assertThat(sketch.getQuantile(quantile)).isCloseTo(exact, within(Math.abs(exact) * 0.01 + 1e-12));
+        }
+        assertThat(new QuantileSketch().getQuantile(0.5)).isNaN();
+    }
+
+    @Test
+    public void testMergedSketchesAnswerLikeOneSketchOfAllValues() {
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        for (int i = 1; i <= 1000; i++) {
+            all.add(i);
+            (i <= 500 ? low : high).add(i);
+        }
+        QuantileSketch rebuilt = new QuantileSketch();
+        rebuilt.addBuckets(high.getRelativeAccuracy(), false, high.getBucketOffset(false), high.getBucketCounts(false));
+
+        low.merge(rebuilt);
+
+        for (double quantile : new double[]{0.1, 0.5, 0.99})
+            assertThat(low.getQuantile(quantile)).isEqualTo(all.getQuantile(quantile));
+        assertThatThrownBy(() -> low.merge(new QuantileSketch(0.05, 100)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testCollapsingKeepsUpperQuantilesAccurate() {
+        QuantileSketch sketch = new QuantileSketch(0.01, 100);
+        for (int i = 1; i <= 100_000; i++)
+            sketch.add(i);
+
+        assertThat(sketch.getBucketCounts(false)).hasSize(100);
+        assertThat(sketch.getCount()).isEqualTo(100_000);
+        assertThat(sketch.getQuantile(0.99)).isCloseTo(99_000, within(990.0));
+        assertThat(sketch.getQuantile(0.9)).isCloseTo(90_000, within(900.0));
+    }
+
+    @Test
+    public void testSensorSketchKeepsLastSlices() {
+        SensorSketch sensorSketch = new SketchRetention(10, 3).newSketch();
+        // slices [0, 10), [10, 20), [20, 30) and [30, 40), the first is overwritten by the last
+        for (long second = 0; second < 40; second++)
+            sensorSketch.add(second, second);
+        sensorSketch.add(5, 1000);
+
+        QuantileSketch retained = new QuantileSketch();
+        sensorSketch.mergeInto(Long.MIN_VALUE, retained);
+        QuantileSketch lastSlice = new QuantileSketch();
+        sensorSketch.mergeInto(35, lastSlice);
+
+        assertThat(retained.getCount()).isEqualTo(30);
+        assertThat(retained.getQuantile(0)).isCloseTo(10, within(0.1));
+        assertThat(lastSlice.getCount()).isEqualTo(10);
+        assertThat(SketchRetention.parse("").newSketch()).isNull();
+        assertThatThrownBy(() -> SketchRetention.parse("60"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,59 @@
+package com.wz.sensorserver.sensormanagement;
+
+import com.wz.sensorserver.domain.MeasurementAggregate;
+import com.wz.sensorserver.domain.MeasurementHistoryEvictingQueueBased;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.SensorAggregationTask;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class SensorAggregationTaskTest {
+
+    @Test
+    public void testAggregateOverShardsEqualsAggregateOfAllLatestMeasurements() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<Sensor> sensors = new ArrayList<>();
+        // sensor i has the values i * 1000 + 0 .. i * 1000 + 29, 20 of them retained
+        for (int i = 0; i < 100; i++) {
+            Sensor sensor = i % 2 == 0
+                    ? new Sensor(UUID.randomUUID(), "s" + i, "l", List.of("t"), 20)
+                    : new Sensor(UUID.randomUUID(), "s" + i, "l", List.of("t"), new MeasurementHistoryEvictingQueueBased(20));
+            for (int j = 0; j < 30; j++)
+                sensor.putMeasurement(i * 1000 + j, j, 0);
+            sensors.add(sensor);
+        }
+
+        MeasurementAggregate aggregate = SensorAggregationTask.aggregate(pool, sensors, 5);
+        MeasurementAggregate expected = new MeasurementAggregate();
+        for (int i = 0; i < 100; i++)
+            for (int j = 25; j < 30; j++)
+                expected.add(i * 1000 + j);
+        pool.shutdown();
+
+        assertThat(aggregate.getCount()).isEqualTo(500);
+        assertThat(aggregate.getMin()).isEqualTo(25);
+        assertThat(aggregate.getMax()).isEqualTo(99_029);
+        assertThat(aggregate.getSum()).isCloseTo(expected.getSum(), within(1e-6));
+        assertThat(SensorAggregationTask.aggregate(ForkJoinPool.commonPool(), sensors, 50).getCount()).isEqualTo(2000);
+    }
+
+    @Test
+    public void testAggregateOfNoMeasurementsIsEmpty() {
+        Sensor sensor = new Sensor(UUID.randomUUID(), "s", "l", List.of("t"), 20);
+
+        MeasurementAggregate aggregate = SensorAggregationTask.aggregate(ForkJoinPool.commonPool(), List.of(sensor), 5);
+
+        assertThat(aggregate.getCount()).isZero();
+        assertThat(aggregate.getMean()).isZero();
+        assertThatThrownBy(() -> SensorAggregationTask.aggregate(ForkJoinPool.commonPool(), List.of(sensor), 0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,74 @@
+package com.wz.sensorserver.sensormanagement;
+
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.TagExpression;
+import com.wz.sensorserver.exception.InvalidRequestException;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchException;
+
+class TagSearchTest {
+
+    private static Sensor sensorWithTags(String... tags) {
+        return Sensor
+                .builder()
+                .id(UUID.randomUUID())
+                .name(UUID.randomUUID().toString())
+                .location(UUID.randomUUID().toString())
+                .tags(List.of(tags))
+                .build();
+    }
+
+    @Test
+    public void testTagExpressionResolvesThroughTagIndex() {
+        SensorRepositoryInMemory repository = new SensorRepositoryInMemory();
+        Sensor boiler = sensorWithTags("boiler-room", "temperature");
+        Sensor floorTemperature = sensorWithTags("floor-3", "temperature");
+        Sensor floorHumidity = sensorWithTags("floor-3", "humidity");
+        Sensor unrelated = sensorWithTags("garage");
+        List.of(boiler, floorTemperature, floorHumidity, unrelated).forEach(repository::addSensor);
+
+        assertThat(repository.findSensorsByTagExpression(TagExpression.parse("boiler-room")))
+                .containsExactly(boiler);
+        assertThat(repository.findSensorsByTagExpression(TagExpression.parse("floor-3&temperature")))
+                .containsExactly(floorTemperature);
+        assertThat(repository.findSensorsByTagExpression(TagExpression.parse("floor-3 & humidity | boiler-room")))
+                .containsExactlyInAnyOrder(floorHumidity, boiler);
+        assertThat(repository.findSensorsByTags(List.of("temperature", "garage")))
+                .containsExactlyInAnyOrder(boiler, floorTemperature, unrelated);
+        assertThat(repository.getSensorById(floorHumidity.getId())).contains(floorHumidity);
+    }
+
+    @Test
+    public void testListenersAreNotifiedAboutNewSensors() {
+        SensorRepositoryInMemory repository = new SensorRepositoryInMemory();
+        TagExpression tagExpression = TagExpression.parse("boiler-room");
+        List<Sensor> joined = new ArrayList<>();
+        Sensor boiler = sensorWithTags("boiler-room");
+
+        repository.addSensorAddedListener(sensor -> {
+            if (tagExpression.matches(sensor.getTags()))
+                joined.add(sensor);
+        });
+        repository.addSensor(sensorWithTags("garage"));
+        repository.addSensor(boiler);
+
+        assertThat(joined).containsExactly(boiler);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", " ", "a||b", "a&", "&b"})
+    public void testMalformedTagExpressionIsRejected(String expression) {
+        Exception exception = catchException(() -> TagExpression.parse(expression));
+
+        assertThat(exception).isInstanceOf(InvalidRequestException.class);
+    }
+}
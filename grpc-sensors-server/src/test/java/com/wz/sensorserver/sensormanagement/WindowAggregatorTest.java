@@ -0,0 +1,93 @@
+package com.wz.sensorserver.sensormanagement;
+
+import com.wz.sensorserver.domain.AggregationWindows;
+import com.wz.sensorserver.domain.WindowAggregator;
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+class WindowAggregatorTest {
+
+    private static List<WindowAggregateMessage> windowsOf(List<WindowAggregateMessage> closed, int seconds, boolean sliding) {
+        return closed.stream()
+                .filter(message -> message.getWindowSeconds() == seconds && message.isSliding() == sliding)
+                .toList();
+    }
+
+    @Test
+    public void testTumblingWindowsCloseWhenSensorMovesPastThem() {
+        List<WindowAggregateMessage> closed = new ArrayList<>();
+        WindowAggregator aggregator = AggregationWindows.parse("1,3", "").newAggregator("sensor", closed::add);
+        // seconds 0 to 5, value = second, two measurements per second
+        for (long second = 0; second < 6; second++) {
+            aggregator.add(second, second);
+            aggregator.add(second, second + 0.5);
+        }
+
+        assertThat(windowsOf(closed, 1, false))
+                .extracting(WindowAggregateMessage::getWindowStartEpochSecond)
+                .containsExactly(0L, 1L, 2L, 3L, 4L);
+        List<WindowAggregateMessage> threeSeconds = windowsOf(closed, 3, false);
+        assertThat(threeSeconds).hasSize(1);
+        assertThat(threeSeconds.get(0)).isEqualTo(new WindowAggregateMessage("sensor", 3, false, 0, 6, 0, 2.5, 7.5));
+        assertThat(threeSeconds.get(0).getMean()).isEqualTo(1.25);
+
+        aggregator.flush();
+        assertThat(windowsOf(closed, 3, false))
+                .extracting(WindowAggregateMessage::getWindowStartEpochSecond)
+                .containsExactly(0L, 3L);
+        assertThat(windowsOf(closed, 1, false)).hasSize(6);
+    }
+
+    @Test
+    public void testSlidingWindowMovesBySecond() {
+        List<WindowAggregateMessage> closed = new ArrayList<>();
+        WindowAggregator aggregator = AggregationWindows.parse("", "3").newAggregator("sensor", closed::add);
+        for (long second = 10; second < 15; second++)
+            aggregator.add(second, second);
+        // a gap, seconds 15 and 16 have no measurements
+        aggregator.add(17, 17);
+        aggregator.flush();
+
+        assertThat(closed)
+                .extracting(WindowAggregateMessage::getWindowStartEpochSecond, WindowAggregateMessage::getCount,
+                        WindowAggregateMessage::getMin, WindowAggregateMessage::getMax)
+                .containsExactly(
+                        tuple(8L, 1L, 10.0, 10.0),
+                        tuple(9L, 2L, 10.0, 11.0),
+                        tuple(10L, 3L, 10.0, 12.0),
+                        tuple(11L, 3L, 11.0, 13.0),
+                        tuple(12L, 3L, 12.0, 14.0),
+                        tuple(15L, 1L, 17.0, 17.0));
+    }
+
+    @Test
+    public void testLateMeasurementsAreLeftOut() {
+        List<WindowAggregateMessage> closed = new ArrayList<>();
+        WindowAggregator aggregator = AggregationWindows.parse("60", "").newAggregator("sensor", closed::add);
+        aggregator.add(61, 1);
+        aggregator.add(59, 100);
+        aggregator.add(62, 2);
+        aggregator.flush();
+
+        assertThat(closed).containsExactly(new WindowAggregateMessage("sensor", 60, false, 60, 2, 1, 2, 3));
+    }
+
+    @Test
+    public void testWindowConfiguration() {
+        AggregationWindows windows = AggregationWindows.parse("1, 60", "60");
+        assertThat(windows.supports(60, false)).isTrue();
+        assertThat(windows.supports(60, true)).isTrue();
+        assertThat(windows.supports(1, true)).isFalse();
+        assertThat(AggregationWindows.NONE.newAggregator("sensor", message -> {
+        })).isNull();
+        assertThatThrownBy(() -> AggregationWindows.parse("1,minute", "")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> AggregationWindows.parse("", "86400")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
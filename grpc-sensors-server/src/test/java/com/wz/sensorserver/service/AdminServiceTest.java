@@ -0,0 +1,143 @@
+package com.wz.sensorserver.service;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.wz.sensors.proto.AdminServiceGrpc;
+import com.wz.sensors.proto.MetricsRequest;
+import com.wz.sensors.proto.MetricsServiceGrpc;
+import com.wz.sensors.proto.RuntimeStateRequest;
+import com.wz.sensors.proto.RuntimeStateResponse;
+import com.wz.sensors.proto.SensorState;
+import com.wz.sensors.proto.SubscribeRequest;
+import com.wz.sensors.proto.SubscriberState;
+import com.wz.sensorserver.constant.Constants;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.interceptor.OperatorAuthenticationInterceptor;
+import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.repository.ClientRepository;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.util.TestDataFactory;
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.*;
+
+class AdminServiceTest {
+
+    @SuppressWarnings("unchecked")
+    private static RuntimeStateResponse getRuntimeState(AdminService adminService, int limit) {
+        StreamObserver<RuntimeStateResponse> responseObserver = mock(StreamObserver.class);
+        adminService.getRuntimeState(RuntimeStateRequest.newBuilder().setLimit(limit).build(), responseObserver);
+        ArgumentCaptor<RuntimeStateResponse> responseCaptor = ArgumentCaptor.forClass(RuntimeStateResponse.class);
+        verify(responseObserver).onNext(responseCaptor.capture());
+        verify(responseObserver).onCompleted();
+        return responseCaptor.getValue();
+    }
+
+    private static MQConnectivity mqConnectivity() throws IOException {
+        Channel channel = mock(Channel.class);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.queueDeclare()).thenReturn(new AMQImpl.Queue.DeclareOk("amq.gen-admin", 0, 0));
+        MQConnectivity mqConnectivity = mock(MQConnectivity.class);
+        when(mqConnectivity.newChannel()).thenReturn(channel);
+        return mqConnectivity;
+    }
+
+    private static StreamObserver<SubscribeRequest> subscribe(ClientService clientService, String login, Sensor... sensors) throws Exception {
+        StreamObserver<SubscribeRequest> requestObserver = Context.current()
+                .withValue(Constants.CLIENT_LOGIN_CONTEXT_KEY, login)
+                .call(() -> clientService.subscribeOnSensor(new NoopStreamObserver<>()));
+        for (Sensor sensor : sensors)
+            requestObserver.onNext(SubscribeRequest.newBuilder().setSensorId(sensor.getId().toString()).build());
+        return requestObserver;
+    }
+
+    @Test
+    public void testRuntimeStateListsSensorsAndSubscribers() throws Exception {
+        SensorRepository sensorRepository = new SensorRepositoryInMemory();
+        Sensor first = TestDataFactory.randomSensor();
+        Sensor second = TestDataFactory.randomSensor();
+        sensorRepository.addSensor(first);
+        sensorRepository.addSensor(second);
+        ClientService clientService = new ClientService(mqConnectivity(), mock(ClientRepository.class), sensorRepository,
+                mock(AuthenticationService.class));
+        AdminService adminService = new AdminService(sensorRepository, clientService);
+        long subscriptionsBefore = getRuntimeState(adminService, 0).getSubscriptions();
+
+        StreamObserver<SubscribeRequest> alice = subscribe(clientService, "alice", first, second);
+        subscribe(clientService, "bob", first);
+        RuntimeStateResponse response = getRuntimeState(adminService, 10);
+
+        assertThat(response.getSensorsRegistered()).isEqualTo(2);
+        assertThat(response.getSubscriberStreams()).isEqualTo(2);
+        assertThat(response.getSubscriptions() - subscriptionsBefore).isEqualTo(3);
+        assertThat(response.getSensorsList()).extracting(SensorState::getId, SensorState::getSubscriptions)
+                .containsExactlyInAnyOrder(
+                        tuple(first.getId().toString(), 2),
+                        tuple(second.getId().toString(), 1));
+        assertThat(response.getSensorsList()).allSatisfy(sensorState -> assertThat(sensorState.getHistoryBytes()).isPositive());
+        assertThat(response.getHistoryBytes()).isEqualTo(first.getHistoryBytes() + second.getHistoryBytes());
+        assertThat(response.getSubscribersList()).extracting(SubscriberState::getLogin, SubscriberState::getSubscriptions)
+                .containsExactlyInAnyOrder(tuple("alice", 2), tuple("bob", 1));
+
+        alice.onCompleted();
+        response = getRuntimeState(adminService, 1);
+
+        assertThat(response.getSubscriberStreams()).isEqualTo(1);
+        assertThat(response.getSubscriptions() - subscriptionsBefore).isEqualTo(1);
+        assertThat(response.getSensorsList()).hasSize(1);
+        assertThat(response.getSubscribersList()).extracting(SubscriberState::getLogin).containsExactly("bob");
+    }
+
+    @Test
+    public void testOperatorServicesRejectCallsWithoutTheOperatorToken() throws Exception {
+        SensorRepository sensorRepository = new SensorRepositoryInMemory();
+        AdminService adminService = new AdminService(sensorRepository, new ClientService(mqConnectivity(),
+                mock(ClientRepository.class), sensorRepository, mock(AuthenticationService.class)));
+        String serverName = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(serverName)
+                .intercept(new OperatorAuthenticationInterceptor("operator-token"))
+                .addService(adminService)
+                .addService(new MetricsService())
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(serverName).build();
+        try {
+            AdminServiceGrpc.AdminServiceBlockingStub adminStub = AdminServiceGrpc.newBlockingStub(channel);
+            MetricsServiceGrpc.MetricsServiceBlockingStub metricsStub = MetricsServiceGrpc.newBlockingStub(channel);
+
+            assertThatThrownBy(() -> adminStub.getRuntimeState(RuntimeStateRequest.getDefaultInstance()))
+                    .isInstanceOfSatisfying(StatusRuntimeException.class,
+                            e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAUTHENTICATED));
+            assertThatThrownBy(() -> metricsStub.getMetrics(MetricsRequest.getDefaultInstance()))
+                    .isInstanceOfSatisfying(StatusRuntimeException.class,
+                            e -> assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAUTHENTICATED));
+
+            Metadata headers = new Metadata();
+            headers.put(Metadata.Key.of("Authorization", Metadata.ASCII_STRING_MARSHALLER), "operator-token");
+            assertThat(adminStub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+                    .getRuntimeState(RuntimeStateRequest.getDefaultInstance())
+                    .getSensorsRegistered()).isZero();
+        } finally {
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+}
@@ -184,12 +184,13 @@ public class DataTransmissionTest {
         //THEN
         dummySensors.forEach(dummySensor -> {
             List<DummyClient> sensorsClients = sensorSubscriptions.get(dummySensor.getId());
-            List<MeasurementResponse> measurementsThatMustBe = generatedDataBySensors.get(dummySensor.getId())
-                    .stream()
-                    .map(request -> MeasurementResponse.newBuilder()
+            List<MeasurementRequest> generatedData = generatedDataBySensors.get(dummySensor.getId());
+            List<MeasurementResponse> measurementsThatMustBe = IntStream.range(0, generatedData.size())
+                    .mapToObj(i -> MeasurementResponse.newBuilder()
                             .setSensorId(dummySensor.getId())
-                            .setValue(request.getValue())
-                            .setMadeAt(request.getMadeAt())
+                            .setValue(generatedData.get(i).getValue())
+                            .setMadeAt(generatedData.get(i).getMadeAt())
+                            .setSequence(i + 1)
                             .build())
                     .toList();
             sensorsClients.forEach(dummyClient -> {
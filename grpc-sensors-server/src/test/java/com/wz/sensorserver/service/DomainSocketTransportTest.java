@@ -0,0 +1,73 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensors.proto.SensorRegistrationRequest;
+import com.wz.sensors.proto.SensorRegistrationResponse;
+import com.wz.sensors.proto.SensorServiceGrpc;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.interceptor.TokenAuthenticationInterceptor;
+import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.repository.ClientRepository;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.transport.NettyTransport;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.netty.NettyChannelBuilder;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.unix.DomainSocketAddress;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class DomainSocketTransportTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSensorRegistersOverUnixDomainSocket(@TempDir Path directory) throws Exception {
+        assumeTrue(Epoll.isAvailable(), "Epoll is not available on this host");
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        AuthenticationService authenticationService = mock(AuthenticationService.class);
+        when(sensorRepository.checkIfExists(any(Sensor.class))).thenReturn(false);
+        when(authenticationService.generateToken(any(Map.class))).thenReturn("generated token");
+        SensorService sensorService = new SensorService(mock(MQConnectivity.class), authenticationService, sensorRepository);
+        Path socketPath = directory.resolve("sensors.sock");
+        EpollEventLoopGroup clientGroup = new EpollEventLoopGroup(1);
+
+        try (NettyTransport transport = NettyTransport.create(true, 1, 1)) {
+            Server server = transport.forDomainSocket(socketPath)
+                    .intercept(new TokenAuthenticationInterceptor(mock(ClientRepository.class), sensorRepository, authenticationService))
+                    .addService(sensorService)
+                    .build()
+                    .start();
+            ManagedChannel channel = NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toFile()))
+                    .eventLoopGroup(clientGroup)
+                    .channelType(EpollDomainSocketChannel.class)
+                    .usePlaintext()
+                    .build();
+            try {
+                SensorRegistrationResponse response = SensorServiceGrpc.newBlockingStub(channel)
+                        .registerSensor(SensorRegistrationRequest.newBuilder()
+                                .setName("gateway-sensor")
+                                .setLocation("Boiler room")
+                                .build());
+
+                assertThat(transport.isEpoll()).isTrue();
+                assertThat(response.getToken()).isEqualTo("generated token");
+                verify(sensorRepository).addSensor(any(Sensor.class));
+            } finally {
+                channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+                server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+                clientGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.wz.sensorserver.service;
+
+import com.google.protobuf.Empty;
+import com.wz.sensors.proto.CounterValue;
+import com.wz.sensors.proto.GaugeValue;
+import com.wz.sensors.proto.HistogramValue;
+import com.wz.sensors.proto.MetricsRequest;
+import com.wz.sensors.proto.MetricsResponse;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.metrics.MetricsRegistry;
+import com.wz.sensorserver.metrics.StageLatency;
+import com.wz.sensorserver.mq.Publisher;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SensorStreamObserver;
+import com.wz.sensorserver.util.TestDataFactory;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.Serializable;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.*;
+
+class MetricsServiceTest {
+
+    @SuppressWarnings("unchecked")
+    private static MetricsResponse scrape(MetricsService metricsService, String prefix) {
+        StreamObserver<MetricsResponse> responseObserver = mock(StreamObserver.class);
+        metricsService.getMetrics(MetricsRequest.newBuilder().setPrefix(prefix).build(), responseObserver);
+        ArgumentCaptor<MetricsResponse> responseCaptor = ArgumentCaptor.forClass(MetricsResponse.class);
+        verify(responseObserver).onNext(responseCaptor.capture());
+        verify(responseObserver).onCompleted();
+        return responseCaptor.getValue();
+    }
+
+    private static long counter(MetricsResponse response, String name) {
+        return response.getCountersList()
+                .stream()
+                .filter(counter -> counter.getName().equals(name))
+                .mapToLong(CounterValue::getCount)
+                .findFirst()
+                .orElse(0);
+    }
+
+    @Test
+    public void testMetricsAreFilteredByPrefix() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("mq.published").add(3);
+        registry.counter("ingest.measurements").add(5);
+        registry.gauge("mq.channels.open").increment();
+        registry.gauge("mq.queue.depth", () -> 7);
+        registry.histogram("mq.publish.latency").record(1000);
+
+        MetricsResponse response = scrape(new MetricsService(registry), "mq.");
+
+        assertThat(response.getSampling()).isTrue();
+        assertThat(response.getCountersList()).extracting(CounterValue::getName, CounterValue::getCount)
+                .containsExactly(tuple("mq.published", 3L));
+        assertThat(response.getGaugesList()).extracting(GaugeValue::getName, GaugeValue::getValue)
+                .containsExactly(tuple("mq.channels.open", 1L),
+                        tuple("mq.queue.depth", 7L));
+        assertThat(response.getHistogramsList()).singleElement()
+                .extracting(HistogramValue::getName, HistogramValue::getCount, HistogramValue::getMax)
+                .containsExactly("mq.publish.latency", 1L, 1000L);
+    }
+
+    @Test
+    public void testStagesAreRecordedFromStamps() {
+        MetricsRegistry registry = MetricsRegistry.global();
+        long ingestBefore = registry.histogram("stage.ingest").snapshot().getCount();
+        long brokerBefore = registry.histogram("stage.broker").snapshot().getCount();
+        long fanoutBefore = registry.histogram("stage.fanout").snapshot().getCount();
+
+        StageLatency.recordConsumed(1_000, 3_000, 10_000);
+        StageLatency.recordConsumed(0, 3_000, 10_000);
+        StageLatency.recordSent(1_000, 10_000);
+
+        // a message without the received stamp is not recorded
+        assertThat(registry.histogram("stage.ingest").snapshot().getCount() - ingestBefore).isEqualTo(1);
+        assertThat(registry.histogram("stage.broker").snapshot().getCount() - brokerBefore).isEqualTo(1);
+        assertThat(registry.histogram("stage.fanout").snapshot().getCount() - fanoutBefore).isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIngestedMeasurementsAreCounted() {
+        MetricsService metricsService = new MetricsService();
+        long measurementsBefore = counter(scrape(metricsService, "ingest."), "ingest.measurements");
+        Sensor sensor = TestDataFactory.randomSensor();
+        Publisher<Serializable> publisher = mock(Publisher.class);
+
+        SensorStreamObserver underTest = new SensorStreamObserver(new NoopStreamObserver<Empty>(), publisher, sensor);
+        Stream.generate(TestDataFactory::randomMeasurementRequest).limit(10).forEach(underTest::onNext);
+
+        MetricsResponse response = scrape(metricsService, "ingest.");
+        assertThat(counter(response, "ingest.measurements") - measurementsBefore).isEqualTo(10);
+        assertThat(response.getHistogramsList())
+                .filteredOn(histogram -> histogram.getName().equals("ingest.latency"))
+                .singleElement()
+                .satisfies(histogram -> assertThat(histogram.getCount()).isGreaterThanOrEqualTo(10));
+    }
+}
@@ -0,0 +1,111 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensors.proto.SensorClientServiceGrpc;
+import com.wz.sensors.proto.SubscribeRequest;
+import com.wz.sensors.proto.SubscriptionResponse;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.mq.MQConnectivity;
+import com.wz.sensorserver.mq.MQFanout;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.repository.ClientRepository;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SubscriberSettings;
+import com.wz.sensorserver.service.streamobserver.SubscriberStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SubscriptionResponseEncoder;
+import com.wz.sensorserver.util.TestDataFactory;
+import com.wz.sensorserver.util.protomapping.PreEncodedMarshaller;
+import io.grpc.Drainable;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class PreEncodedFanoutTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMeasurementIsEncodedOnceForAllSubscribers() throws IOException {
+        Sensor sensor = TestDataFactory.randomSensor();
+        String sensorId = sensor.getId().toString();
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+        List<Consumer<SensorMessage>> listeners = new ArrayList<>();
+        MQFanout mqFanout = mock(MQFanout.class);
+        when(mqFanout.subscribe(anyString(), any(Consumer.class))).thenAnswer(invocation -> {
+            listeners.add(invocation.getArgument(1));
+            return mock(MQFanout.Registration.class);
+        });
+        PreEncodedMarshaller<SubscriptionResponse> marshaller = new PreEncodedMarshaller<>(SubscriptionResponse.getDefaultInstance());
+        SubscriptionResponseEncoder responseEncoder = new SubscriptionResponseEncoder(marshaller);
+        List<StreamObserver<SubscriptionResponse>> responseObservers = List.of(
+                Mockito.spy(new NoopStreamObserver<>()),
+                Mockito.spy(new NoopStreamObserver<>()),
+                Mockito.spy(new NoopStreamObserver<>()));
+        responseObservers.forEach(responseObserver ->
+                new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository, null,
+                        SubscriberSettings.builder().responseEncoder(responseEncoder).build())
+                        .onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).build()));
+
+        Measurement measurement = TestDataFactory.randomMeasurement();
+        sensor.putMeasurement(measurement);
+        MeasurementMessage message = new MeasurementMessage(measurement, sensorId);
+        listeners.forEach(listener -> listener.accept(message));
+
+        List<SubscriptionResponse> delivered = new ArrayList<>();
+        for (StreamObserver<SubscriptionResponse> responseObserver : responseObservers) {
+            ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+            verify(responseObserver, times(2)).onNext(responseCaptor.capture());
+            delivered.add(responseCaptor.getAllValues().get(1));
+        }
+        SubscriptionResponse response = delivered.get(0);
+        assertThat(delivered).allSatisfy(subscriberResponse -> assertThat(subscriberResponse).isSameAs(response));
+        assertThat(marshaller.isPreEncoded(response)).isTrue();
+        try (InputStream stream = marshaller.stream(response)) {
+            assertThat(stream).isInstanceOf(Drainable.class);
+            assertThat(stream.readAllBytes()).isEqualTo(response.toByteArray());
+        }
+        assertThat(marshaller.parse(marshaller.stream(response))).isEqualTo(response);
+    }
+
+    @Test
+    public void testMessagesThatAreNotPreEncodedAreSerializedAsUsual() throws IOException {
+        PreEncodedMarshaller<SubscriptionResponse> marshaller = new PreEncodedMarshaller<>(SubscriptionResponse.getDefaultInstance());
+        SubscriptionResponse response = new SubscriptionResponseEncoder()
+                .encode(new MeasurementMessage(TestDataFactory.randomMeasurement(), "sensor"));
+
+        assertThat(marshaller.isPreEncoded(response)).isFalse();
+        try (InputStream stream = marshaller.stream(response)) {
+            assertThat(SubscriptionResponse.parseFrom(stream)).isEqualTo(response);
+        }
+    }
+
+    @Test
+    public void testSubscriptionMethodIsBoundWithPreEncodingMarshaller() {
+        ClientService clientService = new ClientService(mock(MQConnectivity.class), mock(ClientRepository.class),
+                mock(SensorRepository.class), mock(AuthenticationService.class));
+
+        ServerMethodDefinition<?, ?> subscribeMethod = clientService.bindServiceWithPreEncodedResponses()
+                .getMethod(SensorClientServiceGrpc.METHOD_SUBSCRIBE_ON_SENSOR.getFullMethodName());
+
+        assertThat(subscribeMethod).isNotNull();
+        assertThat(subscribeMethod.getMethodDescriptor().getResponseMarshaller()).isInstanceOf(PreEncodedMarshaller.class);
+        assertThat(clientService.bindServiceWithPreEncodedResponses().getMethods())
+                .hasSameSizeAs(clientService.bindService().getMethods());
+    }
+}
@@ -122,7 +122,9 @@ class SensorServiceTest {
         Sensor sensorMock = mock(Sensor.class);
         Claims claimsMock = mock(Claims.class);
         com.rabbitmq.client.Channel channelMock = mock(com.rabbitmq.client.Channel.class);
-        ArgumentCaptor<Measurement> sensorArgumentCaptor = ArgumentCaptor.forClass(Measurement.class);
+        ArgumentCaptor<Double> valueCaptor = ArgumentCaptor.forClass(Double.class);
+        ArgumentCaptor<Long> epochSecondCaptor = ArgumentCaptor.forClass(Long.class);
+        ArgumentCaptor<Integer> nanoCaptor = ArgumentCaptor.forClass(Integer.class);
 
         StreamObserver<Empty> completionStreamObserverSpy = Mockito.spy(new NoopStreamObserver<>());
         when(claimsMock.get("sensorId", String.class)).thenReturn(sensorId);
@@ -143,9 +145,14 @@ class SensorServiceTest {
 
         MeasurementMapper mapper = new MeasurementMapper();
         verify(completionStreamObserverSpy, times(1)).onCompleted();
-        verify(sensorMock, times(generatedDataSize)).putMeasurement(sensorArgumentCaptor.capture());
+        verify(sensorMock, times(generatedDataSize))
+                .putMeasurement(valueCaptor.capture(), epochSecondCaptor.capture(), nanoCaptor.capture());
         verify(channelMock, times(1)).exchangeDeclare(sensorId, BuiltinExchangeType.FANOUT, false, false, null);
-        assertThat(sensorArgumentCaptor.getAllValues()).containsExactlyInAnyOrderElementsOf(
+        List<Measurement> putMeasurements = IntStream.range(0, generatedDataSize)
+                .mapToObj(i -> new Measurement(valueCaptor.getAllValues().get(i),
+                        Instant.ofEpochSecond(epochSecondCaptor.getAllValues().get(i), nanoCaptor.getAllValues().get(i))))
+                .toList();
+        assertThat(putMeasurements).containsExactlyInAnyOrderElementsOf(
                 measurementRequests
                         .stream()
                         .map(mapper::mapRequestToDomain)
@@ -229,6 +236,57 @@ class SensorServiceTest {
 
     }
 
+    @Test
+    public void testGetAggregateForSensorsMergesLatestMeasurementsOfTaggedSensors() {
+        List<Sensor> sensors = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Sensor sensor = new Sensor(UUID.randomUUID(), "Sensor " + i, "Floor 3", List.of("floor-3"), 10);
+            // values 0..19, the latest 5 are 15..19
+            for (int j = 0; j < 20; j++)
+                sensor.putMeasurement(j, j, 0);
+            sensors.add(sensor);
+        }
+        when(sensorRepository.findSensorsByTags(List.of("floor-3"))).thenReturn(sensors);
+
+        SensorAggregateResponse aggregate = blockingStub.getAggregateForSensors(SensorAggregateRequest
+                .newBuilder()
+                .addTags("floor-3")
+                .setDepth(5)
+                .build());
+
+        assertThat(aggregate.getSensorCount()).isEqualTo(40);
+        assertThat(aggregate.getCount()).isEqualTo(200);
+        assertThat(aggregate.getMin()).isEqualTo(15);
+        assertThat(aggregate.getMax()).isEqualTo(19);
+        assertThat(aggregate.getMean()).isEqualTo(17);
+    }
+
+    @Test
+    public void testGetAggregateForSensorsRejectsNonPositiveDepth() {
+        Exception exception = catchException(() -> blockingStub
+                .getAggregateForSensors(SensorAggregateRequest
+                        .newBuilder()
+                        .addTags("floor-3")
+                        .build()));
+
+        assertThat(exception)
+                .isInstanceOf(StatusRuntimeException.class)
+                .hasMessageContaining("Depth must be greater than 0");
+    }
+
+    @Test
+    public void testGetQuantilesForSensorsFailsWhenNoSketchesAreKept() {
+        Exception exception = catchException(() -> blockingStub
+                .getQuantilesForSensors(SensorQuantileRequest
+                        .newBuilder()
+                        .addQuantiles(0.99)
+                        .build()));
+
+        assertThat(exception)
+                .isInstanceOf(StatusRuntimeException.class)
+                .hasMessageContaining("FAILED_PRECONDITION");
+    }
+
     @ParameterizedTest
     @ValueSource(ints = {0, 10, 100})
     public void getSensorsListTest(int sensorsCount) {
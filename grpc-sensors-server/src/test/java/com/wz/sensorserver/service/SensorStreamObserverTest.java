@@ -0,0 +1,269 @@
+package com.wz.sensorserver.service;
+
+import com.google.protobuf.Empty;
+import com.google.protobuf.Timestamp;
+import com.wz.sensors.proto.MeasurementRequest;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.QuantileSketch;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.domain.SketchRetention;
+import com.wz.sensorserver.mq.Publisher;
+import com.wz.sensorserver.mq.codec.SensorMessageCodec;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.service.streamobserver.IngestPipeline;
+import com.wz.sensorserver.service.streamobserver.IngestSettings;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SensorIdleWatch;
+import com.wz.sensorserver.service.streamobserver.SensorStreamObserver;
+import com.wz.sensorserver.mq.message.SensorOnlineStatusChanged;
+import com.wz.sensorserver.util.TestDataFactory;
+import com.wz.sensorserver.util.concurrent.HashedWheelTimer;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.*;
+
+class SensorStreamObserverTest {
+
+    private static MeasurementRequest measurementRequest(long sequence) {
+        return TestDataFactory.randomMeasurementRequest()
+                .toBuilder()
+                .setSequence(sequence)
+                .build();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testResentMeasurementsAreDroppedAcrossReconnects() {
+        Sensor sensor = TestDataFactory.randomSensor();
+        Publisher<Serializable> publisher = mock(Publisher.class);
+
+        SensorStreamObserver firstStream = new SensorStreamObserver(new NoopStreamObserver<Empty>(), publisher, sensor);
+        LongStream.rangeClosed(1, 5).mapToObj(SensorStreamObserverTest::measurementRequest).forEach(firstStream::onNext);
+        firstStream.onError(new RuntimeException("Connection dropped"));
+        // the sensor resends its buffer after reconnecting
+        SensorStreamObserver secondStream = new SensorStreamObserver(new NoopStreamObserver<Empty>(), publisher, sensor);
+        LongStream.rangeClosed(3, 8).mapToObj(SensorStreamObserverTest::measurementRequest).forEach(secondStream::onNext);
+        secondStream.onNext(measurementRequest(0));
+
+        ArgumentCaptor<byte[]> publishedCaptor = ArgumentCaptor.forClass(byte[].class);
+        verify(publisher, atLeastOnce()).publishEncoded(publishedCaptor.capture());
+        SensorMessageCodec codec = new SensorMessageCodec();
+        List<Long> publishedSequences = publishedCaptor.getAllValues()
+                .stream()
+                .map(codec::decode)
+                .filter(MeasurementMessage.class::isInstance)
+                .map(message -> ((MeasurementMessage) message).getMeasurement().getSequence())
+                .toList();
+        assertThat(publishedSequences).containsExactlyElementsOf(LongStream.rangeClosed(1, 9).boxed().toList());
+        assertThat(sensor.getMeasurementsAfter(0)).extracting(Measurement::getSequence).hasSize(9);
+        assertThat(sensor.getIngestHighWaterMark()).isEqualTo(8);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAcceptedMeasurementsAreAddedToTheSensorSketch() {
+        Sensor sensor = TestDataFactory.randomSensor();
+        sensor.setSketch(new SketchRetention(60, 10).newSketch());
+        Publisher<Serializable> publisher = mock(Publisher.class);
+
+        Timestamp now = Timestamp.newBuilder().setSeconds(Instant.now().getEpochSecond()).build();
+
+        SensorStreamObserver underTest = new SensorStreamObserver(new NoopStreamObserver<Empty>(), publisher, sensor);
+        LongStream.rangeClosed(1, 5)
+                .mapToObj(sequence -> measurementRequest(sequence).toBuilder().setMadeAt(now).build())
+                .forEach(underTest::onNext);
+        // resent, so left out
+        underTest.onNext(measurementRequest(3).toBuilder().setMadeAt(now).build());
+        QuantileSketch sketch = new QuantileSketch();
+        sensor.getSketch().mergeInto(Long.MIN_VALUE, sketch);
+
+        assertThat(sketch.getCount()).isEqualTo(5);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testInboundMessagesAreRequestedOnlyWhilePublisherHasCapacity() {
+        Sensor sensor = TestDataFactory.randomSensor();
+        Publisher<Serializable> publisher = mock(Publisher.class);
+        ServerCallStreamObserver<Empty> callStreamObserver = mock(ServerCallStreamObserver.class);
+        ArgumentCaptor<Runnable> capacityCallbackCaptor = ArgumentCaptor.forClass(Runnable.class);
+        when(publisher.hasCapacity()).thenReturn(true, true, false, false);
+
+        SensorStreamObserver underTest = new SensorStreamObserver(callStreamObserver, publisher, sensor,
+                IngestSettings.builder().inboundWindow(4).build());
+        InOrder inOrder = inOrder(callStreamObserver);
+        inOrder.verify(callStreamObserver).disableAutoRequest();
+        inOrder.verify(callStreamObserver).request(4);
+        Stream.generate(TestDataFactory::randomMeasurementRequest).limit(4).forEach(underTest::onNext);
+
+        verify(callStreamObserver, times(2)).request(1);
+        verify(publisher, times(1)).onCapacityAvailable(capacityCallbackCaptor.capture());
+        capacityCallbackCaptor.getValue().run();
+        verify(callStreamObserver, times(1)).request(2);
+    }
+
+    @Test
+    public void testIngestPathAllocatesOnlyTheEncodedMessage() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled());
+        Sensor sensor = TestDataFactory.randomSensor();
+        // a mock would allocate recording the invocations
+        Publisher<SensorMessage> publisher = new Publisher<>() {
+            private byte[] lastBody;
+
+            @Override
+            public void publishMessage(SensorMessage message) {
+            }
+
+            @Override
+            public void publishEncoded(byte[] body) {
+                lastBody = body;
+            }
+
+            @Override
+            public void cleanUp() {
+            }
+        };
+        SensorStreamObserver underTest = new SensorStreamObserver(new NoopStreamObserver<Empty>(), publisher, sensor);
+        MeasurementRequest[] requests = Stream.generate(TestDataFactory::randomMeasurementRequest)
+                .limit(1_000)
+                .toArray(MeasurementRequest[]::new);
+        int measured = 200_000;
+        // warm up, so the measured loop runs compiled code
+        for (int i = 0; i < measured; i++)
+            underTest.onNext(requests[i % requests.length]);
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < measured; i++)
+            underTest.onNext(requests[i % requests.length]);
+        long bytesPerMeasurement = (threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / measured;
+
+        // the encoded body is 16 bytes of array header plus 45 bytes, padded to 64
+        assertThat(bytesPerMeasurement).isLessThanOrEqualTo(96);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPipelineKeepsMeasurementsOfEachStreamInOrder() throws Exception {
+        Sensor firstSensor = TestDataFactory.randomSensor();
+        Sensor secondSensor = TestDataFactory.randomSensor();
+        Publisher<Serializable> firstPublisher = mock(Publisher.class);
+        Publisher<Serializable> secondPublisher = mock(Publisher.class);
+        when(firstPublisher.hasCapacity()).thenReturn(true);
+        when(secondPublisher.hasCapacity()).thenReturn(true);
+
+        try (IngestPipeline pipeline = new IngestPipeline(16)) {
+            IngestSettings settings = IngestSettings.builder().pipeline(pipeline).build();
+            SensorStreamObserver firstStream = new SensorStreamObserver(new NoopStreamObserver<Empty>(), firstPublisher,
+                    firstSensor, settings);
+            SensorStreamObserver secondStream = new SensorStreamObserver(new NoopStreamObserver<Empty>(), secondPublisher,
+                    secondSensor, settings);
+            for (long sequence = 1; sequence <= 100; sequence++) {
+                firstStream.onNext(measurementRequest(sequence));
+                secondStream.onNext(measurementRequest(sequence));
+            }
+            // a duplicate is dropped in the history stage
+            firstStream.onNext(measurementRequest(100));
+            firstStream.onCompleted();
+            secondStream.onCompleted();
+        }
+
+        SensorMessageCodec codec = new SensorMessageCodec();
+        for (Publisher<Serializable> publisher : List.of(firstPublisher, secondPublisher)) {
+            ArgumentCaptor<byte[]> publishedCaptor = ArgumentCaptor.forClass(byte[].class);
+            InOrder inOrder = Mockito.inOrder(publisher);
+            inOrder.verify(publisher, times(100)).publishEncoded(publishedCaptor.capture());
+            inOrder.verify(publisher).cleanUp();
+            assertThat(publishedCaptor.getAllValues())
+                    .map(body -> ((MeasurementMessage) codec.decode(body)).getMeasurement().getSequence())
+                    .containsExactlyElementsOf(LongStream.rangeClosed(1, 100).boxed().toList());
+        }
+        assertThat(firstSensor.getOnlineStatus()).isEqualTo(Sensor.OnlineStatus.OFFLINE);
+        assertThat(firstSensor.getIngestHighWaterMark()).isEqualTo(100);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPipelineDropsMeasurementsBehindEndOfStream() throws Exception {
+        Sensor sensor = TestDataFactory.randomSensor();
+        Publisher<Serializable> publisher = mock(Publisher.class);
+        when(publisher.hasCapacity()).thenReturn(true);
+
+        try (IngestPipeline pipeline = new IngestPipeline(16)) {
+            IngestSettings settings = IngestSettings.builder().pipeline(pipeline).build();
+            SensorStreamObserver stream = new SensorStreamObserver(new NoopStreamObserver<Empty>(), publisher,
+                    sensor, settings);
+            stream.onNext(measurementRequest(1));
+            stream.onCompleted();
+            stream.onNext(measurementRequest(2));
+        }
+
+        verify(publisher, times(1)).publishEncoded(any(byte[].class));
+        assertThat(sensor.getIngestHighWaterMark()).isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIdleSensorGoesOffline() throws Exception {
+        Sensor sensor = TestDataFactory.randomSensor();
+        sensor.setOnlineStatus(Sensor.OnlineStatus.ONLINE);
+        Publisher<Serializable> publisher = mock(Publisher.class);
+        ServerCallStreamObserver<Empty> callStreamObserver = mock(ServerCallStreamObserver.class);
+        when(publisher.hasCapacity()).thenReturn(true);
+        AtomicReference<String> closingThread = new AtomicReference<>();
+        doAnswer(invocation -> {
+            closingThread.set(Thread.currentThread().getName());
+            return null;
+        }).when(publisher).cleanUp();
+
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64)) {
+            SensorStreamObserver underTest = new SensorStreamObserver(callStreamObserver, publisher, sensor,
+                    IngestSettings.builder().idleWatch(new SensorIdleWatch(timer, 300, TimeUnit.MILLISECONDS)).build());
+            // measurements keep the stream open
+            for (int i = 0; i < 5; i++) {
+                underTest.onNext(TestDataFactory.randomMeasurementRequest());
+                Thread.sleep(100);
+            }
+            verify(callStreamObserver, never()).onError(any());
+
+            ArgumentCaptor<Throwable> errorCaptor = ArgumentCaptor.forClass(Throwable.class);
+            verify(callStreamObserver, timeout(3000)).onError(errorCaptor.capture());
+            assertThat(((StatusRuntimeException) errorCaptor.getValue()).getStatus().getCode())
+                    .isEqualTo(Status.Code.DEADLINE_EXCEEDED);
+            ArgumentCaptor<Serializable> messageCaptor = ArgumentCaptor.forClass(Serializable.class);
+            verify(publisher).publishMessage(messageCaptor.capture());
+            assertThat(((SensorOnlineStatusChanged) messageCaptor.getValue()).getSensorOnlineStatus())
+                    .isEqualTo(Sensor.OnlineStatus.UNKNOWN);
+            verify(publisher).cleanUp();
+            assertThat(sensor.getOnlineStatus()).isEqualTo(Sensor.OnlineStatus.OFFLINE);
+            // the timer thread only hands the close over
+            assertThat(closingThread.get()).isNotEqualTo("test-timer");
+
+            // the transport reporting the end of the closed call changes nothing
+            underTest.onError(Status.CANCELLED.asRuntimeException());
+            verify(publisher, times(1)).cleanUp();
+            // nor does a measurement the sensor sends after its stream was closed
+            underTest.onNext(TestDataFactory.randomMeasurementRequest());
+            verify(publisher, times(5)).publishEncoded(any());
+        }
+    }
+}
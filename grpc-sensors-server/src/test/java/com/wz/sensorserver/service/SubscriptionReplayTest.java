@@ -0,0 +1,261 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensors.proto.ActionSuccessStatus;
+import com.wz.sensors.proto.MeasurementResponse;
+import com.wz.sensors.proto.SubscribeRequest;
+import com.wz.sensors.proto.SubscriptionResponse;
+import com.wz.sensorserver.cluster.Cluster;
+import com.wz.sensorserver.cluster.ClusterNode;
+import com.wz.sensorserver.domain.AggregationWindows;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.mq.MQFanout;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.mq.message.WindowAggregateMessage;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SubscriberSettings;
+import com.wz.sensorserver.service.streamobserver.SubscriberStreamObserver;
+import com.wz.sensorserver.util.TestDataFactory;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class SubscriptionReplayTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReplayIsStitchedToLiveDataWithoutGapsAndDuplicates() throws IOException {
+        Sensor sensor = TestDataFactory.randomSensor();
+        String sensorId = sensor.getId().toString();
+        Stream.generate(TestDataFactory::randomMeasurement).limit(10).forEach(sensor::putMeasurement);
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+        MQFanout mqFanout = mock(MQFanout.class);
+        // live data arrives while the subscription is being set up: one already stored point and one new point
+        when(mqFanout.subscribe(anyString(), any(Consumer.class))).thenAnswer(invocation -> {
+            Consumer<SensorMessage> listener = invocation.getArgument(1);
+            listener.accept(new MeasurementMessage(sensor.getMeasurementsAfter(8).get(0), sensorId));
+            Measurement newMeasurement = TestDataFactory.randomMeasurement();
+            sensor.putMeasurement(newMeasurement);
+            listener.accept(new MeasurementMessage(newMeasurement, sensorId));
+            return mock(MQFanout.Registration.class);
+        });
+        StreamObserver<SubscriptionResponse> responseObserver = Mockito.spy(new NoopStreamObserver<>());
+        SubscriberStreamObserver underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository);
+
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).setReplayCount(5).build());
+
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, atLeastOnce()).onNext(responseCaptor.capture());
+        List<Long> deliveredSequences = responseCaptor.getAllValues()
+                .stream()
+                .filter(response -> response.getResponseCase().equals(SubscriptionResponse.ResponseCase.MEASUREMENT))
+                .map(SubscriptionResponse::getMeasurement)
+                .map(MeasurementResponse::getSequence)
+                .toList();
+        assertThat(deliveredSequences).containsExactlyElementsOf(LongStream.rangeClosed(7, 11).boxed().toList());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReplayPausesWhileTheCallIsNotReady() throws IOException {
+        Sensor sensor = TestDataFactory.randomSensor();
+        String sensorId = sensor.getId().toString();
+        Stream.generate(TestDataFactory::randomMeasurement).limit(10).forEach(sensor::putMeasurement);
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+        MQFanout mqFanout = mock(MQFanout.class);
+        ArgumentCaptor<Consumer<SensorMessage>> listenerCaptor = ArgumentCaptor.forClass(Consumer.class);
+        when(mqFanout.subscribe(anyString(), listenerCaptor.capture())).thenReturn(mock(MQFanout.Registration.class));
+        ServerCallStreamObserver<SubscriptionResponse> responseObserver = mock(ServerCallStreamObserver.class);
+        // three replayed measurements fit before the call stops being ready
+        when(responseObserver.isReady()).thenReturn(true, true, true, false);
+        SubscriberStreamObserver underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository);
+        ArgumentCaptor<Runnable> onReadyCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(responseObserver).setOnReadyHandler(onReadyCaptor.capture());
+
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).setReplayCount(5).build());
+        Measurement newMeasurement = TestDataFactory.randomMeasurement();
+        sensor.putMeasurement(newMeasurement);
+        listenerCaptor.getValue().accept(new MeasurementMessage(newMeasurement, sensorId));
+
+        assertThat(deliveredSequences(responseObserver)).containsExactly(6L, 7L, 8L);
+
+        when(responseObserver.isReady()).thenReturn(true);
+        onReadyCaptor.getValue().run();
+
+        assertThat(deliveredSequences(responseObserver))
+                .containsExactlyElementsOf(LongStream.rangeClosed(6, 11).boxed().toList());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLiveMessagesAreQueuedWhileTheCallIsNotReadyAndDroppedWithAGapOnceFull() throws IOException {
+        Sensor sensor = TestDataFactory.randomSensor();
+        String sensorId = sensor.getId().toString();
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+        MQFanout mqFanout = mock(MQFanout.class);
+        ArgumentCaptor<Consumer<SensorMessage>> listenerCaptor = ArgumentCaptor.forClass(Consumer.class);
+        when(mqFanout.subscribe(anyString(), listenerCaptor.capture())).thenReturn(mock(MQFanout.Registration.class));
+        ServerCallStreamObserver<SubscriptionResponse> responseObserver = mock(ServerCallStreamObserver.class);
+        SubscriberStreamObserver underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository,
+                null, SubscriberSettings.builder().liveQueueCapacity(2).build());
+        ArgumentCaptor<Runnable> onReadyCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(responseObserver).setOnReadyHandler(onReadyCaptor.capture());
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).build());
+
+        when(responseObserver.isReady()).thenReturn(false);
+        for (int i = 0; i < 5; i++) {
+            Measurement measurement = TestDataFactory.randomMeasurement();
+            sensor.putMeasurement(measurement);
+            listenerCaptor.getValue().accept(new MeasurementMessage(measurement, sensorId));
+        }
+        verify(responseObserver, times(1)).onNext(any());
+
+        when(responseObserver.isReady()).thenReturn(true);
+        onReadyCaptor.getValue().run();
+        Measurement measurement = TestDataFactory.randomMeasurement();
+        sensor.putMeasurement(measurement);
+        listenerCaptor.getValue().accept(new MeasurementMessage(measurement, sensorId));
+
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, atLeastOnce()).onNext(responseCaptor.capture());
+        assertThat(responseCaptor.getAllValues())
+                .map(response -> response.getResponseCase() == SubscriptionResponse.ResponseCase.MEASUREMENT
+                        ? response.getMeasurement().getSequence()
+                        : response.getActionResult().getActionStatus())
+                .containsExactly(ActionSuccessStatus.SUBSCRIPTION_SUCCESS, 1L, 2L,
+                        ActionSuccessStatus.SUBSCRIPTION_RESUMED_WITH_GAP, 6L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReplayIsRejectedOnNodesNotOwningTheSensor() throws Exception {
+        ClusterNode self = new ClusterNode("localhost", 8090);
+        ClusterNode owner = new ClusterNode("localhost", 8091);
+        try (Cluster cluster = new Cluster(self, List.of(self, owner), "peer-token",
+                node -> InProcessChannelBuilder.forName(node.id()).build())) {
+            Sensor sensor = Stream.generate(TestDataFactory::randomSensor)
+                    .filter(candidate -> !cluster.isLocal(candidate.getId()))
+                    .findFirst()
+                    .orElseThrow();
+            SensorRepository sensorRepository = mock(SensorRepository.class);
+            when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+            MQFanout mqFanout = mock(MQFanout.class);
+            StreamObserver<SubscriptionResponse> responseObserver = Mockito.spy(new NoopStreamObserver<>());
+            SubscriberStreamObserver underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository,
+                    null, SubscriberSettings.builder().cluster(cluster).build());
+
+            underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensor.getId().toString()).setResumeAfterSequence(5).build());
+
+            ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+            verify(responseObserver).onNext(responseCaptor.capture());
+            assertThat(responseCaptor.getValue().getActionResult().getActionStatus()).isEqualTo(ActionSuccessStatus.INVALID_REQUEST);
+            assertThat(responseCaptor.getValue().getActionResult().getMessage()).contains(owner.id());
+            verify(mqFanout, never()).subscribe(anyString(), any(Consumer.class));
+        }
+    }
+
+    private static List<Long> deliveredSequences(StreamObserver<SubscriptionResponse> responseObserver) {
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, atLeastOnce()).onNext(responseCaptor.capture());
+        return responseCaptor.getAllValues()
+                .stream()
+                .filter(response -> response.getResponseCase().equals(SubscriptionResponse.ResponseCase.MEASUREMENT))
+                .map(SubscriptionResponse::getMeasurement)
+                .map(MeasurementResponse::getSequence)
+                .toList();
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "8, 9, SUBSCRIPTION_SUCCESS",
+            "10, 11, SUBSCRIPTION_SUCCESS",
+            "2, 6, SUBSCRIPTION_RESUMED_WITH_GAP",
+            "42, 6, SUBSCRIPTION_RESUMED_WITH_GAP"
+    })
+    @SuppressWarnings("unchecked")
+    public void testResumeContinuesAfterLastSeenSequence(long resumeAfterSequence,
+                                                         long firstDeliveredSequence,
+                                                         ActionSuccessStatus expectedStatus) throws IOException {
+        Sensor sensor = Sensor.builder()
+                .id(UUID.randomUUID())
+                .historyCapacity(5)
+                .build();
+        String sensorId = sensor.getId().toString();
+        Stream.generate(TestDataFactory::randomMeasurement).limit(10).forEach(sensor::putMeasurement);
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+        MQFanout mqFanout = mock(MQFanout.class);
+        when(mqFanout.subscribe(anyString(), any(Consumer.class))).thenReturn(mock(MQFanout.Registration.class));
+        StreamObserver<SubscriptionResponse> responseObserver = Mockito.spy(new NoopStreamObserver<>());
+        SubscriberStreamObserver underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository);
+
+        underTest.onNext(SubscribeRequest.newBuilder()
+                .setSensorId(sensorId)
+                .setResumeAfterSequence(resumeAfterSequence)
+                .build());
+
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, atLeastOnce()).onNext(responseCaptor.capture());
+        List<SubscriptionResponse> responses = responseCaptor.getAllValues();
+        assertThat(responses.get(0).getActionResult().getActionStatus()).isEqualTo(expectedStatus);
+        assertThat(responses.stream()
+                .skip(1)
+                .map(SubscriptionResponse::getMeasurement)
+                .map(MeasurementResponse::getSequence)
+                .toList())
+                .containsExactlyElementsOf(LongStream.rangeClosed(firstDeliveredSequence, 10).boxed().toList());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWindowSubscriptionGetsAggregatesInsteadOfMeasurements() throws IOException {
+        Sensor sensor = TestDataFactory.randomSensor();
+        String sensorId = sensor.getId().toString();
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+        MQFanout mqFanout = mock(MQFanout.class);
+        ArgumentCaptor<Consumer<SensorMessage>> listenerCaptor = ArgumentCaptor.forClass(Consumer.class);
+        when(mqFanout.subscribe(anyString(), listenerCaptor.capture())).thenReturn(mock(MQFanout.Registration.class));
+        StreamObserver<SubscriptionResponse> responseObserver = Mockito.spy(new NoopStreamObserver<>());
+        SubscriberStreamObserver underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository, null,
+                SubscriberSettings.builder().windows(AggregationWindows.parse("1,60", "")).build());
+
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).setWindowSeconds(60).setSlidingWindow(true).build());
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).setWindowSeconds(60).build());
+        Consumer<SensorMessage> listener = listenerCaptor.getValue();
+        listener.accept(new MeasurementMessage(TestDataFactory.randomMeasurement(), sensorId));
+        listener.accept(new WindowAggregateMessage(sensorId, 1, false, 1_700_000_059L, 10, 1, 2, 15));
+        listener.accept(new WindowAggregateMessage(sensorId, 60, false, 1_700_000_000L, 600, 0, 3, 900));
+
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, times(3)).onNext(responseCaptor.capture());
+        List<SubscriptionResponse> responses = responseCaptor.getAllValues();
+        assertThat(responses.get(0).getActionResult().getActionStatus()).isEqualTo(ActionSuccessStatus.INVALID_REQUEST);
+        assertThat(responses.get(1).getActionResult().getActionStatus()).isEqualTo(ActionSuccessStatus.SUBSCRIPTION_SUCCESS);
+        assertThat(responses.get(2).getWindowAggregate().getWindowStart().getSeconds()).isEqualTo(1_700_000_000L);
+        assertThat(responses.get(2).getWindowAggregate().getMean()).isEqualTo(1.5);
+    }
+}
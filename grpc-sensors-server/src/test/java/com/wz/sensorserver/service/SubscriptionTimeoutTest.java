@@ -0,0 +1,100 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensors.proto.ActionSuccessStatus;
+import com.wz.sensors.proto.SubscribeRequest;
+import com.wz.sensors.proto.SubscriptionResponse;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.mq.MQFanout;
+import com.wz.sensorserver.repository.SensorRepository;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SubscriberSettings;
+import com.wz.sensorserver.service.streamobserver.SubscriberStreamObserver;
+import com.wz.sensorserver.util.TestDataFactory;
+import com.wz.sensorserver.util.concurrent.HashedWheelTimer;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class SubscriptionTimeoutTest {
+    private HashedWheelTimer timer;
+    private Sensor sensor;
+    private MQFanout.Registration registration;
+    private StreamObserver<SubscriptionResponse> responseObserver;
+    private SubscriberStreamObserver underTest;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        sensor = TestDataFactory.randomSensor();
+        SensorRepository sensorRepository = mock(SensorRepository.class);
+        when(sensorRepository.getSensorById(sensor.getId())).thenReturn(Optional.of(sensor));
+        MQFanout mqFanout = mock(MQFanout.class);
+        registration = mock(MQFanout.Registration.class);
+        when(mqFanout.subscribe(anyString(), any(Consumer.class))).thenReturn(registration);
+        responseObserver = Mockito.spy(new NoopStreamObserver<>());
+        underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository, null,
+                SubscriberSettings.builder().timer(timer).build());
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        timer.close();
+    }
+
+    private List<ActionSuccessStatus> actionStatuses() {
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, atLeastOnce()).onNext(responseCaptor.capture());
+        return responseCaptor.getAllValues()
+                .stream()
+                .map(response -> response.getActionResult().getActionStatus())
+                .toList();
+    }
+
+    @Test
+    public void testSubscriptionExpiresAfterTimeout() {
+        AtomicReference<String> unbindingThread = new AtomicReference<>();
+        doAnswer(invocation -> {
+            unbindingThread.set(Thread.currentThread().getName());
+            return null;
+        }).when(registration).cleanUp();
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensor.getId().toString()).setTimeout(1).build());
+
+        verify(registration, timeout(3000)).cleanUp();
+        verify(responseObserver, timeout(3000).times(2)).onNext(any());
+        assertThat(actionStatuses()).containsExactly(ActionSuccessStatus.SUBSCRIPTION_SUCCESS, ActionSuccessStatus.SUBSCRIPTION_EXPIRED);
+        assertThat(underTest.getSubscriptionCount()).isZero();
+        assertThat(timer.getPendingCount()).isZero();
+        // unbinding waits for the broker, the timer thread only hands the expiry over
+        assertThat(unbindingThread.get()).isNotEqualTo("test-timer");
+    }
+
+    @Test
+    public void testUnsubscribingCancelsExpiry() throws InterruptedException {
+        String sensorId = sensor.getId().toString();
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).setTimeout(1).build());
+        assertThat(timer.getPendingCount()).isEqualTo(1);
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(sensorId).setDisconnect(true).build());
+        assertThat(timer.getPendingCount()).isZero();
+
+        Thread.sleep(1200);
+        assertThat(actionStatuses()).containsExactly(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                ActionSuccessStatus.UNSUBSCRIPTION_SUCCESS);
+        verify(registration, times(1)).cleanUp();
+    }
+}
@@ -0,0 +1,109 @@
+package com.wz.sensorserver.service;
+
+import com.wz.sensors.proto.ActionSuccessStatus;
+import com.wz.sensors.proto.SubscribeRequest;
+import com.wz.sensors.proto.SubscriptionResponse;
+import com.wz.sensorserver.domain.Measurement;
+import com.wz.sensorserver.domain.Sensor;
+import com.wz.sensorserver.mq.MQFanout;
+import com.wz.sensorserver.mq.message.MeasurementMessage;
+import com.wz.sensorserver.mq.message.SensorMessage;
+import com.wz.sensorserver.repository.SensorRepositoryInMemory;
+import com.wz.sensorserver.service.streamobserver.NoopStreamObserver;
+import com.wz.sensorserver.service.streamobserver.SubscriberStreamObserver;
+import com.wz.sensorserver.util.TestDataFactory;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class TagSubscriptionTest {
+    private Sensor boiler;
+    private String boilerId;
+    private MQFanout mqFanout;
+    private MQFanout.Registration registration;
+    private ArgumentCaptor<Consumer<SensorMessage>> listenerCaptor;
+    private StreamObserver<SubscriptionResponse> responseObserver;
+    private SubscriberStreamObserver underTest;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        boiler = Sensor.builder()
+                .id(UUID.randomUUID())
+                .tags(List.of("boiler-room", "temperature"))
+                .build();
+        boilerId = boiler.getId().toString();
+        SensorRepositoryInMemory sensorRepository = new SensorRepositoryInMemory();
+        sensorRepository.addSensor(boiler);
+        mqFanout = mock(MQFanout.class);
+        registration = mock(MQFanout.Registration.class);
+        listenerCaptor = ArgumentCaptor.forClass(Consumer.class);
+        when(mqFanout.subscribe(anyString(), listenerCaptor.capture())).thenReturn(registration);
+        responseObserver = Mockito.spy(new NoopStreamObserver<>());
+        underTest = new SubscriberStreamObserver(mqFanout, responseObserver, sensorRepository);
+    }
+
+    @Test
+    public void testOverlappingExpressionsShareTheSensorUntilBothLeave() throws IOException {
+        underTest.onNext(SubscribeRequest.newBuilder().setTagExpression("boiler-room").build());
+        underTest.onNext(SubscribeRequest.newBuilder().setTagExpression("temperature").build());
+        underTest.onNext(SubscribeRequest.newBuilder().setTagExpression("boiler-room").setDisconnect(true).build());
+
+        verify(mqFanout, times(1)).subscribe(eq(boilerId), any());
+        verify(registration, never()).cleanUp();
+        assertThat(publishAndCountMeasurements()).isEqualTo(1);
+
+        underTest.onNext(SubscribeRequest.newBuilder().setTagExpression("temperature").setDisconnect(true).build());
+
+        verify(registration).cleanUp();
+        assertThat(underTest.getSubscriptionCount()).isZero();
+    }
+
+    @Test
+    public void testExplicitSubscriptionSharesTheSensorWithExpression() throws IOException {
+        underTest.onNext(SubscribeRequest.newBuilder().setTagExpression("boiler-room").build());
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(boilerId).build());
+        underTest.onNext(SubscribeRequest.newBuilder().setSensorId(boilerId).setDisconnect(true).build());
+
+        verify(registration, never()).cleanUp();
+        assertThat(publishAndCountMeasurements()).isEqualTo(1);
+
+        underTest.onNext(SubscribeRequest.newBuilder().setTagExpression("boiler-room").setDisconnect(true).build());
+
+        verify(registration).cleanUp();
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, atLeastOnce()).onNext(responseCaptor.capture());
+        assertThat(responseCaptor.getAllValues()
+                .stream()
+                .filter(response -> response.getResponseCase() == SubscriptionResponse.ResponseCase.ACTIONRESULT)
+                .map(response -> response.getActionResult().getActionStatus())
+                .toList())
+                .containsExactly(ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                        ActionSuccessStatus.SUBSCRIPTION_SUCCESS,
+                        ActionSuccessStatus.UNSUBSCRIPTION_SUCCESS,
+                        ActionSuccessStatus.UNSUBSCRIPTION_SUCCESS);
+    }
+
+    private long publishAndCountMeasurements() {
+        Measurement measurement = TestDataFactory.randomMeasurement();
+        boiler.putMeasurement(measurement);
+        listenerCaptor.getValue().accept(new MeasurementMessage(measurement, boilerId));
+        ArgumentCaptor<SubscriptionResponse> responseCaptor = ArgumentCaptor.forClass(SubscriptionResponse.class);
+        verify(responseObserver, atLeastOnce()).onNext(responseCaptor.capture());
+        return responseCaptor.getAllValues().stream()
+                .filter(response -> response.getResponseCase() == SubscriptionResponse.ResponseCase.MEASUREMENT)
+                .count();
+    }
+}
@@ -0,0 +1,34 @@
+package com.wz.sensorserver.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ExecutionModeTest {
+
+    @Test
+    public void testParse() {
+        assertThat(ExecutionMode.parse("Virtual")).isEqualTo(ExecutionMode.VIRTUAL);
+        assertThatThrownBy(() -> ExecutionMode.parse("green")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testDefaultModeKeepsLibraryExecutors() {
+        assertThat(ExecutionMode.DEFAULT.newExecutor("test", 2)).isNull();
+    }
+
+    @Test
+    public void testVirtualModeRunsTasksOnAnyRuntime() throws Exception {
+        ExecutorService executor = ExecutionMode.VIRTUAL.newExecutor("test", 2);
+        try {
+            Future<String> threadName = executor.submit(() -> Thread.currentThread().toString());
+            assertThat(threadName.get()).isNotEmpty();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.wz.sensorserver.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HashedWheelTimerTest {
+
+    @Test
+    public void testTimeoutFiresNotBeforeItsDelay() throws Exception {
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 8)) {
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            // longer than a turn of the wheel
+            HashedWheelTimer.Timeout timeout = timer.schedule(fired::countDown, 200, TimeUnit.MILLISECONDS);
+            assertThat(fired.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+            assertThat(timeout.isExpired()).isTrue();
+            assertThat(timeout.cancel()).isFalse();
+        }
+    }
+
+    @Test
+    public void testCancelledTimeoutsDoNotFire() throws Exception {
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64)) {
+            AtomicInteger fired = new AtomicInteger();
+            CountDownLatch last = new CountDownLatch(1);
+            for (int i = 0; i < 100_000; i++) {
+                HashedWheelTimer.Timeout timeout = timer.schedule(fired::incrementAndGet, 50 + i % 100, TimeUnit.MILLISECONDS);
+                if (i % 2 == 0)
+                    assertThat(timeout.cancel()).isTrue();
+            }
+            timer.schedule(last::countDown, 300, TimeUnit.MILLISECONDS);
+            assertThat(last.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(fired).hasValue(50_000);
+            assertThat(timer.getPendingCount()).isZero();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.wz.sensorserver.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RingBufferTest {
+
+    private static class LongEvent {
+        private long value;
+        private long doubled;
+    }
+
+    @Test
+    public void testBufferSizeMustBePowerOfTwo() {
+        assertThatThrownBy(() -> new RingBuffer<>(1000, LongEvent::new)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testStagesSeeEveryEventOfEveryProducerInOrder() throws Exception {
+        RingBuffer<LongEvent> ringBuffer = new RingBuffer<>(64, LongEvent::new);
+        BatchEventProcessor<LongEvent> first = new BatchEventProcessor<>(ringBuffer, ringBuffer.newBarrier(),
+                (event, sequence, endOfBatch) -> event.doubled = event.value * 2);
+        List<Long> seen = new ArrayList<>();
+        long[] lastOfProducer = new long[4];
+        AtomicBoolean outOfOrder = new AtomicBoolean();
+        BatchEventProcessor<LongEvent> second = new BatchEventProcessor<>(ringBuffer, ringBuffer.newBarrier(first.getSequence()),
+                (event, sequence, endOfBatch) -> {
+                    if (event.doubled != event.value * 2)
+                        outOfOrder.set(true);
+                    int producer = (int) (event.value % 4);
+                    if (event.value < lastOfProducer[producer])
+                        outOfOrder.set(true);
+                    lastOfProducer[producer] = event.value;
+                    seen.add(event.value);
+                });
+        ringBuffer.addGatingSequences(second.getSequence());
+        Thread firstThread = new Thread(first);
+        Thread secondThread = new Thread(second);
+        firstThread.start();
+        secondThread.start();
+
+        int perProducer = 10_000;
+        CountDownLatch done = new CountDownLatch(4);
+        for (int producer = 0; producer < 4; producer++) {
+            int id = producer;
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    long sequence = ringBuffer.next();
+                    ringBuffer.get(sequence).value = (long) i * 4 + id;
+                    ringBuffer.publish(sequence);
+                }
+                done.countDown();
+            }).start();
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (second.getSequence().get() < ringBuffer.getCursor() && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        first.halt();
+        second.halt();
+        firstThread.join(1000);
+        secondThread.join(1000);
+
+        assertThat(seen).hasSize(4 * perProducer).doesNotHaveDuplicates();
+        assertThat(outOfOrder).isFalse();
+        assertThat(firstThread.isAlive() || secondThread.isAlive()).isFalse();
+    }
+
+    @Test
+    public void testProducerWaitsWhileRingIsFull() throws Exception {
+        RingBuffer<LongEvent> ringBuffer = new RingBuffer<>(4, LongEvent::new);
+        Sequence consumer = new Sequence(-1);
+        ringBuffer.addGatingSequences(consumer);
+        for (int i = 0; i < 4; i++)
+            ringBuffer.publish(ringBuffer.next());
+        assertThat(ringBuffer.remainingCapacity()).isZero();
+
+        CountDownLatch claimed = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            ringBuffer.publish(ringBuffer.next());
+            claimed.countDown();
+        });
+        producer.start();
+        assertThat(claimed.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        consumer.set(0);
+        assertThat(claimed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(ringBuffer.getCursor()).isEqualTo(4);
+    }
+}
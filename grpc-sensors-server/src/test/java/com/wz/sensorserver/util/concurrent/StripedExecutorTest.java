@@ -0,0 +1,81 @@
+package com.wz.sensorserver.util.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StripedExecutorTest {
+
+    @Test
+    public void testTasksOfKeyRunInSubmissionOrder() throws Exception {
+        Map<UUID, List<Integer>> runs = new ConcurrentHashMap<>();
+        List<UUID> keys = new ArrayList<>();
+        for (int i = 0; i < 16; i++)
+            keys.add(UUID.randomUUID());
+        try (StripedExecutor executor = new StripedExecutor("test", 4)) {
+            for (int i = 0; i < 1000; i++) {
+                for (UUID key : keys) {
+                    int number = i;
+                    executor.execute(key, () -> runs.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add(number));
+                }
+            }
+        }
+        assertThat(runs).hasSize(16);
+        for (List<Integer> numbers : runs.values())
+            assertThat(numbers).hasSize(1000).isSorted();
+    }
+
+    @Test
+    public void testKeysAreSpreadOverLanes() throws Exception {
+        try (StripedExecutor executor = new StripedExecutor("test", 4)) {
+            Set<Integer> lanes = new HashSet<>();
+            for (int i = 0; i < 100; i++)
+                lanes.add(executor.laneOf(UUID.randomUUID()));
+            assertThat(lanes).containsExactlyInAnyOrder(0, 1, 2, 3);
+            UUID key = UUID.randomUUID();
+            assertThat(executor.laneOf(key)).isEqualTo(executor.laneOf(UUID.fromString(key.toString())));
+        }
+    }
+
+    @Test
+    public void testQueueDepthOfBlockedLane() throws Exception {
+        StripedExecutor executor = new StripedExecutor("test", 2);
+        UUID key = UUID.randomUUID();
+        int lane = executor.laneOf(key);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(key, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        executor.execute(key, () -> {
+        });
+        executor.execute(key, () -> {
+        });
+        assertThat(executor.getQueueDepth(lane)).isEqualTo(2);
+        assertThat(executor.getQueueDepth(1 - lane)).isZero();
+        release.countDown();
+        executor.close();
+        assertThat(executor.getQueueDepth(lane)).isZero();
+        assertThatThrownBy(() -> executor.execute(key, () -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+    }
+}